@@ -0,0 +1,212 @@
+package com.hartwig.miniwe;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.cloud.storage.StorageOptions;
+import com.hartwig.miniwe.gcloud.storage.GcloudStorage;
+import com.hartwig.miniwe.kubernetes.ConcurrencyPoolStageScheduler;
+import com.hartwig.miniwe.kubernetes.ConcurrencyPools;
+import com.hartwig.miniwe.kubernetes.DeduplicatingStageScheduler;
+import com.hartwig.miniwe.kubernetes.FairShareStageScheduler;
+import com.hartwig.miniwe.kubernetes.FederatedStageScheduler;
+import com.hartwig.miniwe.kubernetes.ImagePrePuller;
+import com.hartwig.miniwe.kubernetes.ImagePullMetrics;
+import com.hartwig.miniwe.kubernetes.KubernetesClientWrapper;
+import com.hartwig.miniwe.kubernetes.KubernetesLeaseStore;
+import com.hartwig.miniwe.kubernetes.KubernetesStageScheduler;
+import com.hartwig.miniwe.kubernetes.StageUsageHistory;
+import com.hartwig.miniwe.server.RunEventServer;
+import com.hartwig.miniwe.workflow.RunLeaseManager;
+import com.hartwig.miniwe.workflow.StageScheduler;
+
+import io.fabric8.kubernetes.client.Config;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientBuilder;
+import picocli.CommandLine;
+
+/**
+ * Command line options shared by all commands that drive runs with an engine.
+ */
+public class EngineOptions {
+    @CommandLine.Option(names = { "--workflow-directory" },
+                        description = "Directory with workflow definition files to register. The directory is watched, and changed "
+                                + "definitions are reloaded without affecting runs that already started.")
+    private Path workflowDirectory;
+
+    @CommandLine.Option(names = { "--kubernetes-namespace" },
+                        defaultValue = "default",
+                        description = "Name of the kubernetes namespace")
+    private String kubernetesNamespace;
+
+    @CommandLine.Option(names = { "--service-account-name" },
+                        description = "Name of the kubernetes job service account")
+    private String kubernetesServiceAccountName;
+
+    @CommandLine.Option(names = { "--gcp-project-id" },
+                        description = "Name of the GCP project ID")
+    private String gcpProjectId;
+
+    @CommandLine.Option(names = { "--gcp-region" },
+                        description = "Name of the GCP region")
+    private String gcpRegion;
+
+    @CommandLine.Option(names = { "--usage-history-file" },
+                        description = "Path to a JSON file with observed stage usage. If set, stage resource requests are right-sized "
+                                + "based on previous runs and the file is updated after the run.")
+    private Path usageHistoryFile;
+
+    @CommandLine.Option(names = { "--event-server-port" },
+                        description = "If set, run events are streamed as server-sent events on this port at /runs/{run_name}/events")
+    private Integer eventServerPort;
+
+    @CommandLine.Option(names = { "--cluster" },
+                        paramLabel = "name:context:namespace:region",
+                        description = "Kubernetes cluster to dispatch stages to, as kubeconfig context, namespace and region. Repeat to "
+                                + "spread stages over several clusters. Default is the current context and --kubernetes-namespace.")
+    private List<String> clusters = new ArrayList<>();
+
+    @CommandLine.Option(names = { "--pending-timeout-minutes" },
+                        defaultValue = "10",
+                        description = "With several clusters, stages still pending after this many minutes are moved to another cluster")
+    private long pendingTimeoutMinutes;
+
+    @CommandLine.Option(names = { "--deduplicate-stages" },
+                        description = "Run identical stages of concurrent runs once, and copy the output to the other runs")
+    private boolean deduplicateStages;
+
+    @CommandLine.Option(names = { "--fair-share-slots" },
+                        description = "If set, at most this many stages run at the same time, divided over workflows or tenants by "
+                                + "their share")
+    private Integer fairShareSlots;
+
+    @CommandLine.Option(names = { "--fair-share-by" },
+                        defaultValue = "WORKFLOW",
+                        description = "What stages are shared by: ${COMPLETION-CANDIDATES}")
+    private FairShareStageScheduler.ShareBy fairShareBy;
+
+    @CommandLine.Option(names = { "--share" },
+                        paramLabel = "group=weight",
+                        description = "Weight of a workflow (name-version) or tenant in fair share scheduling. Default weight is 1.")
+    private Map<String, Double> shares = new HashMap<>();
+
+    @CommandLine.Option(names = { "--fair-share-half-life-minutes" },
+                        defaultValue = "60",
+                        description = "Time after which half of the past usage of a workflow or tenant is forgiven")
+    private long fairShareHalfLifeMinutes;
+
+    @CommandLine.Option(names = { "--concurrency-pool" },
+                        paramLabel = "pool=limit",
+                        description = "Maximum number of stages of all runs that use this concurrency pool and run at the same time. "
+                                + "Pools without a limit do not limit anything.")
+    private Map<String, Integer> concurrencyPools = new HashMap<>();
+
+    @CommandLine.Option(names = { "--prepull-images" },
+                        description = "Keep a daemon set that pulls the images of all registered workflows on every node")
+    private boolean prepullImages;
+
+    @CommandLine.Option(names = { "--replica-id" },
+                        description = "If set, this engine is one of several replicas. Runs are claimed with a kubernetes Lease in "
+                                + "--kubernetes-namespace, and the batch command takes over runs of replicas whose lease expired.")
+    private String replicaId;
+
+    @CommandLine.Option(names = { "--lease-duration-seconds" },
+                        defaultValue = "60",
+                        description = "Time after which the run lease of a replica that stopped renewing it expires")
+    private long leaseDurationSeconds;
+
+    /**
+     * Creates the clients and the engine, and starts the workflow registry and the event server if they are configured.
+     *
+     * @param takeOverRuns whether the engine takes over runs of other replicas whose lease expired. Only for engines that keep running
+     *                     after their own runs are done.
+     */
+    public EngineSession openSession(boolean takeOverRuns) throws IOException {
+        var gcloudStorage = StorageOptions.newBuilder().setProjectId(gcpProjectId).build().getService();
+        var session = new EngineSession(gcloudStorage);
+        try {
+            var storage = new GcloudStorage(gcloudStorage, gcpRegion);
+            var usageHistory = usageHistoryFile != null ? StageUsageHistory.load(usageHistoryFile) : null;
+            var imagePrePullers = new ArrayList<ImagePrePuller>();
+            var pools = new ConcurrencyPools(concurrencyPools);
+            var imagePullMetrics = new ImagePullMetrics();
+            var clusterScheduler =
+                    createStageScheduler(storage, usageHistory, imagePullMetrics, session.kubernetesClients, imagePrePullers);
+            var fairShareScheduler = fairShareSlots != null ? new FairShareStageScheduler(clusterScheduler,
+                    fairShareSlots,
+                    fairShareBy,
+                    shares,
+                    Duration.ofMinutes(fairShareHalfLifeMinutes)) : clusterScheduler;
+            // stages waiting for a pool permit must not take up a fair share slot
+            var poolScheduler = new ConcurrencyPoolStageScheduler(fairShareScheduler, pools);
+            var stageScheduler = deduplicateStages ? new DeduplicatingStageScheduler(poolScheduler, storage) : poolScheduler;
+            var runLeases = replicaId != null ? new RunLeaseManager(new KubernetesLeaseStore(session.kubernetesClients.get(0),
+                    kubernetesNamespace), replicaId, Duration.ofSeconds(leaseDurationSeconds), takeOverRuns) : null;
+            var engine = new MiniWorkflowEngine(storage, stageScheduler, runLeases);
+            session.start(engine, usageHistory, runLeases);
+            imagePrePullers.forEach(prePuller -> engine.addWorkflowDefinitionListener(prePuller::update));
+
+            if (workflowDirectory != null) {
+                var workflowRegistry = new WorkflowRegistry(workflowDirectory, engine);
+                session.workflowRegistry = workflowRegistry;
+                workflowRegistry.loadAll();
+                workflowRegistry.watch();
+            }
+            if (eventServerPort != null) {
+                var eventServer = new RunEventServer(eventServerPort, engine, pools, imagePullMetrics);
+                session.eventServer = eventServer;
+                eventServer.start();
+            }
+            return session;
+        } catch (IOException | RuntimeException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    private StageScheduler createStageScheduler(GcloudStorage storage, StageUsageHistory usageHistory, ImagePullMetrics imagePullMetrics,
+            List<KubernetesClient> kubernetesClients, List<ImagePrePuller> imagePrePullers) {
+        if (clusters.isEmpty()) {
+            var client = new KubernetesClientBuilder().build();
+            kubernetesClients.add(client);
+            var kubernetesClient = new KubernetesClientWrapper(client);
+            if (prepullImages) {
+                imagePrePullers.add(new ImagePrePuller(kubernetesNamespace, kubernetesClient, storage));
+            }
+            return new KubernetesStageScheduler(kubernetesNamespace,
+                    kubernetesClient,
+                    kubernetesServiceAccountName,
+                    storage,
+                    usageHistory,
+                    null,
+                    imagePullMetrics);
+        }
+        var federatedClusters = new ArrayList<FederatedStageScheduler.Cluster>();
+        for (String cluster : clusters) {
+            var parts = cluster.split(":");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException(String.format("Cluster '%s' is not of the form name:context:namespace:region", cluster));
+            }
+            var client = new KubernetesClientBuilder().withConfig(Config.autoConfigure(parts[1])).build();
+            kubernetesClients.add(client);
+            var kubernetesClient = new KubernetesClientWrapper(client);
+            if (prepullImages) {
+                imagePrePullers.add(new ImagePrePuller(parts[2], kubernetesClient, storage));
+            }
+            var scheduler = new KubernetesStageScheduler(parts[2],
+                    kubernetesClient,
+                    kubernetesServiceAccountName,
+                    storage,
+                    usageHistory,
+                    Duration.ofMinutes(pendingTimeoutMinutes),
+                    imagePullMetrics);
+            federatedClusters.add(new FederatedStageScheduler.Cluster(parts[0], parts[3], scheduler));
+        }
+        return new FederatedStageScheduler(federatedClusters, gcpRegion);
+    }
+}
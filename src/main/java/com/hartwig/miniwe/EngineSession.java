@@ -0,0 +1,84 @@
+package com.hartwig.miniwe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.cloud.storage.Storage;
+import com.hartwig.miniwe.kubernetes.StageUsageHistory;
+import com.hartwig.miniwe.server.RunEventServer;
+import com.hartwig.miniwe.workflow.RunLeaseManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.client.KubernetesClient;
+
+/**
+ * Engine with the clients and services it was created with, see {@link EngineOptions#openSession(boolean)}. Closing the session
+ * closes all of them.
+ */
+public class EngineSession implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EngineSession.class);
+    private static final long TAKEN_OVER_RUNS_POLL_MILLIS = 10_000;
+
+    final List<KubernetesClient> kubernetesClients = new ArrayList<>();
+    private final Storage gcloudStorage;
+    private MiniWorkflowEngine engine;
+    private StageUsageHistory usageHistory;
+    private RunLeaseManager runLeases;
+    WorkflowRegistry workflowRegistry;
+    RunEventServer eventServer;
+
+    EngineSession(final Storage gcloudStorage) {
+        this.gcloudStorage = gcloudStorage;
+    }
+
+    void start(MiniWorkflowEngine engine, StageUsageHistory usageHistory, RunLeaseManager runLeases) {
+        this.engine = engine;
+        this.usageHistory = usageHistory;
+        this.runLeases = runLeases;
+    }
+
+    public MiniWorkflowEngine engine() {
+        return engine;
+    }
+
+    /**
+     * Waits until the runs this replica took over from other replicas are done. Returns immediately without run leases.
+     */
+    public void awaitTakenOverRuns() throws InterruptedException {
+        if (runLeases == null) {
+            return;
+        }
+        while (!runLeases.getOwnedRuns().isEmpty()) {
+            LOGGER.info("Waiting for taken over runs {} to finish.", runLeases.getOwnedRuns());
+            Thread.sleep(TAKEN_OVER_RUNS_POLL_MILLIS);
+        }
+    }
+
+    public void saveUsageHistory() throws IOException {
+        if (usageHistory != null) {
+            usageHistory.save();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (runLeases != null) {
+            runLeases.close();
+        }
+        if (eventServer != null) {
+            eventServer.close();
+        }
+        if (workflowRegistry != null) {
+            workflowRegistry.close();
+        }
+        kubernetesClients.forEach(KubernetesClient::close);
+        try {
+            gcloudStorage.close();
+        } catch (Exception e) {
+            LOGGER.warn("Could not close the storage client", e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.hartwig.miniwe;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -16,4 +17,18 @@ public final class ExecutorUtil {
                 new SynchronousQueue<>(),
                 new ThreadFactoryBuilder().setNameFormat(nameTemplate).build());
     }
+
+    /**
+     * Creates an executor service for short tasks. Tasks are queued instead of rejected when all threads are busy.
+     */
+    public static ExecutorService createQueuedExecutorService(int nThreads, String nameTemplate) {
+        var executor = new ThreadPoolExecutor(nThreads,
+                nThreads,
+                60L,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat(nameTemplate).setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
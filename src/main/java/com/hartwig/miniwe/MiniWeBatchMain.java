@@ -0,0 +1,81 @@
+package com.hartwig.miniwe;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.hartwig.miniwe.batch.BatchSubmitter;
+import com.hartwig.miniwe.batch.ExecutionManifest;
+import com.hartwig.miniwe.miniwdl.DefinitionReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import picocli.CommandLine;
+
+/**
+ * Runs all executions of a manifest through one engine.
+ */
+@CommandLine.Command(name = "batch")
+public class MiniWeBatchMain implements Callable<Integer> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MiniWeBatchMain.class);
+
+    @CommandLine.Parameters(paramLabel = "manifest",
+                            index = "0",
+                            description = "JSONL file with one execution definition per line, or CSV file with name, workflow and version "
+                                    + "columns and one column per parameter")
+    private Path manifest;
+
+    @CommandLine.Option(names = { "--workflow" },
+                        description = "Workflow definition file to register. Can be repeated, and combined with --workflow-directory.")
+    private List<Path> workflows = new ArrayList<>();
+
+    @CommandLine.Option(names = { "--results-file" },
+                        required = true,
+                        description = "JSONL file the status and duration of every run are appended to once the run is done. "
+                                + "Results of earlier batches in the file are kept.")
+    private Path resultsFile;
+
+    @CommandLine.Option(names = { "--concurrency" },
+                        defaultValue = "16",
+                        description = "Maximum number of runs in flight")
+    private int concurrency;
+
+    @CommandLine.Mixin
+    private EngineOptions engineOptions;
+
+    @Override
+    public Integer call() {
+        if (concurrency < 1 || concurrency > MiniWorkflowEngine.MAX_CONCURRENT_RUNS) {
+            LOGGER.error("Concurrency must be between 1 and {}", MiniWorkflowEngine.MAX_CONCURRENT_RUNS);
+            return 1;
+        }
+        try (var session = engineOptions.openSession(true);
+                var executions = ExecutionManifest.open(manifest);
+                var resultsWriter = Files.newBufferedWriter(resultsFile,
+                        StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND)) {
+            var definitionReader = new DefinitionReader();
+            for (Path workflow : workflows) {
+                session.engine().putWorkflowDefinition(definitionReader.readWorkflow(workflow.toString()));
+            }
+            var countByStatus = new BatchSubmitter(session.engine(), concurrency, resultsWriter).submit(executions);
+            LOGGER.info("Finished batch. Runs per status: {}, unreadable records: {}.", countByStatus, executions.getSkippedRecords());
+            session.awaitTakenOverRuns();
+            session.saveUsageHistory();
+            return 0;
+        } catch (Exception e) {
+            LOGGER.error("Unexpected exception", e);
+            return 1;
+        }
+    }
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new MiniWeBatchMain()).execute(args));
+    }
+}
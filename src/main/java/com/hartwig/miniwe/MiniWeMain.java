@@ -2,16 +2,11 @@ package com.hartwig.miniwe;
 
 import java.util.concurrent.Callable;
 
-import com.google.cloud.storage.StorageOptions;
-import com.hartwig.miniwe.gcloud.storage.GcloudStorage;
-import com.hartwig.miniwe.kubernetes.KubernetesClientWrapper;
-import com.hartwig.miniwe.kubernetes.KubernetesStageScheduler;
 import com.hartwig.miniwe.miniwdl.DefinitionReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.fabric8.kubernetes.client.KubernetesClientBuilder;
 import picocli.CommandLine;
 
 public class MiniWeMain implements Callable<Integer> {
@@ -27,55 +22,36 @@ public class MiniWeMain implements Callable<Integer> {
                             description = "Path to the execution definition file")
     private String executionDefinitionYaml;
 
-    @CommandLine.Option(names = { "--kubernetes-namespace" },
-                        defaultValue = "default",
-                        description = "Name of the kubernetes namespace")
-    private String kubernetesNamespace;
-
-    @CommandLine.Option(names = { "--service-account-name" },
-                        description = "Name of the kubernetes job service account")
-    private String kubernetesServiceAccountName;
-
-    @CommandLine.Option(names = { "--gcp-project-id" },
-                        description = "Name of the GCP project ID")
-    private String gcpProjectId;
-
-    @CommandLine.Option(names = { "--gcp-region" },
-                        description = "Name of the GCP region")
-    private String gcpRegion;
+    @CommandLine.Mixin
+    private EngineOptions engineOptions;
 
     @Override
     public Integer call() {
-        try (var kubernetesClient = new KubernetesClientBuilder().build();
-                var gcloudStorage = StorageOptions.newBuilder().setProjectId(gcpProjectId).build().getService()) {
+        try {
             var definitionReader = new DefinitionReader();
             var executionDefinition = definitionReader.readExecution(executionDefinitionYaml);
             var workflowDefinition = definitionReader.readWorkflow(workflowDescriptionYaml);
-
-            var storage = new GcloudStorage(gcloudStorage, gcpRegion);
-            var kubernetesClientWrapper = new KubernetesClientWrapper(kubernetesClient);
-            var kubernetesStageScheduler = new KubernetesStageScheduler(kubernetesNamespace, kubernetesClientWrapper,
-                    kubernetesServiceAccountName,
-                    storage);
-            var miniWorkflowEngine = new MiniWorkflowEngine(storage, kubernetesStageScheduler);
-
-            miniWorkflowEngine.addWorkflowDefinition(workflowDefinition);
-
-            LOGGER.info("Starting execution graph.");
-            var success = miniWorkflowEngine.findOrStartRun(executionDefinition).get();
-            LOGGER.info("Finished running execution graph. Final result: {}.", success ? "Success" : "Failed");
-            if (success) {
-                miniWorkflowEngine.cleanupRun(executionDefinition);
+            // a single execution exits once its run is done, so it never takes over runs of other replicas
+            try (var session = engineOptions.openSession(false)) {
+                var miniWorkflowEngine = session.engine();
+                miniWorkflowEngine.putWorkflowDefinition(workflowDefinition);
+
+                LOGGER.info("Starting execution graph.");
+                var success = miniWorkflowEngine.findOrStartRun(executionDefinition).get();
+                LOGGER.info("Finished running execution graph. Final result: {}.", success ? "Success" : "Failed");
+                session.saveUsageHistory();
+                if (success) {
+                    miniWorkflowEngine.cleanupRun(executionDefinition);
+                }
             }
             return 0;
         } catch (Exception e) {
             LOGGER.error("Unexpected exception", e);
             return 1;
         }
-
     }
 
     public static void main(String[] args) {
         System.exit(new CommandLine(new MiniWeMain()).execute(args));
     }
-}
\ No newline at end of file
+}
@@ -1,14 +1,24 @@
 package com.hartwig.miniwe;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.hartwig.miniwe.gcloud.storage.GcloudStorage;
-import com.hartwig.miniwe.kubernetes.KubernetesStageScheduler;
 import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
 import com.hartwig.miniwe.miniwdl.WorkflowDefinition;
+import com.hartwig.miniwe.workflow.RunLeaseManager;
+import com.hartwig.miniwe.workflow.StageScheduler;
 import com.hartwig.miniwe.workflow.WorkflowGraph;
 import com.hartwig.miniwe.workflow.WorkflowUtil;
 
@@ -17,17 +27,42 @@ import org.slf4j.LoggerFactory;
 
 public class MiniWorkflowEngine {
     private static final Logger LOGGER = LoggerFactory.getLogger(MiniWorkflowEngine.class);
-    private static final int MAX_CONCURRENT_RUNS = 32;
+    public static final int MAX_CONCURRENT_RUNS = 32;
+    private static final int NOTIFICATION_THREADS = 4;
+    private static final int BOOTSTRAP_THREADS = 8;
 
     private final GcloudStorage gcloudStorage;
-    private final KubernetesStageScheduler kubernetesStageScheduler;
+    private final StageScheduler stageScheduler;
     private final ExecutorService executorService;
+    private final ExecutorService notificationExecutorService;
+    private final ExecutorService bootstrapExecutorService;
     private final ConcurrentMap<String, WorkflowGraph> workflowGraphToName = new ConcurrentHashMap<>();
+    // replaced or removed graphs that may still drive runs
+    private final Set<WorkflowGraph> retiredWorkflowGraphs = ConcurrentHashMap.newKeySet();
+    private final Optional<RunLeaseManager> runLeases;
+    private final List<Consumer<Collection<WorkflowDefinition>>> workflowDefinitionListeners = new CopyOnWriteArrayList<>();
 
-    public MiniWorkflowEngine(final GcloudStorage gcloudStorage, final KubernetesStageScheduler kubernetesStageScheduler) {
+    public MiniWorkflowEngine(final GcloudStorage gcloudStorage, final StageScheduler stageScheduler) {
+        this(gcloudStorage, stageScheduler, null);
+    }
+
+    /**
+     * @param runLeases if not null, this engine is one of several replicas. A run is only driven while this replica holds its lease,
+     *                  and runs of replicas that died are taken over.
+     */
+    public MiniWorkflowEngine(final GcloudStorage gcloudStorage, final StageScheduler stageScheduler, final RunLeaseManager runLeases) {
         this.gcloudStorage = gcloudStorage;
-        this.kubernetesStageScheduler = kubernetesStageScheduler;
+        this.runLeases = Optional.ofNullable(runLeases);
+        this.stageScheduler = stageScheduler;
         this.executorService = ExecutorUtil.createExecutorService(MAX_CONCURRENT_RUNS, "workflow-run-thread-%d");
+        this.notificationExecutorService = ExecutorUtil.createQueuedExecutorService(NOTIFICATION_THREADS, "notification-thread-%d");
+        this.bootstrapExecutorService = ExecutorUtil.createQueuedExecutorService(BOOTSTRAP_THREADS, "bootstrap-thread-%d");
+        stageScheduler.addStageStartedListener(executionStage -> findRun(executionStage.runName()).ifPresent(
+                run -> run.onStageStarted(executionStage.stage().name())));
+        // taking over a run creates its graph and claims its lease, which must not hold up renewing the other leases
+        this.runLeases.ifPresent(leases -> leases.start(
+                executionDefinition -> bootstrapExecutorService.execute(() -> takeOverRun(executionDefinition)),
+                this::onRunLeaseLost));
     }
 
     public void addWorkflowDefinition(WorkflowDefinition workflowDefinition) {
@@ -35,7 +70,65 @@ public class MiniWorkflowEngine {
         if (workflowGraphToName.containsKey(workflowName)) {
             throw new IllegalArgumentException(String.format("Workflow with name '%s' already exists", workflowName));
         }
-        workflowGraphToName.put(workflowName, new WorkflowGraph(workflowDefinition, executorService));
+        workflowGraphToName.put(workflowName, new WorkflowGraph(workflowDefinition, executorService, notificationExecutorService));
+        notifyWorkflowDefinitionListeners();
+    }
+
+    /**
+     * Registers the workflow definition, or atomically replaces the registered definition with the same name and version. Runs that
+     * already started keep using the definition they were started with.
+     *
+     * @return true if a registered definition was replaced.
+     */
+    public boolean putWorkflowDefinition(WorkflowDefinition workflowDefinition) {
+        var workflowGraph = new WorkflowGraph(workflowDefinition, executorService, notificationExecutorService);
+        var previous = workflowGraphToName.put(WorkflowUtil.getWorkflowName(workflowDefinition), workflowGraph);
+        retire(previous);
+        notifyWorkflowDefinitionListeners();
+        return previous != null;
+    }
+
+    /**
+     * Removes the workflow definition so no new runs can be started for it. Runs that already started are not affected.
+     */
+    public void removeWorkflowDefinition(String workflowName) {
+        retire(workflowGraphToName.remove(workflowName));
+        notifyWorkflowDefinitionListeners();
+    }
+
+    public Optional<WorkflowDefinition> findWorkflowDefinition(String workflowName) {
+        return Optional.ofNullable(workflowGraphToName.get(workflowName)).map(WorkflowGraph::getWorkflowDefinition);
+    }
+
+    /**
+     * Registers a listener that is called with all registered workflow definitions, now and every time a definition is added, replaced
+     * or removed.
+     */
+    public void addWorkflowDefinitionListener(Consumer<Collection<WorkflowDefinition>> listener) {
+        workflowDefinitionListeners.add(listener);
+        listener.accept(workflowDefinitions());
+    }
+
+    private List<WorkflowDefinition> workflowDefinitions() {
+        return workflowGraphToName.values().stream().map(WorkflowGraph::getWorkflowDefinition).collect(Collectors.toList());
+    }
+
+    private void notifyWorkflowDefinitionListeners() {
+        var workflowDefinitions = workflowDefinitions();
+        for (var listener : workflowDefinitionListeners) {
+            try {
+                listener.accept(workflowDefinitions);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Workflow definition listener failed", e);
+            }
+        }
+    }
+
+    private void retire(WorkflowGraph workflowGraph) {
+        retiredWorkflowGraphs.removeIf(graph -> !graph.hasRunningRuns());
+        if (workflowGraph != null && workflowGraph.hasRunningRuns()) {
+            retiredWorkflowGraphs.add(workflowGraph);
+        }
     }
 
     public CompletableFuture<Boolean> findOrStartRun(ExecutionDefinition executionDefinition) {
@@ -46,20 +139,84 @@ public class MiniWorkflowEngine {
         if (workflowGraph == null) {
             throw new IllegalArgumentException(String.format("Workflow with name '%s' does not exist.", workflowName));
         }
-        var bucket = gcloudStorage.findOrCreateBucket(runName);
-        var run = workflowGraph.getOrCreateRun(kubernetesStageScheduler, bucket.getCachedStages(), executionDefinition);
-        run.subscribe(stage -> LOGGER.info("[{}] Execution graph updated: {}", run.getRunName(), run.toDotFormat()));
-        return run.start();
+        workflowGraph.checkExecution(executionDefinition);
+        // a run that started before its definition was replaced or removed is still driven by the retired graph
+        var retiredRun = retiredWorkflowGraphs.stream()
+                .map(graph -> graph.findRun(runName))
+                .flatMap(Optional::stream)
+                .filter(WorkflowGraph.WorkflowGraphExecution::isRunning)
+                .findFirst();
+        if (retiredRun.isPresent()) {
+            LOGGER.info("[{}] Run is still driven by an earlier version of its workflow definition", runName);
+            return retiredRun.get().start();
+        }
+        if (runLeases.isPresent() && !runLeases.get().claim(executionDefinition)) {
+            return CompletableFuture.failedFuture(new IllegalStateException(String.format("Run '%s' is driven by replica '%s'",
+                    runName,
+                    runLeases.get().findHolder(runName).orElse("unknown"))));
+        }
+        // stages that finished before are cached in the bucket, stages that are still running are resumed from their labelled jobs.
+        // The bucket and cache are resolved in the background while the run is created, so submitting runs never waits on storage.
+        var scatteredStages = workflowGraph.getWorkflowDefinition()
+                .stages()
+                .stream()
+                .filter(stage -> stage.scatter().isPresent())
+                .map(Stage::name)
+                .collect(Collectors.toSet());
+        var cachedStages = gcloudStorage.findOrCreateBucketAsync(runName, bootstrapExecutorService)
+                .thenApplyAsync(bucket -> bucket.getCachedStages(scatteredStages), bootstrapExecutorService);
+        var run = workflowGraph.getOrCreateRun(stageScheduler, cachedStages, executionDefinition);
+        run.subscribe(change -> {
+            LOGGER.info("[{}] Stage states updated to version {}: {}", run.getRunName(), change.version(), change.changes());
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("[{}] Execution graph: {}", run.getRunName(), run.toDotFormat());
+            }
+        });
+        var done = run.start();
+        // the lease is released before the caller sees the run done, so an engine that exits right after does not leave it behind
+        return runLeases.map(leases -> done.whenComplete((success, error) -> leases.release(executionDefinition))).orElse(done);
+    }
+
+    public Optional<WorkflowGraph.WorkflowGraphExecution> findRun(String runName) {
+        return findWorkflowGraph(runName).flatMap(graph -> graph.findRun(runName));
+    }
+
+    private Optional<WorkflowGraph> findWorkflowGraph(String runName) {
+        return Stream.concat(workflowGraphToName.values().stream(), retiredWorkflowGraphs.stream())
+                .filter(graph -> graph.findRun(runName).isPresent())
+                .findFirst();
+    }
+
+    private void takeOverRun(ExecutionDefinition executionDefinition) {
+        var runName = WorkflowUtil.getRunName(executionDefinition);
+        try {
+            findOrStartRun(executionDefinition).whenComplete((success, error) -> LOGGER.info(
+                    "[{}] Finished taken over run with status '{}'",
+                    runName,
+                    Boolean.TRUE.equals(success) ? "Success" : "Failed"));
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("[{}] Could not take over run, leaving it to other replicas", runName, e);
+            runLeases.ifPresent(leases -> leases.abandon(executionDefinition));
+        }
+    }
+
+    private void onRunLeaseLost(String runName) {
+        findRun(runName).filter(WorkflowGraph.WorkflowGraphExecution::isRunning).ifPresent(run -> {
+            LOGGER.warn("[{}] Stopping run since another replica drives it now", runName);
+            // the other replica resumes the jobs of the run, so they must outlive cancelling its stages here
+            stageScheduler.detachStagesForRun(run.getExecutionDefinition());
+            run.cancel();
+        });
     }
 
     public void cleanupRun(ExecutionDefinition executionDefinition) {
         var runName = WorkflowUtil.getRunName(executionDefinition);
         LOGGER.info("Cleaning up run with name '{}'", runName);
-        var workflowGraph = workflowGraphToName.get(executionDefinition.workflow());
-        if (workflowGraph == null) {
-            throw new IllegalArgumentException(String.format("Workflow with name '%s' does not exist.", executionDefinition.workflow()));
+        var workflowGraph = findWorkflowGraph(runName);
+        if (workflowGraph.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Run with name '%s' does not exist.", runName));
         }
-        workflowGraph.delete(executionDefinition);
-        kubernetesStageScheduler.deleteStagesForRun(executionDefinition);
+        workflowGraph.get().delete(executionDefinition);
+        stageScheduler.deleteStagesForRun(executionDefinition);
     }
 }
@@ -0,0 +1,248 @@
+package com.hartwig.miniwe;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import com.google.common.hash.Hashing;
+import com.hartwig.miniwe.miniwdl.DefinitionReader;
+import com.hartwig.miniwe.miniwdl.WorkflowDefinition;
+import com.hartwig.miniwe.workflow.WorkflowUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the workflow definitions of the engine in sync with the YAML files in a directory. Definitions are identified by the hash of
+ * their file content, so rewriting a file with the same content does not register it again. A changed definition atomically replaces
+ * the registered one, and runs that already started keep using the definition they started with. When several files define the same
+ * workflow, the first one registers it and the others take over when it is deleted.
+ */
+public class WorkflowRegistry implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WorkflowRegistry.class);
+
+    private final Path directory;
+    private final MiniWorkflowEngine engine;
+    private final DefinitionReader definitionReader = new DefinitionReader();
+    // every readable definition file, including those whose workflow is registered from another file
+    private final Map<Path, Registration> registrationByPath = new HashMap<>();
+    private final Map<String, Path> registeredPathByWorkflowName = new HashMap<>();
+    private WatchService watchService;
+    private Thread watchThread;
+
+    public WorkflowRegistry(final Path directory, final MiniWorkflowEngine engine) {
+        this.directory = directory;
+        this.engine = engine;
+    }
+
+    /**
+     * Reads and registers all workflow definitions in the directory. Files are read and parsed in parallel.
+     */
+    public void loadAll() throws IOException {
+        List<Path> files;
+        try (var paths = Files.list(directory)) {
+            files = paths.filter(WorkflowRegistry::isDefinitionFile).sorted().collect(Collectors.toList());
+        }
+        var definitions = files.parallelStream().map(this::read).flatMap(Optional::stream).collect(Collectors.toList());
+        definitions.stream().sorted(Comparator.comparing(definition -> definition.path)).forEach(this::register);
+        LOGGER.info("Registered {} workflow definitions from '{}'", registeredWorkflowCount(), directory);
+    }
+
+    /**
+     * Starts watching the directory for created, changed and deleted workflow definitions.
+     */
+    public synchronized void watch() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        watchThread = new Thread(this::processEvents, "workflow-registry-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Re-reads one definition file and registers it if its content changed, or unregisters it if it no longer exists.
+     */
+    void reload(Path file) {
+        if (!Files.exists(file)) {
+            unregister(file);
+        } else {
+            read(file).ifPresent(this::register);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchThread.interrupt();
+        }
+    }
+
+    private synchronized int registeredWorkflowCount() {
+        return registeredPathByWorkflowName.size();
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                var key = watchService.take();
+                for (var event : key.pollEvents()) {
+                    // a failure to reload one change must not stop watching for the next ones
+                    try {
+                        if (event.kind() == OVERFLOW) {
+                            LOGGER.warn("Missed changes in '{}', reloading all workflow definitions", directory);
+                            loadAll();
+                        } else {
+                            var file = directory.resolve((Path) event.context());
+                            if (isDefinitionFile(file)) {
+                                reload(file);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.error("Could not reload workflow definitions from '{}'", directory, e);
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.info("Stopped watching '{}' for workflow definitions", directory);
+        }
+    }
+
+    private Optional<LoadedDefinition> read(Path file) {
+        try {
+            var content = Files.readAllBytes(file);
+            var hash = Hashing.sha256().hashBytes(content).toString();
+            var definition = definitionReader.readWorkflow(new ByteArrayInputStream(content));
+            return Optional.of(new LoadedDefinition(file, hash, definition));
+        } catch (IOException e) {
+            LOGGER.error("Could not read workflow definition '{}'", file, e);
+            return Optional.empty();
+        }
+    }
+
+    private synchronized void register(LoadedDefinition loaded) {
+        var workflowName = WorkflowUtil.getWorkflowName(loaded.definition);
+        var current = registrationByPath.get(loaded.path);
+        if (current != null && current.hash.equals(loaded.hash)) {
+            LOGGER.debug("Workflow definition '{}' did not change", loaded.path);
+            return;
+        }
+        var registration = new Registration(workflowName, loaded.hash, loaded.definition);
+        var registeredPath = registeredPathByWorkflowName.get(workflowName);
+        if (registeredPath != null && !registeredPath.equals(loaded.path)) {
+            if (!registrationByPath.get(registeredPath).hash.equals(loaded.hash)) {
+                LOGGER.error("Ignoring '{}' since workflow '{}' is already defined differently in '{}'",
+                        loaded.path,
+                        workflowName,
+                        registeredPath);
+            } else {
+                LOGGER.info("Workflow definition '{}' is identical to '{}'", loaded.path, registeredPath);
+            }
+            registrationByPath.put(loaded.path, registration);
+            if (current != null) {
+                release(loaded.path, current);
+            }
+            return;
+        }
+        try {
+            var replaced = engine.putWorkflowDefinition(loaded.definition);
+            LOGGER.info("{} workflow '{}' from '{}'", replaced ? "Reloaded" : "Registered", workflowName, loaded.path);
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Workflow definition '{}' is invalid, keeping the registered version", loaded.path, e);
+            return;
+        }
+        registrationByPath.put(loaded.path, registration);
+        registeredPathByWorkflowName.put(workflowName, loaded.path);
+        if (current != null && !current.workflowName.equals(workflowName)) {
+            release(loaded.path, current);
+        }
+    }
+
+    private synchronized void unregister(Path file) {
+        var registration = registrationByPath.remove(file);
+        if (registration != null) {
+            release(file, registration);
+        }
+    }
+
+    /**
+     * Called when the file no longer defines the workflow of the registration. If the workflow was registered from the file, another
+     * file that defines it registers it instead, or the workflow is removed if there is none.
+     */
+    private void release(Path file, Registration registration) {
+        var workflowName = registration.workflowName;
+        if (!file.equals(registeredPathByWorkflowName.get(workflowName))) {
+            return;
+        }
+        registeredPathByWorkflowName.remove(workflowName);
+        var candidates = registrationByPath.entrySet()
+                .stream()
+                .filter(entry -> !entry.getKey().equals(file) && entry.getValue().workflowName.equals(workflowName))
+                .sorted(Map.Entry.comparingByKey())
+                .collect(Collectors.toList());
+        for (var candidate : candidates) {
+            try {
+                if (!candidate.getValue().hash.equals(registration.hash)) {
+                    engine.putWorkflowDefinition(candidate.getValue().definition);
+                }
+                registeredPathByWorkflowName.put(workflowName, candidate.getKey());
+                LOGGER.info("Workflow '{}' is now registered from '{}' since '{}' no longer defines it",
+                        workflowName,
+                        candidate.getKey(),
+                        file);
+                return;
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("Workflow definition '{}' is invalid", candidate.getKey(), e);
+            }
+        }
+        engine.removeWorkflowDefinition(workflowName);
+        LOGGER.info("Removed workflow '{}' since '{}' no longer defines it", workflowName, file);
+    }
+
+    private static boolean isDefinitionFile(Path file) {
+        var fileName = file.getFileName().toString();
+        return fileName.endsWith(".yaml") || fileName.endsWith(".yml");
+    }
+
+    private static class LoadedDefinition {
+        private final Path path;
+        private final String hash;
+        private final WorkflowDefinition definition;
+
+        private LoadedDefinition(final Path path, final String hash, final WorkflowDefinition definition) {
+            this.path = path;
+            this.hash = hash;
+            this.definition = definition;
+        }
+    }
+
+    private static class Registration {
+        private final String workflowName;
+        private final String hash;
+        private final WorkflowDefinition definition;
+
+        private Registration(final String workflowName, final String hash, final WorkflowDefinition definition) {
+            this.workflowName = workflowName;
+            this.hash = hash;
+            this.definition = definition;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.hartwig.miniwe.batch;
+
+import java.time.Instant;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Outcome of one run of a batch.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableBatchResult.class)
+@JsonSerialize(as = ImmutableBatchResult.class)
+public interface BatchResult {
+    enum Status {
+        SUCCESS,
+        FAILED,
+        /**
+         * The run could not be started, or the engine failed while driving it.
+         */
+        ERROR
+    }
+
+    String runName();
+
+    Status status();
+
+    Instant startTime();
+
+    long durationSeconds();
+
+    Optional<String> error();
+
+    static ImmutableBatchResult.Builder builder() {
+        return ImmutableBatchResult.builder();
+    }
+}
@@ -0,0 +1,138 @@
+package com.hartwig.miniwe.batch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.hartwig.miniwe.MiniWorkflowEngine;
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.workflow.WorkflowUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Submits executions to one engine while keeping at most a fixed number of runs in flight. The result of every run is appended to a
+ * JSONL results file as soon as the run is done, and the engine state of succeeded runs is cleaned up so memory does not grow with the
+ * size of the batch.
+ */
+public class BatchSubmitter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchSubmitter.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().registerModule(new Jdk8Module())
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+    private final MiniWorkflowEngine engine;
+    private final int concurrency;
+    private final Semaphore window;
+    private final Writer resultsWriter;
+    private final Map<BatchResult.Status, Integer> countByStatus = new EnumMap<>(BatchResult.Status.class);
+
+    public BatchSubmitter(final MiniWorkflowEngine engine, final int concurrency, final Writer resultsWriter) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Batch concurrency must be at least 1");
+        }
+        this.engine = engine;
+        this.concurrency = concurrency;
+        this.window = new Semaphore(concurrency);
+        this.resultsWriter = resultsWriter;
+    }
+
+    /**
+     * Submits all executions and waits until all runs are done. The next execution is only read once a run finished and the window
+     * has room for it.
+     *
+     * @return number of runs per status.
+     */
+    public Map<BatchResult.Status, Integer> submit(Iterator<ExecutionDefinition> executions) throws InterruptedException {
+        var submitted = 0;
+        while (executions.hasNext()) {
+            var execution = executions.next();
+            window.acquire();
+            start(execution);
+            submitted++;
+        }
+        LOGGER.info("Submitted {} runs, waiting for the last ones to finish", submitted);
+        window.acquire(concurrency);
+        window.release(concurrency);
+        synchronized (countByStatus) {
+            return Map.copyOf(countByStatus);
+        }
+    }
+
+    private void start(ExecutionDefinition execution) {
+        var startTime = Instant.now();
+        try {
+            engine.findOrStartRun(execution).whenComplete((success, error) -> {
+                try {
+                    if (error != null) {
+                        var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                        record(execution, BatchResult.Status.ERROR, startTime, Optional.of(String.valueOf(cause.getMessage())));
+                    } else if (success) {
+                        record(execution, BatchResult.Status.SUCCESS, startTime, Optional.empty());
+                        engine.cleanupRun(execution);
+                    } else {
+                        record(execution, BatchResult.Status.FAILED, startTime, Optional.empty());
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error("[{}] Could not finish the run of the batch", execution.name(), e);
+                } finally {
+                    window.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not start execution '{}'", execution.name(), e);
+            try {
+                record(execution, BatchResult.Status.ERROR, startTime, Optional.of(String.valueOf(e.getMessage())));
+            } finally {
+                window.release();
+            }
+        }
+    }
+
+    private void record(ExecutionDefinition execution, BatchResult.Status status, Instant startTime, Optional<String> error) {
+        var result = BatchResult.builder()
+                .runName(runName(execution))
+                .status(status)
+                .startTime(startTime)
+                .durationSeconds(Duration.between(startTime, Instant.now()).toSeconds())
+                .error(error)
+                .build();
+        synchronized (countByStatus) {
+            countByStatus.merge(status, 1, Integer::sum);
+        }
+        try {
+            var line = OBJECT_MAPPER.writeValueAsString(result);
+            synchronized (resultsWriter) {
+                resultsWriter.write(line);
+                resultsWriter.write('\n');
+                resultsWriter.flush();
+            }
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(String.format("Could not serialize the result of run '%s'", result.runName()), e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String runName(ExecutionDefinition execution) {
+        try {
+            return WorkflowUtil.getRunName(execution);
+        } catch (IllegalArgumentException e) {
+            return execution.name();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.hartwig.miniwe.batch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads execution definitions from a manifest one record at a time, so the manifest is never loaded into memory as a whole. Records
+ * that cannot be read are logged and skipped.
+ * <p>
+ * A JSONL manifest has one execution definition as JSON per line. A CSV manifest has a header with the columns {@code name},
+ * {@code workflow} and {@code version}, and optionally {@code tenant}, which is left unset where it is empty; every other column is a
+ * parameter of the execution.
+ */
+public class ExecutionManifest implements Iterator<ExecutionDefinition>, AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutionManifest.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().registerModule(new Jdk8Module());
+    private static final List<String> CSV_COLUMNS = List.of("name", "workflow", "version");
+    private static final String TENANT_COLUMN = "tenant";
+
+    public enum Format {
+        JSONL,
+        CSV
+    }
+
+    private final BufferedReader reader;
+    private final Format format;
+    private final List<String> csvHeader;
+    private ExecutionDefinition next;
+    private int lineNumber = 0;
+    private int skippedRecords = 0;
+
+    public ExecutionManifest(final Reader reader, final Format format) throws IOException {
+        this.reader = new BufferedReader(reader);
+        this.format = format;
+        if (format == Format.CSV) {
+            var header = this.reader.readLine();
+            lineNumber++;
+            if (header == null) {
+                throw new IllegalArgumentException("CSV manifest has no header");
+            }
+            csvHeader = parseCsvLine(header);
+            if (!csvHeader.containsAll(CSV_COLUMNS)) {
+                throw new IllegalArgumentException(String.format("CSV manifest header must contain the columns %s", CSV_COLUMNS));
+            }
+        } else {
+            csvHeader = List.of();
+        }
+    }
+
+    /**
+     * Opens a manifest file. Files ending in {@code .csv} are read as CSV, all other files as JSONL.
+     */
+    public static ExecutionManifest open(Path path) throws IOException {
+        var format = path.getFileName().toString().toLowerCase().endsWith(".csv") ? Format.CSV : Format.JSONL;
+        return new ExecutionManifest(Files.newBufferedReader(path, StandardCharsets.UTF_8), format);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            String line;
+            try {
+                line = reader.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (line == null) {
+                return false;
+            }
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                next = format == Format.CSV ? fromCsv(line) : OBJECT_MAPPER.readValue(line, ExecutionDefinition.class);
+            } catch (JsonProcessingException | RuntimeException e) {
+                LOGGER.error("Skipping unreadable record on line {} of the manifest", lineNumber, e);
+                skippedRecords++;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public ExecutionDefinition next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        var current = next;
+        next = null;
+        return current;
+    }
+
+    public int getSkippedRecords() {
+        return skippedRecords;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private ExecutionDefinition fromCsv(String line) {
+        var values = parseCsvLine(line);
+        if (values.size() != csvHeader.size()) {
+            throw new IllegalArgumentException(String.format("Expected %s columns but found %s", csvHeader.size(), values.size()));
+        }
+        var builder = ExecutionDefinition.builder();
+        for (int i = 0; i < values.size(); i++) {
+            var column = csvHeader.get(i);
+            if (column.equals("name")) {
+                builder.name(values.get(i));
+            } else if (column.equals("workflow")) {
+                builder.workflow(values.get(i));
+            } else if (column.equals("version")) {
+                builder.version(values.get(i));
+            } else if (column.equals(TENANT_COLUMN)) {
+                if (!values.get(i).isEmpty()) {
+                    builder.tenant(values.get(i));
+                }
+            } else {
+                builder.putParams(column, values.get(i));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Splits a CSV line on commas. Fields can be quoted with double quotes, and a double quote in a quoted field is written twice.
+     */
+    static List<String> parseCsvLine(String line) {
+        var fields = new ArrayList<String>();
+        var field = new StringBuilder();
+        var quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            var c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unclosed quote in CSV line");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
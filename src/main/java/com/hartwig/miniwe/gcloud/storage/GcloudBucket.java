@@ -1,48 +1,311 @@
 package com.hartwig.miniwe.gcloud.storage;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.Bucket;
 import com.google.cloud.storage.Storage;
+import com.hartwig.miniwe.kubernetes.StageInput;
 import com.hartwig.miniwe.kubernetes.StorageProvider;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import io.fabric8.kubernetes.api.model.Container;
 import io.fabric8.kubernetes.api.model.ContainerBuilder;
 import io.fabric8.kubernetes.api.model.VolumeMountBuilder;
 
 public class GcloudBucket {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GcloudBucket.class);
+    public static final String TRANSFER_IMAGE = "eu.gcr.io/hmf-build/google/cloud-sdk:425.0.0";
+    static final String STREAM_STOP_MARKER = ".stop";
+    static final String END_OF_STREAM_MARKER = ".eos";
+    static final String STREAM_FAILED_MARKER = ".failed";
+    private static final String STREAM_SUFFIX = ".stream";
+    static final String PACKED_INDEX = ".packed-index.tsv";
+    private static final String PACKED_CHUNK_PREFIX = ".packed-";
+    private static final int FILES_PER_CHUNK = 1000;
+    // custom metadata of the packed index with the total size of the files before they were packed
+    static final String UNPACKED_SIZE_METADATA = "miniwe-unpacked-bytes";
+    private static final int STREAM_INTERVAL_SECONDS = 10;
+    // files that are still being written should end in .tmp and are renamed once they are final
+    private static final String UNFINISHED_FILES = "'.*\\.tmp$'";
+    private static final String STREAM_MARKERS = "'^\\.(stop|eos|failed)$'";
+
     private final Bucket bucket;
+    // a bucket this engine just created has no output yet, so the first cache probe can skip listing it
+    private final AtomicBoolean empty;
 
     public GcloudBucket(final Bucket bucket) {
+        this(bucket, false);
+    }
+
+    private GcloudBucket(final Bucket bucket, final boolean empty) {
         this.bucket = bucket;
+        this.empty = new AtomicBoolean(empty);
     }
 
-    public Set<String> getCachedStages() {
-        return bucket.list(Storage.BlobListOption.currentDirectory())
+    static GcloudBucket created(Bucket bucket) {
+        return new GcloudBucket(bucket, true);
+    }
+
+    /**
+     * Returns the stages that have output in the bucket, and for every scattered stage with output the directories directly under it
+     * as "{stage}/{shard}", so its shards are cached individually. Only directories are listed, never the objects in them.
+     */
+    public Set<String> getCachedStages(Set<String> scatteredStages) {
+        if (empty.getAndSet(false)) {
+            return Set.of();
+        }
+        var stages = listDirectories(Storage.BlobListOption.currentDirectory());
+        var cached = new HashSet<>(stages);
+        for (String stage : stages) {
+            if (scatteredStages.contains(stage)) {
+                cached.addAll(listDirectories(Storage.BlobListOption.currentDirectory(), Storage.BlobListOption.prefix(stage + "/")));
+            }
+        }
+        return Collections.unmodifiableSet(cached);
+    }
+
+    private Set<String> listDirectories(Storage.BlobListOption... options) {
+        return bucket.list(options)
                 .streamAll()
                 .filter(blob -> blob.getName().endsWith("/"))
                 .map(blob -> blob.getName().substring(0, blob.getName().length() - 1))
-                .collect(Collectors.toUnmodifiableSet());
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Size of the output as a stage that takes it as input needs it, so for packed output the size of the files after unpacking.
+     */
+    public long getOutputSizeBytes(String outputPath) {
+        var index = bucket.get(outputPath + "/" + PACKED_INDEX);
+        if (index != null && index.getMetadata() != null && index.getMetadata().containsKey(UNPACKED_SIZE_METADATA)) {
+            return Long.parseLong(index.getMetadata().get(UNPACKED_SIZE_METADATA));
+        }
+        return bucket.list(Storage.BlobListOption.prefix(outputPath + "/"))
+                .streamAll()
+                .map(Blob::getSize)
+                .filter(Objects::nonNull)
+                .mapToLong(Long::longValue)
+                .sum();
+    }
+
+    /**
+     * Copies all objects under the output path to the same path in the target bucket, without downloading them.
+     */
+    public void copyOutput(GcloudBucket target, String outputPath) {
+        var targetName = Objects.requireNonNull(target.bucket.getName());
+        var copied = 0;
+        for (Blob blob : bucket.list(Storage.BlobListOption.prefix(outputPath + "/")).iterateAll()) {
+            blob.copyTo(targetName, blob.getName()).getResult();
+            copied++;
+        }
+        LOGGER.info("[{}] Copied {} objects of '{}' from bucket '{}'", targetName, copied, outputPath, bucket.getName());
     }
 
-    public Container initStorageContainer(String inputStage, String volumeName) {
-        var bucketName = Objects.requireNonNull(bucket.getName());
+    /**
+     * Copies the output of the input stage into the volume. Packed output is unpacked, and if files are given only the chunks with those
+     * files are downloaded and only those files are extracted.
+     */
+    public Container initStorageContainer(String inputStage, List<String> files, String volumeName) {
         return new ContainerBuilder().withName(inputStage + "-input")
-                .withImage("eu.gcr.io/hmf-build/google/cloud-sdk:425.0.0")
-                .withCommand(List.of("sh", "-c", String.format("gsutil rsync gs://%s/%s /in", bucketName, inputStage)))
+                .withImage(TRANSFER_IMAGE)
+                .withCommand(List.of("sh", "-c", inputCommand(inputStage, files, "/in", "/tmp/")))
                 .withVolumeMounts(new VolumeMountBuilder().withName(volumeName).withMountPath("/in").build())
                 .build();
     }
 
-    public Container exitStorageContainer(String outputStage, String volumeName) {
-        var bucketName = Objects.requireNonNull(bucket.getName());
-        return new ContainerBuilder().withName(outputStage + "-copier")
-                .withImage("eu.gcr.io/hmf-build/google/cloud-sdk:425.0.0")
-                .withCommand("sh", "-c", String.format("gsutil rsync /out gs://%s/%s", bucketName, outputStage))
+    /**
+     * Copies the outputs of all shards of the input stage, and unpacks the shards that were packed in place.
+     */
+    public Container initGatherStorageContainer(String inputStage, String volumeName) {
+        return new ContainerBuilder().withName(inputStage + "-input")
+                .withImage(TRANSFER_IMAGE)
+                .withCommand(List.of("sh", "-c", gatherCommand(inputStage, "/in")))
+                .withVolumeMounts(new VolumeMountBuilder().withName(volumeName).withMountPath("/in").build())
+                .build();
+    }
+
+    /**
+     * Copies all inputs in one container, each in a background job of which at most the given number run at the same time. Fails once
+     * all jobs are done if any of them failed.
+     */
+    public Container initInputFetcherContainer(List<StageInput> inputs, int parallelism) {
+        var script = new StringBuilder("failed=0; running=0; ");
+        for (StageInput input : inputs) {
+            var directory = "/in/" + input.stage();
+            var command = input.scattered()
+                    ? gatherCommand(input.stage(), directory)
+                    : inputCommand(input.stage(), input.files(), directory, String.format("/tmp/%s-", input.stage()));
+            script.append(String.format("(%s) & running=$((running+1)); if [ $running -ge %d ]; then wait -n || failed=1; "
+                    + "running=$((running-1)); fi; ", command, parallelism));
+        }
+        script.append("while [ $running -gt 0 ]; do wait -n || failed=1; running=$((running-1)); done; exit $failed");
+        return new ContainerBuilder().withName("input-fetcher")
+                .withImage(TRANSFER_IMAGE)
+                .withCommand(List.of("bash", "-c", script.toString()))
+                .withVolumeMounts(inputs.stream()
+                        .map(input -> new VolumeMountBuilder().withName(input.volumeName()).withMountPath("/in/" + input.stage()).build())
+                        .collect(Collectors.toList()))
+                .build();
+    }
+
+    /**
+     * @param tmpPrefix prefix of the temporary files, which must differ per input when several inputs are copied in parallel.
+     */
+    private String inputCommand(String inputStage, List<String> files, String directory, String tmpPrefix) {
+        var inputPath = String.format("gs://%s/%s", Objects.requireNonNull(bucket.getName()), inputStage);
+        var unpack = files.isEmpty() ? unpackAll(inputPath, directory, tmpPrefix) : unpackFiles(inputPath, files, directory, tmpPrefix);
+        return String.format("if gsutil -q stat %s/%s; then %s; else gsutil rsync %s %s; fi",
+                inputPath,
+                PACKED_INDEX,
+                unpack,
+                inputPath,
+                directory);
+    }
+
+    /**
+     * Downloads the index before reading it, so a failed download fails the container instead of unpacking nothing.
+     */
+    private static String unpackAll(String inputPath, String directory, String tmpPrefix) {
+        return String.format("gsutil cat %1$s/%4$s > %3$sindex && cut -f1 %3$sindex | sort -u | while read chunk; do "
+                + "gsutil cat %1$s/$chunk | tar -xzf - -C %2$s || exit 1; done", inputPath, directory, tmpPrefix, PACKED_INDEX);
+    }
+
+    /**
+     * Looks up the chunk of every file in the index, fails if a file is missing, and extracts the files of each chunk.
+     */
+    private static String unpackFiles(String inputPath, List<String> files, String directory, String tmpPrefix) {
+        var wanted = files.stream().map(file -> "'./" + file + "'").collect(Collectors.joining(" "));
+        return String.format("printf '%%s\\n' %1$s > %3$swanted && gsutil cat %2$s/%5$s > %3$sindex && awk -F'\\t' "
+                        + "'NR==FNR{w[$0];next} ($2 in w){print $2 > (\"%3$sfiles-\" $1); delete w[$2]} END{for (f in w) {print "
+                        + "\"missing \" f; exit 1}}' %3$swanted %3$sindex && for list in %3$sfiles-*; do chunk=${list#%3$sfiles-}; "
+                        + "gsutil cat %2$s/$chunk | tar -xzf - -C %4$s -T $list || exit 1; done",
+                wanted,
+                inputPath,
+                tmpPrefix,
+                directory,
+                PACKED_INDEX);
+    }
+
+    private String gatherCommand(String inputStage, String directory) {
+        var unpack = String.format("for index in $(find %s -name %s); do dir=$(dirname $index); "
+                + "cut -f1 $index | sort -u | while read chunk; do tar -xzf $dir/$chunk -C $dir && rm $dir/$chunk || exit 1; done "
+                + "|| exit 1; rm $index; done", directory, PACKED_INDEX);
+        return String.format("gsutil -m rsync -r gs://%s/%s %s && %s",
+                Objects.requireNonNull(bucket.getName()),
+                inputStage,
+                directory,
+                unpack);
+    }
+
+    /**
+     * Copies the output in the volume to "{stage}.stream/{attempt}" every few seconds until the stop marker is written, then copies
+     * once more.
+     */
+    public Container streamingOutputContainer(String outputStage, int attempt, String volumeName) {
+        var streamPath = streamUrl(outputStage, attempt);
+        var sync = String.format("gsutil -m -q rsync -r -x %s /out %s", UNFINISHED_FILES, streamPath);
+        var command = String.format("until gsutil -q stat %s/%s; do %s; sleep %d; done; %s",
+                streamPath,
+                STREAM_STOP_MARKER,
+                sync,
+                STREAM_INTERVAL_SECONDS,
+                sync);
+        return new ContainerBuilder().withName(outputStage + "-streamer")
+                .withImage(TRANSFER_IMAGE)
+                .withCommand("sh", "-c", command)
+                .withVolumeMounts(new VolumeMountBuilder().withName(volumeName).withMountPath("/out").build())
+                .build();
+    }
+
+    /**
+     * Copies "{stage}.stream/{attempt}" into the volume every few seconds until the end-of-stream marker is written, then copies once
+     * more and writes the marker into the volume. Exits with an error when the failed marker is written instead.
+     */
+    public Container streamingInputContainer(String inputStage, int attempt, String volumeName) {
+        var streamPath = streamUrl(inputStage, attempt);
+        var sync = String.format("gsutil -m -q rsync -r -x %s %s /in", STREAM_MARKERS, streamPath);
+        var command = String.format("until gsutil -q stat %s/%s; do if gsutil -q stat %s/%s; then exit 1; fi; %s; sleep %d; done; "
+                        + "%s && touch /in/%s",
+                streamPath,
+                END_OF_STREAM_MARKER,
+                streamPath,
+                STREAM_FAILED_MARKER,
+                sync,
+                STREAM_INTERVAL_SECONDS,
+                sync,
+                END_OF_STREAM_MARKER);
+        return new ContainerBuilder().withName(inputStage + "-stream")
+                .withImage(TRANSFER_IMAGE)
+                .withCommand("sh", "-c", command)
+                .withVolumeMounts(new VolumeMountBuilder().withName(volumeName).withMountPath("/in").build())
+                .build();
+    }
+
+    public void resetStream(String outputStage, int attempt) {
+        for (var marker : List.of(STREAM_STOP_MARKER, END_OF_STREAM_MARKER, STREAM_FAILED_MARKER)) {
+            bucket.getStorage().delete(bucket.getName(), streamPath(outputStage, attempt) + "/" + marker);
+        }
+    }
+
+    public void writeStreamMarker(String outputStage, int attempt, String marker) {
+        bucket.create(streamPath(outputStage, attempt) + "/" + marker, new byte[0]);
+    }
+
+    public void deleteStreams(String outputStage) {
+        var deleted = 0;
+        for (Blob blob : bucket.list(Storage.BlobListOption.prefix(outputStage + STREAM_SUFFIX + "/")).iterateAll()) {
+            blob.delete();
+            deleted++;
+        }
+        LOGGER.info("[{}] Deleted {} streamed objects of '{}'", bucket.getName(), deleted, outputStage);
+    }
+
+    private static String streamPath(String stage, int attempt) {
+        return String.format("%s%s/%d", stage, STREAM_SUFFIX, attempt);
+    }
+
+    private String streamUrl(String stage, int attempt) {
+        return String.format("gs://%s/%s", Objects.requireNonNull(bucket.getName()), streamPath(stage, attempt));
+    }
+
+    /**
+     * Copies the output in the volume to the bucket. Packed output is stored as gzipped tar chunks of a fixed number of files, next to
+     * an index with the chunk of every file. Chunks are streamed from tar to the bucket, and the index records the unpacked size of the
+     * output in its metadata.
+     */
+    public Container exitStorageContainer(String outputPath, boolean packed, String volumeName) {
+        var outputUrl = String.format("gs://%s/%s", Objects.requireNonNull(bucket.getName()), outputPath);
+        var command = packed ? packCommand(outputUrl) : String.format("gsutil rsync /out %s", outputUrl);
+        return new ContainerBuilder().withName(outputPath.replace('/', '-') + "-copier")
+                .withImage(TRANSFER_IMAGE)
+                // pipefail needs bash, so a failed tar is not hidden by gsutil storing what it got
+                .withCommand(packed ? "bash" : "sh", "-c", command)
                 .withVolumeMounts(new VolumeMountBuilder().withName(volumeName).withMountPath("/out").build())
                 .build();
     }
+
+    private static String packCommand(String outputUrl) {
+        return String.format("set -o pipefail && cd /out && find . -type f | sort > /tmp/files "
+                        + "&& size=$(find . -type f -printf '%%s\\n' | awk '{s+=$1} END {printf \"%%d\", s}') "
+                        + "&& split -l %d -d -a 5 /tmp/files /tmp/chunk- "
+                        + "&& : > /tmp/index && for list in /tmp/chunk-*; do [ -e $list ] || continue; chunk=%s${list#/tmp/chunk-}.tar.gz; "
+                        + "tar -czf - -T $list | gsutil -q cp - %s/$chunk || exit 1; "
+                        + "sed \"s|^|$chunk\t|\" $list >> /tmp/index; done "
+                        + "&& gsutil -q -h \"x-goog-meta-%s:$size\" cp /tmp/index %s/%s",
+                FILES_PER_CHUNK,
+                PACKED_CHUNK_PREFIX,
+                outputUrl,
+                UNPACKED_SIZE_METADATA,
+                outputUrl,
+                PACKED_INDEX);
+    }
 }
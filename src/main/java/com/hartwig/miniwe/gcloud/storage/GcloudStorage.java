@@ -1,11 +1,17 @@
 package com.hartwig.miniwe.gcloud.storage;
 
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 import com.google.cloud.storage.BucketInfo;
 import com.google.cloud.storage.Storage;
 import com.hartwig.miniwe.kubernetes.KubernetesUtil;
+import com.hartwig.miniwe.kubernetes.StageInput;
 import com.hartwig.miniwe.kubernetes.StorageProvider;
 
 import org.slf4j.Logger;
@@ -19,7 +25,7 @@ public class GcloudStorage implements StorageProvider {
     private final Storage storage;
     private final String gcpRegion;
 
-    private final ConcurrentMap<String, GcloudBucket> bucketByRunName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<GcloudBucket>> bucketByRunName = new ConcurrentHashMap<>();
 
     public GcloudStorage(final Storage storage, final String gcpRegion) {
         this.storage = storage;
@@ -27,30 +33,113 @@ public class GcloudStorage implements StorageProvider {
     }
 
     public GcloudBucket findOrCreateBucket(String runName) {
-        if (bucketByRunName.containsKey(runName)) {
-            return bucketByRunName.get(runName);
+        try {
+            return findOrCreateBucketAsync(runName, Runnable::run).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
         }
+    }
+
+    /**
+     * Resolves the bucket of the run on the executor. Concurrent callers for the same run share one lookup, so the bucket is only
+     * looked up or created once. A failed lookup is not remembered.
+     */
+    public CompletableFuture<GcloudBucket> findOrCreateBucketAsync(String runName, Executor executor) {
+        var bucketFuture = new CompletableFuture<GcloudBucket>();
+        var existing = bucketByRunName.putIfAbsent(runName, bucketFuture);
+        if (existing != null) {
+            return existing;
+        }
+        executor.execute(() -> {
+            try {
+                bucketFuture.complete(lookupOrCreateBucket(runName));
+            } catch (RuntimeException e) {
+                bucketByRunName.remove(runName, bucketFuture);
+                bucketFuture.completeExceptionally(e);
+            }
+        });
+        return bucketFuture;
+    }
+
+    private GcloudBucket lookupOrCreateBucket(String runName) {
         var bucketName = KubernetesUtil.toValidRFC1123Label("run", runName);
         var bucket = storage.get(bucketName);
         if (bucket != null) {
             LOGGER.warn("[{}] Bucket already exists, reusing it.", bucketName);
-        } else {
-            var bucketInfo = BucketInfo.newBuilder(bucketName).setLocation(gcpRegion).build();
-            bucket = storage.create(bucketInfo);
-            LOGGER.info("[{}] Created run bucket in project [{}]", bucketName, storage.getOptions().getProjectId());
+            return new GcloudBucket(bucket);
         }
-        var gcloudBucket = new GcloudBucket(bucket);
-        bucketByRunName.put(runName, gcloudBucket);
-        return gcloudBucket;
+        var bucketInfo = BucketInfo.newBuilder(bucketName).setLocation(gcpRegion).build();
+        bucket = storage.create(bucketInfo);
+        LOGGER.info("[{}] Created run bucket in project [{}]", bucketName, storage.getOptions().getProjectId());
+        return GcloudBucket.created(bucket);
+    }
+
+    @Override
+    public Container initStorageContainer(final String runName, final String inputStage, final List<String> files,
+            final String volumeName) {
+        return findOrCreateBucket(runName).initStorageContainer(inputStage, files, volumeName);
+    }
+
+    @Override
+    public Container initGatherStorageContainer(final String runName, final String inputStage, final String volumeName) {
+        return findOrCreateBucket(runName).initGatherStorageContainer(inputStage, volumeName);
+    }
+
+    @Override
+    public Container initInputFetcherContainer(final String runName, final List<StageInput> inputs, final int parallelism) {
+        return findOrCreateBucket(runName).initInputFetcherContainer(inputs, parallelism);
+    }
+
+    @Override
+    public Container exitStorageContainer(final String runName, final String outputPath, final boolean packed, final String volumeName) {
+        return findOrCreateBucket(runName).exitStorageContainer(outputPath, packed, volumeName);
+    }
+
+    @Override
+    public Container streamingOutputContainer(final String runName, final String outputStage, final int attempt,
+            final String volumeName) {
+        return findOrCreateBucket(runName).streamingOutputContainer(outputStage, attempt, volumeName);
+    }
+
+    @Override
+    public Container streamingInputContainer(final String runName, final String inputStage, final int attempt, final String volumeName) {
+        return findOrCreateBucket(runName).streamingInputContainer(inputStage, attempt, volumeName);
+    }
+
+    @Override
+    public void resetStream(final String runName, final String outputStage, final int attempt) {
+        findOrCreateBucket(runName).resetStream(outputStage, attempt);
+    }
+
+    @Override
+    public void stopStream(final String runName, final String outputStage, final int attempt) {
+        findOrCreateBucket(runName).writeStreamMarker(outputStage, attempt, GcloudBucket.STREAM_STOP_MARKER);
+    }
+
+    @Override
+    public void endStream(final String runName, final String outputStage, final int attempt, final boolean success) {
+        findOrCreateBucket(runName).writeStreamMarker(outputStage,
+                attempt,
+                success ? GcloudBucket.END_OF_STREAM_MARKER : GcloudBucket.STREAM_FAILED_MARKER);
+    }
+
+    @Override
+    public void deleteStreams(final String runName, final String outputStage) {
+        findOrCreateBucket(runName).deleteStreams(outputStage);
+    }
+
+    @Override
+    public long outputSizeBytes(final String runName, final String outputPath) {
+        return findOrCreateBucket(runName).getOutputSizeBytes(outputPath);
     }
 
     @Override
-    public Container initStorageContainer(final String runName, final String inputStage, final String volumeName) {
-        return findOrCreateBucket(runName).initStorageContainer(inputStage, volumeName);
+    public void copyOutput(final String fromRunName, final String toRunName, final String outputPath) {
+        findOrCreateBucket(fromRunName).copyOutput(findOrCreateBucket(toRunName), outputPath);
     }
 
     @Override
-    public Container exitStorageContainer(final String runName, final String outputStage, final String volumeName) {
-        return findOrCreateBucket(runName).exitStorageContainer(outputStage, volumeName);
+    public Set<String> transferImages() {
+        return Set.of(GcloudBucket.TRANSFER_IMAGE);
     }
 }
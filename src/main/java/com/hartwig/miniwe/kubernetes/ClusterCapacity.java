@@ -0,0 +1,34 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.util.List;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Resources of the schedulable nodes of a cluster that are not requested by any pod, in total and per node.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableClusterCapacity.class)
+@JsonSerialize(as = ImmutableClusterCapacity.class)
+public interface ClusterCapacity {
+    double freeCpuCores();
+
+    long freeMemoryBytes();
+
+    List<NodeCapacity> nodes();
+
+    /**
+     * Whether a single node has room for the given requests, since a pod cannot use the free resources of several nodes.
+     */
+    default boolean fits(double cpuCores, double memoryBytes) {
+        return nodes().stream().anyMatch(node -> node.freeCpuCores() >= cpuCores && node.freeMemoryBytes() >= memoryBytes);
+    }
+
+    static ImmutableClusterCapacity.Builder builder() {
+        return ImmutableClusterCapacity.builder();
+    }
+}
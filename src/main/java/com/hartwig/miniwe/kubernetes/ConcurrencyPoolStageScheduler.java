@@ -0,0 +1,140 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.StageScheduler;
+import com.hartwig.miniwe.workflow.WorkflowUtil;
+
+/**
+ * Passes a stage on to the delegate once it holds a permit of the concurrency pools it uses, and releases the permit once the delegate
+ * is done with it. Placed in front of the fair share scheduler, so a stage waiting for a permit does not take up a fair share slot, and
+ * in front of the cluster schedulers, so the limits hold across clusters.
+ */
+public class ConcurrencyPoolStageScheduler implements StageScheduler {
+    private final StageScheduler delegate;
+    private final ConcurrencyPools pools;
+    private final Set<WaitingStage> waiting = new HashSet<>();
+
+    public ConcurrencyPoolStageScheduler(final StageScheduler delegate, final ConcurrencyPools pools) {
+        this.delegate = delegate;
+        this.pools = pools;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> schedule(final ExecutionStage executionStage) {
+        var stage = new WaitingStage(executionStage,
+                pools.acquire(ExecutionStage.getName(executionStage), ConcurrencyPools.poolsOf(executionStage)));
+        synchronized (this) {
+            waiting.add(stage);
+        }
+        stage.result.whenComplete((success, error) -> {
+            if (stage.result.isCancelled()) {
+                onCancelled(stage);
+            }
+        });
+        stage.permit.thenAccept(permit -> start(stage, permit));
+        return stage.result;
+    }
+
+    @Override
+    public void addStageStartedListener(final Consumer<ExecutionStage> listener) {
+        delegate.addStageStartedListener(listener);
+    }
+
+    /**
+     * Gives up the place in the queue of the pools of the waiting stages of the run, and deletes its resources in the delegate.
+     */
+    @Override
+    public void deleteStagesForRun(final ExecutionDefinition executionDefinition) {
+        var runName = WorkflowUtil.getRunName(executionDefinition);
+        synchronized (this) {
+            waiting.removeIf(stage -> {
+                if (stage.executionStage.runName().equals(runName)) {
+                    stage.permit.cancel(false);
+                    return true;
+                }
+                return false;
+            });
+        }
+        delegate.deleteStagesForRun(executionDefinition);
+    }
+
+    @Override
+    public void detachStagesForRun(final ExecutionDefinition executionDefinition) {
+        delegate.detachStagesForRun(executionDefinition);
+    }
+
+    @Override
+    public void deleteStreams(final ExecutionDefinition executionDefinition, final String outputStage) {
+        delegate.deleteStreams(executionDefinition, outputStage);
+    }
+
+    synchronized int getWaitingStageCount() {
+        return waiting.size();
+    }
+
+    /**
+     * A cancelled stage that is still waiting gives up its place in the queue, a started stage is cancelled in the delegate which
+     * releases its permit once the delegate is done with it.
+     */
+    private void onCancelled(WaitingStage stage) {
+        CompletableFuture<Boolean> running;
+        synchronized (this) {
+            waiting.remove(stage);
+            running = stage.delegateResult;
+        }
+        stage.permit.cancel(false);
+        if (running != null) {
+            running.cancel(true);
+        }
+    }
+
+    private void start(WaitingStage stage, ConcurrencyPools.Permit permit) {
+        synchronized (this) {
+            waiting.remove(stage);
+        }
+        if (stage.result.isDone()) {
+            permit.release();
+            return;
+        }
+        CompletableFuture<Boolean> result;
+        try {
+            result = delegate.schedule(stage.executionStage);
+        } catch (RuntimeException e) {
+            permit.release();
+            stage.result.completeExceptionally(e);
+            return;
+        }
+        synchronized (this) {
+            stage.delegateResult = result;
+        }
+        if (stage.result.isCancelled()) {
+            result.cancel(true);
+        }
+        result.whenComplete((success, error) -> {
+            permit.release();
+            if (error != null) {
+                stage.result.completeExceptionally(error);
+            } else {
+                stage.result.complete(success);
+            }
+        });
+    }
+
+    private static class WaitingStage {
+        private final ExecutionStage executionStage;
+        private final CompletableFuture<ConcurrencyPools.Permit> permit;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private CompletableFuture<Boolean> delegateResult;
+
+        private WaitingStage(final ExecutionStage executionStage, final CompletableFuture<ConcurrencyPools.Permit> permit) {
+            this.executionStage = executionStage;
+            this.permit = permit;
+        }
+    }
+}
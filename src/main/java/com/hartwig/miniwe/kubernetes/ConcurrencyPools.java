@@ -0,0 +1,247 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Named pools that limit how many stages using them run at the same time, across all runs and clusters, e.g. for stages that use a
+ * license-limited tool or a rate-limited database. A stage that uses several pools gets a permit of all of them at once.
+ * <p>
+ * Stages wait for their permits in order of arrival. A waiting stage holds back later stages that use one of its pools, so stages
+ * that use several pools are not starved by stages that use only one of them. Pools without a limit do not limit anything.
+ */
+public class ConcurrencyPools {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyPools.class);
+
+    private final Map<String, Integer> limits;
+    private final Clock clock;
+    private final Map<String, PoolStats> statsByPool = new HashMap<>();
+    private final LinkedList<Waiter> waiters = new LinkedList<>();
+    private final Set<String> unknownPools = new HashSet<>();
+
+    public ConcurrencyPools(final Map<String, Integer> limits) {
+        this(limits, Clock.systemUTC());
+    }
+
+    ConcurrencyPools(final Map<String, Integer> limits, final Clock clock) {
+        for (var limit : limits.entrySet()) {
+            if (limit.getValue() < 1) {
+                throw new IllegalArgumentException(String.format("Limit of concurrency pool '%s' must be at least 1", limit.getKey()));
+            }
+        }
+        this.limits = Map.copyOf(limits);
+        this.clock = clock;
+        for (String pool : limits.keySet()) {
+            statsByPool.put(pool, new PoolStats());
+        }
+    }
+
+    /**
+     * Returns a future that completes with a permit of all limited pools once each of them has room. Cancelling the future before it
+     * completes gives up the place in the queue.
+     */
+    public CompletableFuture<Permit> acquire(String stageName, Set<String> pools) {
+        var waiter = new Waiter(pools);
+        List<Waiter> granted;
+        synchronized (this) {
+            for (String pool : pools) {
+                if (!limits.containsKey(pool) && unknownPools.add(pool)) {
+                    LOGGER.warn("[{}] Concurrency pool '{}' has no limit, stages that use it are not limited", stageName, pool);
+                }
+            }
+            waiter.pools.forEach(pool -> statsByPool.get(pool).waiting++);
+            waiters.add(waiter);
+            granted = grant();
+            if (!granted.contains(waiter)) {
+                LOGGER.info("[{}] Waiting for a permit of concurrency pools {}", stageName, waiter.pools);
+            }
+        }
+        complete(granted);
+        waiter.future.whenComplete((permit, error) -> {
+            if (waiter.future.isCancelled()) {
+                onCancelled(waiter);
+            }
+        });
+        return waiter.future;
+    }
+
+    /**
+     * Concurrency pools of the stage, and of all stages fused into it since they run in the same pod.
+     */
+    static Set<String> poolsOf(ExecutionStage executionStage) {
+        return Stream.concat(executionStage.fusedStages().stream(), Stream.of(executionStage.stage()))
+                .map(Stage::concurrencyPools)
+                .flatMap(List::stream)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Number of running stages per pool.
+     */
+    public synchronized Map<String, Integer> getInUse() {
+        var inUse = new TreeMap<String, Integer>();
+        statsByPool.forEach((pool, stats) -> inUse.put(pool, stats.inUse));
+        return inUse;
+    }
+
+    /**
+     * Pool occupancy and wait times in the Prometheus text format.
+     */
+    public synchronized String toPrometheusMetrics() {
+        var metrics = new StringBuilder();
+        var pools = new TreeMap<>(statsByPool);
+        appendMetric(metrics, "miniwe_concurrency_pool_limit", "gauge", "Maximum number of running stages", pools, limits::get);
+        appendMetric(metrics,
+                "miniwe_concurrency_pool_in_use",
+                "gauge",
+                "Number of running stages",
+                pools,
+                pool -> pools.get(pool).inUse);
+        appendMetric(metrics,
+                "miniwe_concurrency_pool_waiting",
+                "gauge",
+                "Number of stages waiting for a permit",
+                pools,
+                pool -> pools.get(pool).waiting);
+        metrics.append("# HELP miniwe_concurrency_pool_wait_seconds Time stages waited for a permit\n");
+        metrics.append("# TYPE miniwe_concurrency_pool_wait_seconds summary\n");
+        for (var pool : pools.entrySet()) {
+            metrics.append(String.format("miniwe_concurrency_pool_wait_seconds_sum{pool=\"%s\"} %s\n",
+                    pool.getKey(),
+                    pool.getValue().waitMillis / 1000.0));
+            metrics.append(String.format("miniwe_concurrency_pool_wait_seconds_count{pool=\"%s\"} %s\n",
+                    pool.getKey(),
+                    pool.getValue().granted));
+        }
+        return metrics.toString();
+    }
+
+    private static void appendMetric(StringBuilder metrics, String name, String type, String help, Map<String, PoolStats> pools,
+            Function<String, Integer> value) {
+        metrics.append(String.format("# HELP %s %s\n# TYPE %s %s\n", name, help, name, type));
+        for (String pool : pools.keySet()) {
+            metrics.append(String.format("%s{pool=\"%s\"} %d\n", name, pool, value.apply(pool)));
+        }
+    }
+
+    /**
+     * Takes the permits of the waiters that can run, in order of arrival. Must be called while holding the lock, and the returned
+     * waiters must be completed after releasing it.
+     */
+    private List<Waiter> grant() {
+        var granted = new ArrayList<Waiter>();
+        var heldBack = new HashSet<String>();
+        var now = clock.instant();
+        for (Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext(); ) {
+            var waiter = iterator.next();
+            var fits = waiter.pools.stream().noneMatch(heldBack::contains)
+                    && waiter.pools.stream().allMatch(pool -> statsByPool.get(pool).inUse < limits.get(pool));
+            if (!fits) {
+                heldBack.addAll(waiter.pools);
+                continue;
+            }
+            iterator.remove();
+            var waitMillis = Duration.between(waiter.queuedAt, now).toMillis();
+            for (String pool : waiter.pools) {
+                var stats = statsByPool.get(pool);
+                stats.waiting--;
+                stats.inUse++;
+                stats.granted++;
+                stats.waitMillis += waitMillis;
+            }
+            granted.add(waiter);
+        }
+        return granted;
+    }
+
+    private void complete(List<Waiter> granted) {
+        for (Waiter waiter : granted) {
+            var permit = new Permit(waiter);
+            if (!waiter.future.complete(permit)) {
+                // cancelled while the permit was taken
+                permit.release();
+            }
+        }
+    }
+
+    private void onCancelled(Waiter waiter) {
+        List<Waiter> granted;
+        synchronized (this) {
+            if (!waiters.remove(waiter)) {
+                return;
+            }
+            waiter.pools.forEach(pool -> statsByPool.get(pool).waiting--);
+            granted = grant();
+        }
+        complete(granted);
+    }
+
+    private void release(Waiter waiter) {
+        List<Waiter> granted;
+        synchronized (this) {
+            waiter.pools.forEach(pool -> statsByPool.get(pool).inUse--);
+            granted = grant();
+        }
+        complete(granted);
+    }
+
+    /**
+     * Permit of a running stage, which must be released once the stage is done.
+     */
+    public class Permit {
+        private final Waiter waiter;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(final Waiter waiter) {
+            this.waiter = waiter;
+        }
+
+        /**
+         * Gives the permit back to its pools. Releasing a permit more than once has no effect.
+         */
+        public void release() {
+            if (!released.getAndSet(true)) {
+                ConcurrencyPools.this.release(waiter);
+            }
+        }
+    }
+
+    private class Waiter {
+        // only the pools that have a limit
+        private final Set<String> pools = new HashSet<>();
+        private final Instant queuedAt = clock.instant();
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+
+        private Waiter(final Set<String> pools) {
+            pools.stream().filter(limits::containsKey).forEach(this.pools::add);
+        }
+    }
+
+    private static class PoolStats {
+        private int inUse = 0;
+        private int waiting = 0;
+        private long granted = 0;
+        private long waitMillis = 0;
+    }
+}
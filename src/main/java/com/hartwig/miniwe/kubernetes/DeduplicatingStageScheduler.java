@@ -0,0 +1,237 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.ImmutableExecutionStage;
+import com.hartwig.miniwe.workflow.StageScheduler;
+import com.hartwig.miniwe.workflow.WorkflowUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs identical stages of concurrent runs only once. Two stages are identical if they are equal apart from their run name, and all
+ * their inputs were produced by identical stages as well. The first of a set of identical stages is scheduled, the others wait for it
+ * and get its output copied into their own run storage.
+ * <p>
+ * Stages with an input that was not scheduled through this scheduler, e.g. because it was cached, and stages that stream are never
+ * deduplicated.
+ */
+public class DeduplicatingStageScheduler implements StageScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeduplicatingStageScheduler.class);
+
+    private final StageScheduler delegate;
+    private final StorageProvider storageProvider;
+    private final Map<StageKey, InFlightStage> inFlightByKey = new ConcurrentHashMap<>();
+    private final Map<String, StageKey> keyByOutput = new ConcurrentHashMap<>();
+    private final List<Consumer<ExecutionStage>> stageStartedListeners = new CopyOnWriteArrayList<>();
+
+    public DeduplicatingStageScheduler(final StageScheduler delegate, final StorageProvider storageProvider) {
+        this.delegate = delegate;
+        this.storageProvider = storageProvider;
+        delegate.addStageStartedListener(this::onStageStarted);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Boolean> schedule(final ExecutionStage executionStage) {
+        var key = stageKey(executionStage);
+        var outputKey = outputKey(executionStage.runName(), ExecutionStage.getOutputPath(executionStage));
+        if (key.isEmpty()) {
+            keyByOutput.remove(outputKey);
+            return delegate.schedule(executionStage);
+        }
+        keyByOutput.put(outputKey, key.get());
+        var inFlight = inFlightByKey.get(key.get());
+        if (inFlight != null) {
+            LOGGER.info("[{}] Stage is identical to running stage '{}', waiting for its output",
+                    ExecutionStage.getName(executionStage),
+                    ExecutionStage.getName(inFlight.leader));
+            inFlight.followers.add(executionStage);
+            if (inFlight.started) {
+                stageStartedListeners.forEach(listener -> listener.accept(executionStage));
+            }
+            return waitFor(key.get(), inFlight, executionStage);
+        }
+        var leader = new InFlightStage(executionStage);
+        inFlightByKey.put(key.get(), leader);
+        var result = delegate.schedule(executionStage);
+        result.whenComplete((success, error) -> inFlightByKey.remove(key.get(), leader));
+        leader.result = result;
+        return waitFor(key.get(), leader, executionStage);
+    }
+
+    /**
+     * Future of one of the identical stages. Cancelling it only cancels the scheduled stage once all identical stages are cancelled.
+     */
+    private CompletableFuture<Boolean> waitFor(StageKey key, InFlightStage inFlight, ExecutionStage executionStage) {
+        var waiter = new CompletableFuture<Boolean>();
+        inFlight.waitingRuns.add(executionStage.runName());
+        inFlight.result.whenComplete((success, error) -> {
+            if (error != null) {
+                waiter.completeExceptionally(error);
+                return;
+            }
+            try {
+                if (success && inFlight.leader != executionStage && !waiter.isDone()) {
+                    for (String outputPath : ExecutionStage.getUploadedOutputPaths(executionStage)) {
+                        storageProvider.copyOutput(inFlight.leader.runName(), executionStage.runName(), outputPath);
+                    }
+                }
+                waiter.complete(success);
+            } catch (RuntimeException e) {
+                waiter.completeExceptionally(e);
+            }
+        });
+        waiter.whenComplete((success, error) -> {
+            if (waiter.isCancelled()) {
+                onWaiterCancelled(key, inFlight, executionStage);
+            }
+        });
+        return waiter;
+    }
+
+    private void onWaiterCancelled(StageKey key, InFlightStage inFlight, ExecutionStage executionStage) {
+        synchronized (this) {
+            inFlight.waitingRuns.remove(executionStage.runName());
+            if (!inFlight.waitingRuns.isEmpty()) {
+                return;
+            }
+            inFlightByKey.remove(key, inFlight);
+        }
+        LOGGER.info("[{}] All identical stages were cancelled, cancelling stage", ExecutionStage.getName(inFlight.leader));
+        inFlight.result.cancel(true);
+    }
+
+    @Override
+    public void addStageStartedListener(final Consumer<ExecutionStage> listener) {
+        stageStartedListeners.add(listener);
+    }
+
+    /**
+     * Deletes the resources of the run in the delegate. A stage of the run that identical stages of other runs still wait for keeps
+     * running for them, so the resources are only deleted once all such stages are done.
+     */
+    @Override
+    public void deleteStagesForRun(final ExecutionDefinition executionDefinition) {
+        var runName = WorkflowUtil.getRunName(executionDefinition);
+        List<CompletableFuture<Boolean>> shared;
+        synchronized (this) {
+            keyByOutput.keySet().removeIf(outputKey -> outputKey.startsWith(runName + "/"));
+            shared = inFlightByKey.values()
+                    .stream()
+                    .filter(inFlight -> inFlight.leader.runName().equals(runName))
+                    .filter(inFlight -> inFlight.waitingRuns.stream().anyMatch(waitingRun -> !waitingRun.equals(runName)))
+                    .map(inFlight -> inFlight.result)
+                    .collect(Collectors.toList());
+        }
+        if (shared.isEmpty()) {
+            delegate.deleteStagesForRun(executionDefinition);
+            return;
+        }
+        LOGGER.info("[{}] Deleting stages of run once {} stages other runs wait for are done", runName, shared.size());
+        CompletableFuture.allOf(shared.toArray(CompletableFuture[]::new))
+                .whenComplete((success, error) -> delegate.deleteStagesForRun(executionDefinition));
+    }
+
+    @Override
+    public void detachStagesForRun(final ExecutionDefinition executionDefinition) {
+        delegate.detachStagesForRun(executionDefinition);
+    }
+
+    @Override
+    public void deleteStreams(final ExecutionDefinition executionDefinition, final String outputStage) {
+        delegate.deleteStreams(executionDefinition, outputStage);
+    }
+
+    private synchronized void onStageStarted(ExecutionStage executionStage) {
+        stageStartedListeners.forEach(listener -> listener.accept(executionStage));
+        stageKey(executionStage).map(inFlightByKey::get).filter(inFlight -> inFlight.leader.equals(executionStage)).ifPresent(inFlight -> {
+            inFlight.started = true;
+            inFlight.followers.forEach(follower -> stageStartedListeners.forEach(listener -> listener.accept(follower)));
+        });
+    }
+
+    /**
+     * Key of the stage content and the keys of the stages that produced its inputs, or empty if it cannot be deduplicated.
+     */
+    private Optional<StageKey> stageKey(ExecutionStage executionStage) {
+        var stage = executionStage.stage();
+        if (executionStage.streamOutput() || !executionStage.streamedInputAttempts().isEmpty()) {
+            return Optional.empty();
+        }
+        var inputKeys = new TreeMap<String, StageKey>();
+        for (String inputStage : ExecutionStage.getInputStages(executionStage)) {
+            if (executionStage.scatteredInputStages().contains(inputStage)) {
+                return Optional.empty();
+            }
+            var inputKey = keyByOutput.get(outputKey(executionStage.runName(), inputStage));
+            if (inputKey == null) {
+                return Optional.empty();
+            }
+            inputKeys.put(inputStage, inputKey);
+        }
+        var withoutRun = ImmutableExecutionStage.copyOf(executionStage)
+                .withRunName("")
+                .withWorkflow(Optional.empty())
+                .withTenant(Optional.empty());
+        return Optional.of(new StageKey(withoutRun, inputKeys));
+    }
+
+    private static String outputKey(String runName, String outputPath) {
+        return runName + "/" + outputPath;
+    }
+
+    private static class InFlightStage {
+        private final ExecutionStage leader;
+        private final List<ExecutionStage> followers = new CopyOnWriteArrayList<>();
+        // runs of the stages waiting for this stage that were not cancelled, once per stage
+        private final List<String> waitingRuns = new ArrayList<>();
+        private CompletableFuture<Boolean> result;
+        private boolean started = false;
+
+        private InFlightStage(final ExecutionStage leader) {
+            this.leader = leader;
+        }
+    }
+
+    private static final class StageKey {
+        private final ExecutionStage stage;
+        private final Map<String, StageKey> inputKeys;
+        private final int hashCode;
+
+        private StageKey(final ExecutionStage stage, final Map<String, StageKey> inputKeys) {
+            this.stage = stage;
+            this.inputKeys = Map.copyOf(inputKeys);
+            this.hashCode = Objects.hash(stage, this.inputKeys);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StageKey)) {
+                return false;
+            }
+            var other = (StageKey) o;
+            return hashCode == other.hashCode && stage.equals(other.stage) && inputKeys.equals(other.inputKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
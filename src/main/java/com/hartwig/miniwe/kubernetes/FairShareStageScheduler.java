@@ -0,0 +1,277 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.StageScheduler;
+import com.hartwig.miniwe.workflow.WorkflowUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of running stages and divides them over share groups, either workflows or tenants, by weight. When a slot frees
+ * up, the next stage is taken from the group with the lowest usage per weight. Usage is accounted in stage-seconds, including the
+ * running time of stages that are not done yet, and decays with a half-life so past usage is forgiven over time.
+ * <p>
+ * Without contention stages are passed on immediately. Groups without a configured share have weight 1. A group without running or
+ * queued stages is forgotten once its usage has decayed to about zero, so a group per run does not grow without bound.
+ */
+public class FairShareStageScheduler implements StageScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FairShareStageScheduler.class);
+    public static final String DEFAULT_TENANT = "default";
+    private static final double DEFAULT_WEIGHT = 1.0;
+    private static final double IDLE_USAGE_SECONDS = 1.0;
+
+    public enum ShareBy {
+        WORKFLOW,
+        TENANT
+    }
+
+    private final StageScheduler delegate;
+    private final int maxRunningStages;
+    private final ShareBy shareBy;
+    private final Map<String, Double> weights;
+    private final Duration usageHalfLife;
+    private final Clock clock;
+    private final Map<String, ShareGroup> groups = new HashMap<>();
+    private int runningStages = 0;
+
+    public FairShareStageScheduler(final StageScheduler delegate, final int maxRunningStages, final ShareBy shareBy,
+            final Map<String, Double> weights, final Duration usageHalfLife) {
+        this(delegate, maxRunningStages, shareBy, weights, usageHalfLife, Clock.systemUTC());
+    }
+
+    FairShareStageScheduler(final StageScheduler delegate, final int maxRunningStages, final ShareBy shareBy,
+            final Map<String, Double> weights, final Duration usageHalfLife, final Clock clock) {
+        if (maxRunningStages < 1) {
+            throw new IllegalArgumentException("Fair share scheduling needs at least one running stage");
+        }
+        for (var weight : weights.entrySet()) {
+            if (weight.getValue() <= 0) {
+                throw new IllegalArgumentException(String.format("Share of '%s' must be positive", weight.getKey()));
+            }
+        }
+        this.delegate = delegate;
+        this.maxRunningStages = maxRunningStages;
+        this.shareBy = shareBy;
+        this.weights = Map.copyOf(weights);
+        this.usageHalfLife = usageHalfLife;
+        this.clock = clock;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> schedule(final ExecutionStage executionStage) {
+        var queued = new QueuedStage(executionStage);
+        queued.result.whenComplete((success, error) -> {
+            if (queued.result.isCancelled()) {
+                onCancelled(queued);
+            }
+        });
+        synchronized (this) {
+            groups.computeIfAbsent(groupOf(executionStage), ShareGroup::new).pending.add(queued);
+            if (runningStages >= maxRunningStages) {
+                LOGGER.info("[{}] All {} stage slots are in use, queueing stage for group '{}'",
+                        ExecutionStage.getName(executionStage),
+                        maxRunningStages,
+                        groupOf(executionStage));
+            }
+        }
+        dispatch();
+        return queued.result;
+    }
+
+    @Override
+    public void addStageStartedListener(final Consumer<ExecutionStage> listener) {
+        delegate.addStageStartedListener(listener);
+    }
+
+    /**
+     * Removes the queued stages of the run, and deletes its resources in the delegate.
+     */
+    @Override
+    public void deleteStagesForRun(final ExecutionDefinition executionDefinition) {
+        var runName = WorkflowUtil.getRunName(executionDefinition);
+        synchronized (this) {
+            for (ShareGroup group : groups.values()) {
+                group.pending.removeIf(queued -> queued.executionStage.runName().equals(runName));
+            }
+        }
+        delegate.deleteStagesForRun(executionDefinition);
+    }
+
+    @Override
+    public void detachStagesForRun(final ExecutionDefinition executionDefinition) {
+        delegate.detachStagesForRun(executionDefinition);
+    }
+
+    @Override
+    public void deleteStreams(final ExecutionDefinition executionDefinition, final String outputStage) {
+        delegate.deleteStreams(executionDefinition, outputStage);
+    }
+
+    /**
+     * Decayed usage of the group in stage-seconds, including the running time of its stages that are not done.
+     */
+    public synchronized double getUsageSeconds(String group) {
+        var shareGroup = groups.get(group);
+        return shareGroup == null ? 0 : shareGroup.usageSeconds(clock.instant());
+    }
+
+    synchronized int getGroupCount() {
+        return groups.size();
+    }
+
+    private void dispatch() {
+        while (true) {
+            QueuedStage next;
+            synchronized (this) {
+                var now = clock.instant();
+                groups.values().removeIf(group -> group.isIdle(now));
+                if (runningStages >= maxRunningStages) {
+                    return;
+                }
+                var group = groups.values()
+                        .stream()
+                        .filter(candidate -> !candidate.pending.isEmpty())
+                        .min(Comparator.comparingDouble((ShareGroup candidate) -> candidate.usageSeconds(now) / candidate.weight)
+                                .thenComparing(candidate -> candidate.name));
+                if (group.isEmpty()) {
+                    return;
+                }
+                next = group.get().pending.poll();
+                group.get().runningSince.merge(now, 1, Integer::sum);
+                next.startedAt = now;
+                next.group = group.get();
+                runningStages++;
+            }
+            start(next);
+        }
+    }
+
+    /**
+     * A cancelled stage that is still queued is removed from its group, a running stage is cancelled in the delegate which frees its slot
+     * once the delegate is done with it.
+     */
+    private void onCancelled(QueuedStage queued) {
+        CompletableFuture<Boolean> running;
+        synchronized (this) {
+            if (queued.group == null) {
+                groups.values().forEach(group -> group.pending.remove(queued));
+                return;
+            }
+            running = queued.delegateResult;
+        }
+        if (running != null) {
+            running.cancel(true);
+        }
+    }
+
+    private void start(QueuedStage queued) {
+        CompletableFuture<Boolean> result;
+        try {
+            result = delegate.schedule(queued.executionStage);
+        } catch (RuntimeException e) {
+            onDone(queued);
+            queued.result.completeExceptionally(e);
+            return;
+        }
+        synchronized (this) {
+            queued.delegateResult = result;
+        }
+        if (queued.result.isCancelled()) {
+            result.cancel(true);
+        }
+        result.whenComplete((success, error) -> {
+            onDone(queued);
+            if (error != null) {
+                queued.result.completeExceptionally(error);
+            } else {
+                queued.result.complete(success);
+            }
+        });
+    }
+
+    private void onDone(QueuedStage queued) {
+        synchronized (this) {
+            var now = clock.instant();
+            var group = queued.group;
+            group.runningSince.computeIfPresent(queued.startedAt, (startedAt, count) -> count > 1 ? count - 1 : null);
+            group.addUsage(Duration.between(queued.startedAt, now).toMillis() / 1000.0, now);
+            runningStages--;
+        }
+        dispatch();
+    }
+
+    private String groupOf(ExecutionStage executionStage) {
+        switch (shareBy) {
+            case TENANT:
+                return executionStage.tenant().orElse(DEFAULT_TENANT);
+            case WORKFLOW:
+            default:
+                return executionStage.workflow().orElse(executionStage.runName());
+        }
+    }
+
+    private class ShareGroup {
+        private final String name;
+        private final double weight;
+        private final Queue<QueuedStage> pending = new ArrayDeque<>();
+        // start times of the running stages of the group, with the number of stages started at that time
+        private final Map<Instant, Integer> runningSince = new HashMap<>();
+        private double decayedUsageSeconds = 0;
+        private Instant decayedAt;
+
+        private ShareGroup(final String name) {
+            this.name = name;
+            this.weight = weights.getOrDefault(name, DEFAULT_WEIGHT);
+        }
+
+        private void addUsage(double seconds, Instant now) {
+            decayedUsageSeconds = completedUsageSeconds(now) + seconds;
+            decayedAt = now;
+        }
+
+        private double completedUsageSeconds(Instant now) {
+            if (decayedAt == null) {
+                return 0;
+            }
+            var elapsed = Duration.between(decayedAt, now).toMillis();
+            return decayedUsageSeconds * Math.pow(0.5, (double) elapsed / usageHalfLife.toMillis());
+        }
+
+        private boolean isIdle(Instant now) {
+            return pending.isEmpty() && runningSince.isEmpty() && completedUsageSeconds(now) < IDLE_USAGE_SECONDS;
+        }
+
+        private double usageSeconds(Instant now) {
+            var runningSeconds = runningSince.entrySet()
+                    .stream()
+                    .mapToDouble(entry -> entry.getValue() * Duration.between(entry.getKey(), now).toMillis() / 1000.0)
+                    .sum();
+            return completedUsageSeconds(now) + runningSeconds;
+        }
+    }
+
+    private static class QueuedStage {
+        private final ExecutionStage executionStage;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private ShareGroup group;
+        private Instant startedAt;
+        private CompletableFuture<Boolean> delegateResult;
+
+        private QueuedStage(final ExecutionStage executionStage) {
+            this.executionStage = executionStage;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.StageFailureReason;
+import com.hartwig.miniwe.miniwdl.StageResources;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.StageFailedException;
+import com.hartwig.miniwe.workflow.StageScheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.api.model.Quantity;
+
+/**
+ * Dispatches stages over the kubernetes clusters of several {@link KubernetesStageScheduler}s. Every stage is placed on one cluster.
+ * A stage that fails as unschedulable, because its pod stayed pending, is placed again on a cluster it did not try yet.
+ */
+public class FederatedStageScheduler implements StageScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FederatedStageScheduler.class);
+    private static final Duration CAPACITY_REFRESH_INTERVAL = Duration.ofSeconds(30);
+
+    private final List<Cluster> clusters;
+    private final String dataRegion;
+
+    /**
+     * @param dataRegion region of the run buckets. Clusters in this region are preferred.
+     */
+    public FederatedStageScheduler(final List<Cluster> clusters, final String dataRegion) {
+        if (clusters.isEmpty()) {
+            throw new IllegalArgumentException("Federated stage scheduler needs at least one cluster");
+        }
+        this.clusters = List.copyOf(clusters);
+        this.dataRegion = dataRegion;
+    }
+
+    /**
+     * Cancelling the returned future cancels the stage on the cluster it is placed on, and stops it from moving to another cluster.
+     */
+    @Override
+    public CompletableFuture<Boolean> schedule(final ExecutionStage executionStage) {
+        var result = new CompletableFuture<Boolean>();
+        var placed = new AtomicReference<CompletableFuture<Boolean>>();
+        result.whenComplete((success, error) -> {
+            if (result.isCancelled()) {
+                Optional.ofNullable(placed.get()).ifPresent(future -> future.cancel(true));
+            }
+        });
+        scheduleOnCluster(executionStage, new HashSet<>(), result, placed);
+        return result;
+    }
+
+    @Override
+    public void addStageStartedListener(final Consumer<ExecutionStage> listener) {
+        clusters.forEach(cluster -> cluster.scheduler.addStageStartedListener(listener));
+    }
+
+    @Override
+    public void deleteStagesForRun(final ExecutionDefinition executionDefinition) {
+        clusters.forEach(cluster -> cluster.scheduler.deleteStagesForRun(executionDefinition));
+    }
+
+    @Override
+    public void detachStagesForRun(final ExecutionDefinition executionDefinition) {
+        clusters.forEach(cluster -> cluster.scheduler.detachStagesForRun(executionDefinition));
+    }
+
+    @Override
+    public void deleteStreams(final ExecutionDefinition executionDefinition, final String outputStage) {
+        // all clusters stream through the same storage
+        clusters.stream().findFirst().ifPresent(cluster -> cluster.scheduler.deleteStreams(executionDefinition, outputStage));
+    }
+
+    private void scheduleOnCluster(ExecutionStage executionStage, Set<String> triedClusters, CompletableFuture<Boolean> result,
+            AtomicReference<CompletableFuture<Boolean>> placed) {
+        var cluster = selectCluster(executionStage, triedClusters);
+        if (cluster.isEmpty()) {
+            result.completeExceptionally(new StageFailedException(StageFailureReason.UNSCHEDULABLE,
+                    String.format("None of the clusters could schedule stage '%s'", ExecutionStage.getName(executionStage))));
+            return;
+        }
+        triedClusters.add(cluster.get().name);
+        LOGGER.info("[{}] Placing stage on cluster '{}'", ExecutionStage.getName(executionStage), cluster.get().name);
+        var attempt = cluster.get().scheduler.schedule(executionStage);
+        placed.set(attempt);
+        if (result.isCancelled()) {
+            attempt.cancel(true);
+        }
+        attempt.whenComplete((success, error) -> {
+            if (error != null && isUnschedulable(error) && triedClusters.size() < clusters.size() && !result.isDone()) {
+                LOGGER.warn("[{}] Stage could not be scheduled on cluster '{}', moving it to another cluster",
+                        ExecutionStage.getName(executionStage),
+                        cluster.get().name);
+                scheduleOnCluster(executionStage, triedClusters, result, placed);
+            } else if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(success);
+            }
+        });
+    }
+
+    /**
+     * Picks the cluster for a stage. Clusters that have enough free capacity for the requests of the stage come first, then clusters
+     * in the region of the run buckets, then clusters with fewer active stages, then clusters with more free CPU.
+     */
+    Optional<Cluster> selectCluster(ExecutionStage executionStage, Set<String> excludedClusters) {
+        // fused stages run one after the other, so the pod needs the largest request of its stages
+        var resources = Stream.concat(executionStage.fusedStages().stream(), Stream.of(executionStage.stage()))
+                .flatMap(stage -> stage.resources().stream())
+                .collect(Collectors.toList());
+        var cpu = maxAmount(resources, StageResources::cpu);
+        var memory = maxAmount(resources, StageResources::memory);
+        Comparator<Cluster> fitsFirst = Comparator.comparing(cluster -> !cluster.fits(cpu, memory));
+        Comparator<Cluster> order = fitsFirst.thenComparing(cluster -> !cluster.region.equalsIgnoreCase(dataRegion))
+                .thenComparingInt(cluster -> cluster.scheduler.getActiveStageCount())
+                .thenComparing(cluster -> cluster.getCapacity().map(ClusterCapacity::freeCpuCores).orElse(0.0), Comparator.reverseOrder());
+        return clusters.stream().filter(cluster -> !excludedClusters.contains(cluster.name)).min(order);
+    }
+
+    private static boolean isUnschedulable(Throwable error) {
+        var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof StageFailedException && ((StageFailedException) cause).getReason() == StageFailureReason.UNSCHEDULABLE;
+    }
+
+    private static double maxAmount(List<StageResources> resources, Function<StageResources, Optional<String>> quantity) {
+        return resources.stream()
+                .map(quantity)
+                .flatMap(Optional::stream)
+                .mapToDouble(FederatedStageScheduler::amount)
+                .max()
+                .orElse(0.0);
+    }
+
+    private static double amount(String quantity) {
+        return Quantity.getAmountInBytes(new Quantity(quantity)).doubleValue();
+    }
+
+    /**
+     * One cluster of the federation. The free capacity of the cluster is refreshed at most every 30 seconds.
+     */
+    public static class Cluster {
+        private final String name;
+        private final String region;
+        private final KubernetesStageScheduler scheduler;
+        private Optional<ClusterCapacity> capacity = Optional.empty();
+        private Instant capacityRefreshedAt = Instant.MIN;
+
+        public Cluster(final String name, final String region, final KubernetesStageScheduler scheduler) {
+            this.name = name;
+            this.region = region;
+            this.scheduler = scheduler;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        synchronized Optional<ClusterCapacity> getCapacity() {
+            var now = Instant.now();
+            if (capacityRefreshedAt.plus(CAPACITY_REFRESH_INTERVAL).isBefore(now)) {
+                capacityRefreshedAt = now;
+                try {
+                    capacity = Optional.of(scheduler.freeCapacity());
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Could not determine free capacity of cluster '{}'", name, e);
+                    capacity = Optional.empty();
+                }
+            }
+            return capacity;
+        }
+
+        /**
+         * Whether the cluster has room for the given requests. A cluster with unknown capacity is assumed to have room.
+         */
+        private boolean fits(double cpuCores, double memoryBytes) {
+            return getCapacity().map(free -> free.fits(cpuCores, memoryBytes)).orElse(true);
+        }
+    }
+}
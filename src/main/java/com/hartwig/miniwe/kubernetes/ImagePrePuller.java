@@ -0,0 +1,122 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.WorkflowDefinition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.ResourceRequirementsBuilder;
+import io.fabric8.kubernetes.api.model.VolumeMountBuilder;
+import io.fabric8.kubernetes.api.model.apps.DaemonSet;
+import io.fabric8.kubernetes.api.model.apps.DaemonSetBuilder;
+
+/**
+ * Keeps a daemon set that pulls the images of all registered workflows on every node, so stages on a node the autoscaler just added
+ * do not wait for their image to be pulled. An init container copies a static busybox binary into a shared volume, and every image
+ * runs as a container that sleeps with that binary, so images need neither a shell nor a sleep command of their own.
+ */
+public class ImagePrePuller {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImagePrePuller.class);
+    static final String DAEMON_SET_NAME = "miniwe-image-prepull";
+    static final String BUSYBOX_IMAGE = "busybox:1.36-musl";
+    private static final String TOOLS_VOLUME = "prepull";
+    private static final String TOOLS_PATH = "/prepull";
+    // every image is a container that only sleeps, the requests add up over all images on each node
+    private static final Map<String, Quantity> PULL_REQUESTS = Map.of("cpu", new Quantity("1m"), "memory", new Quantity("8Mi"));
+
+    private final String namespace;
+    private final KubernetesClientWrapper kubernetesClient;
+    private final Set<String> transferImages;
+    private SortedSet<String> appliedImages;
+
+    public ImagePrePuller(final String namespace, final KubernetesClientWrapper kubernetesClient, final StorageProvider storageProvider) {
+        this.namespace = namespace;
+        this.kubernetesClient = kubernetesClient;
+        this.transferImages = storageProvider.transferImages();
+    }
+
+    /**
+     * Updates the daemon set to pull the images of exactly these workflows. The daemon set is only replaced when the images changed.
+     */
+    public synchronized void update(Collection<WorkflowDefinition> workflowDefinitions) {
+        var images = images(workflowDefinitions);
+        if (images.equals(appliedImages)) {
+            return;
+        }
+        LOGGER.info("Pre-pulling {} images of {} workflows", images.size(), workflowDefinitions.size());
+        kubernetesClient.apply(daemonSet(images));
+        appliedImages = images;
+    }
+
+    SortedSet<String> images(Collection<WorkflowDefinition> workflowDefinitions) {
+        var images = new TreeSet<>(transferImages);
+        for (WorkflowDefinition workflowDefinition : workflowDefinitions) {
+            for (Stage stage : workflowDefinition.stages()) {
+                images.add(String.format("%s:%s", stage.image(), stage.version()));
+            }
+        }
+        return images;
+    }
+
+    DaemonSet daemonSet(SortedSet<String> images) {
+        var toolsMount = new VolumeMountBuilder().withName(TOOLS_VOLUME).withMountPath(TOOLS_PATH).build();
+        var containers = new ArrayList<Container>();
+        for (String image : images) {
+            containers.add(new ContainerBuilder().withName("prepull-" + containers.size())
+                    .withImage(image)
+                    .withImagePullPolicy("IfNotPresent")
+                    .withCommand(List.of(TOOLS_PATH + "/busybox", "sleep", "2147483647"))
+                    .withVolumeMounts(toolsMount)
+                    .withResources(new ResourceRequirementsBuilder().withRequests(PULL_REQUESTS).build())
+                    .build());
+        }
+        var labels = Map.of("app", DAEMON_SET_NAME);
+        return new DaemonSetBuilder().withNewMetadata()
+                .withName(DAEMON_SET_NAME)
+                .withNamespace(namespace)
+                .withLabels(labels)
+                .endMetadata()
+                .withNewSpec()
+                .withNewSelector()
+                .withMatchLabels(labels)
+                .endSelector()
+                .withNewTemplate()
+                .withNewMetadata()
+                .withLabels(labels)
+                .endMetadata()
+                .withNewSpec()
+                // tolerate every taint, so images are also pulled on spot nodes and dedicated node pools
+                .addNewToleration()
+                .withOperator("Exists")
+                .endToleration()
+                .addNewVolume()
+                .withName(TOOLS_VOLUME)
+                .withNewEmptyDir()
+                .endEmptyDir()
+                .endVolume()
+                .withInitContainers(new ContainerBuilder().withName("tools")
+                        .withImage(BUSYBOX_IMAGE)
+                        .withImagePullPolicy("IfNotPresent")
+                        .withCommand(List.of("cp", "/bin/busybox", TOOLS_PATH + "/busybox"))
+                        .withVolumeMounts(toolsMount)
+                        .withResources(new ResourceRequirementsBuilder().withRequests(PULL_REQUESTS).build())
+                        .build())
+                .withContainers(containers)
+                .endSpec()
+                .endTemplate()
+                .endSpec()
+                .build();
+    }
+}
@@ -0,0 +1,39 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Time the pods of stages spent pulling images, by the image of the stage. Shared by all schedulers, so the metrics cover all clusters.
+ */
+public class ImagePullMetrics {
+    private final Map<String, PullStats> statsByImage = new TreeMap<>();
+
+    public synchronized void record(String image, Duration pullTime) {
+        var stats = statsByImage.computeIfAbsent(image, key -> new PullStats());
+        stats.pulls++;
+        stats.pullMillis += pullTime.toMillis();
+    }
+
+    /**
+     * Pull times in the Prometheus text format.
+     */
+    public synchronized String toPrometheusMetrics() {
+        var metrics = new StringBuilder();
+        metrics.append("# HELP miniwe_image_pull_seconds Time the pods of stages spent pulling images\n");
+        metrics.append("# TYPE miniwe_image_pull_seconds summary\n");
+        for (var image : statsByImage.entrySet()) {
+            metrics.append(String.format("miniwe_image_pull_seconds_sum{image=\"%s\"} %s\n",
+                    image.getKey(),
+                    image.getValue().pullMillis / 1000.0));
+            metrics.append(String.format("miniwe_image_pull_seconds_count{image=\"%s\"} %s\n", image.getKey(), image.getValue().pulls));
+        }
+        return metrics.toString();
+    }
+
+    private static class PullStats {
+        private long pulls;
+        private long pullMillis;
+    }
+}
@@ -1,24 +1,59 @@
 package com.hartwig.miniwe.kubernetes;
 
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.ContainerState;
+import io.fabric8.kubernetes.api.model.ContainerStateRunning;
+import io.fabric8.kubernetes.api.model.ContainerStateTerminated;
+import io.fabric8.kubernetes.api.model.ContainerStatus;
+import io.fabric8.kubernetes.api.model.Event;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.Node;
 import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodStatus;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.apps.DaemonSet;
 import io.fabric8.kubernetes.api.model.batch.v1.Job;
 import io.fabric8.kubernetes.api.model.batch.v1.JobStatus;
+import io.fabric8.kubernetes.api.model.metrics.v1beta1.ContainerMetrics;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.WatcherException;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
 
 /**
  * Wrapper around the fabric8 Kubernetes client.
  */
 public class KubernetesClientWrapper {
     private static final Logger LOGGER = LoggerFactory.getLogger(KubernetesClientWrapper.class);
+    private static final int DEFAULT_BACKOFF_LIMIT = 6;
+    private static final Set<String> TERMINATED_POD_PHASES = Set.of("Succeeded", "Failed");
+    // pod status reasons of pods that were stopped because their node shut down or disappeared
+    private static final Set<String> NODE_LOSS_REASONS = Set.of("NodeShutdown", "Shutdown", "Terminated", "NodeLost");
+    private static final String POD_SCHEDULED_CONDITION = "PodScheduled";
+    private static final String FIELD_MANAGER = "miniwe";
 
     private final KubernetesClient client;
+    private CapacityInformers capacityInformers;
 
     public KubernetesClientWrapper(final KubernetesClient client) {
         this.client = client;
@@ -36,13 +71,7 @@ public class KubernetesClientWrapper {
 
     public boolean waitUntilJobComplete(final Job job, int timeout, TimeUnit timeoutUnit) {
         var jobResource = client.batch().v1().jobs().resource(job);
-        jobResource.waitUntilCondition(r -> {
-            var status = r.getStatus();
-            if (status == null) {
-                return false;
-            }
-            return Objects.equals(status.getFailed(), 2) || Objects.equals(status.getSucceeded(), 1);
-        }, timeout, timeoutUnit);
+        jobResource.waitUntilCondition(r -> result(job, r.getStatus()).isPresent(), timeout, timeoutUnit);
         return Optional.ofNullable(jobResource.get())
                 .map(Job::getStatus)
                 .map(JobStatus::getSucceeded)
@@ -50,6 +79,328 @@ public class KubernetesClientWrapper {
                 .orElse(false);
     }
 
+    /**
+     * Returns whether the job succeeded, or empty if it is still running.
+     */
+    public Optional<Boolean> jobResult(final Job job) {
+        var current = client.batch().v1().jobs().resource(job).get();
+        if (current == null) {
+            throw new IllegalStateException(String.format("Job with name [%s] no longer exists", job.getMetadata().getName()));
+        }
+        return result(job, current.getStatus());
+    }
+
+    /**
+     * Calls the listener whenever the job or one of its pods changes, until the returned watch is closed. If the job cannot be watched,
+     * the returned watch does nothing and callers only see changes when they poll.
+     */
+    public Watch watchJob(final Job job, final Runnable listener) {
+        var namespace = job.getMetadata().getNamespace();
+        var name = job.getMetadata().getName();
+        try {
+            var jobWatch = client.batch().v1().jobs().inNamespace(namespace).withName(name).watch(new ChangeWatcher<>(name, listener));
+            try {
+                var podWatch = client.pods().inNamespace(namespace).withLabel("job-name", name).watch(new ChangeWatcher<>(name, listener));
+                return () -> {
+                    jobWatch.close();
+                    podWatch.close();
+                };
+            } catch (KubernetesClientException e) {
+                jobWatch.close();
+                throw e;
+            }
+        } catch (KubernetesClientException e) {
+            LOGGER.warn("Could not watch job [{}], falling back to polling", name, e);
+            return () -> {
+            };
+        }
+    }
+
+    /**
+     * Returns when an existing job with the same name and run label was created, or empty if there is no such job or it failed. Jobs
+     * that completed are included, so their output is copied rather than the stage being run again.
+     */
+    public Optional<Instant> resumableJobCreationTime(final Job job) {
+        var current = client.batch().v1().jobs().resource(job).get();
+        if (current == null || !Objects.equals(current.getMetadata().getLabels(), job.getMetadata().getLabels())
+                || result(current, current.getStatus()).filter(succeeded -> !succeeded).isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(current.getMetadata().getCreationTimestamp()).map(Instant::parse);
+    }
+
+    /**
+     * Returns whether the job failed because a pod was disrupted, e.g. by preemption of its spot node or by the node shutting down or
+     * getting lost, rather than by its containers. Disruptions are detected by the pod failure policy of the job, the disruption
+     * condition of a pod, or the reason of a pod whose node went away. Only the pods of jobs on spot nodes are checked, other jobs are
+     * only preempted if they fail by their pod failure policy.
+     */
+    public boolean isPreempted(final Job job) {
+        var onSpotNodes = isOnSpotNodes(job);
+        if (!onSpotNodes && job.getSpec().getPodFailurePolicy() == null) {
+            return false;
+        }
+        var current = client.batch().v1().jobs().resource(job).get();
+        var failedByPolicy = Optional.ofNullable(current)
+                .map(Job::getStatus)
+                .map(JobStatus::getConditions)
+                .stream()
+                .flatMap(List::stream)
+                .anyMatch(condition -> "Failed".equals(condition.getType()) && "PodFailurePolicy".equals(condition.getReason()));
+        if (failedByPolicy || !onSpotNodes) {
+            return failedByPolicy;
+        }
+        var pods = client.pods()
+                .inNamespace(job.getMetadata().getNamespace())
+                .withLabel("job-name", job.getMetadata().getName())
+                .list()
+                .getItems();
+        return pods.stream().map(Pod::getStatus).filter(Objects::nonNull).anyMatch(KubernetesClientWrapper::isDisrupted);
+    }
+
+    private static boolean isOnSpotNodes(Job job) {
+        var nodeSelector = job.getSpec().getTemplate().getSpec().getNodeSelector();
+        return nodeSelector != null && "true".equals(nodeSelector.get(StageDefinition.SPOT_NODE_LABEL));
+    }
+
+    private static boolean isDisrupted(PodStatus status) {
+        if (NODE_LOSS_REASONS.contains(status.getReason())) {
+            return true;
+        }
+        return status.getConditions()
+                .stream()
+                .anyMatch(condition -> StageDefinition.DISRUPTION_TARGET_CONDITION.equals(condition.getType())
+                        && "True".equals(condition.getStatus()));
+    }
+
+    /**
+     * Returns whether the job has pods and none of them could be scheduled on a node. Pods that are scheduled but still pulling
+     * images or running init containers are not pending.
+     */
+    public boolean isPending(final Job job) {
+        var pods = client.pods()
+                .inNamespace(job.getMetadata().getNamespace())
+                .withLabel("job-name", job.getMetadata().getName())
+                .list()
+                .getItems();
+        return !pods.isEmpty() && pods.stream().allMatch(KubernetesClientWrapper::isUnschedulable);
+    }
+
+    private static boolean isUnschedulable(Pod pod) {
+        return Optional.ofNullable(pod.getStatus())
+                .map(PodStatus::getConditions)
+                .stream()
+                .flatMap(List::stream)
+                .anyMatch(condition -> POD_SCHEDULED_CONDITION.equals(condition.getType()) && "False".equals(condition.getStatus()));
+    }
+
+    /**
+     * Returns the resources of every schedulable node that are not requested by the pods on it. Nodes and pods are kept up to date
+     * by informers that are started on the first call, so later calls do not list the cluster.
+     */
+    public ClusterCapacity freeCapacity() {
+        var informers = capacityInformers();
+        var requestsByNode = new HashMap<String, List<Map<String, Quantity>>>();
+        for (Pod pod : informers.pods.getStore().list()) {
+            var nodeName = pod.getSpec() == null ? null : pod.getSpec().getNodeName();
+            if (nodeName != null && (pod.getStatus() == null || !TERMINATED_POD_PHASES.contains(pod.getStatus().getPhase()))) {
+                requestsByNode.computeIfAbsent(nodeName, name -> new ArrayList<>()).add(podRequests(pod));
+            }
+        }
+        var nodes = informers.nodes.getStore()
+                .list()
+                .stream()
+                .filter(node -> node.getSpec() == null || !Boolean.TRUE.equals(node.getSpec().getUnschedulable()))
+                .filter(node -> node.getStatus() != null && node.getStatus().getAllocatable() != null)
+                .map(node -> {
+                    var allocatable = List.of(node.getStatus().getAllocatable());
+                    var requests = requestsByNode.getOrDefault(node.getMetadata().getName(), List.of());
+                    return NodeCapacity.builder()
+                            .name(node.getMetadata().getName())
+                            .freeCpuCores(sum(allocatable, "cpu") - sum(requests, "cpu"))
+                            .freeMemoryBytes((long) (sum(allocatable, "memory") - sum(requests, "memory")))
+                            .build();
+                })
+                .collect(Collectors.toList());
+        return ClusterCapacity.builder()
+                .freeCpuCores(nodes.stream().mapToDouble(NodeCapacity::freeCpuCores).sum())
+                .freeMemoryBytes(nodes.stream().mapToLong(NodeCapacity::freeMemoryBytes).sum())
+                .nodes(nodes)
+                .build();
+    }
+
+    private synchronized CapacityInformers capacityInformers() {
+        if (capacityInformers == null) {
+            var nodes = client.nodes().inform();
+            var pods = client.pods()
+                    .inAnyNamespace()
+                    .withoutField("status.phase", "Succeeded")
+                    .withoutField("status.phase", "Failed")
+                    .inform();
+            capacityInformers = new CapacityInformers(nodes, pods);
+        }
+        return capacityInformers;
+    }
+
+    /**
+     * Requests of a pod, which are those of its containers together, or those of its largest init container if that requests more.
+     */
+    private static Map<String, Quantity> podRequests(Pod pod) {
+        var requests = new HashMap<String, Quantity>();
+        for (String resource : List.of("cpu", "memory")) {
+            var containers = sum(containerRequests(pod.getSpec().getContainers()), resource);
+            var largestInit = containerRequests(pod.getSpec().getInitContainers()).stream()
+                    .mapToDouble(request -> sum(List.of(request), resource))
+                    .max()
+                    .orElse(0);
+            requests.put(resource, new Quantity(BigDecimal.valueOf(Math.max(containers, largestInit)).toPlainString()));
+        }
+        return requests;
+    }
+
+    private static List<Map<String, Quantity>> containerRequests(List<Container> containers) {
+        return containers.stream()
+                .map(container -> container.getResources() == null ? null : container.getResources().getRequests())
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    private static double sum(List<Map<String, Quantity>> quantities, String resource) {
+        return quantities.stream()
+                .map(quantity -> quantity.get(resource))
+                .filter(Objects::nonNull)
+                .map(Quantity::getAmountInBytes)
+                .mapToDouble(BigDecimal::doubleValue)
+                .sum();
+    }
+
+    /**
+     * Returns whether the container with the given name terminated in any pod of the job.
+     */
+    public boolean isContainerTerminated(final Job job, final String containerName) {
+        var pods = client.pods()
+                .inNamespace(job.getMetadata().getNamespace())
+                .withLabel("job-name", job.getMetadata().getName())
+                .list()
+                .getItems();
+        return pods.stream()
+                .map(Pod::getStatus)
+                .filter(Objects::nonNull)
+                .flatMap(status -> status.getContainerStatuses().stream())
+                .filter(status -> status.getName().equals(containerName))
+                .anyMatch(status -> status.getState() != null && status.getState().getTerminated() != null);
+    }
+
+    /**
+     * Returns when the first of the given containers, which may be init containers, started in any pod of the job, or empty if none
+     * of them started yet.
+     */
+    public Optional<Instant> containerStartTime(final Job job, final Set<String> containerNames) {
+        var pods = client.pods()
+                .inNamespace(job.getMetadata().getNamespace())
+                .withLabel("job-name", job.getMetadata().getName())
+                .list()
+                .getItems();
+        return pods.stream()
+                .map(Pod::getStatus)
+                .filter(Objects::nonNull)
+                .flatMap(status -> Stream.concat(status.getInitContainerStatuses().stream(), status.getContainerStatuses().stream()))
+                .filter(status -> containerNames.contains(status.getName()))
+                .map(ContainerStatus::getState)
+                .filter(Objects::nonNull)
+                .map(KubernetesClientWrapper::startedAt)
+                .flatMap(Optional::stream)
+                .min(Instant::compareTo);
+    }
+
+    private static Optional<Instant> startedAt(ContainerState state) {
+        var running = Optional.ofNullable(state.getRunning()).map(ContainerStateRunning::getStartedAt);
+        return running.or(() -> Optional.ofNullable(state.getTerminated()).map(ContainerStateTerminated::getStartedAt))
+                .map(Instant::parse);
+    }
+
+    /**
+     * Returns whether the container in the running pods of the job wrote log output in the last given number of seconds. A container
+     * that is not running yet, or started less than the given number of seconds ago, counts as making progress.
+     */
+    public boolean hasRecentLogOutput(final Job job, final String containerName, int seconds) {
+        var namespace = job.getMetadata().getNamespace();
+        try {
+            var pods = client.pods().inNamespace(namespace).withLabel("job-name", job.getMetadata().getName()).list().getItems();
+            for (Pod pod : pods) {
+                var startedAt = runningSince(pod, containerName);
+                if (startedAt.isEmpty() || startedAt.get().isAfter(Instant.now().minusSeconds(seconds))) {
+                    return true;
+                }
+                var log = client.pods()
+                        .inNamespace(namespace)
+                        .withName(pod.getMetadata().getName())
+                        .inContainer(containerName)
+                        .sinceSeconds(seconds)
+                        .getLog();
+                if (log != null && !log.isBlank()) {
+                    return true;
+                }
+            }
+            return pods.isEmpty();
+        } catch (KubernetesClientException e) {
+            LOGGER.debug("Could not retrieve logs for job [{}]", job.getMetadata().getName(), e);
+            return true;
+        }
+    }
+
+    /**
+     * Creates the daemon set, or updates the daemon set with the same name to match it with a server side apply.
+     */
+    public void apply(DaemonSet daemonSet) {
+        client.apps().daemonSets().resource(daemonSet).fieldManager(FIELD_MANAGER).forceConflicts().serverSideApply();
+        LOGGER.info("Applied daemon set with name [{}]", daemonSet.getMetadata().getName());
+    }
+
+    /**
+     * Returns the time the pods of the job spent pulling images, from the first pull that started to the last pull that finished, or
+     * empty if no pull events were found. Images that were already present on the node take no time.
+     */
+    public Optional<Duration> imagePullTime(final Job job) {
+        var namespace = job.getMetadata().getNamespace();
+        try {
+            var pods = client.pods().inNamespace(namespace).withLabel("job-name", job.getMetadata().getName()).list().getItems();
+            Optional<Duration> pullTime = Optional.empty();
+            for (Pod pod : pods) {
+                var events = client.v1()
+                        .events()
+                        .inNamespace(namespace)
+                        .withField("involvedObject.name", pod.getMetadata().getName())
+                        .list()
+                        .getItems();
+                var firstPull = eventTimes(events, "Pulling").min(Instant::compareTo);
+                var lastPulled = eventTimes(events, "Pulled").max(Instant::compareTo);
+                if (lastPulled.isPresent()) {
+                    var podPullTime = firstPull.map(start -> Duration.between(start, lastPulled.get())).orElse(Duration.ZERO);
+                    pullTime = Optional.of(pullTime.orElse(Duration.ZERO).plus(podPullTime));
+                }
+            }
+            return pullTime;
+        } catch (KubernetesClientException e) {
+            LOGGER.debug("Could not retrieve events for job [{}]", job.getMetadata().getName(), e);
+            return Optional.empty();
+        }
+    }
+
+    private static Stream<Instant> eventTimes(List<Event> events, String reason) {
+        return events.stream().filter(event -> reason.equals(event.getReason())).map(KubernetesClientWrapper::eventTime);
+    }
+
+    private static Instant eventTime(Event event) {
+        if (event.getFirstTimestamp() != null) {
+            return Instant.parse(event.getFirstTimestamp());
+        }
+        if (event.getEventTime() != null && event.getEventTime().getTime() != null) {
+            return Instant.parse(event.getEventTime().getTime());
+        }
+        return Instant.parse(event.getMetadata().getCreationTimestamp());
+    }
+
     public void deleteIfExists(final Job job) {
         var jobResource = client.batch().v1().jobs().resource(job);
         if (jobResource.get() != null) {
@@ -58,11 +409,106 @@ public class KubernetesClientWrapper {
         }
     }
 
+    /**
+     * Waits until the resource is gone. A deleted claim stays terminating until no pod uses it anymore, and creating a resource with
+     * the same name fails until then.
+     */
+    public void waitUntilDeleted(final HasMetadata resource, final long timeout, final TimeUnit unit) {
+        client.resource(resource).waitUntilCondition(Objects::isNull, timeout, unit);
+    }
+
     public void deleteIfExists(final PersistentVolumeClaim pvc) {
         var pvcResource = client.persistentVolumeClaims().resource(pvc);
         if (pvcResource.get() != null) {
             LOGGER.info("Deleting persistent volume with name [{}]", pvc.getMetadata().getName());
-            pvcResource.withTimeout(30, TimeUnit.SECONDS).delete();
+            // not waited for, the claim stays terminating until the pods of the deleted jobs are gone
+            pvcResource.delete();
+        }
+    }
+
+    /**
+     * Returns the current usage of the container with the given name in the pods of the job, or empty if the metrics server has no
+     * data for it (yet).
+     */
+    public Optional<StageUsage> containerUsage(final Job job, final String containerName) {
+        try {
+            var podMetrics = client.top()
+                    .pods()
+                    .withLabels(Map.of("job-name", job.getMetadata().getName()))
+                    .metrics(job.getMetadata().getNamespace());
+            return podMetrics.getItems()
+                    .stream()
+                    .flatMap(pod -> pod.getContainers().stream())
+                    .filter(container -> container.getName().equals(containerName))
+                    .map(KubernetesClientWrapper::toStageUsage)
+                    .reduce(StageUsage::merge);
+        } catch (KubernetesClientException e) {
+            LOGGER.debug("Could not retrieve metrics for job [{}]", job.getMetadata().getName(), e);
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<Boolean> result(Job job, JobStatus status) {
+        if (status == null) {
+            return Optional.empty();
+        }
+        if (Objects.equals(status.getSucceeded(), 1)) {
+            return Optional.of(true);
+        }
+        var maxFailures = Optional.ofNullable(job.getSpec().getBackoffLimit()).orElse(DEFAULT_BACKOFF_LIMIT) + 1;
+        if (Optional.ofNullable(status.getFailed()).orElse(0) >= maxFailures) {
+            return Optional.of(false);
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<Instant> runningSince(Pod pod, String containerName) {
+        return Optional.ofNullable(pod.getStatus())
+                .map(PodStatus::getContainerStatuses)
+                .flatMap(statuses -> statuses.stream().filter(status -> status.getName().equals(containerName)).findFirst())
+                .map(ContainerStatus::getState)
+                .map(ContainerState::getRunning)
+                .map(ContainerStateRunning::getStartedAt)
+                .map(Instant::parse);
+    }
+
+    private static StageUsage toStageUsage(ContainerMetrics metrics) {
+        var usage = metrics.getUsage();
+        var cpu = Optional.ofNullable(usage.get("cpu")).map(Quantity::getAmountInBytes).map(Number::doubleValue).orElse(0.0);
+        var memory = Optional.ofNullable(usage.get("memory")).map(Quantity::getAmountInBytes).map(Number::longValue).orElse(0L);
+        return StageUsage.builder().peakCpuCores(cpu).peakMemoryBytes(memory).build();
+    }
+
+    /**
+     * Passes every change of the watched resources on to a listener.
+     */
+    private static class ChangeWatcher<T> implements Watcher<T> {
+        private final String jobName;
+        private final Runnable listener;
+
+        private ChangeWatcher(final String jobName, final Runnable listener) {
+            this.jobName = jobName;
+            this.listener = listener;
+        }
+
+        @Override
+        public void eventReceived(final Action action, final T resource) {
+            listener.run();
+        }
+
+        @Override
+        public void onClose(final WatcherException cause) {
+            LOGGER.warn("Watch of job [{}] closed, falling back to polling", jobName, cause);
+        }
+    }
+
+    private static class CapacityInformers {
+        private final SharedIndexInformer<Node> nodes;
+        private final SharedIndexInformer<Pod> pods;
+
+        private CapacityInformers(final SharedIndexInformer<Node> nodes, final SharedIndexInformer<Pod> pods) {
+            this.nodes = nodes;
+            this.pods = pods;
         }
     }
 }
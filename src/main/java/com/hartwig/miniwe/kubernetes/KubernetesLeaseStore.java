@@ -0,0 +1,167 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.workflow.LeaseStore;
+import com.hartwig.miniwe.workflow.RunLease;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.api.model.coordination.v1.Lease;
+import io.fabric8.kubernetes.api.model.coordination.v1.LeaseBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+
+/**
+ * Stores run leases as kubernetes {@code Lease} objects named {@code miniwe-{run name}}. Concurrent updates are rejected by the API
+ * server based on the resource version, so only one replica can win an acquisition.
+ */
+public class KubernetesLeaseStore implements LeaseStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KubernetesLeaseStore.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().registerModule(new Jdk8Module());
+    private static final String LEASE_LABEL = "miniwe/run-lease";
+    private static final String EXECUTION_ANNOTATION = "miniwe/execution-definition";
+    private static final int HTTP_CONFLICT = 409;
+
+    private final KubernetesClient client;
+    private final String namespace;
+
+    public KubernetesLeaseStore(final KubernetesClient client, final String namespace) {
+        this.client = client;
+        this.namespace = namespace;
+    }
+
+    @Override
+    public boolean tryAcquire(final RunLease lease) {
+        var current = client.leases().inNamespace(namespace).withName(leaseName(lease.runName())).get();
+        try {
+            if (current == null) {
+                client.leases().inNamespace(namespace).resource(toLease(lease, null)).create();
+                return true;
+            }
+            var currentLease = fromLease(current);
+            if (currentLease.isPresent() && !currentLease.get().holder().equals(lease.holder())
+                    && !currentLease.get().isExpired(Instant.now())) {
+                return false;
+            }
+            update(current, toLease(lease, current));
+            return true;
+        } catch (KubernetesClientException e) {
+            if (e.getCode() == HTTP_CONFLICT) {
+                LOGGER.info("[{}] Another replica acquired the lease first", lease.runName());
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void release(final String runName, final String holder) {
+        var resource = client.leases().inNamespace(namespace).withName(leaseName(runName));
+        var current = resource.get();
+        if (current != null && Objects.equals(current.getSpec().getHolderIdentity(), holder)) {
+            resource.delete();
+        }
+    }
+
+    @Override
+    public void expire(final String runName, final String holder) {
+        var current = client.leases().inNamespace(namespace).withName(leaseName(runName)).get();
+        if (current == null || !Objects.equals(current.getSpec().getHolderIdentity(), holder)) {
+            return;
+        }
+        var expired = new LeaseBuilder(current).editSpec().withRenewTime(ZonedDateTime.ofInstant(Instant.EPOCH, ZoneOffset.UTC)).endSpec();
+        try {
+            update(current, expired.build());
+        } catch (KubernetesClientException e) {
+            if (e.getCode() != HTTP_CONFLICT) {
+                throw e;
+            }
+            LOGGER.info("[{}] Lease changed before it could be expired", runName);
+        }
+    }
+
+    @Override
+    public List<RunLease> list() {
+        return client.leases()
+                .inNamespace(namespace)
+                .withLabel(LEASE_LABEL)
+                .list()
+                .getItems()
+                .stream()
+                .map(KubernetesLeaseStore::fromLease)
+                .flatMap(Optional::stream)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Replaces the lease only if it has not changed since it was read, otherwise the API server rejects the update with a conflict.
+     */
+    private void update(Lease current, Lease updated) {
+        updated.getMetadata().setResourceVersion(current.getMetadata().getResourceVersion());
+        client.leases().inNamespace(namespace).resource(updated).update();
+    }
+
+    private static String leaseName(String runName) {
+        return "miniwe-" + runName;
+    }
+
+    private Lease toLease(RunLease lease, Lease current) {
+        var sameHolder = current != null && Objects.equals(current.getSpec().getHolderIdentity(), lease.holder());
+        var transitions = current == null ? 0 : Optional.ofNullable(current.getSpec().getLeaseTransitions()).orElse(0);
+        var renewTime = ZonedDateTime.ofInstant(lease.renewTime(), ZoneOffset.UTC);
+        try {
+            return new LeaseBuilder().withNewMetadata()
+                    .withName(leaseName(lease.runName()))
+                    .withNamespace(namespace)
+                    .addToLabels(LEASE_LABEL, "true")
+                    .addToAnnotations(EXECUTION_ANNOTATION, OBJECT_MAPPER.writeValueAsString(lease.executionDefinition()))
+                    .endMetadata()
+                    .withNewSpec()
+                    .withHolderIdentity(lease.holder())
+                    .withLeaseDurationSeconds((int) lease.duration().toSeconds())
+                    .withAcquireTime(sameHolder ? current.getSpec().getAcquireTime() : renewTime)
+                    .withRenewTime(renewTime)
+                    .withLeaseTransitions(sameHolder || current == null ? transitions : transitions + 1)
+                    .endSpec()
+                    .build();
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(String.format("Could not serialize execution of run '%s'", lease.runName()), e);
+        }
+    }
+
+    private static Optional<RunLease> fromLease(Lease lease) {
+        var spec = lease.getSpec();
+        var annotations = lease.getMetadata().getAnnotations();
+        if (spec == null || spec.getHolderIdentity() == null || spec.getRenewTime() == null || annotations == null
+                || !annotations.containsKey(EXECUTION_ANNOTATION)) {
+            LOGGER.warn("Ignoring incomplete run lease '{}'", lease.getMetadata().getName());
+            return Optional.empty();
+        }
+        try {
+            var executionDefinition = OBJECT_MAPPER.readValue(annotations.get(EXECUTION_ANNOTATION), ExecutionDefinition.class);
+            return Optional.of(RunLease.builder()
+                    .runName(lease.getMetadata().getName().substring("miniwe-".length()))
+                    .holder(spec.getHolderIdentity())
+                    .executionDefinition(executionDefinition)
+                    .renewTime(spec.getRenewTime().toInstant())
+                    .duration(Duration.ofSeconds(Optional.ofNullable(spec.getLeaseDurationSeconds()).orElse(0)))
+                    .build());
+        } catch (JsonProcessingException e) {
+            LOGGER.warn("Ignoring run lease '{}' with an unreadable execution", lease.getMetadata().getName(), e);
+            return Optional.empty();
+        }
+    }
+}
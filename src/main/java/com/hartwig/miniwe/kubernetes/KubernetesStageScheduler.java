@@ -1,68 +1,426 @@
 package com.hartwig.miniwe.kubernetes;
 
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.hartwig.miniwe.ExecutorUtil;
 import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.StageFailureReason;
+import com.hartwig.miniwe.miniwdl.StageTimeouts;
 import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.StageFailedException;
 import com.hartwig.miniwe.workflow.StageScheduler;
 import com.hartwig.miniwe.workflow.WorkflowUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.fabric8.kubernetes.client.KubernetesClientTimeoutException;
+import io.fabric8.kubernetes.client.Watch;
+
 public class KubernetesStageScheduler implements StageScheduler {
     private static final Logger LOGGER = LoggerFactory.getLogger(KubernetesStageScheduler.class);
     public static final int DEFAULT_STORAGE_SIZE_GI = 1;
     private static final int MAX_CONCURRENT_STAGES = 128;
+    private static final int USAGE_SAMPLE_INTERVAL_SECONDS = 15;
+    // attempts are polled when their job or pods change, and at least this often to check timeouts and heartbeats
+    private static final int FALLBACK_POLL_SECONDS = 60;
+    private static final String SPECULATIVE_SUFFIX = "spec";
 
     private final ConcurrentMap<ExecutionStage, StageRun> stageRunByExecutionStage = new ConcurrentHashMap<>();
+    private final Set<ExecutionStage> activeStages = ConcurrentHashMap.newKeySet();
+    // runs driven by another engine now, whose resources are left in place when their stages are cancelled here
+    private final Set<String> detachedRuns = ConcurrentHashMap.newKeySet();
     private final String namespace;
     private final ExecutorService executor;
     private final KubernetesClientWrapper kubernetesClient;
     private final String serviceAccountName;
     private final StorageProvider storageProvider;
+    private final Optional<StageUsageHistory> usageHistory;
+    private final Optional<Duration> pendingTimeout;
+    private final ImagePullMetrics imagePullMetrics;
+    private final ScheduledExecutorService usageSampler;
+    private final List<Consumer<ExecutionStage>> stageStartedListeners = new CopyOnWriteArrayList<>();
 
     public KubernetesStageScheduler(final String namespace, final KubernetesClientWrapper kubernetesClient, final String serviceAccountName,
             final StorageProvider storageProvider) {
+        this(namespace, kubernetesClient, serviceAccountName, storageProvider, null);
+    }
+
+    /**
+     * @param usageHistory if not null, stage usage is sampled into this history and requests are right-sized based on it.
+     */
+    public KubernetesStageScheduler(final String namespace, final KubernetesClientWrapper kubernetesClient, final String serviceAccountName,
+            final StorageProvider storageProvider, final StageUsageHistory usageHistory) {
+        this(namespace, kubernetesClient, serviceAccountName, storageProvider, usageHistory, null);
+    }
+
+    /**
+     * @param pendingTimeout if not null, stages whose pod is still pending after this time fail as unschedulable and their resources
+     *                       are deleted, so they can be scheduled elsewhere.
+     */
+    public KubernetesStageScheduler(final String namespace, final KubernetesClientWrapper kubernetesClient, final String serviceAccountName,
+            final StorageProvider storageProvider, final StageUsageHistory usageHistory, final Duration pendingTimeout) {
+        this(namespace, kubernetesClient, serviceAccountName, storageProvider, usageHistory, pendingTimeout, null);
+    }
+
+    /**
+     * @param imagePullMetrics if not null, the time the pods of every stage spent pulling images is recorded in these metrics.
+     */
+    public KubernetesStageScheduler(final String namespace, final KubernetesClientWrapper kubernetesClient, final String serviceAccountName,
+            final StorageProvider storageProvider, final StageUsageHistory usageHistory, final Duration pendingTimeout,
+            final ImagePullMetrics imagePullMetrics) {
+        this(namespace,
+                kubernetesClient,
+                serviceAccountName,
+                storageProvider,
+                usageHistory,
+                pendingTimeout,
+                imagePullMetrics,
+                MAX_CONCURRENT_STAGES);
+    }
+
+    KubernetesStageScheduler(final String namespace, final KubernetesClientWrapper kubernetesClient, final String serviceAccountName,
+            final StorageProvider storageProvider, final StageUsageHistory usageHistory, final Duration pendingTimeout,
+            final ImagePullMetrics imagePullMetrics, final int maxConcurrentStages) {
+        this.pendingTimeout = Optional.ofNullable(pendingTimeout);
         this.serviceAccountName = serviceAccountName;
         this.namespace = namespace;
-        this.executor = ExecutorUtil.createExecutorService(MAX_CONCURRENT_STAGES, "stage-run-thread-%d");
+        this.executor = ExecutorUtil.createExecutorService(maxConcurrentStages, "stage-run-thread-%d");
         this.kubernetesClient = kubernetesClient;
         this.storageProvider = storageProvider;
+        this.usageHistory = Optional.ofNullable(usageHistory);
+        this.imagePullMetrics = imagePullMetrics != null ? imagePullMetrics : new ImagePullMetrics();
+        this.usageSampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("usage-sampler-%d")
+                .setDaemon(true)
+                .build());
     }
 
     @Override
     public synchronized CompletableFuture<Boolean> schedule(ExecutionStage executionStage) {
-        if (stageRunByExecutionStage.containsKey(executionStage)) {
-            throw new IllegalStateException(String.format("Cannot schedule stage with name '%s' since it already exists",
-                    executionStage.runName()));
+        if (activeStages.contains(executionStage)) {
+            throw new IllegalStateException(String.format("Cannot schedule stage with name '%s' since it is already running",
+                    ExecutionStage.getName(executionStage)));
+        }
+        var runName = executionStage.runName();
+        if (detachedRuns.contains(runName) && activeStages.stream().noneMatch(active -> active.runName().equals(runName))) {
+            // the stages of the detached run have wound down, so the run is driven here again
+            detachedRuns.remove(runName);
+        }
+        var firstAttempt = !stageRunByExecutionStage.containsKey(executionStage);
+        if (!firstAttempt) {
+            LOGGER.info("[{}] Replacing the resources of a previous failed attempt", ExecutionStage.getName(executionStage));
         }
-        var definition = new StageDefinition(executionStage, namespace, DEFAULT_STORAGE_SIZE_GI, serviceAccountName, storageProvider);
+        var stage = executionStage.stage();
+        var usageKey = StageUsageHistory.key(stage);
+        var observedUsage = usageHistory.flatMap(history -> history.get(stage));
+        // a fused pod runs a chain of stages, its runtime and output are not those of the last stage it is named after
+        var recordedUsage = usageHistory.filter(history -> executionStage.fusedStages().isEmpty());
+        var definition = new StageDefinition(executionStage,
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider,
+                observedUsage);
         var stageRun = definition.createStageRun(kubernetesClient);
+        pendingTimeout.ifPresent(stageRun::setPendingTimeout);
+        var speculateAfter = speculateAfter(executionStage, observedUsage);
+        Supplier<StageRun> speculativeAttempt = () -> new StageDefinition(executionStage,
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider,
+                observedUsage,
+                Optional.of(SPECULATIVE_SUFFIX)).createStageRun(kubernetesClient);
         stageRunByExecutionStage.put(executionStage, stageRun);
-        return CompletableFuture.supplyAsync(() -> {
+        activeStages.add(executionStage);
+        return runCancellable(() -> {
+            Optional<ScheduledFuture<?>> sampling = Optional.empty();
+            var attempts = new ArrayList<>(List.of(stageRun));
+            var cancelled = false;
             try {
-                stageRun.start();
-                var success = stageRun.waitUntilComplete();
+                // a job left running by a previous engine is only resumed for the first attempt, retries always start afresh
+                if (!firstAttempt || !stageRun.resume()) {
+                    stageRun.start();
+                }
+                stageStartedListeners.forEach(listener -> listener.accept(executionStage));
+                sampling = recordedUsage.map(history -> startSampling(stageRun, history, usageKey));
+                var winner = awaitFirstSuccess(attempts, speculateAfter, speculativeAttempt);
+                recordImagePullTime(executionStage, winner.orElse(stageRun));
+                winner.ifPresent(StageRun::copyOutput);
+                var success = winner.isPresent();
                 LOGGER.info("[{}] Stage completed with status '{}'", definition.getStageName(), success ? "Success" : "Failed");
                 if (success) {
+                    recordedUsage.ifPresent(history -> recordSuccess(history, executionStage, winner.get()));
                     LOGGER.info("[{}] Cleaning up resources...", definition.getStageName());
-                    stageRun.cleanup();
-                    stageRunByExecutionStage.remove(executionStage);
+                    cleanupUnlessDetached(executionStage, stageRun);
                     LOGGER.info("[{}] Cleaned up resources for stage", definition.getStageName());
                 }
                 return success;
             } catch (Exception e) {
+                if (isInterrupt(e)) {
+                    // the stage was cancelled, nothing is kept since nobody is waiting for the result
+                    cancelled = true;
+                    LOGGER.info("[{}] Stage was cancelled, deleting its resources", definition.getStageName());
+                    cleanupUnlessDetached(executionStage, stageRun);
+                    throw new CancellationException(String.format("Stage '%s' was cancelled", definition.getStageName()));
+                }
+                if (e instanceof StageFailedException) {
+                    var failure = (StageFailedException) e;
+                    LOGGER.error("[{}] Stage failed with reason {}", definition.getStageName(), failure.getReason(), e);
+                    recordImagePullTime(executionStage, stageRun);
+                    if (failure.getReason() == StageFailureReason.UNSCHEDULABLE || failure.getReason() == StageFailureReason.PREEMPTED) {
+                        // nothing ran to completion, and the pending pod should not start later on
+                        cleanupUnlessDetached(executionStage, stageRun);
+                    }
+                    throw failure;
+                }
+                if (e instanceof KubernetesClientTimeoutException) {
+                    LOGGER.error("[{}] Stage timed out", definition.getStageName(), e);
+                    throw new StageFailedException(StageFailureReason.TIMEOUT, "Stage timed out", e);
+                }
                 LOGGER.error("[{}] Stage failed with", definition.getStageName(), e);
-                return false;
+                throw new StageFailedException(StageFailureReason.INFRASTRUCTURE, "Stage failed outside of the stage container", e);
+            } finally {
+                sampling.ifPresent(future -> future.cancel(false));
+                // speculative attempts are never kept for inspection
+                attempts.stream().filter(attempt -> attempt != stageRun).forEach(StageRun::cleanup);
+                activeStages.remove(executionStage);
+                if (cancelled) {
+                    // the interrupt was cleared to delete the resources, whoever runs the stage thread still needs to see it
+                    Thread.currentThread().interrupt();
+                }
             }
-        }, executor);
+        }, () -> activeStages.remove(executionStage));
     }
 
+    /**
+     * Deletes the resources of the stage, unless its run was detached and another engine resumed them.
+     */
+    private void cleanupUnlessDetached(ExecutionStage executionStage, StageRun stageRun) {
+        if (detachedRuns.contains(executionStage.runName())) {
+            LOGGER.info("[{}] Leaving resources to the engine that drives the run now", stageRun.getName());
+        } else {
+            stageRun.cleanup();
+        }
+        stageRunByExecutionStage.remove(executionStage);
+    }
+
+    private void recordImagePullTime(ExecutionStage executionStage, StageRun stageRun) {
+        stageRun.getImagePullTime().ifPresent(pullTime -> {
+            LOGGER.info("[{}] Pulling images took {} seconds", stageRun.getName(), pullTime.toSeconds());
+            imagePullMetrics.record(String.format("%s:%s", executionStage.stage().image(), executionStage.stage().version()), pullTime);
+        });
+    }
+
+    /**
+     * Runs the stage on a stage thread. Cancelling the returned future interrupts the stage thread, which then deletes the resources
+     * of the stage. If no stage thread is free, the stage fails without starting.
+     *
+     * @param notStarted called instead of the stage if the future was cancelled or failed before the stage started.
+     */
+    private CompletableFuture<Boolean> runCancellable(Supplier<Boolean> stage, Runnable notStarted) {
+        var result = new CompletableFuture<Boolean>();
+        var started = new AtomicBoolean(false);
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                if (started.getAndSet(true)) {
+                    return;
+                }
+                try {
+                    result.complete(stage.get());
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            notStarted.run();
+            result.completeExceptionally(new StageFailedException(StageFailureReason.INFRASTRUCTURE, "All stage threads are in use", e));
+            return result;
+        }
+        result.whenComplete((success, error) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+                if (!started.getAndSet(true)) {
+                    notStarted.run();
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns whether the stage thread was interrupted, either directly or by an interrupt that a client call turned into another
+     * exception. Clears the interrupt flag, so the resources of the stage can still be deleted.
+     */
+    private static boolean isInterrupt(Exception e) {
+        var interrupted = Thread.interrupted();
+        return causedByInterrupt(e) || interrupted;
+    }
+
+    private static boolean causedByInterrupt(Exception e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof InterruptedIOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a listener that is called once the kubernetes resources of a stage have been created.
+     */
+    @Override
+    public void addStageStartedListener(Consumer<ExecutionStage> listener) {
+        stageStartedListeners.add(listener);
+    }
+
+    /**
+     * Number of stages that are currently scheduled by this scheduler and not done yet.
+     */
+    public int getActiveStageCount() {
+        return activeStages.size();
+    }
+
+    public ClusterCapacity freeCapacity() {
+        return kubernetesClient.freeCapacity();
+    }
+
+    private ScheduledFuture<?> startSampling(StageRun stageRun, StageUsageHistory history, String usageKey) {
+        return usageSampler.scheduleAtFixedRate(() -> stageRun.sampleUsage().ifPresent(usage -> history.record(usageKey, usage)),
+                USAGE_SAMPLE_INTERVAL_SECONDS,
+                USAGE_SAMPLE_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Polls the attempts of a stage until one succeeds. Attempts are polled whenever their job or pods change, and at least every
+     * {@value #FALLBACK_POLL_SECONDS} seconds in case a change was missed. If a speculation threshold is given and the first attempt
+     * is still running after it, a speculative attempt is started next to it.
+     *
+     * @param attempts the started first attempt, speculative attempts are added to it.
+     * @return the first attempt that succeeded, or empty if all attempts failed and at least one of them failed in the container.
+     * @throws StageFailedException if all attempts failed and none of them failed in the container.
+     */
+    private Optional<StageRun> awaitFirstSuccess(List<StageRun> attempts, Optional<Duration> speculateAfter,
+            Supplier<StageRun> speculativeAttempt) throws InterruptedException {
+        var changes = new Semaphore(0);
+        var watches = new ArrayList<Watch>();
+        attempts.forEach(attempt -> watches.add(attempt.watch(changes::release)));
+        try {
+            var running = new ArrayList<>(attempts);
+            var speculateAt = speculateAfter.map(Instant.now()::plus);
+            var applicationFailure = false;
+            RuntimeException lastFailure = null;
+            while (!running.isEmpty()) {
+                // changes that arrive while polling are seen by this poll or cause the next one
+                changes.drainPermits();
+                for (var iterator = running.iterator(); iterator.hasNext(); ) {
+                    var attempt = iterator.next();
+                    try {
+                        var result = attempt.poll();
+                        if (result.isEmpty()) {
+                            continue;
+                        }
+                        if (result.get()) {
+                            return Optional.of(attempt);
+                        }
+                        applicationFailure = true;
+                    } catch (RuntimeException e) {
+                        if (Thread.currentThread().isInterrupted() || causedByInterrupt(e)) {
+                            // the stage was cancelled while polling, which is not a failure of the attempt
+                            throw e;
+                        }
+                        LOGGER.warn("[{}] Attempt failed", attempt.getName(), e);
+                        lastFailure = e;
+                    }
+                    iterator.remove();
+                }
+                if (speculateAt.isPresent() && !Instant.now().isBefore(speculateAt.get()) && attempts.size() == 1 && !running.isEmpty()) {
+                    speculateAt = Optional.empty();
+                    var speculative = startSpeculativeAttempt(speculativeAttempt);
+                    if (speculative.isPresent()) {
+                        attempts.add(speculative.get());
+                        running.add(speculative.get());
+                        watches.add(speculative.get().watch(changes::release));
+                    }
+                }
+                if (!running.isEmpty()) {
+                    var wait = Duration.ofSeconds(FALLBACK_POLL_SECONDS);
+                    if (speculateAt.isPresent() && Duration.between(Instant.now(), speculateAt.get()).compareTo(wait) < 0) {
+                        wait = Duration.between(Instant.now(), speculateAt.get());
+                    }
+                    changes.tryAcquire(Math.max(0, wait.toMillis()), TimeUnit.MILLISECONDS);
+                }
+            }
+            if (!applicationFailure && lastFailure != null) {
+                throw lastFailure;
+            }
+            return Optional.empty();
+        } finally {
+            watches.forEach(Watch::close);
+        }
+    }
+
+    private Optional<StageRun> startSpeculativeAttempt(Supplier<StageRun> speculativeAttempt) {
+        try {
+            var attempt = speculativeAttempt.get();
+            LOGGER.info("[{}] Stage runs longer than expected, starting speculative attempt", attempt.getName());
+            attempt.start();
+            return Optional.of(attempt);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not start speculative attempt", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Time after which a speculative stage gets a second attempt, based on the 95th percentile of its previous runtimes. Stages in a
+     * concurrency pool are never speculated on, since the second attempt would not hold a permit, and neither are stages that stream
+     * their output, since both attempts would write the same stream.
+     */
+    private static Optional<Duration> speculateAfter(ExecutionStage executionStage, Optional<StageUsage> observedUsage) {
+        if (!ConcurrencyPools.poolsOf(executionStage).isEmpty() || executionStage.streamOutput()) {
+            return Optional.empty();
+        }
+        return executionStage.stage()
+                .timeouts()
+                .filter(StageTimeouts::speculative)
+                .flatMap(timeouts -> observedUsage.flatMap(StageUsage::p95RuntimeSeconds)
+                        .map(p95 -> Duration.ofSeconds((long) Math.ceil(p95 * timeouts.speculativeFactor()))));
+    }
+
+    private void recordSuccess(StageUsageHistory history, ExecutionStage executionStage, StageRun winner) {
+        var stage = executionStage.stage();
+        var outputSize = storageProvider.outputSizeBytes(executionStage.runName(), ExecutionStage.getOutputPath(executionStage));
+        history.record(StageUsageHistory.outputKey(stage),
+                StageUsage.builder().peakOutputBytes(outputSize).addRuntimeSeconds(winner.getRuntime().toSeconds()).build());
+    }
+
+    @Override
     public synchronized void deleteStagesForRun(ExecutionDefinition executionDefinition) {
         for (var iterator = stageRunByExecutionStage.entrySet().iterator(); iterator.hasNext(); ) {
             final var entries = iterator.next();
@@ -72,4 +430,18 @@ public class KubernetesStageScheduler implements StageScheduler {
             }
         }
     }
+
+    /**
+     * Stages of the run that are cancelled from now on leave their resources in place, until the stages of the run have wound down and
+     * it is scheduled here again.
+     */
+    @Override
+    public void detachStagesForRun(final ExecutionDefinition executionDefinition) {
+        detachedRuns.add(WorkflowUtil.getRunName(executionDefinition));
+    }
+
+    @Override
+    public void deleteStreams(final ExecutionDefinition executionDefinition, final String outputStage) {
+        storageProvider.deleteStreams(WorkflowUtil.getRunName(executionDefinition), outputStage);
+    }
 }
@@ -0,0 +1,25 @@
+package com.hartwig.miniwe.kubernetes;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Resources of a schedulable node that are not requested by the pods on it.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableNodeCapacity.class)
+@JsonSerialize(as = ImmutableNodeCapacity.class)
+public interface NodeCapacity {
+    String name();
+
+    double freeCpuCores();
+
+    long freeMemoryBytes();
+
+    static ImmutableNodeCapacity.Builder builder() {
+        return ImmutableNodeCapacity.builder();
+    }
+}
@@ -1,10 +1,20 @@
 package com.hartwig.miniwe.kubernetes;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.StageNodes;
+import com.hartwig.miniwe.miniwdl.StageStorage;
+import com.hartwig.miniwe.miniwdl.StageTimeouts;
 import com.hartwig.miniwe.workflow.ExecutionStage;
 
 import io.fabric8.kubernetes.api.model.Container;
@@ -12,8 +22,10 @@ import io.fabric8.kubernetes.api.model.ContainerBuilder;
 import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
 import io.fabric8.kubernetes.api.model.PersistentVolumeClaimBuilder;
 import io.fabric8.kubernetes.api.model.PersistentVolumeClaimSpecBuilder;
+import io.fabric8.kubernetes.api.model.PodSpec;
 import io.fabric8.kubernetes.api.model.PodSpecBuilder;
 import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.ResourceRequirementsBuilder;
 import io.fabric8.kubernetes.api.model.Volume;
 import io.fabric8.kubernetes.api.model.VolumeBuilder;
 import io.fabric8.kubernetes.api.model.VolumeMount;
@@ -24,56 +36,158 @@ import io.fabric8.kubernetes.api.model.batch.v1.JobSpecBuilder;
 import io.fabric8.kubernetes.client.utils.Serialization;
 
 public class StageDefinition {
+    private static final double USAGE_HEADROOM = 1.2;
+    private static final double OUTPUT_HEADROOM = 1.5;
+    private static final long MIN_CPU_MILLIS = 100;
+    private static final long BYTES_PER_MI = 1024 * 1024;
+    private static final long BYTES_PER_GI = 1024 * BYTES_PER_MI;
+    private static final String DEFAULT_STORAGE_CLASS = "standard";
+    private static final String SSD_STORAGE_CLASS = "premium-rwo";
+    private static final int MAX_PARALLEL_INPUT_COPIES = 8;
+    static final String RUN_LABEL = "miniwe/run";
+    static final String SPOT_NODE_LABEL = "cloud.google.com/gke-spot";
+    static final String DISRUPTION_TARGET_CONDITION = "DisruptionTarget";
+
     private final String stageName;
     private final PersistentVolumeClaim outputPvc;
     private final Job job;
+    private final Optional<Job> onDemandJob;
+    private final StageNodes nodes;
     private final Job onCompleteCopyJob;
+    private final Duration timeout;
+    private final Optional<Duration> heartbeat;
+    private final Optional<StreamingOutput> streamingOutput;
+    private final Set<String> stageContainers = new HashSet<>();
 
     public StageDefinition(ExecutionStage executionStage, String namespace, int storageSizeGi, String serviceAccountName,
             StorageProvider storageProvider) {
-        var stage = executionStage.stage();
-        var imageName = String.format("%s:%s", stage.image(), stage.version());
+        this(executionStage, namespace, storageSizeGi, serviceAccountName, storageProvider, Optional.empty());
+    }
+
+    /**
+     * @param storageSizeGi size of the output volume if it is neither set on the stage nor derivable from observed usage.
+     * @param observedUsage usage of previous runs of the same stage, used to derive requests and the output volume size that are
+     *                      not set explicitly.
+     */
+    public StageDefinition(ExecutionStage executionStage, String namespace, int storageSizeGi, String serviceAccountName,
+            StorageProvider storageProvider, Optional<StageUsage> observedUsage) {
+        this(executionStage, namespace, storageSizeGi, serviceAccountName, storageProvider, observedUsage, Optional.empty());
+    }
 
-        this.stageName = ExecutionStage.getName(executionStage);
+    /**
+     * @param attemptSuffix if present, appended to the names of all resources so this attempt can run next to the regular one.
+     */
+    public StageDefinition(ExecutionStage executionStage, String namespace, int storageSizeGi, String serviceAccountName,
+            StorageProvider storageProvider, Optional<StageUsage> observedUsage, Optional<String> attemptSuffix) {
+        var stage = executionStage.stage();
+        var fusedStages = executionStage.fusedStages();
+        // fused stages get the inputs, and the timeout covers all stages that run in the pod
+        var firstStage = fusedStages.stream().findFirst().orElse(stage);
 
-        var args = stage.arguments().map(arguments -> List.of(arguments.split(" ")));
-        var entrypoint = stage.entrypoint().map(a -> List.of(a.split(" ")));
+        this.stageName = attemptSuffix.map(suffix -> KubernetesUtil.toValidRFC1123Label(ExecutionStage.getName(executionStage), suffix))
+                .orElse(ExecutionStage.getName(executionStage));
+        this.timeout = Duration.ofMinutes(Stream.concat(fusedStages.stream(), Stream.of(stage))
+                .mapToLong(podStage -> podStage.timeouts().orElse(StageTimeouts.builder().build()).timeoutMinutes())
+                .sum());
+        this.heartbeat = stage.timeouts().flatMap(StageTimeouts::heartbeatMinutes).map(Duration::ofMinutes);
 
         List<Volume> volumes = new ArrayList<>();
         List<VolumeMount> mounts = new ArrayList<>();
         List<Container> initContainers = new ArrayList<>();
-        for (final String inputStage : stage.inputStages()) {
+        List<Container> streamingContainers = new ArrayList<>();
+        List<StageInput> inputs = new ArrayList<>();
+        for (final String inputStage : firstStage.inputStages()) {
             var volumeName = KubernetesUtil.toValidRFC1123Label(executionStage.runName(), inputStage);
 
             volumes.add(new VolumeBuilder().withName(volumeName).withNewEmptyDir().and().build());
             mounts.add(new VolumeMountBuilder().withName(volumeName).withMountPath("/in/" + inputStage).build());
-            initContainers.add(storageProvider.initStorageContainer(executionStage.runName(), inputStage, volumeName));
+            var streamedAttempt = executionStage.streamedInputAttempts().get(inputStage);
+            if (streamedAttempt != null) {
+                streamingContainers.add(storageProvider.streamingInputContainer(executionStage.runName(),
+                        inputStage,
+                        streamedAttempt,
+                        volumeName));
+            } else {
+                inputs.add(StageInput.builder()
+                        .stage(inputStage)
+                        .volumeName(volumeName)
+                        .scattered(executionStage.scatteredInputStages().contains(inputStage))
+                        .files(firstStage.inputFiles().getOrDefault(inputStage, List.of()))
+                        .build());
+            }
+        }
+        // init containers run one after the other, so several inputs are copied in parallel by a single container
+        if (inputs.size() > 1) {
+            initContainers.add(storageProvider.initInputFetcherContainer(executionStage.runName(), inputs, MAX_PARALLEL_INPUT_COPIES));
+        } else {
+            for (StageInput input : inputs) {
+                initContainers.add(input.scattered()
+                        ? storageProvider.initGatherStorageContainer(executionStage.runName(), input.stage(), input.volumeName())
+                        : storageProvider.initStorageContainer(executionStage.runName(), input.stage(), input.files(), input.volumeName()));
+            }
         }
 
         String outputVolumeName = KubernetesUtil.toValidRFC1123Label(stageName);
 
-        outputPvc = persistentVolumeClaim(outputVolumeName, storageSizeGi, namespace);
+        var outputSizeGi = outputSizeGi(stage, observedUsage, storageSizeGi) + fusedStages.stream()
+                .mapToInt(fusedStage -> outputSizeGi(fusedStage, Optional.empty(), storageSizeGi))
+                .sum();
+        outputPvc = persistentVolumeClaim(outputVolumeName, outputSizeGi, storageClass(stage), namespace);
         var outputVolume = new VolumeBuilder().withName(outputVolumeName).withNewPersistentVolumeClaim(outputVolumeName, false).build();
         volumes.add(outputVolume);
-        mounts.add(new VolumeMountBuilder().withName(outputVolumeName).withMountPath("/out").build());
 
-        var containerBuilder = new ContainerBuilder().withName(stageName).withImage(imageName).withVolumeMounts(mounts);
-        args.ifPresent(containerBuilder::withArgs);
-        entrypoint.ifPresent(containerBuilder::withCommand);
-        var container = containerBuilder.build();
+        // fused stages run as init containers, every stage writes to its own directory of the output volume
+        var outputSubPath = fusedStages.isEmpty() ? Optional.<String>empty() : Optional.of(stage.name());
+        for (Stage fusedStage : fusedStages) {
+            mounts.add(subPathMount(outputVolumeName, "/out", fusedStage.name()));
+            var fusedContainerName = KubernetesUtil.toValidRFC1123Label(executionStage.runName(), fusedStage.name());
+            stageContainers.add(fusedContainerName);
+            initContainers.add(stageContainer(fusedContainerName, fusedStage, mounts, Optional.empty()));
+            if (fusedStage.storage().map(StageStorage::checkpoint).orElse(false)) {
+                initContainers.add(withSubPath(storageProvider.exitStorageContainer(executionStage.runName(),
+                        fusedStage.name(),
+                        isPacked(fusedStage),
+                        outputVolumeName), fusedStage.name()));
+            }
+            mounts = new ArrayList<>(List.of(subPathMount(outputVolumeName, "/in/" + fusedStage.name(), fusedStage.name())));
+        }
+        mounts.add(outputSubPath.map(subPath -> subPathMount(outputVolumeName, "/out", subPath))
+                .orElse(new VolumeMountBuilder().withName(outputVolumeName).withMountPath("/out").build()));
+
+        var container = stageContainer(stageName, stage, mounts, observedUsage);
+        stageContainers.add(stageName);
+        if (executionStage.streamOutput()) {
+            streamingContainers.add(storageProvider.streamingOutputContainer(executionStage.runName(),
+                    stage.name(),
+                    executionStage.attempt(),
+                    outputVolumeName));
+            streamingOutput =
+                    Optional.of(new StreamingOutput(storageProvider, executionStage.runName(), stage.name(), executionStage.attempt()));
+        } else {
+            streamingOutput = Optional.empty();
+        }
         var pod = new PodSpecBuilder().withServiceAccountName(serviceAccountName)
                 .withInitContainers(initContainers)
                 .withContainers(container)
+                .addAllToContainers(streamingContainers)
                 .withRestartPolicy("Never")
                 .withVolumes(volumes)
                 .build();
 
-        var jobSpec = new JobSpecBuilder().withBackoffLimit(1).withNewTemplate().withSpec(pod).endTemplate().build();
-        job = new JobBuilder().withNewMetadata().withName(stageName).withNamespace(namespace).endMetadata().withSpec(jobSpec).build();
+        var labels = Map.of(RUN_LABEL, KubernetesUtil.toValidRFC1123Label(executionStage.runName()));
+        this.nodes = stage.nodes().orElse(StageNodes.builder().build());
+        job = stageJob(placed(pod, nodes, nodes.spot()), nodes.spot(), labels, namespace);
+        onDemandJob = nodes.spot() && nodes.onDemandAfterPreemptions().isPresent()
+                ? Optional.of(stageJob(placed(pod, nodes, false), true, labels, namespace))
+                : Optional.empty();
 
         // create on complete copy job
+        var exitStorageContainer = storageProvider.exitStorageContainer(executionStage.runName(),
+                ExecutionStage.getOutputPath(executionStage),
+                isPacked(stage),
+                outputVolumeName);
         var onCompleteCopyPod = new PodSpecBuilder().withServiceAccountName(serviceAccountName)
-                .withContainers(storageProvider.exitStorageContainer(executionStage.runName(), stage.name(), outputVolumeName))
+                .withContainers(outputSubPath.map(subPath -> withSubPath(exitStorageContainer, subPath)).orElse(exitStorageContainer))
                 .withRestartPolicy("Never")
                 .withVolumes(outputVolume)
                 .build();
@@ -83,6 +197,7 @@ public class StageDefinition {
         onCompleteCopyJob = new JobBuilder().withNewMetadata()
                 .withName(KubernetesUtil.toValidRFC1123Label(stageName, "cp"))
                 .withNamespace(namespace)
+                .withLabels(labels)
                 .endMetadata()
                 .withSpec(onCompleteCopySpec)
                 .build();
@@ -93,17 +208,157 @@ public class StageDefinition {
     }
 
     public StageRun createStageRun(KubernetesClientWrapper client) {
-        return new StageRun(outputPvc, job, onCompleteCopyJob, client);
+        return new StageRun(outputPvc,
+                job,
+                onDemandJob,
+                nodes,
+                onCompleteCopyJob,
+                timeout,
+                heartbeat,
+                streamingOutput,
+                Set.copyOf(stageContainers),
+                client);
     }
 
     @Override
     public String toString() {
-        return Stream.of(outputPvc, job, onCompleteCopyJob).map(Serialization::asYaml).collect(Collectors.joining());
+        return Stream.of(Stream.of(outputPvc, job), onDemandJob.stream(), Stream.of(onCompleteCopyJob))
+                .flatMap(resources -> resources)
+                .map(Serialization::asYaml)
+                .collect(Collectors.joining());
+    }
+
+    private Job stageJob(PodSpec pod, boolean failOnDisruption, Map<String, String> labels, String namespace) {
+        var jobSpec = new JobSpecBuilder().withBackoffLimit(0).withNewTemplate().withSpec(pod).endTemplate();
+        if (failOnDisruption) {
+            // a preempted pod is not retried by the job, the stage run starts it again without using up the backoff limit
+            jobSpec.withNewPodFailurePolicy()
+                    .addNewRule()
+                    .withAction("FailJob")
+                    .addNewOnPodCondition()
+                    .withType(DISRUPTION_TARGET_CONDITION)
+                    .withStatus("True")
+                    .endOnPodCondition()
+                    .endRule()
+                    .endPodFailurePolicy();
+        }
+        return new JobBuilder().withNewMetadata()
+                .withName(stageName)
+                .withNamespace(namespace)
+                .withLabels(labels)
+                .endMetadata()
+                .withSpec(jobSpec.build())
+                .build();
+    }
+
+    /**
+     * Restricts the pod to the selected nodes, and to either spot nodes or nodes that are not spot nodes when the stage uses spot
+     * nodes at all. Other stages can run on any node.
+     */
+    private static PodSpec placed(PodSpec pod, StageNodes nodes, boolean spot) {
+        var placed = new PodSpecBuilder(pod);
+        var selector = new LinkedHashMap<>(nodes.selector());
+        if (spot) {
+            selector.put(SPOT_NODE_LABEL, "true");
+            placed.addNewToleration()
+                    .withKey(SPOT_NODE_LABEL)
+                    .withOperator("Equal")
+                    .withValue("true")
+                    .withEffect("NoSchedule")
+                    .endToleration();
+        } else if (nodes.spot()) {
+            placed.withNewAffinity()
+                    .withNewNodeAffinity()
+                    .withNewRequiredDuringSchedulingIgnoredDuringExecution()
+                    .addNewNodeSelectorTerm()
+                    .addNewMatchExpression()
+                    .withKey(SPOT_NODE_LABEL)
+                    .withOperator("DoesNotExist")
+                    .endMatchExpression()
+                    .endNodeSelectorTerm()
+                    .endRequiredDuringSchedulingIgnoredDuringExecution()
+                    .endNodeAffinity()
+                    .endAffinity();
+        }
+        if (!selector.isEmpty()) {
+            placed.withNodeSelector(selector);
+        }
+        return placed.build();
+    }
+
+    private static Container stageContainer(String name, Stage stage, List<VolumeMount> mounts, Optional<StageUsage> observedUsage) {
+        var containerBuilder = new ContainerBuilder().withName(name)
+                .withImage(String.format("%s:%s", stage.image(), stage.version()))
+                .withVolumeMounts(mounts);
+        stage.arguments().map(arguments -> List.of(arguments.split(" "))).ifPresent(containerBuilder::withArgs);
+        stage.entrypoint().map(entrypoint -> List.of(entrypoint.split(" "))).ifPresent(containerBuilder::withCommand);
+        var requests = resourceRequests(stage, observedUsage);
+        if (!requests.isEmpty()) {
+            containerBuilder.withResources(new ResourceRequirementsBuilder().withRequests(requests).build());
+        }
+        return containerBuilder.build();
+    }
+
+    private static VolumeMount subPathMount(String volumeName, String mountPath, String subPath) {
+        return new VolumeMountBuilder().withName(volumeName).withMountPath(mountPath).withSubPath(subPath).build();
+    }
+
+    /**
+     * Mounts the volumes of a storage container at a directory of the volume instead of its root.
+     */
+    private static Container withSubPath(Container container, String subPath) {
+        return new ContainerBuilder(container).withVolumeMounts(container.getVolumeMounts()
+                .stream()
+                .map(mount -> new VolumeMountBuilder(mount).withSubPath(subPath).build())
+                .collect(Collectors.toList())).build();
+    }
+
+    private static boolean isPacked(Stage stage) {
+        return stage.storage().map(StageStorage::packed).orElse(false);
+    }
+
+    private static Map<String, Quantity> resourceRequests(Stage stage, Optional<StageUsage> observedUsage) {
+        var requests = new LinkedHashMap<String, Quantity>();
+        observedUsage.ifPresent(usage -> {
+            if (usage.peakCpuCores() > 0) {
+                var cpuMillis = (long) Math.ceil(usage.peakCpuCores() * USAGE_HEADROOM * 1000);
+                requests.put("cpu", new Quantity(Math.max(MIN_CPU_MILLIS, cpuMillis) + "m"));
+            }
+            if (usage.peakMemoryBytes() > 0) {
+                var memoryMi = (long) Math.ceil(usage.peakMemoryBytes() * USAGE_HEADROOM / BYTES_PER_MI);
+                requests.put("memory", new Quantity(memoryMi + "Mi"));
+            }
+        });
+        // explicit requests in the workflow definition always win over derived ones
+        stage.resources().ifPresent(resources -> {
+            resources.cpu().ifPresent(cpu -> requests.put("cpu", new Quantity(cpu)));
+            resources.memory().ifPresent(memory -> requests.put("memory", new Quantity(memory)));
+            resources.ephemeralStorage().ifPresent(storage -> requests.put("ephemeral-storage", new Quantity(storage)));
+        });
+        return requests;
+    }
+
+    private static int outputSizeGi(Stage stage, Optional<StageUsage> observedUsage, int defaultSizeGi) {
+        var explicitSize = stage.storage().flatMap(StageStorage::sizeGi);
+        if (explicitSize.isPresent()) {
+            return explicitSize.get();
+        }
+        return observedUsage.map(StageUsage::peakOutputBytes)
+                .filter(bytes -> bytes > 0)
+                .map(bytes -> (int) Math.max(1, Math.ceil(bytes * OUTPUT_HEADROOM / BYTES_PER_GI)))
+                .orElse(defaultSizeGi);
+    }
+
+    private static String storageClass(Stage stage) {
+        return stage.storage()
+                .map(storage -> storage.storageClass().orElse(storage.ioIntensive() ? SSD_STORAGE_CLASS : DEFAULT_STORAGE_CLASS))
+                .orElse(DEFAULT_STORAGE_CLASS);
     }
 
-    private static PersistentVolumeClaim persistentVolumeClaim(String pvcName, int storageSizeGi, String namespace) {
+    private static PersistentVolumeClaim persistentVolumeClaim(String pvcName, int storageSizeGi, String storageClassName,
+            String namespace) {
         var pvcSpec = new PersistentVolumeClaimSpecBuilder().withAccessModes("ReadWriteOnce")
-                .withStorageClassName("standard")
+                .withStorageClassName(storageClassName)
                 .withNewResources()
                 .addToRequests("storage", new Quantity(storageSizeGi + "Gi"))
                 .endResources()
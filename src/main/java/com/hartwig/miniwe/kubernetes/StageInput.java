@@ -0,0 +1,33 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.util.List;
+
+import org.immutables.value.Value;
+
+/**
+ * Input stage whose output is copied into a volume before the stage container starts.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+public interface StageInput {
+    String stage();
+
+    String volumeName();
+
+    /**
+     * Whether the input stage was scattered, in which case the outputs of all its shards are copied.
+     */
+    @Value.Default
+    default boolean scattered() {
+        return false;
+    }
+
+    /**
+     * If not empty, only these files of packed output are copied.
+     */
+    List<String> files();
+
+    static ImmutableStageInput.Builder builder() {
+        return ImmutableStageInput.builder();
+    }
+}
@@ -1,44 +1,242 @@
 package com.hartwig.miniwe.kubernetes;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.hartwig.miniwe.miniwdl.StageFailureReason;
+import com.hartwig.miniwe.miniwdl.StageNodes;
+import com.hartwig.miniwe.workflow.StageFailedException;
+
 import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
 import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.client.Watch;
 
 class StageRun {
     private static final Logger LOGGER = LoggerFactory.getLogger(StageRun.class);
-    private static final int STAGE_TIMEOUT_MINUTES = 15;
+    private static final int COPY_TIMEOUT_MINUTES = 15;
+    private static final int DELETE_TIMEOUT_MINUTES = 5;
 
     private final PersistentVolumeClaim persistentVolumeClaim;
-    private final Job job;
+    private final Optional<Job> onDemandJob;
+    private final StageNodes nodes;
     private final Job onCompleteCopyJob;
+    private final Duration timeout;
+    private final Optional<Duration> heartbeat;
+    private Optional<Duration> pendingTimeout = Optional.empty();
+    private final Optional<StreamingOutput> streamingOutput;
+    private final Set<String> stageContainers;
 
     private final KubernetesClientWrapper client;
 
-    StageRun(final PersistentVolumeClaim persistentVolumeClaim, final Job job, final Job onCompleteCopyJob,
-            final KubernetesClientWrapper client) {
+    private Job job;
+    private int preemptions;
+    private Instant startedAt;
+    // start of the current job, which differs from the start of the stage once it was preempted
+    private Instant jobStartedAt;
+    private Instant containerStartedAt;
+    private Instant completedAt;
+    private Instant lastHeartbeatCheck;
+    private boolean scheduled;
+
+    /**
+     * @param onDemandJob     job to run instead once the stage was preempted as often as its nodes allow on spot nodes.
+     * @param stageContainers names of the containers that run the stage, the timeout starts once the first of them started.
+     */
+    StageRun(final PersistentVolumeClaim persistentVolumeClaim, final Job job, final Optional<Job> onDemandJob, final StageNodes nodes,
+            final Job onCompleteCopyJob, final Duration timeout, final Optional<Duration> heartbeat,
+            final Optional<StreamingOutput> streamingOutput, final Set<String> stageContainers, final KubernetesClientWrapper client) {
         this.persistentVolumeClaim = persistentVolumeClaim;
         this.job = job;
+        this.onDemandJob = onDemandJob;
+        this.nodes = nodes;
         this.onCompleteCopyJob = onCompleteCopyJob;
+        this.timeout = timeout;
+        this.heartbeat = heartbeat;
+        this.streamingOutput = streamingOutput;
+        this.stageContainers = stageContainers;
         this.client = client;
     }
 
+    /**
+     * Continues a job of this run that is still running or completed, e.g. because the engine replica that started it died before it
+     * copied the output.
+     *
+     * @return false if there is no such job or it failed.
+     */
+    boolean resume() {
+        var createdAt = client.resumableJobCreationTime(job);
+        if (createdAt.isEmpty()) {
+            return false;
+        }
+        LOGGER.info("[{}] Resuming job that was created at {}", getName(), createdAt.get());
+        startedAt = createdAt.get();
+        jobStartedAt = startedAt;
+        containerStartedAt = null;
+        lastHeartbeatCheck = Instant.now();
+        scheduled = false;
+        return true;
+    }
+
     void start() {
+        createJob();
+        startedAt = jobStartedAt;
+        containerStartedAt = null;
+    }
+
+    /**
+     * Replaces the resources of a previous job by new ones. The resources of the previous job are deleted first, and must be gone
+     * before resources with the same names can be created.
+     */
+    private void createJob() {
         cleanup();
+        client.waitUntilDeleted(job, DELETE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        client.waitUntilDeleted(persistentVolumeClaim, DELETE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        streamingOutput.ifPresent(StreamingOutput::reset);
         client.create(persistentVolumeClaim);
         client.create(job);
+        jobStartedAt = Instant.now();
+        lastHeartbeatCheck = jobStartedAt;
+        scheduled = false;
     }
 
-    boolean waitUntilComplete() {
-        var jobSucceeded = client.waitUntilJobComplete(job, STAGE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
-        if (!jobSucceeded) {
-            return false;
+    /**
+     * Calls the listener whenever the job of this attempt or one of its pods changes, until the returned watch is closed.
+     */
+    Watch watch(Runnable listener) {
+        return client.watchJob(job, listener);
+    }
+
+    /**
+     * Fail the attempt as unschedulable if its pod is still pending after the given time.
+     */
+    void setPendingTimeout(Duration pendingTimeout) {
+        this.pendingTimeout = Optional.of(pendingTimeout);
+    }
+
+    /**
+     * Checks the stage job without waiting for it.
+     *
+     * @return empty while the stage container is running, true if it succeeded, false if it failed. A stage that failed because its
+     * node was preempted is started again and counts as running.
+     * @throws StageFailedException if the stage container did not start or complete within its timeout, if it stopped writing log
+     *                              output for longer than the heartbeat interval, if its pod stayed pending for longer than the
+     *                              pending timeout, or if it was preempted more often than its nodes allow.
+     */
+    Optional<Boolean> poll() {
+        var result = client.jobResult(job);
+        var now = Instant.now();
+        if (result.isPresent() && !result.get() && client.isPreempted(job)) {
+            startAfterPreemption();
+            return Optional.empty();
+        }
+        if (result.isPresent()) {
+            completedAt = now;
+            streamingOutput.ifPresent(stream -> stream.end(result.get()));
+            return result;
+        }
+        if (!scheduled && pendingTimeout.isPresent() && now.isAfter(jobStartedAt.plus(pendingTimeout.get()))) {
+            if (client.isPending(job)) {
+                streamingOutput.ifPresent(stream -> stream.end(false));
+                throw new StageFailedException(StageFailureReason.UNSCHEDULABLE,
+                        String.format("Job '%s' is still pending after %s minutes", getName(), pendingTimeout.get().toMinutes()));
+            }
+            scheduled = true;
+        }
+        // the timeout only counts the time the stage runs, scheduling and pulling images must not take longer than it either. The
+        // deadline is kept when a preempted stage is started again, so preemptions do not extend it.
+        if (containerStartedAt == null) {
+            containerStartedAt = client.containerStartTime(job, stageContainers).orElse(null);
+        }
+        if (now.isAfter((containerStartedAt != null ? containerStartedAt : startedAt).plus(timeout))) {
+            streamingOutput.ifPresent(stream -> stream.end(false));
+            throw new StageFailedException(StageFailureReason.TIMEOUT,
+                    String.format("Job '%s' did not %s within %s minutes",
+                            getName(),
+                            containerStartedAt != null ? "complete" : "start",
+                            timeout.toMinutes()));
+        }
+        if (heartbeat.isPresent() && now.isAfter(lastHeartbeatCheck.plus(heartbeat.get()))) {
+            lastHeartbeatCheck = now;
+            LOGGER.debug("[{}] Checking for log output of the stage container", getName());
+            if (!client.hasRecentLogOutput(job, getName(), (int) heartbeat.get().toSeconds())) {
+                streamingOutput.ifPresent(stream -> stream.end(false));
+                throw new StageFailedException(StageFailureReason.TIMEOUT,
+                        String.format("Job '%s' wrote no log output for %s minutes", getName(), heartbeat.get().toMinutes()));
+            }
         }
+        // the job only completes once the streaming container exits, which it does after it was stopped
+        if (streamingOutput.isPresent() && !streamingOutput.get().isStopped() && client.isContainerTerminated(job, getName())) {
+            LOGGER.info("[{}] Stage container terminated, stopping output stream", getName());
+            streamingOutput.get().stop();
+        }
+        return Optional.empty();
+    }
+
+    private void startAfterPreemption() {
+        preemptions++;
+        if (preemptions > nodes.maxPreemptions()) {
+            streamingOutput.ifPresent(stream -> stream.end(false));
+            throw new StageFailedException(StageFailureReason.PREEMPTED,
+                    String.format("Job '%s' was preempted %s times", getName(), preemptions));
+        }
+        if (onDemandJob.isPresent() && job != onDemandJob.get() && preemptions >= nodes.onDemandAfterPreemptions().orElseThrow()) {
+            LOGGER.warn("[{}] Stage was preempted {} times, moving it to on-demand nodes", getName(), preemptions);
+            job = onDemandJob.get();
+        } else {
+            LOGGER.warn("[{}] Stage was preempted, starting it again ({} of at most {} preemptions)",
+                    getName(),
+                    preemptions,
+                    nodes.maxPreemptions());
+        }
+        createJob();
+    }
+
+    int getPreemptions() {
+        return preemptions;
+    }
+
+    /**
+     * Copies the output of a succeeded stage container to the run bucket.
+     *
+     * @throws StageFailedException if copying the output failed.
+     */
+    void copyOutput() {
         client.create(onCompleteCopyJob);
-        return client.waitUntilJobComplete(onCompleteCopyJob, STAGE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        if (!client.waitUntilJobComplete(onCompleteCopyJob, COPY_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            throw new StageFailedException(StageFailureReason.INFRASTRUCTURE,
+                    String.format("Copying the output of job '%s' failed", getName()));
+        }
+    }
+
+    /**
+     * Time between starting the stage and seeing its container complete.
+     */
+    Duration getRuntime() {
+        return Duration.between(startedAt, completedAt != null ? completedAt : Instant.now());
+    }
+
+    /**
+     * Time the pods of this attempt spent pulling images, or empty if it is unknown.
+     */
+    Optional<Duration> getImagePullTime() {
+        return client.imagePullTime(job);
+    }
+
+    /**
+     * Samples the current usage of the stage container. The container has the same name as the job.
+     */
+    Optional<StageUsage> sampleUsage() {
+        return client.containerUsage(job, getName());
+    }
+
+    String getName() {
+        return job.getMetadata().getName();
     }
 
     void cleanup() {
@@ -0,0 +1,82 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Observed resource usage of a stage container.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableStageUsage.class)
+@JsonSerialize(as = ImmutableStageUsage.class)
+public interface StageUsage {
+    int MAX_RUNTIME_SAMPLES = 50;
+    int MIN_RUNTIME_SAMPLES = 3;
+
+    /**
+     * Peak CPU usage in cores.
+     */
+    @Value.Default
+    default double peakCpuCores() {
+        return 0;
+    }
+
+    /**
+     * Peak memory usage in bytes.
+     */
+    @Value.Default
+    default long peakMemoryBytes() {
+        return 0;
+    }
+
+    /**
+     * Peak size of the stage output in bytes.
+     */
+    @Value.Default
+    default long peakOutputBytes() {
+        return 0;
+    }
+
+    /**
+     * Runtimes of the most recent successful attempts in seconds, oldest first.
+     */
+    List<Long> runtimeSeconds();
+
+    /**
+     * 95th percentile of the recorded runtimes, or empty if too few runtimes were recorded for it to be meaningful.
+     */
+    default Optional<Long> p95RuntimeSeconds() {
+        if (runtimeSeconds().size() < MIN_RUNTIME_SAMPLES) {
+            return Optional.empty();
+        }
+        var sorted = runtimeSeconds().stream().sorted().collect(Collectors.toList());
+        var index = (int) Math.ceil(0.95 * sorted.size()) - 1;
+        return Optional.of(sorted.get(index));
+    }
+
+    /**
+     * Combines two observations by taking the maximum of each peak value and keeping the most recent runtimes of both.
+     */
+    default StageUsage merge(StageUsage other) {
+        var runtimes = Stream.concat(runtimeSeconds().stream(), other.runtimeSeconds().stream()).collect(Collectors.toList());
+        return ImmutableStageUsage.builder()
+                .from(this)
+                .peakCpuCores(Math.max(peakCpuCores(), other.peakCpuCores()))
+                .peakMemoryBytes(Math.max(peakMemoryBytes(), other.peakMemoryBytes()))
+                .peakOutputBytes(Math.max(peakOutputBytes(), other.peakOutputBytes()))
+                .runtimeSeconds(runtimes.subList(Math.max(0, runtimes.size() - MAX_RUNTIME_SAMPLES), runtimes.size()))
+                .build();
+    }
+
+    static ImmutableStageUsage.Builder builder() {
+        return ImmutableStageUsage.builder();
+    }
+}
@@ -0,0 +1,117 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.hartwig.miniwe.miniwdl.Stage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Usage observed in previous runs. Container usage is keyed by stage image and version, output sizes and runtimes are keyed by stage
+ * name, image and version since the same image can produce very different outputs in different stages. Optionally backed by a JSON
+ * file so the history survives between invocations. Several processes can share the file: each merges the usage it recorded into the
+ * file as it is on disk when it saves.
+ */
+public class StageUsageHistory {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StageUsageHistory.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().registerModule(new Jdk8Module());
+
+    private final ConcurrentMap<String, StageUsage> usageByKey;
+    // usage recorded since the last save, which is merged into the file
+    private final Map<String, StageUsage> unsavedByKey = new HashMap<>();
+    private final Path path;
+
+    private StageUsageHistory(final Map<String, StageUsage> usageByKey, final Path path) {
+        this.usageByKey = new ConcurrentHashMap<>(usageByKey);
+        this.path = path;
+    }
+
+    public static StageUsageHistory inMemory() {
+        return new StageUsageHistory(Map.of(), null);
+    }
+
+    public static StageUsageHistory load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            LOGGER.info("No usage history found at '{}', starting with an empty history.", path);
+        }
+        return new StageUsageHistory(read(path), path);
+    }
+
+    private static Map<String, StageUsage> read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return Map.of();
+        }
+        return OBJECT_MAPPER.readValue(path.toFile(), new TypeReference<Map<String, StageUsage>>() {
+        });
+    }
+
+    public static String key(Stage stage) {
+        return String.format("%s:%s", stage.image(), stage.version());
+    }
+
+    public static String outputKey(Stage stage) {
+        return String.format("%s@%s", stage.name(), key(stage));
+    }
+
+    public synchronized void record(String key, StageUsage usage) {
+        usageByKey.merge(key, usage, StageUsage::merge);
+        unsavedByKey.merge(key, usage, StageUsage::merge);
+    }
+
+    public Optional<StageUsage> get(String key) {
+        return Optional.ofNullable(usageByKey.get(key));
+    }
+
+    /**
+     * Returns all usage recorded for the stage, both container usage and output size.
+     */
+    public Optional<StageUsage> get(Stage stage) {
+        var containerUsage = get(key(stage));
+        var outputUsage = get(outputKey(stage));
+        if (containerUsage.isPresent() && outputUsage.isPresent()) {
+            return Optional.of(containerUsage.get().merge(outputUsage.get()));
+        }
+        return containerUsage.or(() -> outputUsage);
+    }
+
+    /**
+     * Merges the usage recorded since the last save into the file, holding a lock so processes sharing the file do not drop each
+     * other's usage. The file is replaced atomically, so a crash while saving leaves the previous history intact.
+     */
+    public synchronized void save() throws IOException {
+        if (path == null) {
+            return;
+        }
+        var lockFile = path.resolveSibling(path.getFileName() + ".lock");
+        // the lock is released when the channel is closed
+        try (var lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            lockChannel.lock();
+            var merged = new HashMap<>(read(path));
+            unsavedByKey.forEach((key, usage) -> merged.merge(key, usage, StageUsage::merge));
+            var tempFile = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            try {
+                OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValue(tempFile.toFile(), merged);
+                Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            unsavedByKey.clear();
+            usageByKey.putAll(merged);
+            LOGGER.info("Saved usage history for {} stages to '{}'", merged.size(), path);
+        }
+    }
+}
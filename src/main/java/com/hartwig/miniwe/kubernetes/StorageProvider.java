@@ -1,9 +1,79 @@
 package com.hartwig.miniwe.kubernetes;
 
+import java.util.List;
+import java.util.Set;
+
 import io.fabric8.kubernetes.api.model.Container;
 
 public interface StorageProvider {
-    Container initStorageContainer(String runName, String inputStage, String volumeName);
+    /**
+     * Container that copies the output of an input stage into the volume. Packed output is unpacked.
+     *
+     * @param files if not empty, only these files of packed output are copied.
+     */
+    Container initStorageContainer(String runName, String inputStage, List<String> files, String volumeName);
+
+    /**
+     * Container that copies the outputs of all shards of a scattered input stage, one directory per shard. Packed shards are unpacked.
+     */
+    Container initGatherStorageContainer(String runName, String inputStage, String volumeName);
+
+    /**
+     * Single container that copies the outputs of all inputs concurrently, at most the given number at a time, each into its volume
+     * mounted at /in/{stage}.
+     */
+    Container initInputFetcherContainer(String runName, List<StageInput> inputs, int parallelism);
+
+    /**
+     * @param outputPath the stage name, or stage name and shard index separated by a slash for a shard.
+     * @param packed     whether to store the output as compressed chunks with an index instead of one object per file.
+     */
+    Container exitStorageContainer(String runName, String outputPath, boolean packed, String volumeName);
+
+    /**
+     * Container that runs next to a stage container and keeps copying the finalised files in its output volume to the streaming
+     * location of the attempt of the stage, until the stream is stopped. Every attempt streams to a location of its own.
+     */
+    Container streamingOutputContainer(String runName, String outputStage, int attempt, String volumeName);
+
+    /**
+     * Container that keeps copying the streamed output of an attempt of an input stage until its end-of-stream marker appears, then
+     * writes an {@code .eos} file to the root of the volume. Fails if the attempt of the input stage failed.
+     */
+    Container streamingInputContainer(String runName, String inputStage, int attempt, String volumeName);
+
+    /**
+     * Removes the markers from the streaming location of the attempt, e.g. after the attempt was started again on another node.
+     */
+    void resetStream(String runName, String outputStage, int attempt);
+
+    /**
+     * Tells the streaming output container of the attempt to copy one last time and exit.
+     */
+    void stopStream(String runName, String outputStage, int attempt);
+
+    /**
+     * Marks the stream of the attempt as complete or failed for the consumers of the stage.
+     */
+    void endStream(String runName, String outputStage, int attempt, boolean success);
+
+    /**
+     * Deletes the streams of all attempts of the stage, once no stage reads them anymore.
+     */
+    void deleteStreams(String runName, String outputStage);
+
+    /**
+     * Total size in bytes of the output of a stage that was copied to storage.
+     */
+    long outputSizeBytes(String runName, String outputPath);
+
+    /**
+     * Copies the output of a stage from the storage of one run to the storage of another run.
+     */
+    void copyOutput(String fromRunName, String toRunName, String outputPath);
 
-    Container exitStorageContainer(String runName, String outputStage, String volumeName);
+    /**
+     * Images of the containers this provider adds to the stage pods.
+     */
+    Set<String> transferImages();
 }
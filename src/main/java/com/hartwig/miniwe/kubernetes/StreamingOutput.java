@@ -0,0 +1,41 @@
+package com.hartwig.miniwe.kubernetes;
+
+/**
+ * Drives the stream of an attempt of a stage whose output is consumed while it runs. The streaming container next to the stage
+ * container is stopped once the stage container terminated, and the stream is marked complete or failed once the job is done.
+ */
+class StreamingOutput {
+    private final StorageProvider storageProvider;
+    private final String runName;
+    private final String stageName;
+    private final int attempt;
+    private boolean stopped = false;
+
+    StreamingOutput(final StorageProvider storageProvider, final String runName, final String stageName, final int attempt) {
+        this.storageProvider = storageProvider;
+        this.runName = runName;
+        this.stageName = stageName;
+        this.attempt = attempt;
+    }
+
+    void reset() {
+        stopped = false;
+        storageProvider.resetStream(runName, stageName, attempt);
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    void stop() {
+        if (!stopped) {
+            storageProvider.stopStream(runName, stageName, attempt);
+            stopped = true;
+        }
+    }
+
+    void end(boolean success) {
+        stop();
+        storageProvider.endStream(runName, stageName, attempt, success);
+    }
+}
@@ -1,6 +1,7 @@
 package com.hartwig.miniwe.miniwdl;
 
 import java.util.Map;
+import java.util.Optional;
 
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -35,6 +36,11 @@ public interface ExecutionDefinition {
      */
     Map<String, String> params();
 
+    /**
+     * Tenant that the stages of this execution are accounted to when stages are scheduled by fair share per tenant.
+     */
+    Optional<String> tenant();
+
     static ImmutableExecutionDefinition.Builder builder() {
         return ImmutableExecutionDefinition.builder();
     }
@@ -0,0 +1,79 @@
+package com.hartwig.miniwe.miniwdl;
+
+import java.util.List;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * How often and when a failed stage is retried. Only the failed stage is retried, the rest of the run keeps its progress.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableRetryPolicy.class)
+@JsonSerialize(as = ImmutableRetryPolicy.class)
+public interface RetryPolicy {
+    /**
+     * Maximum number of attempts, including the first one.
+     */
+    @Value.Default
+    default int attempts() {
+        return 1;
+    }
+
+    /**
+     * Time to wait before the first retry.
+     */
+    @Value.Default
+    default int initialBackoffSeconds() {
+        return 10;
+    }
+
+    /**
+     * Factor the backoff grows with after every retry.
+     */
+    @Value.Default
+    default double backoffMultiplier() {
+        return 2;
+    }
+
+    /**
+     * Upper bound for the time to wait before a retry.
+     */
+    @Value.Default
+    default int maxBackoffSeconds() {
+        return 600;
+    }
+
+    /**
+     * Failure reasons for which the stage is retried. Default is all reasons except application failures.
+     */
+    @Value.Default
+    default List<StageFailureReason> retryOn() {
+        return List.of(StageFailureReason.TIMEOUT,
+                StageFailureReason.INFRASTRUCTURE,
+                StageFailureReason.UNSCHEDULABLE,
+                StageFailureReason.PREEMPTED);
+    }
+
+    /**
+     * Whether a stage that failed for the given reason on the given attempt (starting at 1) should be attempted again.
+     */
+    default boolean shouldRetry(int attempt, StageFailureReason reason) {
+        return attempt < attempts() && retryOn().contains(reason);
+    }
+
+    /**
+     * Time to wait before starting the attempt after the given failed attempt (starting at 1).
+     */
+    default long backoffSeconds(int attempt) {
+        var backoff = initialBackoffSeconds() * Math.pow(backoffMultiplier(), attempt - 1);
+        return (long) Math.min(backoff, maxBackoffSeconds());
+    }
+
+    static ImmutableRetryPolicy.Builder builder() {
+        return ImmutableRetryPolicy.builder();
+    }
+}
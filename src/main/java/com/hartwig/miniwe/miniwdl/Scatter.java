@@ -0,0 +1,62 @@
+package com.hartwig.miniwe.miniwdl;
+
+import java.util.List;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Expands a stage into parallel shards. Every shard runs the stage with its own `${shard_index}` and `${shard}` parameters.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableScatter.class)
+@JsonSerialize(as = ImmutableScatter.class)
+public interface Scatter {
+    String SHARD_INDEX_PARAM = "shard_index";
+    String SHARD_PARAM = "shard";
+
+    /**
+     * Number of shards. The shard parameter of each shard is its index.
+     */
+    Optional<Integer> count();
+
+    /**
+     * Values to scatter over, one shard per value. The shard parameter of each shard is its value.
+     */
+    List<String> values();
+
+    /**
+     * Maximum number of shards of the stage that run at the same time. Defaults to the number of shards of a run that run at the same
+     * time across all its scattered stages.
+     */
+    @Value.Default
+    default int maxParallel() {
+        return 32;
+    }
+
+    default int shardCount() {
+        return count().orElse(values().size());
+    }
+
+    default String shardValue(int shardIndex) {
+        return values().isEmpty() ? String.valueOf(shardIndex) : values().get(shardIndex);
+    }
+
+    @Value.Check
+    default void check() {
+        if (count().isPresent() == !values().isEmpty()) {
+            throw new IllegalStateException("Scatter needs either a shard count or a list of values");
+        }
+        if (shardCount() < 1 || maxParallel() < 1) {
+            throw new IllegalStateException("Scatter needs at least one shard and a positive maxParallel");
+        }
+    }
+
+    static ImmutableScatter.Builder builder() {
+        return ImmutableScatter.builder();
+    }
+}
@@ -1,7 +1,9 @@
 package com.hartwig.miniwe.miniwdl;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -13,6 +15,8 @@ import org.immutables.value.Value;
 @JsonDeserialize(as = ImmutableStage.class)
 @JsonSerialize(as = ImmutableStage.class)
 public interface Stage {
+    Pattern VALID_INPUT_FILE = Pattern.compile("^[A-Za-z0-9._-][A-Za-z0-9._/-]*$");
+
     /**
      * Stage name
      */
@@ -33,6 +37,18 @@ public interface Stage {
      */
     List<String> inputStages();
 
+    /**
+     * Input stages whose output is streamed into this stage while they are still running, instead of copied once they are done.
+     * Must be a subset of the input stages.
+     */
+    List<String> streamingInputStages();
+
+    /**
+     * Files to copy per input stage, relative to the output of that stage. Only applies to packed input stages, of which only the chunks
+     * with these files are downloaded. Default is all files.
+     */
+    Map<String, List<String>> inputFiles();
+
     /**
      * Arguments passed into the docker container directly after the entrypoint
      */
@@ -43,6 +59,62 @@ public interface Stage {
      */
     Optional<String> entrypoint();
 
+    /**
+     * Resource requests for the stage container. Default is no requests.
+     */
+    Optional<StageResources> resources();
+
+    /**
+     * Settings for the output volume of the stage.
+     */
+    Optional<StageStorage> storage();
+
+    /**
+     * Nodes the stage runs on. Default is any node.
+     */
+    Optional<StageNodes> nodes();
+
+    /**
+     * Retry policy for failed attempts of the stage. Default is no retries.
+     */
+    Optional<RetryPolicy> retry();
+
+    /**
+     * Timeout and speculative execution settings. Default is a 15 minute timeout without hang detection.
+     */
+    Optional<StageTimeouts> timeouts();
+
+    /**
+     * Runs the stage as parallel shards. Default is a single execution.
+     */
+    Optional<Scatter> scatter();
+
+    /**
+     * Named concurrency pools the stage uses. A stage only starts once each of its pools has room, across all runs. Default is none.
+     */
+    List<String> concurrencyPools();
+
+    @Value.Check
+    default void check() {
+        if (!inputStages().containsAll(streamingInputStages())) {
+            throw new IllegalStateException(String.format("Streaming input stages of stage '%s' must also be input stages", name()));
+        }
+        for (var inputFiles : inputFiles().entrySet()) {
+            if (!inputStages().contains(inputFiles.getKey()) || streamingInputStages().contains(inputFiles.getKey())) {
+                throw new IllegalStateException(String.format("Input files of stage '%s' must be of a non-streaming input, not '%s'",
+                        name(),
+                        inputFiles.getKey()));
+            }
+            for (String file : inputFiles.getValue()) {
+                if (!VALID_INPUT_FILE.matcher(file).matches() || file.contains("..")) {
+                    throw new IllegalStateException(String.format("Input file '%s' of stage '%s' is not a plain relative path",
+                            file,
+                            name()));
+                }
+            }
+        }
+    }
+
     static ImmutableStage.Builder builder() {
         return ImmutableStage.builder();
     }
@@ -0,0 +1,27 @@
+package com.hartwig.miniwe.miniwdl;
+
+/**
+ * Reason why a stage attempt failed.
+ */
+public enum StageFailureReason {
+    /**
+     * The stage container exited with a failure.
+     */
+    APPLICATION,
+    /**
+     * The stage did not complete within its timeout.
+     */
+    TIMEOUT,
+    /**
+     * Anything outside the stage container failed, e.g. the kubernetes API, or copying the output to storage.
+     */
+    INFRASTRUCTURE,
+    /**
+     * The stage could not be started, e.g. because its pod stayed pending for too long.
+     */
+    UNSCHEDULABLE,
+    /**
+     * The node of the stage pod was preempted or lost while the stage was running, e.g. a spot node that was reclaimed.
+     */
+    PREEMPTED
+}
@@ -0,0 +1,56 @@
+package com.hartwig.miniwe.miniwdl;
+
+import java.util.Map;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Nodes the pod of a stage is placed on.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableStageNodes.class)
+@JsonSerialize(as = ImmutableStageNodes.class)
+public interface StageNodes {
+    /**
+     * Node labels the stage must run on, e.g. a dedicated node pool.
+     */
+    Map<String, String> selector();
+
+    /**
+     * Whether the stage runs on spot nodes, which are cheaper but can be preempted at any time.
+     */
+    @Value.Default
+    default boolean spot() {
+        return false;
+    }
+
+    /**
+     * Number of preemptions after which the stage runs on on-demand nodes instead. Default is to keep running on spot nodes.
+     */
+    Optional<Integer> onDemandAfterPreemptions();
+
+    /**
+     * Number of times a preempted stage is started again without counting as a failed attempt. A preemption after that fails the
+     * attempt with reason {@link StageFailureReason#PREEMPTED}.
+     */
+    @Value.Default
+    default int maxPreemptions() {
+        return 3;
+    }
+
+    @Value.Check
+    default void check() {
+        if (maxPreemptions() < 0 || onDemandAfterPreemptions().map(preemptions -> preemptions < 1).orElse(false)) {
+            throw new IllegalStateException("Preemption counts of stage nodes must be positive");
+        }
+    }
+
+    static ImmutableStageNodes.Builder builder() {
+        return ImmutableStageNodes.builder();
+    }
+}
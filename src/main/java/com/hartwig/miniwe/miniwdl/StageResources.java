@@ -0,0 +1,36 @@
+package com.hartwig.miniwe.miniwdl;
+
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Resource requests for the container of a stage. Values use the kubernetes quantity notation.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableStageResources.class)
+@JsonSerialize(as = ImmutableStageResources.class)
+public interface StageResources {
+    /**
+     * CPU request, e.g. "500m" or "2".
+     */
+    Optional<String> cpu();
+
+    /**
+     * Memory request, e.g. "4Gi".
+     */
+    Optional<String> memory();
+
+    /**
+     * Ephemeral storage request, e.g. "10Gi".
+     */
+    Optional<String> ephemeralStorage();
+
+    static ImmutableStageResources.Builder builder() {
+        return ImmutableStageResources.builder();
+    }
+}
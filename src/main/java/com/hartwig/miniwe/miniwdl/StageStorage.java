@@ -0,0 +1,57 @@
+package com.hartwig.miniwe.miniwdl;
+
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Settings for the volume that a stage writes its output to.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableStageStorage.class)
+@JsonSerialize(as = ImmutableStageStorage.class)
+public interface StageStorage {
+    /**
+     * Size of the output volume in Gi. Default is derived from previous runs, or 1Gi if there are none.
+     */
+    Optional<Integer> sizeGi();
+
+    /**
+     * Kubernetes storage class of the output volume. Overrides the class picked based on ioIntensive.
+     */
+    Optional<String> storageClass();
+
+    /**
+     * Whether the stage does a lot of I/O on its output volume, in which case an SSD backed storage class is used.
+     */
+    @Value.Default
+    default boolean ioIntensive() {
+        return false;
+    }
+
+    /**
+     * Whether the output is stored as gzipped tar chunks with an index, instead of one object per file. Speeds up stages with many small
+     * output files, and lets downstream stages download only the chunks with the input files they need.
+     */
+    @Value.Default
+    default boolean packed() {
+        return false;
+    }
+
+    /**
+     * Whether the output is copied to the run bucket even when the stage is fused with the stage that consumes it, so a new run of the
+     * same execution can resume after this stage. Outputs of other fused stages only exist on the shared volume.
+     */
+    @Value.Default
+    default boolean checkpoint() {
+        return false;
+    }
+
+    static ImmutableStageStorage.Builder builder() {
+        return ImmutableStageStorage.builder();
+    }
+}
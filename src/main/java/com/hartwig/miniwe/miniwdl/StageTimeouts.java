@@ -0,0 +1,53 @@
+package com.hartwig.miniwe.miniwdl;
+
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Limits on how long an attempt of a stage may take, and whether slow attempts get a speculative second attempt.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableStageTimeouts.class)
+@JsonSerialize(as = ImmutableStageTimeouts.class)
+public interface StageTimeouts {
+    int DEFAULT_TIMEOUT_MINUTES = 15;
+
+    /**
+     * Maximum time the stage container may run before the attempt fails with a timeout.
+     */
+    @Value.Default
+    default int timeoutMinutes() {
+        return DEFAULT_TIMEOUT_MINUTES;
+    }
+
+    /**
+     * If set, the attempt fails with a timeout when the running stage container writes no log output for this long.
+     */
+    Optional<Integer> heartbeatMinutes();
+
+    /**
+     * Whether to start a second attempt in parallel when the stage runs much longer than it did in previous runs. The first attempt
+     * to succeed wins.
+     */
+    @Value.Default
+    default boolean speculative() {
+        return false;
+    }
+
+    /**
+     * Multiple of the 95th percentile of previous runtimes after which the speculative attempt is started.
+     */
+    @Value.Default
+    default double speculativeFactor() {
+        return 1.5;
+    }
+
+    static ImmutableStageTimeouts.Builder builder() {
+        return ImmutableStageTimeouts.builder();
+    }
+}
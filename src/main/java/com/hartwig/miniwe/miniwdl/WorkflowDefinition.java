@@ -35,6 +35,15 @@ public interface WorkflowDefinition {
      */
     List<Stage> stages();
 
+    /**
+     * Whether chains of stages that each only feed the next stage run in a single pod, one container after the other on a shared volume.
+     * Default is a pod per stage.
+     */
+    @Value.Default
+    default boolean fuseLinearStages() {
+        return false;
+    }
+
     static ImmutableWorkflowDefinition.Builder builder() {
         return ImmutableWorkflowDefinition.builder();
     }
@@ -0,0 +1,53 @@
+package com.hartwig.miniwe.nativeimage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import org.graalvm.nativeimage.hosted.Feature;
+import org.graalvm.nativeimage.hosted.RuntimeReflection;
+
+/**
+ * Registers all fabric8 kubernetes model classes for reflection in the native image. Jackson serializes the models through reflection,
+ * and the kubernetes deserializer looks up resource classes by kind, so every model class on the class path must be available at
+ * runtime. The fabric8 jars do not ship native image metadata, and listing the thousands of model classes by hand is not maintainable.
+ * <p>
+ * Only compiled with the native profile, which provides the graal sdk.
+ */
+public class KubernetesModelFeature implements Feature {
+    private static final String MODEL_PACKAGE = "io/fabric8/kubernetes/api/model/";
+
+    @Override
+    public void beforeAnalysis(final BeforeAnalysisAccess access) {
+        for (Path path : access.getApplicationClassPath()) {
+            if (Files.isRegularFile(path) && path.toString().endsWith(".jar")) {
+                registerModelClasses(path, access);
+            }
+        }
+    }
+
+    private static void registerModelClasses(Path jar, BeforeAnalysisAccess access) {
+        try (var jarFile = new JarFile(jar.toFile())) {
+            jarFile.stream()
+                    .map(ZipEntry::getName)
+                    .filter(name -> name.startsWith(MODEL_PACKAGE) && name.endsWith(".class"))
+                    .map(name -> name.substring(0, name.length() - ".class".length()).replace('/', '.'))
+                    .map(access::findClassByName)
+                    .filter(Objects::nonNull)
+                    .forEach(KubernetesModelFeature::register);
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Could not read '%s'", jar), e);
+        }
+    }
+
+    private static void register(Class<?> modelClass) {
+        RuntimeReflection.register(modelClass);
+        RuntimeReflection.register(modelClass.getDeclaredConstructors());
+        RuntimeReflection.register(modelClass.getDeclaredMethods());
+        RuntimeReflection.register(modelClass.getDeclaredFields());
+    }
+}
@@ -0,0 +1,221 @@
+package com.hartwig.miniwe.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.hartwig.miniwe.ExecutorUtil;
+import com.hartwig.miniwe.MiniWorkflowEngine;
+import com.hartwig.miniwe.kubernetes.ConcurrencyPools;
+import com.hartwig.miniwe.kubernetes.ImagePullMetrics;
+import com.hartwig.miniwe.workflow.RunEvent;
+import com.hartwig.miniwe.workflow.WorkflowGraph;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP server that streams the run events of a run as server-sent events on {@code GET /runs/{runName}/events}. If concurrency pools
+ * or image pull metrics are given, pool occupancy and wait times and image pull times are served in the Prometheus text format on
+ * {@code GET /metrics}.
+ * <p>
+ * Every connection is served by its own thread that requests one event at a time, so a slow client only slows down its own stream and
+ * the run event publisher conflates the events that client has not requested yet. The number of open event streams is limited, further
+ * clients get a 503 so the number of threads stays bounded.
+ */
+public class RunEventServer implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunEventServer.class);
+    private static final Pattern EVENTS_PATH = Pattern.compile("^/runs/([a-z0-9-]+)/events/?$");
+    private static final int MAX_EVENT_STREAMS = 256;
+    // threads for requests other than event streams, which are short
+    private static final int REQUEST_THREADS = 4;
+
+    private final HttpServer server;
+    private final ExecutorService executorService;
+    private final MiniWorkflowEngine engine;
+    private final ObjectMapper objectMapper;
+    private final Optional<ConcurrencyPools> concurrencyPools;
+    private final Optional<ImagePullMetrics> imagePullMetrics;
+    private final Semaphore eventStreams;
+
+    public RunEventServer(final int port, final MiniWorkflowEngine engine) throws IOException {
+        this(port, engine, null);
+    }
+
+    public RunEventServer(final int port, final MiniWorkflowEngine engine, final ConcurrencyPools concurrencyPools) throws IOException {
+        this(port, engine, concurrencyPools, null);
+    }
+
+    public RunEventServer(final int port, final MiniWorkflowEngine engine, final ConcurrencyPools concurrencyPools,
+            final ImagePullMetrics imagePullMetrics) throws IOException {
+        this(port, engine, concurrencyPools, imagePullMetrics, MAX_EVENT_STREAMS);
+    }
+
+    RunEventServer(final int port, final MiniWorkflowEngine engine, final ConcurrencyPools concurrencyPools,
+            final ImagePullMetrics imagePullMetrics, final int maxEventStreams) throws IOException {
+        this.engine = engine;
+        this.concurrencyPools = Optional.ofNullable(concurrencyPools);
+        this.imagePullMetrics = Optional.ofNullable(imagePullMetrics);
+        this.eventStreams = new Semaphore(maxEventStreams);
+        this.objectMapper = new ObjectMapper().registerModule(new Jdk8Module())
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        this.executorService = ExecutorUtil.createQueuedExecutorService(maxEventStreams + REQUEST_THREADS, "event-server-thread-%d");
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executorService);
+        server.createContext("/runs/", this::handleRunEvents);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("Run event server listening on port {}", server.getAddress().getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executorService.shutdownNow();
+    }
+
+    private void handleRunEvents(HttpExchange exchange) throws IOException {
+        try {
+            var matcher = EVENTS_PATH.matcher(exchange.getRequestURI().getPath());
+            if (!"GET".equals(exchange.getRequestMethod()) || !matcher.matches()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            var run = engine.findRun(matcher.group(1));
+            if (run.isEmpty()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (!eventStreams.tryAcquire()) {
+                LOGGER.warn("Refusing event stream of run '{}', too many open event streams", matcher.group(1));
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            try {
+                streamEvents(exchange, run.get(), matcher.group(1));
+            } finally {
+                eventStreams.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void streamEvents(HttpExchange exchange, WorkflowGraph.WorkflowGraphExecution run, String runName) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+
+        var subscriber = new BlockingSubscriber();
+        run.events().subscribe(subscriber);
+        try (var body = exchange.getResponseBody()) {
+            RunEvent event;
+            while ((event = subscriber.next()) != null) {
+                writeEvent(body, event);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Client of run '{}' disconnected", runName);
+        } finally {
+            subscriber.cancel();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) || (concurrencyPools.isEmpty() && imagePullMetrics.isEmpty())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            var metrics = (concurrencyPools.map(ConcurrencyPools::toPrometheusMetrics).orElse("")
+                    + imagePullMetrics.map(ImagePullMetrics::toPrometheusMetrics).orElse("")).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, metrics.length);
+            try (var body = exchange.getResponseBody()) {
+                body.write(metrics);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void writeEvent(OutputStream body, RunEvent event) throws IOException {
+        var message = String.format("event: %s\ndata: %s\n\n", event.type().name().toLowerCase(), objectMapper.writeValueAsString(event));
+        body.write(message.getBytes(StandardCharsets.UTF_8));
+        body.flush();
+    }
+
+    /**
+     * Subscriber that hands events to the connection thread one at a time and only requests the next event once the previous one was
+     * taken.
+     */
+    private static class BlockingSubscriber implements Flow.Subscriber<RunEvent> {
+        private static final Object COMPLETE = new Object();
+
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private volatile Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(final RunEvent item) {
+            queue.add(item);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            LOGGER.warn("Run event stream failed", throwable);
+            queue.add(COMPLETE);
+        }
+
+        @Override
+        public void onComplete() {
+            queue.add(COMPLETE);
+        }
+
+        RunEvent next() throws IOException {
+            try {
+                var next = queue.take();
+                if (next == COMPLETE) {
+                    return null;
+                }
+                subscription.request(1);
+                return (RunEvent) next;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the next run event", e);
+            }
+        }
+
+        void cancel() {
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+}
@@ -1,13 +1,20 @@
 package com.hartwig.miniwe.workflow;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.hartwig.miniwe.kubernetes.KubernetesUtil;
 import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
-import com.hartwig.miniwe.miniwdl.WorkflowDefinition;
+import com.hartwig.miniwe.miniwdl.Scatter;
 import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.StageStorage;
 
 import org.immutables.value.Value;
 
@@ -20,27 +27,143 @@ public interface ExecutionStage {
 
     String runName();
 
+    /**
+     * Name of the workflow the stage belongs to, as registered in the engine.
+     */
+    Optional<String> workflow();
+
+    /**
+     * Tenant of the execution the stage belongs to.
+     */
+    Optional<String> tenant();
+
+    /**
+     * Index of the shard if the stage is scattered.
+     */
+    Optional<Integer> shard();
+
+    /**
+     * Input stages that are scattered, so their output consists of one directory per shard.
+     */
+    Set<String> scatteredInputStages();
+
+    /**
+     * Whether a downstream stage streams the output of this stage while it runs.
+     */
+    @Value.Default
+    default boolean streamOutput() {
+        return false;
+    }
+
+    /**
+     * Number of the attempt of the stage in its run, starting at 1. Not part of the identity of the stage.
+     */
+    @Value.Default
+    @Value.Auxiliary
+    default int attempt() {
+        return 1;
+    }
+
+    /**
+     * Input stages whose output is streamed into this stage while they run, with the attempt of each that is streamed. Input stages
+     * that are done, e.g. because they were cached, are copied as usual instead. Not part of the identity of the stage.
+     */
+    @Value.Auxiliary
+    Map<String, Integer> streamedInputAttempts();
+
+    /**
+     * Stages that run before this stage in the same pod, in order. The first one gets the inputs, every next stage, ending with this
+     * stage, gets the output of the one before it.
+     */
+    List<Stage> fusedStages();
+
     static String getName(ExecutionStage executionStage) {
-        return KubernetesUtil.toValidRFC1123Label(executionStage.runName(), executionStage.stage().name());
+        return executionStage.shard()
+                .map(shard -> KubernetesUtil.toValidRFC1123Label(executionStage.runName(),
+                        executionStage.stage().name(),
+                        String.valueOf(shard)))
+                .orElse(KubernetesUtil.toValidRFC1123Label(executionStage.runName(), executionStage.stage().name()));
+    }
+
+    /**
+     * Path of the output of this stage in the run bucket: the stage name, followed by the shard index for a shard.
+     */
+    static String getOutputPath(ExecutionStage executionStage) {
+        return getOutputPath(executionStage.stage().name(), executionStage.shard());
+    }
+
+    static String getOutputPath(String stageName, Optional<Integer> shard) {
+        return shard.map(index -> stageName + "/" + index).orElse(stageName);
+    }
+
+    /**
+     * Input stages of the stage, or of the first fused stage if stages were fused.
+     */
+    static List<String> getInputStages(ExecutionStage executionStage) {
+        return executionStage.fusedStages().stream().findFirst().orElse(executionStage.stage()).inputStages();
+    }
+
+    /**
+     * Output paths in the run bucket that the stage writes: those of the fused stages that are checkpointed, followed by its own.
+     */
+    static List<String> getUploadedOutputPaths(ExecutionStage executionStage) {
+        var outputPaths = executionStage.fusedStages()
+                .stream()
+                .filter(stage -> stage.storage().map(StageStorage::checkpoint).orElse(false))
+                .map(Stage::name)
+                .collect(Collectors.toCollection(ArrayList::new));
+        outputPaths.add(getOutputPath(executionStage));
+        return outputPaths;
     }
 
     static ExecutionStage from(Stage stage, ExecutionDefinition execution) {
-        var replaced = replaced(stage, execution.params());
-        return ImmutableExecutionStage.builder().stage(replaced).runName(WorkflowUtil.getRunName(execution)).build();
+        return from(stage, execution, Optional.empty(), Set.of(), false);
     }
 
-    private static Stage replaced(final Stage stage, final Map<String, String> map) {
-        var arguments = stage.arguments().map(argument -> replaceKeys(argument, map));
-        var entryPoints = stage.entrypoint().map(entryPoint -> replaceKeys(entryPoint, map));
-        return Stage.builder().from(stage).arguments(arguments).entrypoint(entryPoints).build();
+    static ExecutionStage from(Stage stage, ExecutionDefinition execution, Optional<Integer> shard, Set<String> scatteredInputStages,
+            boolean streamOutput) {
+        return from(StageTemplate.compile(stage), execution, shard, scatteredInputStages, streamOutput);
     }
 
-    private static String replaceKeys(final String input, final Map<String, String> map) {
-        var output = input;
-        for (var entry : map.entrySet()) {
-            var key = "${" + entry.getKey() + "}";
-            output = output.replace(key, entry.getValue());
+    /**
+     * @throws IllegalArgumentException if the stage uses a parameter that the execution does not set.
+     */
+    static ExecutionStage from(StageTemplate template, ExecutionDefinition execution, Optional<Integer> shard,
+            Set<String> scatteredInputStages, boolean streamOutput) {
+        var params = execution.params();
+        if (shard.isPresent()) {
+            var index = shard.get();
+            params = new HashMap<>(params);
+            params.put(Scatter.SHARD_INDEX_PARAM, String.valueOf(index));
+            params.put(Scatter.SHARD_PARAM,
+                    template.stage().scatter().map(scatter -> scatter.shardValue(index)).orElse(String.valueOf(index)));
         }
-        return output;
+        return ImmutableExecutionStage.builder()
+                .stage(template.render(params))
+                .runName(WorkflowUtil.getRunName(execution))
+                .workflow(WorkflowUtil.getWorkflowName(execution))
+                .tenant(execution.tenant())
+                .shard(shard)
+                .scatteredInputStages(scatteredInputStages)
+                .streamOutput(streamOutput)
+                .build();
+    }
+
+    /**
+     * Single execution stage that runs a chain of stages in one pod. The last stage of the chain is the stage that is executed, the
+     * others are fused into it.
+     *
+     * @throws IllegalArgumentException if one of the stages uses a parameter that the execution does not set.
+     */
+    static ExecutionStage fused(List<StageTemplate> chain, ExecutionDefinition execution, Set<String> scatteredInputStages) {
+        var last = chain.get(chain.size() - 1);
+        var executionStage = from(last, execution, Optional.empty(), scatteredInputStages, false);
+        return ImmutableExecutionStage.builder()
+                .from(executionStage)
+                .fusedStages(chain.subList(0, chain.size() - 1)
+                        .stream()
+                        .map(template -> template.render(execution.params()))
+                        .collect(Collectors.toList()))
+                .build();
     }
 }
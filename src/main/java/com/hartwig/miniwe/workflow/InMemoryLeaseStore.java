@@ -0,0 +1,39 @@
+package com.hartwig.miniwe.workflow;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lease store within one process, for tests and for running several engines in the same JVM.
+ */
+public class InMemoryLeaseStore implements LeaseStore {
+    private final Map<String, RunLease> leaseByRunName = new ConcurrentHashMap<>();
+
+    @Override
+    public synchronized boolean tryAcquire(final RunLease lease) {
+        var current = leaseByRunName.get(lease.runName());
+        if (current != null && !current.holder().equals(lease.holder()) && !current.isExpired(Instant.now())) {
+            return false;
+        }
+        leaseByRunName.put(lease.runName(), lease);
+        return true;
+    }
+
+    @Override
+    public synchronized void release(final String runName, final String holder) {
+        leaseByRunName.computeIfPresent(runName, (name, lease) -> lease.holder().equals(holder) ? null : lease);
+    }
+
+    @Override
+    public synchronized void expire(final String runName, final String holder) {
+        leaseByRunName.computeIfPresent(runName,
+                (name, lease) -> lease.holder().equals(holder) ? ImmutableRunLease.copyOf(lease).withRenewTime(Instant.EPOCH) : lease);
+    }
+
+    @Override
+    public List<RunLease> list() {
+        return List.copyOf(leaseByRunName.values());
+    }
+}
@@ -0,0 +1,33 @@
+package com.hartwig.miniwe.workflow;
+
+import java.util.List;
+
+/**
+ * Stores the run leases of all engine replicas. Implementations must make {@link #tryAcquire} atomic, so at most one replica holds an
+ * unexpired lease on a run.
+ */
+public interface LeaseStore {
+    /**
+     * Acquires or renews a lease. Succeeds if there is no lease on the run yet, if the existing lease expired, or if it is held by the
+     * same holder.
+     *
+     * @return true if the lease is now held by the holder of the given lease.
+     */
+    boolean tryAcquire(RunLease lease);
+
+    /**
+     * Releases the lease on the run if it is held by the given holder.
+     */
+    void release(String runName, String holder);
+
+    /**
+     * Marks the lease on the run as expired if it is held by the given holder, so another replica takes over the run without waiting
+     * for the lease duration. Unlike {@link #release}, the lease and the execution it carries stay in the store.
+     */
+    void expire(String runName, String holder);
+
+    /**
+     * All leases in the store, including expired ones.
+     */
+    List<RunLease> list();
+}
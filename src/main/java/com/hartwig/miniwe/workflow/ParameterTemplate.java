@@ -0,0 +1,83 @@
+package com.hartwig.miniwe.workflow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A string with {@code ${name}} placeholders, split once into literal and parameter tokens so every substitution is a single pass
+ * over the tokens.
+ */
+public final class ParameterTemplate {
+    private static final String PLACEHOLDER_START = "${";
+    private static final char PLACEHOLDER_END = '}';
+
+    private final String template;
+    private final List<String> literals;
+    private final List<String> parameters;
+
+    private ParameterTemplate(final String template, final List<String> literals, final List<String> parameters) {
+        this.template = template;
+        this.literals = literals;
+        this.parameters = parameters;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a placeholder is not closed or has an empty name.
+     */
+    public static ParameterTemplate compile(String template) {
+        var literals = new ArrayList<String>();
+        var parameters = new ArrayList<String>();
+        var position = 0;
+        var start = template.indexOf(PLACEHOLDER_START);
+        while (start >= 0) {
+            var end = template.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+            if (end < 0) {
+                throw new IllegalArgumentException(String.format("Unclosed parameter placeholder in '%s'", template));
+            }
+            var name = template.substring(start + PLACEHOLDER_START.length(), end);
+            if (name.isBlank()) {
+                throw new IllegalArgumentException(String.format("Empty parameter placeholder in '%s'", template));
+            }
+            literals.add(template.substring(position, start));
+            parameters.add(name);
+            position = end + 1;
+            start = template.indexOf(PLACEHOLDER_START, position);
+        }
+        literals.add(template.substring(position));
+        return new ParameterTemplate(template, List.copyOf(literals), List.copyOf(parameters));
+    }
+
+    /**
+     * Names of all parameters used in the template.
+     */
+    public Set<String> parameters() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(parameters));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the template uses a parameter that has no value.
+     */
+    public String render(Map<String, String> values) {
+        if (parameters.isEmpty()) {
+            return template;
+        }
+        var output = new StringBuilder(template.length());
+        for (int i = 0; i < parameters.size(); i++) {
+            var value = values.get(parameters.get(i));
+            if (value == null) {
+                throw new IllegalArgumentException(String.format("No value for parameter '%s' in '%s'", parameters.get(i), template));
+            }
+            output.append(literals.get(i)).append(value);
+        }
+        return output.append(literals.get(parameters.size())).toString();
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
@@ -0,0 +1,39 @@
+package com.hartwig.miniwe.workflow;
+
+import java.time.Instant;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.immutables.value.Value;
+
+/**
+ * Event in the lifecycle of a stage of a run.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableRunEvent.class)
+@JsonSerialize(as = ImmutableRunEvent.class)
+public interface RunEvent {
+    enum Type {
+        STAGE_SCHEDULED,
+        STAGE_STARTED,
+        STAGE_RETRYING,
+        STAGE_SUCCEEDED,
+        STAGE_FAILED,
+        STAGE_IGNORED,
+        STAGE_CACHED
+    }
+
+    String runName();
+
+    String stageName();
+
+    Type type();
+
+    Instant timestamp();
+
+    static ImmutableRunEvent.Builder builder() {
+        return ImmutableRunEvent.builder();
+    }
+}
@@ -0,0 +1,173 @@
+package com.hartwig.miniwe.workflow;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the run events of one run. Slow subscribers are handled by conflation: events that were not requested yet are kept per
+ * stage, and a newer event for a stage replaces the pending one. A subscriber therefore never buffers more than one event per stage,
+ * and always receives the latest event of each stage.
+ * <p>
+ * New subscribers first receive the latest event of every stage that had one. The publisher completes all subscribers when the run
+ * is done.
+ */
+public class RunEventPublisher implements Flow.Publisher<RunEvent> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunEventPublisher.class);
+
+    private final Executor executor;
+    private final Map<String, RunEvent> latestEventByStage = new LinkedHashMap<>();
+    private final List<RunEventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private boolean closed = false;
+
+    public RunEventPublisher(final Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void subscribe(final Flow.Subscriber<? super RunEvent> subscriber) {
+        var subscription = new RunEventSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        latestEventByStage.values().forEach(subscription::offer);
+        if (closed) {
+            subscription.complete();
+        } else {
+            subscriptions.add(subscription);
+        }
+    }
+
+    synchronized void publish(RunEvent event) {
+        if (closed) {
+            LOGGER.warn("[{}] Dropping event {} for stage '{}' since the run is done.", event.runName(), event.type(), event.stageName());
+            return;
+        }
+        latestEventByStage.remove(event.stageName());
+        latestEventByStage.put(event.stageName(), event);
+        subscriptions.forEach(subscription -> subscription.offer(event));
+    }
+
+    synchronized void close() {
+        closed = true;
+        subscriptions.forEach(RunEventSubscription::complete);
+        subscriptions.clear();
+    }
+
+    private class RunEventSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super RunEvent> subscriber;
+        private final Map<String, RunEvent> pendingByStage = new LinkedHashMap<>();
+        private long demand = 0;
+        private boolean completed = false;
+        private boolean cancelled = false;
+        private boolean draining = false;
+        private Throwable error;
+
+        private RunEventSubscription(final Flow.Subscriber<? super RunEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    error = new IllegalArgumentException("Requested a non-positive number of events: " + n);
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                pendingByStage.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        private void offer(RunEvent event) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                pendingByStage.remove(event.stageName());
+                pendingByStage.put(event.stageName(), event);
+            }
+            scheduleDrain();
+        }
+
+        private void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            synchronized (this) {
+                if (draining || cancelled) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // the pending events are delivered with the next event or request
+                synchronized (this) {
+                    draining = false;
+                }
+                LOGGER.warn("Could not deliver run events", e);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                RunEvent next = null;
+                boolean signalComplete = false;
+                Throwable signalError = null;
+                synchronized (this) {
+                    if (cancelled) {
+                        draining = false;
+                        return;
+                    }
+                    if (error != null) {
+                        signalError = error;
+                        cancelled = true;
+                    } else if (demand > 0 && !pendingByStage.isEmpty()) {
+                        var iterator = pendingByStage.values().iterator();
+                        next = iterator.next();
+                        iterator.remove();
+                        demand--;
+                    } else if (completed && pendingByStage.isEmpty()) {
+                        signalComplete = true;
+                        cancelled = true;
+                    } else {
+                        draining = false;
+                        return;
+                    }
+                }
+                if (signalError != null) {
+                    subscriber.onError(signalError);
+                } else if (signalComplete) {
+                    subscriber.onComplete();
+                } else {
+                    try {
+                        subscriber.onNext(next);
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Run event subscriber failed, cancelling subscription.", e);
+                        cancel();
+                    }
+                }
+            }
+        }
+    }
+}
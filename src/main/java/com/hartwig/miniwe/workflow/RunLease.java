@@ -0,0 +1,43 @@
+package com.hartwig.miniwe.workflow;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+
+import org.immutables.value.Value;
+
+/**
+ * Claim of one engine replica on driving a run. The lease is valid until its duration has passed since the last renewal.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+@JsonDeserialize(as = ImmutableRunLease.class)
+@JsonSerialize(as = ImmutableRunLease.class)
+public interface RunLease {
+    String runName();
+
+    /**
+     * Identity of the replica that holds the lease.
+     */
+    String holder();
+
+    /**
+     * Execution of the run, so another replica can take over the run once the lease expired.
+     */
+    ExecutionDefinition executionDefinition();
+
+    Instant renewTime();
+
+    Duration duration();
+
+    default boolean isExpired(Instant now) {
+        return renewTime().plus(duration()).isBefore(now);
+    }
+
+    static ImmutableRunLease.Builder builder() {
+        return ImmutableRunLease.builder();
+    }
+}
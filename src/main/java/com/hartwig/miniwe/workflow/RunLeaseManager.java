@@ -0,0 +1,197 @@
+package com.hartwig.miniwe.workflow;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the run leases of one engine replica. Owned leases are renewed three times per lease duration. Runs whose lease expired,
+ * because the replica driving them died or shut down, are taken over until this replica drives its fair share of all leased runs.
+ */
+public class RunLeaseManager implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunLeaseManager.class);
+
+    private final LeaseStore leaseStore;
+    private final String replicaId;
+    private final Duration leaseDuration;
+    private final Map<String, ExecutionDefinition> ownedRuns = new ConcurrentHashMap<>();
+    // runs this replica could not drive, left to other replicas
+    private final Set<String> abandonedRuns = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService renewer;
+    private Consumer<ExecutionDefinition> takeOverListener = executionDefinition -> {
+    };
+    private Consumer<String> lostListener = runName -> {
+    };
+    private final boolean takeOverRuns;
+    private volatile boolean closed;
+
+    public RunLeaseManager(final LeaseStore leaseStore, final String replicaId, final Duration leaseDuration) {
+        this(leaseStore, replicaId, leaseDuration, true);
+    }
+
+    /**
+     * @param takeOverRuns whether expired runs of other replicas are taken over. A replica that exits once its own runs are done only
+     *                     renews the leases of its own runs.
+     */
+    public RunLeaseManager(final LeaseStore leaseStore, final String replicaId, final Duration leaseDuration,
+            final boolean takeOverRuns) {
+        this.leaseStore = leaseStore;
+        this.replicaId = replicaId;
+        this.leaseDuration = leaseDuration;
+        this.takeOverRuns = takeOverRuns;
+        this.renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("lease-renewer-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Starts renewing leases and, if enabled, taking over expired ones. The listeners are called on the thread that renews the leases,
+     * so they must hand off anything that may block.
+     *
+     * @param takeOverListener called with the execution of every run this replica took over.
+     * @param lostListener     called with the name of every run whose lease was taken by another replica.
+     */
+    public void start(Consumer<ExecutionDefinition> takeOverListener, Consumer<String> lostListener) {
+        this.takeOverListener = takeOverListener;
+        this.lostListener = lostListener;
+        var period = Math.max(1, leaseDuration.toMillis() / 3);
+        renewer.scheduleAtFixedRate(this::renewAndRebalance, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Claims the run for this replica.
+     *
+     * @return false if another replica holds an unexpired lease on the run.
+     */
+    public boolean claim(ExecutionDefinition executionDefinition) {
+        if (!acquire(executionDefinition)) {
+            return false;
+        }
+        ownedRuns.put(WorkflowUtil.getRunName(executionDefinition), executionDefinition);
+        return true;
+    }
+
+    /**
+     * Deletes the lease of a run that is done. Does nothing once the manager is closed, since runs that stop because the replica shuts
+     * down are not done and must be taken over.
+     */
+    public void release(ExecutionDefinition executionDefinition) {
+        if (closed) {
+            return;
+        }
+        var runName = WorkflowUtil.getRunName(executionDefinition);
+        ownedRuns.remove(runName);
+        leaseStore.release(runName, replicaId);
+    }
+
+    /**
+     * Gives up a run this replica cannot drive, e.g. because its workflow is not registered here. The lease is expired rather than
+     * deleted so another replica takes over the run, and this replica does not take it over again.
+     */
+    public void abandon(ExecutionDefinition executionDefinition) {
+        var runName = WorkflowUtil.getRunName(executionDefinition);
+        abandonedRuns.add(runName);
+        ownedRuns.remove(runName);
+        leaseStore.expire(runName, replicaId);
+    }
+
+    /**
+     * Replica that holds an unexpired lease on the run, if any.
+     */
+    public Optional<String> findHolder(String runName) {
+        var now = Instant.now();
+        return leaseStore.list()
+                .stream()
+                .filter(lease -> lease.runName().equals(runName) && !lease.isExpired(now))
+                .map(RunLease::holder)
+                .findFirst();
+    }
+
+    public Set<String> getOwnedRuns() {
+        return Set.copyOf(ownedRuns.keySet());
+    }
+
+    public String getReplicaId() {
+        return replicaId;
+    }
+
+    synchronized void renewAndRebalance() {
+        try {
+            for (var executionDefinition : Map.copyOf(ownedRuns).values()) {
+                if (!acquire(executionDefinition)) {
+                    var runName = WorkflowUtil.getRunName(executionDefinition);
+                    LOGGER.error("[{}] Lost the lease on the run to another replica", runName);
+                    ownedRuns.remove(runName);
+                    lostListener.accept(runName);
+                }
+            }
+            if (!takeOverRuns) {
+                return;
+            }
+            var now = Instant.now();
+            var leases = leaseStore.list();
+            var replicas = leases.stream().filter(lease -> !lease.isExpired(now)).map(RunLease::holder).collect(Collectors.toSet());
+            replicas.add(replicaId);
+            var fairShare = (leases.size() + replicas.size() - 1) / replicas.size();
+            abandonedRuns.retainAll(leases.stream().map(RunLease::runName).collect(Collectors.toSet()));
+            var expired = leases.stream()
+                    .filter(lease -> lease.isExpired(now) && !abandonedRuns.contains(lease.runName()))
+                    .sorted(Comparator.comparing(RunLease::renewTime))
+                    .collect(Collectors.toList());
+            for (var lease : expired) {
+                if (ownedRuns.size() >= fairShare) {
+                    break;
+                }
+                if (claim(lease.executionDefinition())) {
+                    LOGGER.warn("[{}] Taking over run from replica '{}' whose lease expired", lease.runName(), lease.holder());
+                    takeOverListener.accept(lease.executionDefinition());
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not renew run leases of replica '{}'", replicaId, e);
+        }
+    }
+
+    /**
+     * Stops renewing leases and expires the owned ones, so other replicas take over the runs right away.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        renewer.shutdownNow();
+        for (String runName : new HashSet<>(ownedRuns.keySet())) {
+            try {
+                leaseStore.expire(runName, replicaId);
+            } catch (RuntimeException e) {
+                LOGGER.warn("[{}] Could not expire the lease on the run", runName, e);
+            }
+        }
+        ownedRuns.clear();
+    }
+
+    private boolean acquire(ExecutionDefinition executionDefinition) {
+        return leaseStore.tryAcquire(RunLease.builder()
+                .runName(WorkflowUtil.getRunName(executionDefinition))
+                .holder(replicaId)
+                .executionDefinition(executionDefinition)
+                .renewTime(Instant.now())
+                .duration(leaseDuration)
+                .build());
+    }
+}
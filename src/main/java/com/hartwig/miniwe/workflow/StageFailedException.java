@@ -0,0 +1,27 @@
+package com.hartwig.miniwe.workflow;
+
+import com.hartwig.miniwe.miniwdl.StageFailureReason;
+
+/**
+ * Thrown by a {@link StageScheduler} to complete a stage future when the reason of the failure is known. A future that completes with
+ * false is considered an application failure.
+ */
+public class StageFailedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final StageFailureReason reason;
+
+    public StageFailedException(final StageFailureReason reason, final String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public StageFailedException(final StageFailureReason reason, final String message, final Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+
+    public StageFailureReason getReason() {
+        return reason;
+    }
+}
@@ -1,7 +1,42 @@
 package com.hartwig.miniwe.workflow;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
 
 public interface StageScheduler {
+    /**
+     * Schedules the stage.
+     *
+     * @return Future that returns true if the stage succeeded and false if the stage container failed. If the stage failed for
+     * another reason, the future may complete exceptionally with a {@link StageFailedException} carrying that reason. Cancelling
+     * the future cancels the stage and deletes its resources.
+     */
     CompletableFuture<Boolean> schedule(ExecutionStage executionStage);
+
+    /**
+     * Registers a listener that is called once a scheduled stage actually started. Default is to never call it.
+     */
+    default void addStageStartedListener(Consumer<ExecutionStage> listener) {
+    }
+
+    /**
+     * Deletes the resources that were kept around for the stages of the run. Default is to do nothing.
+     */
+    default void deleteStagesForRun(ExecutionDefinition executionDefinition) {
+    }
+
+    /**
+     * Leaves the resources of the stages of the run in place when they are cancelled, since another engine resumes them. Default is to
+     * do nothing.
+     */
+    default void detachStagesForRun(ExecutionDefinition executionDefinition) {
+    }
+
+    /**
+     * Deletes the streamed output of all attempts of the stage of the run, once no stage streams it anymore. Default is to do nothing.
+     */
+    default void deleteStreams(ExecutionDefinition executionDefinition, String outputStage) {
+    }
 }
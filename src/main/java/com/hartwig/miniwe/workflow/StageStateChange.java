@@ -0,0 +1,33 @@
+package com.hartwig.miniwe.workflow;
+
+import java.util.Map;
+
+import org.immutables.value.Value;
+
+/**
+ * Change in the running state of the stages of a run. Only contains the stages that transitioned since the previous version.
+ */
+@Value.Immutable
+@Value.Style(jdkOnly = true)
+public interface StageStateChange {
+    /**
+     * Version of the stage state after applying this change. Versions of a run strictly increase.
+     */
+    long version();
+
+    /**
+     * New running state of each stage that transitioned, by stage name.
+     */
+    Map<String, WorkflowGraph.StageRunningState> changes();
+
+    /**
+     * Combines this change with a later change into one change with the version of the later change.
+     */
+    default StageStateChange merge(StageStateChange later) {
+        return builder().version(later.version()).putAllChanges(changes()).putAllChanges(later.changes()).build();
+    }
+
+    static ImmutableStageStateChange.Builder builder() {
+        return ImmutableStageStateChange.builder();
+    }
+}
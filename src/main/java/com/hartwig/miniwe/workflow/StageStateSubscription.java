@@ -0,0 +1,82 @@
+package com.hartwig.miniwe.workflow;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers stage state changes to one subscriber on an executor, so a slow subscriber never blocks the thread driving the run.
+ * Changes are buffered up to a fixed size. When the buffer is full, the buffered changes are merged into one change, so the subscriber
+ * skips intermediate versions but still ends up with the same state.
+ */
+class StageStateSubscription {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StageStateSubscription.class);
+    private static final int BUFFER_SIZE = 64;
+
+    private final Consumer<StageStateChange> subscriber;
+    private final Executor executor;
+    private final Deque<StageStateChange> buffer = new ArrayDeque<>();
+    private boolean draining = false;
+
+    StageStateSubscription(final Consumer<StageStateChange> subscriber, final Executor executor) {
+        this.subscriber = subscriber;
+        this.executor = executor;
+    }
+
+    void offer(StageStateChange change) {
+        synchronized (buffer) {
+            if (buffer.size() >= BUFFER_SIZE) {
+                var merged = buffer.poll();
+                while (!buffer.isEmpty()) {
+                    merged = merged.merge(buffer.poll());
+                }
+                buffer.add(merged.merge(change));
+            } else {
+                buffer.add(change);
+            }
+            if (!draining) {
+                draining = true;
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    // the buffered changes are delivered with the next offer
+                    draining = false;
+                    LOGGER.warn("Could not deliver stage state change version {}", change.version(), e);
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        var drained = false;
+        try {
+            while (true) {
+                StageStateChange next;
+                synchronized (buffer) {
+                    next = buffer.poll();
+                    if (next == null) {
+                        draining = false;
+                        drained = true;
+                        return;
+                    }
+                }
+                try {
+                    subscriber.accept(next);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Stage state subscriber failed on version {}", next.version(), e);
+                }
+            }
+        } finally {
+            if (!drained) {
+                synchronized (buffer) {
+                    draining = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.hartwig.miniwe.workflow;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import com.hartwig.miniwe.miniwdl.Stage;
+
+/**
+ * Stage with its entrypoint and arguments compiled into parameter templates.
+ */
+public final class StageTemplate {
+    private final Stage stage;
+    private final Optional<ParameterTemplate> entrypoint;
+    private final Optional<ParameterTemplate> arguments;
+
+    private StageTemplate(final Stage stage) {
+        this.stage = stage;
+        this.entrypoint = stage.entrypoint().map(ParameterTemplate::compile);
+        this.arguments = stage.arguments().map(ParameterTemplate::compile);
+    }
+
+    public static StageTemplate compile(Stage stage) {
+        return new StageTemplate(stage);
+    }
+
+    public Stage stage() {
+        return stage;
+    }
+
+    /**
+     * Names of all parameters used in the entrypoint and arguments.
+     */
+    public Set<String> parameters() {
+        var parameters = new HashSet<String>();
+        entrypoint.ifPresent(template -> parameters.addAll(template.parameters()));
+        arguments.ifPresent(template -> parameters.addAll(template.parameters()));
+        return parameters;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the stage uses a parameter that has no value.
+     */
+    public Stage render(Map<String, String> values) {
+        if (entrypoint.isEmpty() && arguments.isEmpty()) {
+            return stage;
+        }
+        return Stage.builder()
+                .from(stage)
+                .entrypoint(entrypoint.map(template -> template.render(values)))
+                .arguments(arguments.map(template -> template.render(values)))
+                .build();
+    }
+}
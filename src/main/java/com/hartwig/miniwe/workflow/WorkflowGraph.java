@@ -1,27 +1,39 @@
 package com.hartwig.miniwe.workflow;
 
 import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import com.hartwig.miniwe.ExecutorUtil;
 import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Scatter;
 import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.StageFailureReason;
 import com.hartwig.miniwe.miniwdl.WorkflowDefinition;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.jgrapht.graph.DefaultDirectedGraph;
 import org.jgrapht.graph.DefaultEdge;
 import org.jgrapht.nio.Attribute;
@@ -33,27 +45,157 @@ import org.slf4j.LoggerFactory;
 
 public class WorkflowGraph {
     private static final Logger LOGGER = LoggerFactory.getLogger(WorkflowGraph.class);
+    // shards of all scattered stages of a run that run at the same time, so a run cannot take up all stage threads of the engine
+    static final int MAX_RUNNING_SHARDS = 32;
 
     private final WorkflowDefinition workflowDefinition;
     private final ExecutorService executorService;
+    private final Executor notificationExecutor;
     private final ConcurrentMap<String, WorkflowGraphExecution> runsByName = new ConcurrentHashMap<>();
+    private final Set<String> scatteredStages;
+    private final Set<String> streamedStages;
+    private final Map<String, StageTemplate> templateByStage;
+    private final Map<String, Stage> fusableConsumerByStage;
 
+    /**
+     * Delivers stage state changes on a thread of its own, since the executor that drives the runs may reject tasks once all its
+     * threads are busy.
+     */
     public WorkflowGraph(final WorkflowDefinition workflowDefinition, final ExecutorService executorService) {
+        this(workflowDefinition, executorService, ExecutorUtil.createQueuedExecutorService(1, "notification-thread-%d"));
+    }
+
+    /**
+     * @param executorService      executor that drives the runs, every running run occupies one thread.
+     * @param notificationExecutor executor that delivers stage state changes to subscribers. It should queue tasks rather than reject
+     *                             them, a rejected notification is dropped.
+     */
+    public WorkflowGraph(final WorkflowDefinition workflowDefinition, final ExecutorService executorService,
+            final Executor notificationExecutor) {
         this.workflowDefinition = workflowDefinition;
         this.executorService = executorService;
+        this.notificationExecutor = notificationExecutor;
+        this.scatteredStages = workflowDefinition.stages()
+                .stream()
+                .filter(stage -> stage.scatter().isPresent())
+                .map(Stage::name)
+                .collect(Collectors.toUnmodifiableSet());
+        this.streamedStages = workflowDefinition.stages()
+                .stream()
+                .flatMap(stage -> stage.streamingInputStages().stream())
+                .collect(Collectors.toUnmodifiableSet());
+        for (String streamedStage : streamedStages) {
+            if (scatteredStages.contains(streamedStage)) {
+                throw new IllegalArgumentException(String.format("Scattered stage '%s' cannot be a streaming input", streamedStage));
+            }
+        }
+        this.templateByStage = compileTemplates(workflowDefinition);
+        this.fusableConsumerByStage = workflowDefinition.fuseLinearStages() ? fusableConsumers(workflowDefinition) : Map.of();
     }
 
-    public WorkflowGraphExecution getOrCreateRun(StageScheduler stageScheduler, Set<String> cachedStages,
-            ExecutionDefinition executionDefinition) {
+    /**
+     * Finds the stages that can run in the same pod as the stage they consume: the only consumer of a stage, if that is its only input.
+     * Stages that are scattered, stream, are checked for hangs or speculated on cannot be fused, and fused stages must be placed and
+     * retried the same way.
+     */
+    private Map<String, Stage> fusableConsumers(WorkflowDefinition workflowDefinition) {
+        var consumersByStage = new HashMap<String, List<Stage>>();
+        for (Stage stage : workflowDefinition.stages()) {
+            for (String input : stage.inputStages()) {
+                consumersByStage.computeIfAbsent(input, name -> new ArrayList<>()).add(stage);
+            }
+        }
+        var fusableConsumers = new HashMap<String, Stage>();
+        for (Stage stage : workflowDefinition.stages()) {
+            var consumers = consumersByStage.getOrDefault(stage.name(), List.of());
+            if (consumers.size() != 1) {
+                continue;
+            }
+            var consumer = consumers.get(0);
+            if (consumer.inputStages().size() == 1 && isFusable(stage) && isFusable(consumer) && stage.nodes().equals(consumer.nodes())
+                    && stage.retry().equals(consumer.retry())) {
+                fusableConsumers.put(stage.name(), consumer);
+            }
+        }
+        return Map.copyOf(fusableConsumers);
+    }
+
+    private boolean isFusable(Stage stage) {
+        return stage.scatter().isEmpty() && stage.streamingInputStages().isEmpty() && !streamedStages.contains(stage.name())
+                && stage.timeouts().map(timeouts -> timeouts.heartbeatMinutes().isEmpty() && !timeouts.speculative()).orElse(true);
+    }
+
+    /**
+     * Compiles the entrypoint and arguments of every stage once, and checks that they only use workflow parameters, or shard
+     * parameters in scattered stages.
+     */
+    private static Map<String, StageTemplate> compileTemplates(WorkflowDefinition workflowDefinition) {
+        var templateByStage = new HashMap<String, StageTemplate>();
+        for (Stage stage : workflowDefinition.stages()) {
+            var template = StageTemplate.compile(stage);
+            for (String parameter : template.parameters()) {
+                var shardParameter = Scatter.SHARD_INDEX_PARAM.equals(parameter) || Scatter.SHARD_PARAM.equals(parameter);
+                if (!workflowDefinition.params().contains(parameter) && !(shardParameter && stage.scatter().isPresent())) {
+                    throw new IllegalArgumentException(String.format("Stage '%s' uses parameter '%s' which is not a workflow parameter",
+                            stage.name(),
+                            parameter));
+                }
+            }
+            templateByStage.put(stage.name(), template);
+        }
+        return Map.copyOf(templateByStage);
+    }
+
+    /**
+     * Checks that the execution belongs to this workflow and sets every workflow parameter.
+     *
+     * @throws IllegalArgumentException if it does not.
+     */
+    public void checkExecution(ExecutionDefinition executionDefinition) {
         if (!WorkflowUtil.getWorkflowName(executionDefinition).equals(WorkflowUtil.getWorkflowName(workflowDefinition))) {
             throw new IllegalArgumentException(String.format("Workflow name '%s' should be the same as execution name, but was '%s'",
                     workflowDefinition.name(),
                     executionDefinition.workflow()));
         }
+        var missingParams = workflowDefinition.params()
+                .stream()
+                .filter(param -> !executionDefinition.params().containsKey(param))
+                .collect(Collectors.toList());
+        if (!missingParams.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Execution '%s' does not set workflow parameters %s",
+                    executionDefinition.name(),
+                    missingParams));
+        }
+    }
+
+    public WorkflowGraphExecution getOrCreateRun(StageScheduler stageScheduler, Set<String> cachedStages,
+            ExecutionDefinition executionDefinition) {
+        return getOrCreateRun(stageScheduler, CompletableFuture.completedFuture(cachedStages), executionDefinition);
+    }
+
+    /**
+     * Creates the run while the cached stages are still being probed. The run applies the cached stages once they are known, and only
+     * schedules stages after that.
+     */
+    public WorkflowGraphExecution getOrCreateRun(StageScheduler stageScheduler, CompletableFuture<Set<String>> cachedStages,
+            ExecutionDefinition executionDefinition) {
+        checkExecution(executionDefinition);
         var runName = WorkflowUtil.getRunName(executionDefinition);
         return runsByName.computeIfAbsent(runName, name -> new WorkflowGraphExecution(stageScheduler, cachedStages, executionDefinition));
     }
 
+    public Optional<WorkflowGraphExecution> findRun(String runName) {
+        return Optional.ofNullable(runsByName.get(runName));
+    }
+
+    public WorkflowDefinition getWorkflowDefinition() {
+        return workflowDefinition;
+    }
+
+    public boolean hasRunningRuns() {
+        return runsByName.values().stream().anyMatch(WorkflowGraphExecution::isRunning);
+    }
+
     /**
      * Deletes the execution. If the execution is running when it is deleted, the run will be cancelled first.
      *
@@ -102,39 +244,96 @@ public class WorkflowGraph {
     }
 
     public class WorkflowGraphExecution {
-        private final Pair<Stage, Boolean> QUEUE_CANCEL_SIGNAL = Pair.of(null, null);
+        private final StageSignal QUEUE_CANCEL_SIGNAL = new StageSignal(null, Optional.empty(), false, null, 0);
+        private final StageSignal CACHE_PROBED_SIGNAL = new StageSignal(null, Optional.empty(), false, null, 0);
         private final Map<String, StageRunningState> stageTagToRunningState = new HashMap<>();
-        private final BlockingQueue<Pair<Stage, Boolean>> stageDoneQueue = new LinkedBlockingQueue<>();
+        // attempts that count towards the retry policy, and all times the stage was scheduled, which number the streams of a stage
+        private final Map<String, Integer> attemptsByStage = new HashMap<>();
+        private final Map<String, Integer> schedulesByStage = new HashMap<>();
+        // raised when the attempts of a stage are cancelled to start the stage again, so results of earlier attempts are ignored
+        private final Map<String, Integer> generationByStage = new HashMap<>();
+        // stages that wait for the backoff of their retry policy, stages that stream them wait for the next attempt
+        private final Set<String> retryingStages = new HashSet<>();
+        // stages that were scheduled with a stream of their output that was not deleted yet
+        private final Set<String> streamingStages = new HashSet<>();
+        // in order of scattering, so stages that were scattered first get the free shard slots first
+        private final Map<String, ScatterProgress> scatterProgressByStage = new LinkedHashMap<>();
+        private int runningShards = 0;
+        // futures of the attempts that were scheduled and are not done yet, cancelled when the run is cancelled
+        private final Map<String, CompletableFuture<Boolean>> scheduledByAttempt = new HashMap<>();
+        // stages that run in a single pod by the name of the last stage, which is the stage that is scheduled
+        private final Map<String, List<Stage>> fusedChainByLastStage = new ConcurrentHashMap<>();
+        private final CompletableFuture<Set<String>> cachedStages;
+        private Set<String> doneStages;
+        private final BlockingQueue<StageSignal> stageDoneQueue = new LinkedBlockingQueue<>();
         private final DefaultDirectedGraph<Stage, DefaultEdge> fullGraph;
         private final DefaultDirectedGraph<Stage, DefaultEdge> runGraph;
         private final StageScheduler stageScheduler;
         private final ExecutionDefinition executionDefinition;
         private CompletableFuture<Boolean> doneFuture;
 
-        // copy on write map, for viewing the stage state from another thread.
-        private Map<String, StageRunningState> stageStateView;
-        private final List<Consumer<Map<String, StageRunningState>>> stageStateSubscribers =
-                Collections.synchronizedList(new ArrayList<>());
+        // stage state for viewing from another thread, updated per published change while holding the stage state lock
+        private final Map<String, StageRunningState> stageStateView = new HashMap<>();
+        private final Map<String, StageRunningState> pendingStateChanges = new LinkedHashMap<>();
+        private final List<StageStateSubscription> stageStateSubscribers = new CopyOnWriteArrayList<>();
+        private final Object stageStateLock = new Object();
+        private volatile long stageStateVersion = 0;
+        private long dotFormatVersion = -1;
+        private String dotFormat;
+        private final RunEventPublisher runEventPublisher;
 
-        private WorkflowGraphExecution(final StageScheduler stageScheduler, final Set<String> doneStages,
+        private WorkflowGraphExecution(final StageScheduler stageScheduler, final CompletableFuture<Set<String>> cachedStages,
                 final ExecutionDefinition executionDefinition) {
             this.stageScheduler = stageScheduler;
             this.executionDefinition = executionDefinition;
+            this.cachedStages = cachedStages;
+            this.runEventPublisher = new RunEventPublisher(notificationExecutor);
             fullGraph = createGraph();
             runGraph = createGraph();
+            for (final Stage stage : fullGraph.vertexSet()) {
+                stageTagToRunningState.put(stage.name(), StageRunningState.WAITING);
+            }
+            if (cachedStages.isDone() && !cachedStages.isCompletedExceptionally()) {
+                applyCachedStages(cachedStages.join());
+                pendingStateChanges.clear();
+            }
+            synchronized (stageStateLock) {
+                stageStateView.putAll(stageTagToRunningState);
+            }
+        }
 
+        private void applyCachedStages(Set<String> cachedStages) {
+            doneStages = cachedStages;
             for (final Stage stage : fullGraph.vertexSet()) {
-                if (doneStages.contains(stage.name())) {
+                if (isCached(stage)) {
                     LOGGER.info("[{}] Marking stage '{}' as success since the result was cached in a previous run.",
                             getRunName(),
                             stage.name());
                     runGraph.removeVertex(stage);
                     stageTagToRunningState.put(stage.name(), StageRunningState.SUCCESS);
-                } else {
-                    stageTagToRunningState.put(stage.name(), StageRunningState.WAITING);
+                    pendingStateChanges.put(stage.name(), StageRunningState.SUCCESS);
+                    publishEvent(stage.name(), RunEvent.Type.STAGE_CACHED);
+                }
+            }
+            // the output of a fused stage is usually not copied, but it is not needed either once the stage it feeds is cached
+            var skipped = true;
+            while (skipped) {
+                skipped = false;
+                for (final Stage stage : fullGraph.vertexSet()) {
+                    var consumer = fusableConsumerByStage.get(stage.name());
+                    if (consumer != null && runGraph.containsVertex(stage) && !runGraph.containsVertex(consumer)) {
+                        LOGGER.info("[{}] Marking stage '{}' as success since its consumer '{}' was cached in a previous run.",
+                                getRunName(),
+                                stage.name(),
+                                consumer.name());
+                        runGraph.removeVertex(stage);
+                        stageTagToRunningState.put(stage.name(), StageRunningState.SUCCESS);
+                        pendingStateChanges.put(stage.name(), StageRunningState.SUCCESS);
+                        publishEvent(stage.name(), RunEvent.Type.STAGE_CACHED);
+                        skipped = true;
+                    }
                 }
             }
-            stageStateView = Map.copyOf(stageTagToRunningState);
         }
 
         /**
@@ -148,30 +347,85 @@ public class WorkflowGraph {
                 return doneFuture;
             }
             doneFuture = CompletableFuture.supplyAsync(() -> {
-                updateStageStateView();
+                if (doneStages == null && !awaitCachedStages()) {
+                    runEventPublisher.close();
+                    return false;
+                }
                 while (!runGraph.vertexSet().isEmpty()) {
                     runRound();
                     try {
-                        var done = stageDoneQueue.take();
-                        if (done == QUEUE_CANCEL_SIGNAL) {
+                        var signal = stageDoneQueue.take();
+                        if (signal == QUEUE_CANCEL_SIGNAL) {
                             throw new InterruptedException("Received queue cancel signal.");
                         }
-                        onStageDone(done.getLeft(), done.getRight());
+                        if (signal.generation != generationOf(signal.stage)) {
+                            LOGGER.info("[{}] Ignoring result of a cancelled attempt of stage '{}'.", getRunName(), signal.stage.name());
+                            continue;
+                        }
+                        if (!signal.retry) {
+                            scheduledByAttempt.remove(ExecutionStage.getOutputPath(signal.stage.name(), signal.shard));
+                        }
+                        if (!runGraph.containsVertex(signal.stage)) {
+                            LOGGER.warn("[{}] Ignoring result of stage '{}' since the stage was already ignored.",
+                                    getRunName(),
+                                    signal.stage.name());
+                        } else if (signal.retry) {
+                            retryingStages.remove(signal.stage.name());
+                            scheduleStage(signal.stage, signal.shard);
+                        } else if (signal.shard.isPresent()) {
+                            onShardDone(signal.stage, signal.shard.get(), signal.failureReason);
+                        } else {
+                            onAttemptDone(signal.stage, signal.failureReason);
+                        }
                     } catch (InterruptedException e) {
                         LOGGER.warn("[{}] Workflow graph run was interrupted. Shutting down run.", getRunName());
                         onRunCancelled();
                         break;
                     }
                 }
+                runEventPublisher.close();
                 return stageTagToRunningState.values().stream().allMatch(state -> state == StageRunningState.SUCCESS);
             }, executorService);
             return doneFuture;
         }
 
+        /**
+         * Waits for the cache probe that was still running when the run was created. The probe signals the stage queue when it is done,
+         * so cancelling the run does not wait for the probe.
+         *
+         * @return false if the probe failed or the run was cancelled, in which case no stage is scheduled.
+         */
+        private boolean awaitCachedStages() {
+            cachedStages.whenComplete((stages, error) -> stageDoneQueue.add(CACHE_PROBED_SIGNAL));
+            try {
+                if (stageDoneQueue.take() == QUEUE_CANCEL_SIGNAL) {
+                    LOGGER.warn("[{}] Run was cancelled while finding its cached stages.", getRunName());
+                    onRunCancelled();
+                    return false;
+                }
+                applyCachedStages(cachedStages.join());
+                publishStateChanges();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.warn("[{}] Workflow graph run was interrupted while finding its cached stages.", getRunName());
+                onRunCancelled();
+                return false;
+            } catch (CompletionException e) {
+                LOGGER.error("[{}] Could not find the cached stages of the run.", getRunName(), e.getCause());
+                onRunCancelled();
+                return false;
+            }
+        }
+
         public String getRunName() {
             return WorkflowUtil.getRunName(executionDefinition);
         }
 
+        public ExecutionDefinition getExecutionDefinition() {
+            return executionDefinition;
+        }
+
         public boolean isRunning() {
             return doneFuture != null && !doneFuture.isDone();
         }
@@ -186,67 +440,459 @@ public class WorkflowGraph {
         }
 
         private void runRound() {
-            var readyStages = runGraph.vertexSet()
+            List<Stage> readyStages;
+            // starting a stage can make the stages that stream its output ready, so repeat until nothing more can start
+            do {
+                readyStages = runGraph.vertexSet()
+                        .stream()
+                        .filter(stage -> runGraph.incomingEdgesOf(stage)
+                                .stream()
+                                .allMatch(edge -> isStreamingFromRunningStage(stage, runGraph.getEdgeSource(edge))))
+                        .filter(stage -> stageTagToRunningState.get(stage.name()) == StageRunningState.WAITING)
+                        .collect(Collectors.toList());
+                for (Stage stage : readyStages) {
+                    setState(stage.name(), StageRunningState.RUNNING);
+                    if (stage.scatter().isPresent()) {
+                        startScatter(stage);
+                    } else {
+                        scheduleChain(stage);
+                    }
+                }
+            } while (!readyStages.isEmpty());
+            publishStateChanges();
+        }
+
+        /**
+         * A stage that streams the output of an input stage can start as soon as that input stage is running, unless the input stage
+         * waits to be retried.
+         */
+        private boolean isStreamingFromRunningStage(Stage stage, Stage inputStage) {
+            return stage.streamingInputStages().contains(inputStage.name())
+                    && stageTagToRunningState.get(inputStage.name()) == StageRunningState.RUNNING
+                    && !retryingStages.contains(inputStage.name());
+        }
+
+        /**
+         * Whether a stage that is still to run streams the output of the stage.
+         */
+        private boolean isStreamedByPendingStage(Stage stage) {
+            return streamedStages.contains(stage.name()) && runGraph.vertexSet()
+                    .stream()
+                    .anyMatch(consumer -> consumer.streamingInputStages().contains(stage.name()));
+        }
+
+        private int generationOf(Stage stage) {
+            return generationByStage.getOrDefault(stage.name(), 0);
+        }
+
+        private boolean isCached(Stage stage) {
+            return stage.scatter()
+                    .map(scatter -> IntStream.range(0, scatter.shardCount())
+                            .allMatch(shard -> doneStages.contains(ExecutionStage.getOutputPath(stage.name(), Optional.of(shard)))))
+                    .orElse(doneStages.contains(stage.name()));
+        }
+
+        /**
+         * Schedules the stage together with the consumers it can be fused with that still have to run, as a single execution stage.
+         */
+        private void scheduleChain(Stage stage) {
+            var chain = new ArrayList<>(List.of(stage));
+            var next = fusableConsumerByStage.get(stage.name());
+            while (next != null && runGraph.containsVertex(next)) {
+                chain.add(next);
+                next = fusableConsumerByStage.get(next.name());
+            }
+            var last = chain.get(chain.size() - 1);
+            if (chain.size() > 1) {
+                LOGGER.info("[{}] Fusing stages {} into a single pod.",
+                        getRunName(),
+                        chain.stream().map(Stage::name).collect(Collectors.toList()));
+                chain.subList(1, chain.size()).forEach(fused -> setState(fused.name(), StageRunningState.RUNNING));
+                fusedChainByLastStage.put(last.name(), List.copyOf(chain));
+            }
+            scheduleStage(last, Optional.empty());
+        }
+
+        private List<Stage> chainOf(Stage stage) {
+            return fusedChainByLastStage.getOrDefault(stage.name(), List.of(stage));
+        }
+
+        private void startScatter(Stage stage) {
+            var scatter = stage.scatter().orElseThrow();
+            var progress = new ScatterProgress(stage);
+            for (int shard = 0; shard < scatter.shardCount(); shard++) {
+                if (!doneStages.contains(ExecutionStage.getOutputPath(stage.name(), Optional.of(shard)))) {
+                    progress.pendingShards.add(shard);
+                }
+            }
+            progress.remaining = progress.pendingShards.size();
+            LOGGER.info("[{}] Scattering stage '{}' into {} shards, {} of which were cached in a previous run.",
+                    getRunName(),
+                    stage.name(),
+                    scatter.shardCount(),
+                    scatter.shardCount() - progress.remaining);
+            scatterProgressByStage.put(stage.name(), progress);
+            if (progress.remaining == 0) {
+                stageDoneQueue.add(new StageSignal(stage, Optional.empty(), false, null, generationOf(stage)));
+            } else {
+                startPendingShards();
+            }
+        }
+
+        /**
+         * Starts pending shards of the scattered stages up to the limit of every stage, and up to the limit of running shards of the
+         * run in total.
+         */
+        private void startPendingShards() {
+            for (ScatterProgress progress : scatterProgressByStage.values()) {
+                var maxParallel = progress.stage.scatter().orElseThrow().maxParallel();
+                while (progress.running < maxParallel && runningShards < MAX_RUNNING_SHARDS && !progress.pendingShards.isEmpty()) {
+                    progress.running++;
+                    runningShards++;
+                    scheduleStage(progress.stage, Optional.of(progress.pendingShards.poll()));
+                }
+            }
+        }
+
+        private void scheduleStage(Stage stage, Optional<Integer> shard) {
+            var attemptKey = ExecutionStage.getOutputPath(stage.name(), shard);
+            attemptsByStage.merge(attemptKey, 1, Integer::sum);
+            var schedules = schedulesByStage.merge(attemptKey, 1, Integer::sum);
+            var generation = generationOf(stage);
+            var chain = chainOf(stage);
+            var scatteredInputs = chain.get(0).inputStages().stream().filter(scatteredStages::contains).collect(Collectors.toSet());
+            ExecutionStage executionStage;
+            if (chain.size() > 1) {
+                var templates = chain.stream().map(fused -> templateByStage.get(fused.name())).collect(Collectors.toList());
+                executionStage = ExecutionStage.fused(templates, executionDefinition, scatteredInputs);
+            } else {
+                var streamOutput = isStreamedByPendingStage(stage);
+                if (streamOutput) {
+                    streamingStages.add(stage.name());
+                }
+                executionStage = ExecutionStage.from(templateByStage.get(stage.name()),
+                        executionDefinition,
+                        shard,
+                        scatteredInputs,
+                        streamOutput);
+            }
+            // inputs that are done, e.g. because they were cached, are copied instead of streamed
+            var streamedInputAttempts = stage.streamingInputStages()
                     .stream()
-                    .filter(stage -> runGraph.incomingEdgesOf(stage).size() == 0)
-                    .filter(stage -> stageTagToRunningState.get(stage.name()) == StageRunningState.WAITING)
-                    .collect(Collectors.toList());
-            for (Stage stage : readyStages) {
-                stageTagToRunningState.put(stage.name(), StageRunningState.RUNNING);
-                var executionStage = ExecutionStage.from(stage, executionDefinition);
-                stageScheduler.schedule(executionStage).thenAccept(result -> stageDoneQueue.add(Pair.of(stage, result)));
+                    .filter(input -> stageTagToRunningState.get(input) == StageRunningState.RUNNING)
+                    .collect(Collectors.toMap(input -> input, schedulesByStage::get));
+            executionStage = ImmutableExecutionStage.copyOf(executionStage)
+                    .withAttempt(schedules)
+                    .withStreamedInputAttempts(streamedInputAttempts);
+            try {
+                var scheduled = stageScheduler.schedule(executionStage);
+                scheduledByAttempt.put(attemptKey, scheduled);
+                scheduled.whenComplete((success, error) -> stageDoneQueue.add(new StageSignal(stage,
+                        shard,
+                        false,
+                        failureReason(success, error),
+                        generation)));
+            } catch (RuntimeException e) {
+                LOGGER.error("[{}] Could not schedule stage '{}'", getRunName(), attemptKey, e);
+                stageDoneQueue.add(new StageSignal(stage, shard, false, StageFailureReason.INFRASTRUCTURE, generation));
+            }
+        }
+
+        private StageFailureReason failureReason(Boolean success, Throwable error) {
+            if (error != null) {
+                var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                return cause instanceof StageFailedException
+                        ? ((StageFailedException) cause).getReason()
+                        : StageFailureReason.INFRASTRUCTURE;
+            }
+            return Boolean.TRUE.equals(success) ? null : StageFailureReason.APPLICATION;
+        }
+
+        /**
+         * @param failureReason reason the attempt failed, or null if it succeeded.
+         */
+        private void onAttemptDone(Stage stage, StageFailureReason failureReason) {
+            if (failureReason != null && retryLater(stage, Optional.empty(), failureReason)) {
+                restartStreamingConsumers(stage);
+                return;
             }
-            if (!readyStages.isEmpty()) {
-                updateStageStateView();
+            onStageDone(stage, failureReason);
+        }
+
+        /**
+         * Cancels the running consumers that stream the output of the failed attempt of the stage, and starts them again once the
+         * next attempt of the stage runs. Their cancelled attempts do not count towards their retry policy.
+         */
+        private void restartStreamingConsumers(Stage stage) {
+            for (Stage consumer : runGraph.vertexSet()) {
+                if (!consumer.streamingInputStages().contains(stage.name())
+                        || stageTagToRunningState.get(consumer.name()) != StageRunningState.RUNNING) {
+                    continue;
+                }
+                LOGGER.warn("[{}] Cancelling stage '{}' since the attempt of stage '{}' it streams failed, it starts again with the next "
+                        + "attempt.", getRunName(), consumer.name(), stage.name());
+                generationByStage.merge(consumer.name(), 1, Integer::sum);
+                retryingStages.remove(consumer.name());
+                cancelAttempts(consumer);
+                attemptsByStage.keySet().removeIf(attemptKey -> isAttemptOf(attemptKey, consumer));
+                var progress = scatterProgressByStage.remove(consumer.name());
+                if (progress != null) {
+                    runningShards -= progress.running;
+                }
+                setState(consumer.name(), StageRunningState.WAITING);
+                // consumers of the consumer stream an attempt that no longer exists either
+                restartStreamingConsumers(consumer);
+            }
+        }
+
+        private void cancelAttempts(Stage stage) {
+            for (var iterator = scheduledByAttempt.entrySet().iterator(); iterator.hasNext(); ) {
+                var attempt = iterator.next();
+                if (isAttemptOf(attempt.getKey(), stage)) {
+                    attempt.getValue().cancel(true);
+                    iterator.remove();
+                }
             }
         }
 
-        private void onStageDone(Stage stage, boolean success) {
-            if (!success) {
-                var iterator = new DepthFirstIterator<>(runGraph, stage);
+        private boolean isAttemptOf(String attemptKey, Stage stage) {
+            return attemptKey.equals(stage.name()) || attemptKey.startsWith(stage.name() + "/");
+        }
+
+        /**
+         * Deletes the streams of the stages that are done and are no longer streamed by any stage that is still to run.
+         */
+        private void deleteFinishedStreams() {
+            for (var iterator = streamingStages.iterator(); iterator.hasNext(); ) {
+                var stageName = iterator.next();
+                var stage = templateByStage.get(stageName).stage();
+                if (runGraph.containsVertex(stage) || isStreamedByPendingStage(stage)) {
+                    continue;
+                }
+                iterator.remove();
+                try {
+                    stageScheduler.deleteStreams(executionDefinition, stageName);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("[{}] Could not delete the streamed output of stage '{}'.", getRunName(), stageName, e);
+                }
+            }
+        }
+
+        /**
+         * Tracks the shards of a scattered stage. After a shard failed for good no more shards are started, and the stage fails once
+         * the running shards are done.
+         */
+        private void onShardDone(Stage stage, int shard, StageFailureReason failureReason) {
+            if (failureReason != null && retryLater(stage, Optional.of(shard), failureReason)) {
+                return;
+            }
+            var progress = scatterProgressByStage.get(stage.name());
+            progress.running--;
+            runningShards--;
+            if (failureReason == null) {
+                progress.remaining--;
+            } else if (progress.failureReason == null) {
+                LOGGER.error("[{}] Shard {} of stage '{}' failed, not starting the remaining shards.", getRunName(), shard, stage.name());
+                progress.failureReason = failureReason;
+                progress.pendingShards.clear();
+            }
+            if (progress.failureReason != null) {
+                if (progress.running == 0) {
+                    onStageDone(stage, progress.failureReason);
+                }
+            } else if (progress.remaining == 0) {
+                onStageDone(stage, null);
+            }
+            startPendingShards();
+        }
+
+        /**
+         * Schedules another attempt after the backoff of the retry policy if the policy allows it.
+         *
+         * @return true if another attempt was scheduled.
+         */
+        private boolean retryLater(Stage stage, Optional<Integer> shard, StageFailureReason failureReason) {
+            var attemptKey = ExecutionStage.getOutputPath(stage.name(), shard);
+            var attempt = attemptsByStage.get(attemptKey);
+            if (!stage.retry().map(policy -> policy.shouldRetry(attempt, failureReason)).orElse(false)) {
+                return false;
+            }
+            var backoffSeconds = stage.retry().orElseThrow().backoffSeconds(attempt);
+            LOGGER.warn("[{}] Attempt {} of stage '{}' failed with reason {}, retrying in {} seconds.",
+                    getRunName(),
+                    attempt,
+                    attemptKey,
+                    failureReason,
+                    backoffSeconds);
+            chainOf(stage).forEach(fused -> publishEvent(fused.name(), RunEvent.Type.STAGE_RETRYING));
+            retryingStages.add(stage.name());
+            var generation = generationOf(stage);
+            CompletableFuture.runAsync(() -> stageDoneQueue.add(new StageSignal(stage, shard, true, null, generation)),
+                    CompletableFuture.delayedExecutor(backoffSeconds, TimeUnit.SECONDS));
+            return true;
+        }
+
+        /**
+         * Completes the stage, or all stages fused with it. It is not known which of the fused stages failed, so they all fail.
+         *
+         * @param failureReason reason the stage failed, or null if it succeeded.
+         */
+        private void onStageDone(Stage stage, StageFailureReason failureReason) {
+            var chain = chainOf(stage);
+            if (failureReason != null) {
+                var iterator = new DepthFirstIterator<>(runGraph, chain.get(0));
                 var ignoredStages = new ArrayList<Stage>();
                 while (iterator.hasNext()) {
                     ignoredStages.add(iterator.next());
                 }
                 runGraph.removeAllVertices(ignoredStages);
+                chain.forEach(fused -> setState(fused.name(), StageRunningState.FAILED));
                 for (Stage ignored : ignoredStages) {
-                    stageTagToRunningState.put(ignored.name(), StageRunningState.IGNORED);
+                    if (!chain.contains(ignored)) {
+                        // stages that stream the output of the failed stage are already running
+                        cancelAttempts(ignored);
+                        setState(ignored.name(), StageRunningState.IGNORED);
+                    }
                 }
-                stageTagToRunningState.put(stage.name(), StageRunningState.FAILED);
             } else {
-                runGraph.removeVertex(stage);
-                stageTagToRunningState.put(stage.name(), StageRunningState.SUCCESS);
+                for (Stage fused : chain) {
+                    runGraph.removeVertex(fused);
+                    setState(fused.name(), StageRunningState.SUCCESS);
+                }
             }
-            updateStageStateView();
+            deleteFinishedStreams();
+            publishStateChanges();
         }
 
+        /**
+         * Ignores the stages that did not finish, and cancels the scheduled attempts so their resources are deleted right away.
+         */
         private void onRunCancelled() {
+            if (!scheduledByAttempt.isEmpty()) {
+                LOGGER.info("[{}] Cancelling {} scheduled stages.", getRunName(), scheduledByAttempt.size());
+                scheduledByAttempt.values().forEach(scheduled -> scheduled.cancel(true));
+                scheduledByAttempt.clear();
+            }
             for (var stage : stageTagToRunningState.entrySet()) {
                 if (stage.getValue() == StageRunningState.RUNNING || stage.getValue() == StageRunningState.WAITING) {
-                    stageTagToRunningState.put(stage.getKey(), StageRunningState.IGNORED);
+                    pendingStateChanges.put(stage.getKey(), StageRunningState.IGNORED);
+                    stage.setValue(StageRunningState.IGNORED);
+                    publishEvent(stage.getKey(), RunEvent.Type.STAGE_IGNORED);
                 }
             }
-            updateStageStateView();
+            publishStateChanges();
+        }
+
+        private void setState(String stageName, StageRunningState state) {
+            stageTagToRunningState.put(stageName, state);
+            pendingStateChanges.put(stageName, state);
+            switch (state) {
+                case RUNNING:
+                    publishEvent(stageName, RunEvent.Type.STAGE_SCHEDULED);
+                    break;
+                case SUCCESS:
+                    publishEvent(stageName, RunEvent.Type.STAGE_SUCCEEDED);
+                    break;
+                case FAILED:
+                    publishEvent(stageName, RunEvent.Type.STAGE_FAILED);
+                    break;
+                case IGNORED:
+                    publishEvent(stageName, RunEvent.Type.STAGE_IGNORED);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void publishEvent(String stageName, RunEvent.Type type) {
+            runEventPublisher.publish(RunEvent.builder()
+                    .runName(getRunName())
+                    .stageName(stageName)
+                    .type(type)
+                    .timestamp(Instant.now())
+                    .build());
+        }
+
+        /**
+         * Called by the stage scheduler when the stage was actually started, which can be some time after it was scheduled.
+         */
+        public void onStageStarted(String stageName) {
+            var chain = fusedChainByLastStage.get(stageName);
+            if (chain == null) {
+                publishEvent(stageName, RunEvent.Type.STAGE_STARTED);
+            } else {
+                chain.forEach(fused -> publishEvent(fused.name(), RunEvent.Type.STAGE_STARTED));
+            }
+        }
+
+        /**
+         * Publisher of the typed events of this run. Subscribers that request slower than events are published only receive the latest
+         * event per stage. The publisher completes when the run is done.
+         */
+        public Flow.Publisher<RunEvent> events() {
+            return runEventPublisher;
         }
 
-        private void updateStageStateView() {
-            stageStateView = Map.copyOf(stageTagToRunningState);
-            synchronized (stageStateSubscribers) {
-                stageStateSubscribers.forEach(subscriber -> subscriber.accept(stageStateView));
+        /**
+         * Publishes the transitions since the previous publish as one change. Subscribers receive the change asynchronously.
+         */
+        private void publishStateChanges() {
+            if (pendingStateChanges.isEmpty()) {
+                return;
+            }
+            synchronized (stageStateLock) {
+                stageStateView.putAll(pendingStateChanges);
+                var change = StageStateChange.builder().version(stageStateVersion + 1).putAllChanges(pendingStateChanges).build();
+                stageStateVersion = change.version();
+                stageStateSubscribers.forEach(subscriber -> subscriber.offer(change));
             }
+            pendingStateChanges.clear();
         }
 
+        /**
+         * Returns a snapshot of the stage states at the latest published version. Stages that transition together are always seen
+         * together.
+         */
         public Map<String, StageRunningState> getStageStateView() {
-            return stageStateView;
+            synchronized (stageStateLock) {
+                return Map.copyOf(stageStateView);
+            }
         }
 
+        public long getStageStateVersion() {
+            return stageStateVersion;
+        }
+
+        /**
+         * Renders the graph with the current stage states in DOT format. The rendering is cached until the stage state changes.
+         */
         public String toDotFormat() {
+            long version;
+            Map<String, StageRunningState> states;
+            synchronized (stageStateLock) {
+                version = stageStateVersion;
+                if (dotFormat != null && dotFormatVersion == version) {
+                    return dotFormat;
+                }
+                states = Map.copyOf(stageStateView);
+            }
+            var rendered = renderDotFormat(states);
+            synchronized (stageStateLock) {
+                if (dotFormatVersion < version) {
+                    dotFormat = rendered;
+                    dotFormatVersion = version;
+                }
+            }
+            return rendered;
+        }
+
+        private String renderDotFormat(Map<String, StageRunningState> states) {
             var exporter = new DOTExporter<Stage, DefaultEdge>();
             exporter.setVertexAttributeProvider((v) -> {
                 Map<String, Attribute> map = new LinkedHashMap<>();
                 var name = v.name();
                 map.put("label", DefaultAttribute.createAttribute(name));
-                map.put("color", DefaultAttribute.createAttribute(stageStateView.get(name).color));
+                map.put("color", DefaultAttribute.createAttribute(states.get(name).color));
                 return map;
             });
             var writer = new StringWriter();
@@ -254,8 +900,52 @@ public class WorkflowGraph {
             return writer.toString();
         }
 
-        public void subscribe(Consumer<Map<String, StageRunningState>> subscriber) {
-            this.stageStateSubscribers.add(subscriber);
+        /**
+         * Subscribes to stage state changes. The subscriber first receives a change with the state of all stages at the current version,
+         * followed by a change per version with only the stages that transitioned.
+         */
+        public void subscribe(Consumer<StageStateChange> subscriber) {
+            var subscription = new StageStateSubscription(subscriber, notificationExecutor);
+            synchronized (stageStateLock) {
+                subscription.offer(StageStateChange.builder().version(stageStateVersion).putAllChanges(stageStateView).build());
+                stageStateSubscribers.add(subscription);
+            }
+        }
+    }
+
+    /**
+     * Signal for the thread driving a run: a stage or shard attempt finished, or the backoff before retrying it elapsed.
+     */
+    private static class StageSignal {
+        private final Stage stage;
+        private final Optional<Integer> shard;
+        private final boolean retry;
+        private final StageFailureReason failureReason;
+        // generation of the stage when the attempt was scheduled
+        private final int generation;
+
+        private StageSignal(final Stage stage, final Optional<Integer> shard, final boolean retry, final StageFailureReason failureReason,
+                final int generation) {
+            this.stage = stage;
+            this.shard = shard;
+            this.retry = retry;
+            this.failureReason = failureReason;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Progress of a scattered stage. Only touched by the thread driving the run.
+     */
+    private static class ScatterProgress {
+        private final Stage stage;
+        private final Deque<Integer> pendingShards = new ArrayDeque<>();
+        private int running = 0;
+        private int remaining = 0;
+        private StageFailureReason failureReason;
+
+        private ScatterProgress(final Stage stage) {
+            this.stage = stage;
         }
     }
 }
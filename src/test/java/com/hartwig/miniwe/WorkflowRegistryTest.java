@@ -0,0 +1,124 @@
+package com.hartwig.miniwe;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.hartwig.miniwe.gcloud.storage.GcloudStorage;
+import com.hartwig.miniwe.workflow.StageScheduler;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WorkflowRegistryTest {
+    private static final String WORKFLOW_NAME = "wf-1-0-0";
+
+    @TempDir
+    Path directory;
+
+    private MiniWorkflowEngine engine;
+    private WorkflowRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        engine = new MiniWorkflowEngine(mock(GcloudStorage.class), mock(StageScheduler.class));
+        registry = new WorkflowRegistry(directory, engine);
+    }
+
+    @Test
+    void loadsAllDefinitionsInDirectory() throws IOException {
+        writeWorkflow("a.yaml", "wf", "1.0.0", "stage-a");
+        writeWorkflow("b.yml", "other", "2.0.0", "stage-b");
+        Files.writeString(directory.resolve("notes.txt"), "not a workflow");
+
+        registry.loadAll();
+        assertTrue(engine.findWorkflowDefinition(WORKFLOW_NAME).isPresent());
+        assertTrue(engine.findWorkflowDefinition("other-2-0-0").isPresent());
+    }
+
+    @Test
+    void identicalDefinitionsAreRegisteredOnce() throws IOException {
+        writeWorkflow("a.yaml", "wf", "1.0.0", "stage-a");
+        writeWorkflow("copy.yaml", "wf", "1.0.0", "stage-a");
+        writeWorkflow("conflict.yaml", "wf", "1.0.0", "stage-c");
+
+        registry.loadAll();
+        assertEquals("stage-a", stageName());
+    }
+
+    @Test
+    void otherFileDefiningWorkflowTakesOverWhenRegisteredFileIsDeleted() throws IOException {
+        var file = writeWorkflow("a.yaml", "wf", "1.0.0", "stage-a");
+        var copy = writeWorkflow("copy.yaml", "wf", "1.0.0", "stage-a");
+        var conflict = writeWorkflow("conflict.yaml", "wf", "1.0.0", "stage-c");
+        registry.loadAll();
+
+        Files.delete(file);
+        registry.reload(file);
+        assertEquals("stage-c", stageName());
+
+        Files.delete(conflict);
+        registry.reload(conflict);
+        assertEquals("stage-a", stageName());
+
+        Files.delete(copy);
+        registry.reload(copy);
+        assertFalse(engine.findWorkflowDefinition(WORKFLOW_NAME).isPresent());
+    }
+
+    @Test
+    void changedDefinitionReplacesRegisteredOne() throws IOException {
+        var file = writeWorkflow("a.yaml", "wf", "1.0.0", "stage-a");
+        registry.loadAll();
+
+        writeWorkflow("a.yaml", "wf", "1.0.0", "stage-b");
+        registry.reload(file);
+        assertEquals("stage-b", stageName());
+
+        Files.writeString(file, "name: [unparseable");
+        registry.reload(file);
+        assertEquals("stage-b", stageName());
+
+        Files.delete(file);
+        registry.reload(file);
+        assertFalse(engine.findWorkflowDefinition(WORKFLOW_NAME).isPresent());
+    }
+
+    @Test
+    void watchedDirectoryIsReloaded() throws Exception {
+        registry.watch();
+        try {
+            writeWorkflow("a.yaml", "wf", "1.0.0", "stage-a");
+            for (int i = 0; i < 100 && engine.findWorkflowDefinition(WORKFLOW_NAME).isEmpty(); i++) {
+                Thread.sleep(100);
+            }
+            assertEquals("stage-a", stageName());
+        } finally {
+            registry.close();
+        }
+    }
+
+    private String stageName() {
+        return engine.findWorkflowDefinition(WORKFLOW_NAME).orElseThrow().stages().get(0).name();
+    }
+
+    private Path writeWorkflow(String fileName, String name, String version, String stageName) throws IOException {
+        var content = String.join("\n",
+                List.of("name: \"" + name + "\"",
+                        "version: \"" + version + "\"",
+                        "params: []",
+                        "stages:",
+                        "  - name: \"" + stageName + "\"",
+                        "    image: \"image\"",
+                        "    version: \"1.0.0\"",
+                        "    inputStages: []"));
+        return Files.writeString(directory.resolve(fileName), content);
+    }
+}
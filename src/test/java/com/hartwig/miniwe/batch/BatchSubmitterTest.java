@@ -0,0 +1,70 @@
+package com.hartwig.miniwe.batch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.hartwig.miniwe.MiniWorkflowEngine;
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+
+import org.junit.jupiter.api.Test;
+
+class BatchSubmitterTest {
+    @Test
+    void keepsAtMostConcurrencyRunsInFlight() throws InterruptedException {
+        var engine = mock(MiniWorkflowEngine.class);
+        var inFlight = new AtomicInteger();
+        var maxInFlight = new AtomicInteger();
+        var delayer = Executors.newScheduledThreadPool(4);
+        when(engine.findOrStartRun(any())).thenAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            var future = new CompletableFuture<Boolean>();
+            delayer.schedule(() -> {
+                inFlight.decrementAndGet();
+                future.complete(true);
+            }, 10, TimeUnit.MILLISECONDS);
+            return future;
+        });
+        var results = new StringWriter();
+        var executions = IntStream.range(0, 20).mapToObj(i -> execution("p" + i)).collect(Collectors.toList());
+
+        var countByStatus = new BatchSubmitter(engine, 3, results).submit(executions.iterator());
+        assertEquals(Map.of(BatchResult.Status.SUCCESS, 20), countByStatus);
+        assertTrue(maxInFlight.get() <= 3);
+        assertEquals(20, results.toString().lines().count());
+        verify(engine, times(20)).cleanupRun(any());
+        delayer.shutdownNow();
+    }
+
+    @Test
+    void recordsFailedAndUnstartableRuns() throws InterruptedException {
+        var engine = mock(MiniWorkflowEngine.class);
+        when(engine.findOrStartRun(execution("failed"))).thenReturn(CompletableFuture.completedFuture(false));
+        when(engine.findOrStartRun(execution("unknown"))).thenThrow(new IllegalArgumentException("Workflow does not exist"));
+        var results = new StringWriter();
+
+        var executions = List.of(execution("failed"), execution("unknown"));
+        var countByStatus = new BatchSubmitter(engine, 2, results).submit(executions.iterator());
+        assertEquals(Map.of(BatchResult.Status.FAILED, 1, BatchResult.Status.ERROR, 1), countByStatus);
+        assertTrue(results.toString().contains("\"error\":\"Workflow does not exist\""));
+        verify(engine, times(0)).cleanupRun(any());
+    }
+
+    private static ExecutionDefinition execution(String name) {
+        return ExecutionDefinition.builder().name(name).workflow("wf").version("1.0.0").build();
+    }
+}
@@ -0,0 +1,71 @@
+package com.hartwig.miniwe.batch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+
+import org.junit.jupiter.api.Test;
+
+class ExecutionManifestTest {
+    @Test
+    void readsJsonlAndSkipsUnreadableRecords() throws IOException {
+        var jsonl = String.join("\n",
+                "{\"name\": \"p1\", \"workflow\": \"wf\", \"version\": \"1.0.0\", \"params\": {\"sample\": \"s1\"}}",
+                "",
+                "{\"name\": \"broken\"",
+                "{\"name\": \"p2\", \"workflow\": \"wf\", \"version\": \"1.0.0\"}");
+        try (var manifest = new ExecutionManifest(new StringReader(jsonl), ExecutionManifest.Format.JSONL)) {
+            var executions = readAll(manifest);
+            assertEquals(List.of(execution("p1", Map.of("sample", "s1")), execution("p2", Map.of())), executions);
+            assertEquals(1, manifest.getSkippedRecords());
+        }
+    }
+
+    @Test
+    void readsCsvWithParameterColumns() throws IOException {
+        var csv = String.join("\n", "name,workflow,version,sample,doids", "p1,wf,1.0.0,s1,\"162,163\"", "p2,wf,1.0.0,s2");
+        try (var manifest = new ExecutionManifest(new StringReader(csv), ExecutionManifest.Format.CSV)) {
+            assertEquals(List.of(execution("p1", Map.of("sample", "s1", "doids", "162,163"))), readAll(manifest));
+            assertEquals(1, manifest.getSkippedRecords());
+            assertFalse(manifest.hasNext());
+        }
+    }
+
+    @Test
+    void csvTenantColumnIsTheTenantOfTheExecution() throws IOException {
+        var csv = String.join("\n", "name,workflow,version,tenant,sample", "p1,wf,1.0.0,research,s1", "p2,wf,1.0.0,,s2");
+        try (var manifest = new ExecutionManifest(new StringReader(csv), ExecutionManifest.Format.CSV)) {
+            assertEquals(List.of(ExecutionDefinition.builder().from(execution("p1", Map.of("sample", "s1"))).tenant("research").build(),
+                    execution("p2", Map.of("sample", "s2"))), readAll(manifest));
+        }
+    }
+
+    @Test
+    void csvHeaderMustHaveExecutionColumns() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ExecutionManifest(new StringReader("name,sample\np1,s1"), ExecutionManifest.Format.CSV));
+    }
+
+    @Test
+    void parsesQuotedCsvFields() {
+        assertEquals(List.of("a", "b,c", "say \"hi\"", ""), ExecutionManifest.parseCsvLine("a,\"b,c\",\"say \"\"hi\"\"\","));
+    }
+
+    private static List<ExecutionDefinition> readAll(ExecutionManifest manifest) {
+        var executions = new ArrayList<ExecutionDefinition>();
+        manifest.forEachRemaining(executions::add);
+        return executions;
+    }
+
+    private static ExecutionDefinition execution(String name, Map<String, String> params) {
+        return ExecutionDefinition.builder().name(name).workflow("wf").version("1.0.0").params(params).build();
+    }
+}
@@ -0,0 +1,87 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyPoolStageSchedulerTest {
+    private RecordingScheduler delegate;
+    private ConcurrencyPools pools;
+    private ConcurrencyPoolStageScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        delegate = new RecordingScheduler();
+        pools = new ConcurrencyPools(Map.of("license", 1));
+        scheduler = new ConcurrencyPoolStageScheduler(delegate, pools);
+    }
+
+    @Test
+    void waitingStageIsNotPassedOn() {
+        scheduler.schedule(stage("ex-1", "license"));
+        scheduler.schedule(stage("ex-2", "license"));
+        scheduler.schedule(stage("ex-3"));
+        assertEquals(List.of("wf-1-0-0-ex-1", "wf-1-0-0-ex-3"), delegate.scheduledRuns());
+        assertEquals(1, scheduler.getWaitingStageCount());
+    }
+
+    @Test
+    void permitIsReleasedWhenStageIsDone() throws ExecutionException, InterruptedException {
+        var first = scheduler.schedule(stage("ex-1", "license"));
+        scheduler.schedule(stage("ex-2", "license"));
+
+        delegate.complete(0, true);
+        assertTrue(first.get());
+        assertEquals(List.of("wf-1-0-0-ex-1", "wf-1-0-0-ex-2"), delegate.scheduledRuns());
+        assertEquals(Map.of("license", 1), pools.getInUse());
+    }
+
+    @Test
+    void cancelledWaitingStageGivesUpItsPlaceInTheQueue() {
+        scheduler.schedule(stage("ex-1", "license"));
+        scheduler.schedule(stage("ex-2", "license")).cancel(true);
+        scheduler.schedule(stage("ex-3", "license"));
+
+        delegate.complete(0, true);
+        assertEquals(List.of("wf-1-0-0-ex-1", "wf-1-0-0-ex-3"), delegate.scheduledRuns());
+        assertEquals(0, scheduler.getWaitingStageCount());
+    }
+
+    @Test
+    void cancellingStartedStageCancelsItInDelegateAndReleasesPermit() {
+        scheduler.schedule(stage("ex-1", "license")).cancel(true);
+        assertTrue(delegate.result(0).isCancelled());
+        assertEquals(Map.of("license", 0), pools.getInUse());
+    }
+
+    @Test
+    void stageWaitingForPermitDoesNotTakeFairShareSlot() {
+        var fairShare = new FairShareStageScheduler(delegate, 2, FairShareStageScheduler.ShareBy.WORKFLOW, Map.of(), Duration.ofHours(1));
+        scheduler = new ConcurrencyPoolStageScheduler(fairShare, pools);
+        scheduler.schedule(stage("ex-1", "license"));
+        scheduler.schedule(stage("ex-2", "license"));
+        scheduler.schedule(stage("ex-3"));
+        assertEquals(List.of("wf-1-0-0-ex-1", "wf-1-0-0-ex-3"), delegate.scheduledRuns());
+    }
+
+    private static ExecutionStage stage(String execution, String... concurrencyPools) {
+        return ExecutionStage.from(Stage.builder()
+                        .name("stage")
+                        .image("image")
+                        .version("1.0.0")
+                        .addConcurrencyPools(concurrencyPools)
+                        .build(),
+                ExecutionDefinition.builder().name(execution).workflow("wf").version("1.0.0").build());
+    }
+}
@@ -0,0 +1,102 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyPoolsTest {
+    private MutableClock clock;
+    private ConcurrencyPools pools;
+
+    @BeforeEach
+    void setUp() {
+        clock = new MutableClock();
+        pools = new ConcurrencyPools(Map.of("license", 1, "database", 2), clock);
+    }
+
+    @Test
+    void stagesWaitUntilPoolHasRoom() {
+        var first = pools.acquire("first", Set.of("license"));
+        var second = pools.acquire("second", Set.of("license"));
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+
+        first.join().release();
+        assertTrue(second.isDone());
+        assertEquals(Map.of("database", 0, "license", 1), pools.getInUse());
+    }
+
+    @Test
+    void stagesWithoutLimitedPoolsAreNotLimited() {
+        assertTrue(pools.acquire("first", Set.of()).isDone());
+        assertTrue(pools.acquire("second", Set.of("unknown")).isDone());
+        assertTrue(pools.acquire("third", Set.of("unknown")).isDone());
+    }
+
+    @Test
+    void waitingStageHoldsBackLaterStagesOfItsPools() {
+        var license = pools.acquire("license", Set.of("license"));
+        var database = pools.acquire("database", Set.of("database"));
+        var both = pools.acquire("both", Set.of("license", "database"));
+        var later = pools.acquire("later", Set.of("database"));
+        assertTrue(license.isDone());
+        assertTrue(database.isDone());
+        assertFalse(both.isDone());
+        assertFalse(later.isDone());
+
+        license.join().release();
+        assertTrue(both.isDone());
+        assertFalse(later.isDone());
+        database.join().release();
+        assertTrue(later.isDone());
+    }
+
+    @Test
+    void cancelledStageGivesUpItsPlaceInTheQueue() {
+        var first = pools.acquire("first", Set.of("license"));
+        var cancelled = pools.acquire("cancelled", Set.of("license"));
+        var next = pools.acquire("next", Set.of("license"));
+        cancelled.cancel(false);
+
+        first.join().release();
+        assertTrue(next.isDone());
+        assertEquals(1, pools.getInUse().get("license"));
+    }
+
+    @Test
+    void releasingTwiceHasNoEffect() {
+        var first = pools.acquire("first", Set.of("database"));
+        pools.acquire("second", Set.of("database"));
+        first.join().release();
+        first.join().release();
+        assertEquals(1, pools.getInUse().get("database"));
+    }
+
+    @Test
+    void exportsOccupancyAndWaitTimes() {
+        var first = pools.acquire("first", Set.of("license"));
+        pools.acquire("second", Set.of("license"));
+        clock.advance(Duration.ofSeconds(30));
+        first.join().release();
+
+        var metrics = pools.toPrometheusMetrics();
+        assertTrue(metrics.contains("miniwe_concurrency_pool_limit{pool=\"license\"} 1\n"));
+        assertTrue(metrics.contains("miniwe_concurrency_pool_in_use{pool=\"license\"} 1\n"));
+        assertTrue(metrics.contains("miniwe_concurrency_pool_waiting{pool=\"license\"} 0\n"));
+        assertTrue(metrics.contains("miniwe_concurrency_pool_wait_seconds_sum{pool=\"license\"} 30.0\n"));
+        assertTrue(metrics.contains("miniwe_concurrency_pool_wait_seconds_count{pool=\"license\"} 2\n"));
+    }
+
+    @Test
+    void rejectsLimitBelowOne() {
+        assertThrows(IllegalArgumentException.class, () -> new ConcurrencyPools(Map.of("license", 0)));
+    }
+}
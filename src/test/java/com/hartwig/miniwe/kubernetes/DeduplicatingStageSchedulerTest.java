@@ -0,0 +1,131 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.StageScheduler;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DeduplicatingStageSchedulerTest {
+    private StageScheduler delegate;
+    private StorageProvider storageProvider;
+    private DeduplicatingStageScheduler scheduler;
+    private CompletableFuture<Boolean> delegateResult;
+    private Stage reference;
+    private Stage analysis;
+
+    @BeforeEach
+    void setUp() {
+        delegate = mock(StageScheduler.class);
+        storageProvider = mock(StorageProvider.class);
+        delegateResult = new CompletableFuture<>();
+        when(delegate.schedule(any())).thenReturn(delegateResult);
+        scheduler = new DeduplicatingStageScheduler(delegate, storageProvider);
+        reference = Stage.builder().name("reference").image("image").version("1.0.0").arguments("-genome ${genome}").build();
+        analysis = Stage.builder().name("analysis").image("image").version("1.0.0").addInputStages("reference").build();
+    }
+
+    @Test
+    void identicalStagesRunOnce() throws Exception {
+        var first = scheduler.schedule(ExecutionStage.from(reference, execution("a", "38")));
+        var second = scheduler.schedule(ExecutionStage.from(reference, execution("b", "38")));
+        verify(delegate, times(1)).schedule(any());
+
+        delegateResult.complete(true);
+        assertTrue(first.get());
+        assertTrue(second.get());
+        verify(storageProvider).copyOutput("wf-1-0-0-a", "wf-1-0-0-b", "reference");
+    }
+
+    @Test
+    void stagesWithDifferentParametersRunSeparately() {
+        scheduler.schedule(ExecutionStage.from(reference, execution("a", "38")));
+        scheduler.schedule(ExecutionStage.from(reference, execution("b", "37")));
+        verify(delegate, times(2)).schedule(any());
+    }
+
+    @Test
+    void downstreamStagesAreOnlyDeduplicatedWithIdenticalInputs() {
+        when(delegate.schedule(any())).thenReturn(CompletableFuture.completedFuture(true), new CompletableFuture<>());
+        scheduler.schedule(ExecutionStage.from(reference, execution("a", "38")));
+        scheduler.schedule(ExecutionStage.from(analysis, execution("a", "38")));
+        // the reference of run c was cached, so nothing is known about the input of its analysis
+        scheduler.schedule(ExecutionStage.from(analysis, execution("c", "38")));
+        verify(delegate, times(3)).schedule(any());
+
+        scheduler.schedule(ExecutionStage.from(reference, execution("b", "38")));
+        scheduler.schedule(ExecutionStage.from(analysis, execution("b", "38")));
+        verify(delegate, times(4)).schedule(any());
+    }
+
+    @Test
+    void followersGetTheFailureOfTheLeader() throws Exception {
+        var first = scheduler.schedule(ExecutionStage.from(reference, execution("a", "38")));
+        var second = scheduler.schedule(ExecutionStage.from(reference, execution("b", "38")));
+        delegateResult.complete(false);
+        assertFalse(first.get());
+        assertFalse(second.get());
+        verify(storageProvider, never()).copyOutput(any(), any(), any());
+
+        scheduler.schedule(ExecutionStage.from(reference, execution("b", "38")));
+        verify(delegate, times(2)).schedule(any());
+    }
+
+    @Test
+    void stageIsOnlyCancelledOnceAllIdenticalStagesAreCancelled() throws Exception {
+        var first = scheduler.schedule(ExecutionStage.from(reference, execution("a", "38")));
+        var second = scheduler.schedule(ExecutionStage.from(reference, execution("b", "38")));
+
+        first.cancel(true);
+        assertFalse(delegateResult.isCancelled());
+        second.cancel(true);
+        assertTrue(delegateResult.isCancelled());
+
+        scheduler.schedule(ExecutionStage.from(reference, execution("c", "38")));
+        verify(delegate, times(2)).schedule(any());
+    }
+
+    @Test
+    void cleaningUpLeaderRunLeavesStageRunningForWaitingRuns() throws Exception {
+        var first = scheduler.schedule(ExecutionStage.from(reference, execution("a", "38")));
+        var second = scheduler.schedule(ExecutionStage.from(reference, execution("b", "38")));
+
+        // cleaning up run a cancels its stages before their resources are deleted
+        first.cancel(true);
+        scheduler.deleteStagesForRun(execution("a", "38"));
+        assertFalse(delegateResult.isCancelled());
+        verify(delegate, never()).deleteStagesForRun(any());
+
+        delegateResult.complete(true);
+        assertTrue(second.get());
+        verify(storageProvider).copyOutput("wf-1-0-0-a", "wf-1-0-0-b", "reference");
+        verify(delegate).deleteStagesForRun(execution("a", "38"));
+    }
+
+    @Test
+    void cleaningUpRunWithoutWaitingRunsDeletesItsStagesRightAway() {
+        var first = scheduler.schedule(ExecutionStage.from(reference, execution("a", "38")));
+        first.cancel(true);
+        scheduler.deleteStagesForRun(execution("a", "38"));
+        assertTrue(delegateResult.isCancelled());
+        verify(delegate).deleteStagesForRun(execution("a", "38"));
+    }
+
+    private static ExecutionDefinition execution(String name, String genome) {
+        return ExecutionDefinition.builder().name(name).workflow("wf").version("1.0.0").params(Map.of("genome", genome)).build();
+    }
+}
@@ -0,0 +1,156 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FairShareStageSchedulerTest {
+    private static final Duration HALF_LIFE = Duration.ofHours(1);
+
+    private RecordingScheduler delegate;
+    private MutableClock clock;
+
+    @BeforeEach
+    void setUp() {
+        delegate = new RecordingScheduler();
+        clock = new MutableClock();
+    }
+
+    @Test
+    void passesStagesOnWithoutContention() {
+        var scheduler = new FairShareStageScheduler(delegate, 2, FairShareStageScheduler.ShareBy.WORKFLOW, Map.of(), HALF_LIFE, clock);
+        scheduler.schedule(stage("wf-a", "ex-1"));
+        scheduler.schedule(stage("wf-b", "ex-1"));
+        assertEquals(List.of("wf-a-1-0-0-ex-1", "wf-b-1-0-0-ex-1"), delegate.scheduledRuns());
+    }
+
+    @Test
+    void nextStageComesFromGroupWithLeastUsage() throws ExecutionException, InterruptedException {
+        var scheduler = new FairShareStageScheduler(delegate, 1, FairShareStageScheduler.ShareBy.WORKFLOW, Map.of(), HALF_LIFE, clock);
+        var first = scheduler.schedule(stage("wf-a", "ex-1"));
+        scheduler.schedule(stage("wf-a", "ex-2"));
+        scheduler.schedule(stage("wf-a", "ex-3"));
+        scheduler.schedule(stage("wf-b", "ex-1"));
+        assertEquals(List.of("wf-a-1-0-0-ex-1"), delegate.scheduledRuns());
+
+        clock.advance(Duration.ofSeconds(100));
+        delegate.complete(0, true);
+        assertTrue(first.get());
+        assertEquals("wf-b-1-0-0-ex-1", delegate.scheduledRuns().get(1));
+        assertEquals(100, scheduler.getUsageSeconds("wf-a-1-0-0"), 0.1);
+    }
+
+    @Test
+    void groupsGetStageSecondsByWeight() {
+        var weights = Map.of("wf-a-1-0-0", 3.0);
+        var scheduler = new FairShareStageScheduler(delegate, 1, FairShareStageScheduler.ShareBy.WORKFLOW, weights, HALF_LIFE, clock);
+        scheduler.schedule(stage("wf-a", "ex-1"));
+        scheduler.schedule(stage("wf-a", "ex-2"));
+        scheduler.schedule(stage("wf-a", "ex-3"));
+        scheduler.schedule(stage("wf-b", "ex-1"));
+        scheduler.schedule(stage("wf-b", "ex-2"));
+
+        for (int i = 0; i < 4; i++) {
+            clock.advance(Duration.ofSeconds(100));
+            delegate.complete(i, true);
+        }
+        // usage per weight after each stage: a 33 so b runs, b 100 so a runs, a 67 so a runs, then only b is left
+        assertEquals(List.of("wf-a-1-0-0-ex-1", "wf-b-1-0-0-ex-1", "wf-a-1-0-0-ex-2", "wf-a-1-0-0-ex-3", "wf-b-1-0-0-ex-2"),
+                delegate.scheduledRuns());
+    }
+
+    @Test
+    void usageDecaysWithHalfLife() {
+        var scheduler = new FairShareStageScheduler(delegate, 1, FairShareStageScheduler.ShareBy.WORKFLOW, Map.of(), HALF_LIFE, clock);
+        scheduler.schedule(stage("wf-a", "ex-1"));
+        clock.advance(Duration.ofSeconds(100));
+        delegate.complete(0, true);
+        clock.advance(HALF_LIFE);
+        assertEquals(50, scheduler.getUsageSeconds("wf-a-1-0-0"), 0.1);
+    }
+
+    @Test
+    void idleGroupsAreForgottenOnceTheirUsageDecayed() {
+        var scheduler = new FairShareStageScheduler(delegate, 1, FairShareStageScheduler.ShareBy.WORKFLOW, Map.of(), HALF_LIFE, clock);
+        scheduler.schedule(stage("wf-a", "ex-1"));
+        clock.advance(Duration.ofSeconds(100));
+        delegate.complete(0, true);
+        assertEquals(1, scheduler.getGroupCount());
+
+        clock.advance(HALF_LIFE.multipliedBy(10));
+        scheduler.schedule(stage("wf-b", "ex-1"));
+        assertEquals(1, scheduler.getGroupCount());
+        assertEquals(0, scheduler.getUsageSeconds("wf-a-1-0-0"), 0.1);
+    }
+
+    @Test
+    void sharesPerTenant() {
+        var scheduler = new FairShareStageScheduler(delegate, 1, FairShareStageScheduler.ShareBy.TENANT, Map.of(), HALF_LIFE, clock);
+        scheduler.schedule(stage("wf-a", "ex-1", "research"));
+        scheduler.schedule(stage("wf-a", "ex-2", "research"));
+        scheduler.schedule(stage("wf-a", "ex-3", "diagnostics"));
+        clock.advance(Duration.ofSeconds(10));
+        delegate.complete(0, true);
+        assertEquals("wf-a-1-0-0-ex-3", delegate.scheduledRuns().get(1));
+        assertEquals(10, scheduler.getUsageSeconds("research"), 0.1);
+    }
+
+    @Test
+    void failedScheduleFreesSlot() {
+        var scheduler = new FairShareStageScheduler(delegate, 1, FairShareStageScheduler.ShareBy.WORKFLOW, Map.of(), HALF_LIFE, clock);
+        scheduler.schedule(stage("wf-a", "ex-1"));
+        var second = scheduler.schedule(stage("wf-a", "ex-2"));
+        delegate.result(0).completeExceptionally(new IllegalStateException("failed"));
+        assertEquals(2, delegate.scheduledRuns().size());
+        delegate.complete(1, false);
+        assertEquals(false, second.join());
+    }
+
+    @Test
+    void cancelledStagesAreDequeuedOrCancelledInDelegate() {
+        var scheduler = new FairShareStageScheduler(delegate, 1, FairShareStageScheduler.ShareBy.WORKFLOW, Map.of(), HALF_LIFE, clock);
+        var running = scheduler.schedule(stage("wf-a", "ex-1"));
+        var queued = scheduler.schedule(stage("wf-a", "ex-2"));
+        scheduler.schedule(stage("wf-a", "ex-3"));
+
+        queued.cancel(true);
+        assertEquals(1, delegate.scheduledRuns().size());
+        running.cancel(true);
+        assertTrue(delegate.result(0).isCancelled());
+        assertEquals(List.of("wf-a-1-0-0-ex-1", "wf-a-1-0-0-ex-3"), delegate.scheduledRuns());
+    }
+
+    @Test
+    void sharesMustBePositive() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new FairShareStageScheduler(delegate, 1, FairShareStageScheduler.ShareBy.WORKFLOW, Map.of("wf", 0.0), HALF_LIFE));
+    }
+
+    private static ExecutionStage stage(String workflow, String execution) {
+        return stage(workflow, execution, null);
+    }
+
+    private static ExecutionStage stage(String workflow, String execution, String tenant) {
+        var stage = Stage.builder().name("stage").image("image").version("1.0.0").build();
+        var executionDefinition = ExecutionDefinition.builder()
+                .name(execution)
+                .workflow(workflow)
+                .version("1.0.0")
+                .tenant(Optional.ofNullable(tenant))
+                .build();
+        return ExecutionStage.from(stage, executionDefinition);
+    }
+}
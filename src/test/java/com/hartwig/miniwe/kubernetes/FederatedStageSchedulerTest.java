@@ -0,0 +1,136 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.StageFailureReason;
+import com.hartwig.miniwe.miniwdl.StageResources;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.StageFailedException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FederatedStageSchedulerTest {
+    private KubernetesStageScheduler local;
+    private KubernetesStageScheduler remote;
+    private ExecutionDefinition executionDefinition;
+    private ExecutionStage executionStage;
+
+    @BeforeEach
+    void setUp() {
+        local = clusterScheduler(4, 16_000_000_000L, 0);
+        remote = clusterScheduler(32, 64_000_000_000L, 0);
+        var stage = Stage.builder().name("stage").image("image").version("1.0.0").build();
+        executionDefinition = ExecutionDefinition.builder().name("ex").workflow("wf").version("1.0.0").build();
+        executionStage = ExecutionStage.from(stage, executionDefinition);
+    }
+
+    @Test
+    void prefersClusterInDataRegion() {
+        var scheduler = new FederatedStageScheduler(List.of(cluster("remote", "us-east1", remote), cluster("local", "europe-west4", local)),
+                "europe-west4");
+        assertEquals("local", scheduler.selectCluster(executionStage, Set.of()).orElseThrow().getName());
+    }
+
+    @Test
+    void prefersClusterThatFitsRequests() {
+        var bigStage = ExecutionStage.from(Stage.builder()
+                .from(executionStage.stage())
+                .resources(StageResources.builder().cpu("8").memory("32Gi").build())
+                .build(), executionDefinition);
+        var scheduler = new FederatedStageScheduler(List.of(cluster("local", "europe-west4", local), cluster("remote", "us-east1", remote)),
+                "europe-west4");
+        assertEquals("remote", scheduler.selectCluster(bigStage, Set.of()).orElseThrow().getName());
+    }
+
+    @Test
+    void requestsMustFitOnASingleNode() {
+        var bigStage = ExecutionStage.from(Stage.builder()
+                .from(executionStage.stage())
+                .resources(StageResources.builder().cpu("8").memory("32Gi").build())
+                .build(), executionDefinition);
+        var fragmented = mock(KubernetesStageScheduler.class);
+        var node = NodeCapacity.builder().name("node").freeCpuCores(4).freeMemoryBytes(16_000_000_000L);
+        when(fragmented.freeCapacity()).thenReturn(ClusterCapacity.builder()
+                .freeCpuCores(32)
+                .freeMemoryBytes(128_000_000_000L)
+                .addNodes(node.name("a").build(), node.name("b").build(), node.name("c").build(), node.name("d").build())
+                .build());
+        var scheduler = new FederatedStageScheduler(List.of(cluster("fragmented", "europe-west4", fragmented),
+                cluster("remote", "us-east1", remote)), "europe-west4");
+        assertEquals("remote", scheduler.selectCluster(bigStage, Set.of()).orElseThrow().getName());
+    }
+
+    @Test
+    void prefersClusterWithFewerActiveStages() {
+        var busy = clusterScheduler(4, 16_000_000_000L, 10);
+        var scheduler = new FederatedStageScheduler(List.of(cluster("busy", "europe-west4", busy), cluster("local", "europe-west4", local)),
+                "europe-west4");
+        assertEquals("local", scheduler.selectCluster(executionStage, Set.of()).orElseThrow().getName());
+    }
+
+    @Test
+    void failsOverUnschedulableStage() throws Exception {
+        when(local.schedule(any())).thenReturn(CompletableFuture.failedFuture(new StageFailedException(StageFailureReason.UNSCHEDULABLE,
+                "pending")));
+        when(remote.schedule(any())).thenReturn(CompletableFuture.completedFuture(true));
+        var scheduler = new FederatedStageScheduler(List.of(cluster("local", "europe-west4", local), cluster("remote", "us-east1", remote)),
+                "europe-west4");
+        assertTrue(scheduler.schedule(executionStage).get());
+        verify(local).schedule(executionStage);
+        verify(remote).schedule(executionStage);
+    }
+
+    @Test
+    void doesNotFailOverOtherFailures() {
+        when(local.schedule(any())).thenReturn(CompletableFuture.failedFuture(new StageFailedException(StageFailureReason.APPLICATION,
+                "failed")));
+        var scheduler = new FederatedStageScheduler(List.of(cluster("local", "europe-west4", local), cluster("remote", "us-east1", remote)),
+                "europe-west4");
+        var exception = assertThrows(ExecutionException.class, () -> scheduler.schedule(executionStage).get());
+        assertEquals(StageFailureReason.APPLICATION, ((StageFailedException) exception.getCause()).getReason());
+        verify(remote, never()).schedule(any());
+    }
+
+    @Test
+    void failsWhenNoClusterCanScheduleStage() {
+        when(local.schedule(any())).thenReturn(CompletableFuture.failedFuture(new StageFailedException(StageFailureReason.UNSCHEDULABLE,
+                "pending")));
+        when(remote.schedule(any())).thenReturn(CompletableFuture.failedFuture(new StageFailedException(StageFailureReason.UNSCHEDULABLE,
+                "pending")));
+        var scheduler = new FederatedStageScheduler(List.of(cluster("local", "europe-west4", local), cluster("remote", "us-east1", remote)),
+                "europe-west4");
+        var exception = assertThrows(ExecutionException.class, () -> scheduler.schedule(executionStage).get());
+        assertEquals(StageFailureReason.UNSCHEDULABLE, ((StageFailedException) exception.getCause()).getReason());
+    }
+
+    private static FederatedStageScheduler.Cluster cluster(String name, String region, KubernetesStageScheduler scheduler) {
+        return new FederatedStageScheduler.Cluster(name, region, scheduler);
+    }
+
+    private static KubernetesStageScheduler clusterScheduler(double freeCpu, long freeMemory, int activeStages) {
+        var scheduler = mock(KubernetesStageScheduler.class);
+        var node = NodeCapacity.builder().name("node").freeCpuCores(freeCpu).freeMemoryBytes(freeMemory).build();
+        when(scheduler.freeCapacity()).thenReturn(ClusterCapacity.builder()
+                .freeCpuCores(freeCpu)
+                .freeMemoryBytes(freeMemory)
+                .addNodes(node)
+                .build());
+        when(scheduler.getActiveStageCount()).thenReturn(activeStages);
+        return scheduler;
+    }
+}
@@ -0,0 +1,93 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.hartwig.miniwe.miniwdl.ImmutableWorkflowDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.WorkflowDefinition;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.apps.DaemonSet;
+
+class ImagePrePullerTest {
+    private static final String TRANSFER_IMAGE = "cloud-sdk:1";
+
+    private KubernetesClientWrapper kubernetesClient;
+    private ImagePrePuller prePuller;
+    private ImmutableWorkflowDefinition workflow;
+
+    @BeforeEach
+    void setUp() {
+        kubernetesClient = mock(KubernetesClientWrapper.class);
+        var storageProvider = mock(StorageProvider.class);
+        when(storageProvider.transferImages()).thenReturn(Set.of(TRANSFER_IMAGE));
+        prePuller = new ImagePrePuller("default", kubernetesClient, storageProvider);
+        workflow = WorkflowDefinition.builder()
+                .name("wf")
+                .version("1.0.0")
+                .addStages(Stage.builder().name("align").image("bwa").version("2.0").build(),
+                        Stage.builder().name("sort").image("samtools").version("1.17").build(),
+                        Stage.builder().name("index").image("samtools").version("1.17").build())
+                .build();
+    }
+
+    @Test
+    void pullsEveryImageOnce() {
+        prePuller.update(List.of(workflow));
+        verify(kubernetesClient).apply(argThat((DaemonSet daemonSet) -> pulledImages(daemonSet).equals(List.of("bwa:2.0",
+                TRANSFER_IMAGE,
+                "samtools:1.17"))));
+    }
+
+    @Test
+    void onlyReplacesDaemonSetWhenImagesChange() {
+        prePuller.update(List.of(workflow));
+        prePuller.update(List.of(workflow, workflow.withName("other")));
+        verify(kubernetesClient, times(1)).apply(any());
+
+        prePuller.update(List.of());
+        verify(kubernetesClient).apply(argThat((DaemonSet daemonSet) -> pulledImages(daemonSet).equals(List.of(TRANSFER_IMAGE))));
+        verify(kubernetesClient, times(2)).apply(any());
+    }
+
+    @Test
+    void imagesSleepWithCopiedBusyboxInsteadOfAShell() {
+        var daemonSet = prePuller.daemonSet(prePuller.images(List.of(workflow)));
+        assertEquals(ImagePrePuller.DAEMON_SET_NAME, daemonSet.getMetadata().getName());
+        var podSpec = daemonSet.getSpec().getTemplate().getSpec();
+        assertEquals(1, podSpec.getInitContainers().size());
+        assertEquals(ImagePrePuller.BUSYBOX_IMAGE, podSpec.getInitContainers().get(0).getImage());
+        for (Container container : podSpec.getContainers()) {
+            assertEquals("/prepull/busybox", container.getCommand().get(0));
+            assertEquals("IfNotPresent", container.getImagePullPolicy());
+            assertEquals("/prepull", container.getVolumeMounts().get(0).getMountPath());
+        }
+        assertEquals(daemonSet.getSpec().getSelector().getMatchLabels(), daemonSet.getSpec().getTemplate().getMetadata().getLabels());
+    }
+
+    @Test
+    void podsTolerateEveryTaint() {
+        var podSpec = prePuller.daemonSet(prePuller.images(List.of(workflow))).getSpec().getTemplate().getSpec();
+        assertEquals(1, podSpec.getTolerations().size());
+        assertEquals("Exists", podSpec.getTolerations().get(0).getOperator());
+        assertNull(podSpec.getTolerations().get(0).getKey());
+    }
+
+    private static List<String> pulledImages(DaemonSet daemonSet) {
+        return daemonSet.getSpec().getTemplate().getSpec().getContainers().stream().map(Container::getImage).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,63 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.workflow.RunLease;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.EnableKubernetesMockClient;
+
+@EnableKubernetesMockClient(crud = true)
+class KubernetesLeaseStoreTest {
+    private static final String NAMESPACE = "test";
+
+    static KubernetesClient client;
+
+    private KubernetesLeaseStore store;
+
+    @BeforeEach
+    void setUp() {
+        client.leases().inNamespace(NAMESPACE).delete();
+        store = new KubernetesLeaseStore(client, NAMESPACE);
+    }
+
+    @Test
+    void leaseOfAnotherReplicaIsOnlyAcquiredOnceExpired() {
+        assertTrue(store.tryAcquire(lease("replica-a")));
+        assertFalse(store.tryAcquire(lease("replica-b")));
+
+        store.expire("wf-1-0-0-ex", "replica-a");
+        assertTrue(store.tryAcquire(lease("replica-b")));
+        assertEquals("replica-b", store.list().get(0).holder());
+        assertEquals(1, client.leases().inNamespace(NAMESPACE).withName("miniwe-wf-1-0-0-ex").get().getSpec().getLeaseTransitions());
+    }
+
+    @Test
+    void holderRenewsItsLease() {
+        assertTrue(store.tryAcquire(lease("replica-a")));
+        assertTrue(store.tryAcquire(lease("replica-a")));
+        assertEquals(0, client.leases().inNamespace(NAMESPACE).withName("miniwe-wf-1-0-0-ex").get().getSpec().getLeaseTransitions());
+
+        store.release("wf-1-0-0-ex", "replica-a");
+        assertTrue(store.list().isEmpty());
+    }
+
+    private static RunLease lease(String holder) {
+        return RunLease.builder()
+                .runName("wf-1-0-0-ex")
+                .holder(holder)
+                .executionDefinition(ExecutionDefinition.builder().name("ex").workflow("wf").version("1.0.0").build())
+                .renewTime(Instant.now())
+                .duration(Duration.ofMinutes(1))
+                .build();
+    }
+}
@@ -0,0 +1,161 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.StageFailureReason;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.ImmutableExecutionStage;
+import com.hartwig.miniwe.workflow.StageFailedException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.api.model.batch.v1.JobBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.EnableKubernetesMockClient;
+import io.fabric8.kubernetes.client.server.mock.KubernetesMockServer;
+
+@EnableKubernetesMockClient(crud = true)
+class KubernetesStageSchedulerTest {
+    private static final String NAMESPACE = "test";
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    static KubernetesMockServer server;
+    static KubernetesClient client;
+
+    private StorageProvider storageProvider;
+    private KubernetesStageScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        // the mock server is shared by the tests, and some of them leave resources behind
+        client.batch().v1().jobs().inNamespace(NAMESPACE).delete();
+        client.persistentVolumeClaims().inNamespace(NAMESPACE).delete();
+        // no pod ever runs against the mock server, so the containers of the storage provider are never executed
+        storageProvider = mock(StorageProvider.class, invocation -> invocation.getMethod().getReturnType().equals(Container.class)
+                ? new ContainerBuilder().withName("storage").withImage("busybox:1.36").build()
+                : Answers.RETURNS_DEFAULTS.answer(invocation));
+        scheduler = new KubernetesStageScheduler(NAMESPACE, new KubernetesClientWrapper(client), "default", storageProvider);
+    }
+
+    @Test
+    void cancellingStageDeletesItsResources() throws InterruptedException {
+        var stage = stage("cancelled");
+        var started = awaitStarted();
+        var result = scheduler.schedule(stage);
+        assertTrue(started.await(TIMEOUT.toSeconds(), TimeUnit.SECONDS));
+        assertEquals(1, client.batch().v1().jobs().inNamespace(NAMESPACE).list().getItems().size());
+        assertEquals(1, client.persistentVolumeClaims().inNamespace(NAMESPACE).list().getItems().size());
+
+        result.cancel(true);
+        awaitCondition(() -> scheduler.getActiveStageCount() == 0);
+        assertTrue(client.batch().v1().jobs().inNamespace(NAMESPACE).list().getItems().isEmpty());
+        assertTrue(client.persistentVolumeClaims().inNamespace(NAMESPACE).list().getItems().isEmpty());
+    }
+
+    @Test
+    void cancellingStageOfDetachedRunLeavesItsResources() throws InterruptedException {
+        var stage = stage("detached");
+        var started = awaitStarted();
+        var result = scheduler.schedule(stage);
+        assertTrue(started.await(TIMEOUT.toSeconds(), TimeUnit.SECONDS));
+
+        scheduler.detachStagesForRun(execution("detached"));
+        result.cancel(true);
+        awaitCondition(() -> scheduler.getActiveStageCount() == 0);
+        assertEquals(1, client.batch().v1().jobs().inNamespace(NAMESPACE).list().getItems().size());
+        assertEquals(1, client.persistentVolumeClaims().inNamespace(NAMESPACE).list().getItems().size());
+    }
+
+    @Test
+    void fusedPodIsNotRecordedInUsageHistory() throws Exception {
+        var history = StageUsageHistory.inMemory();
+        scheduler = new KubernetesStageScheduler(NAMESPACE, new KubernetesClientWrapper(client), "default", storageProvider, history);
+        var jobCompleter = Executors.newSingleThreadScheduledExecutor();
+        jobCompleter.scheduleWithFixedDelay(KubernetesStageSchedulerTest::completeJobs, 0, 100, TimeUnit.MILLISECONDS);
+        try {
+            var fused = ImmutableExecutionStage.copyOf(stage("fused"))
+                    .withFusedStages(Stage.builder().name("first").image("image").version("1.0.0").build());
+            assertTrue(scheduler.schedule(fused).get(TIMEOUT.toSeconds(), TimeUnit.SECONDS));
+            assertTrue(history.get(StageUsageHistory.outputKey(fused.stage())).isEmpty());
+
+            var single = stage("single");
+            assertTrue(scheduler.schedule(single).get(TIMEOUT.toSeconds(), TimeUnit.SECONDS));
+            assertTrue(history.get(StageUsageHistory.outputKey(single.stage())).isPresent());
+        } finally {
+            jobCompleter.shutdownNow();
+        }
+    }
+
+    @Test
+    void stageFailsWithoutStartingWhenAllStageThreadsAreInUse() throws InterruptedException {
+        scheduler = new KubernetesStageScheduler(NAMESPACE, new KubernetesClientWrapper(client), "default", storageProvider, null, null,
+                null, 2);
+        var first = scheduler.schedule(stage("first"));
+        var second = scheduler.schedule(stage("second"));
+        awaitCondition(() -> client.batch().v1().jobs().inNamespace(NAMESPACE).list().getItems().size() == 2);
+
+        var rejected = scheduler.schedule(stage("rejected"));
+        var failure = assertThrows(ExecutionException.class, () -> rejected.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS));
+        assertEquals(StageFailureReason.INFRASTRUCTURE, ((StageFailedException) failure.getCause()).getReason());
+        assertEquals(2, scheduler.getActiveStageCount());
+
+        first.cancel(true);
+        second.cancel(true);
+        awaitCondition(() -> scheduler.getActiveStageCount() == 0);
+    }
+
+    /**
+     * Marks all jobs as succeeded, like the job controller of a cluster once their pods completed.
+     */
+    private static void completeJobs() {
+        for (Job job : client.batch().v1().jobs().inNamespace(NAMESPACE).list().getItems()) {
+            if (job.getStatus() == null || job.getStatus().getSucceeded() == null) {
+                client.batch()
+                        .v1()
+                        .jobs()
+                        .resource(job)
+                        .editStatus(current -> new JobBuilder(current).withNewStatus().withSucceeded(1).endStatus().build());
+            }
+        }
+    }
+
+    private CountDownLatch awaitStarted() {
+        var started = new CountDownLatch(1);
+        scheduler.addStageStartedListener(executionStage -> started.countDown());
+        return started;
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        var deadline = Instant.now().plus(TIMEOUT);
+        while (!condition.getAsBoolean()) {
+            assertTrue(Instant.now().isBefore(deadline), "Condition was not met in time");
+            Thread.sleep(50);
+        }
+    }
+
+    private static ExecutionStage stage(String execution) {
+        return ExecutionStage.from(Stage.builder().name("stage").image("image").version("1.0.0").build(), execution(execution));
+    }
+
+    private static ExecutionDefinition execution(String name) {
+        return ExecutionDefinition.builder().name(name).workflow("wf").version("1.0.0").build();
+    }
+}
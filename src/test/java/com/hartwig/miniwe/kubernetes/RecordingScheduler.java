@@ -0,0 +1,38 @@
+package com.hartwig.miniwe.kubernetes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.StageScheduler;
+
+/**
+ * Delegate scheduler for the tests of decorating schedulers, which records the scheduled stages and leaves their futures to the test.
+ */
+class RecordingScheduler implements StageScheduler {
+    private final List<ExecutionStage> scheduled = new ArrayList<>();
+    private final List<CompletableFuture<Boolean>> results = new ArrayList<>();
+
+    @Override
+    public CompletableFuture<Boolean> schedule(final ExecutionStage executionStage) {
+        scheduled.add(executionStage);
+        var result = new CompletableFuture<Boolean>();
+        results.add(result);
+        return result;
+    }
+
+    CompletableFuture<Boolean> result(int index) {
+        return results.get(index);
+    }
+
+    void complete(int index, boolean success) {
+        results.get(index).complete(success);
+    }
+
+    List<String> scheduledRuns() {
+        var runs = new ArrayList<String>();
+        scheduled.forEach(stage -> runs.add(stage.runName()));
+        return runs;
+    }
+}
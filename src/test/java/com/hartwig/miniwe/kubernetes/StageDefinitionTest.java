@@ -3,6 +3,9 @@ package com.hartwig.miniwe.kubernetes;
 import static com.hartwig.miniwe.kubernetes.KubernetesStageScheduler.DEFAULT_STORAGE_SIZE_GI;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -12,6 +15,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import com.google.api.client.util.IOUtils;
@@ -24,7 +31,12 @@ import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
 import com.hartwig.miniwe.miniwdl.ImmutableExecutionDefinition;
 import com.hartwig.miniwe.miniwdl.ImmutableStage;
 import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.StageNodes;
+import com.hartwig.miniwe.miniwdl.StageResources;
+import com.hartwig.miniwe.miniwdl.StageStorage;
 import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.ImmutableExecutionStage;
+import com.hartwig.miniwe.workflow.StageTemplate;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -66,6 +78,209 @@ class StageDefinitionTest {
         assertEquals(readResourceAsString("simple-stage-with-input-k8s.yaml"), stageDefinition.toString());
     }
 
+    @Test
+    void stageWithResourcesTest() throws IOException {
+        var resources = StageResources.builder().memory("4Gi").ephemeralStorage("10Gi").build();
+        var observedUsage = StageUsage.builder().peakCpuCores(1.5).peakMemoryBytes(1024L * 1024 * 1024).build();
+        var executionStage = ExecutionStage.from(simpleStage.withResources(resources), simpleExecution);
+        var stageDefinition = new StageDefinition(executionStage,
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider,
+                Optional.of(observedUsage));
+        assertEquals(readResourceAsString("simple-stage-with-resources-k8s.yaml"), stageDefinition.toString());
+    }
+
+    @Test
+    void stageWithStorageTest() throws IOException {
+        var executionStage = ExecutionStage.from(simpleStage.withStorage(StageStorage.builder().ioIntensive(true).build()), simpleExecution);
+        var observedUsage = StageUsage.builder().peakOutputBytes(3L * 1024 * 1024 * 1024).build();
+        var stageDefinition = new StageDefinition(executionStage,
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider,
+                Optional.of(observedUsage));
+        assertEquals(readResourceAsString("simple-stage-with-storage-k8s.yaml"), stageDefinition.toString());
+    }
+
+    @Test
+    void speculativeAttemptHasSuffixedNames() {
+        var executionStage = ExecutionStage.from(simpleStage, simpleExecution);
+        var stageDefinition = new StageDefinition(executionStage,
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider,
+                Optional.empty(),
+                Optional.of("spec"));
+        assertEquals("wf-1-0-0-ex-simple-stage-spec", stageDefinition.getStageName());
+        assertTrue(stageDefinition.toString().contains("name: \"wf-1-0-0-ex-simple-stage-spec-cp\""));
+    }
+
+    @Test
+    void spotStageIsPlacedOnSpotNodesAndFailsOnDisruption() {
+        var stage = Stage.builder()
+                .from(simpleStage)
+                .nodes(StageNodes.builder().spot(true).putSelector("pool", "highmem").onDemandAfterPreemptions(2).build())
+                .build();
+        var yaml = new StageDefinition(ExecutionStage.from(stage, simpleExecution),
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider).toString();
+        assertTrue(yaml.contains("cloud.google.com/gke-spot: \"true\""));
+        assertTrue(yaml.contains("pool: \"highmem\""));
+        assertTrue(yaml.contains("effect: \"NoSchedule\""));
+        assertTrue(yaml.contains("action: \"FailJob\""));
+        // the on-demand job of the fallback keeps the selector but stays off spot nodes
+        assertTrue(yaml.contains("operator: \"DoesNotExist\""));
+    }
+
+    @Test
+    void stagesWithoutSpotNodesHaveNoPlacement() {
+        var yaml = new StageDefinition(ExecutionStage.from(simpleStage, simpleExecution),
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider).toString();
+        assertFalse(yaml.contains("nodeSelector"));
+        assertFalse(yaml.contains("podFailurePolicy"));
+    }
+
+    @Test
+    void gatherStageCopiesAllShardsOfScatteredInput() {
+        var executionStage = ExecutionStage.from(simpleStage.withInputStages("stage-a", "stage-b"),
+                simpleExecution,
+                Optional.empty(),
+                Set.of("stage-a"),
+                false);
+        var yaml = unwrap(new StageDefinition(executionStage,
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider).toString());
+        assertTrue(yaml.contains("gsutil -m rsync -r gs://bucket-name/stage-a /in/stage-a"));
+        assertTrue(yaml.contains("gsutil rsync gs://bucket-name/stage-b /in/stage-b"));
+    }
+
+    @Test
+    void inputsAreCopiedInParallelBySingleContainer() {
+        var stage = simpleStage.withInputStages("stage-a", "stage-b", "stage-c")
+                .withInputFiles(Map.of("stage-a", List.of("sample.bam"), "stage-b", List.of("sample.bam")));
+        var yaml = unwrap(new StageDefinition(ExecutionStage.from(stage, simpleExecution),
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider).toString());
+        assertTrue(yaml.contains("name: \"input-fetcher\""));
+        assertFalse(yaml.contains("-input\""));
+        assertTrue(yaml.contains("if [ $running -ge 8 ]; then wait -n || failed=1"));
+        // inputs that are copied at the same time must not share temporary files
+        assertTrue(yaml.contains("> /tmp/stage-a-wanted"));
+        assertTrue(yaml.contains("> /tmp/stage-b-wanted"));
+        assertTrue(yaml.contains("mountPath: \"/in/stage-c\""));
+    }
+
+    @Test
+    void packedStageUploadsChunksAndIndex() {
+        var executionStage = ExecutionStage.from(simpleStage.withStorage(StageStorage.builder().packed(true).build()), simpleExecution);
+        var yaml = unwrap(new StageDefinition(executionStage,
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider).toString());
+        assertTrue(yaml.contains("set -o pipefail"));
+        assertTrue(yaml.contains("tar -czf - -T $list | gsutil -q cp - gs://bucket-name/simple-stage/$chunk"));
+        assertTrue(yaml.contains("x-goog-meta-miniwe-unpacked-bytes:$size"));
+        assertTrue(yaml.contains("gs://bucket-name/simple-stage/.packed-index.tsv"));
+        assertFalse(yaml.contains("gsutil rsync /out"));
+    }
+
+    @Test
+    void onlyListedInputFilesAreExtracted() {
+        var stage = simpleStage.withInputStages("stage-a").withInputFiles(Map.of("stage-a", List.of("sample.bam", "qc/metrics.txt")));
+        var yaml = unwrap(new StageDefinition(ExecutionStage.from(stage, simpleExecution),
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider).toString());
+        assertTrue(yaml.contains("'./sample.bam' './qc/metrics.txt'"));
+        assertTrue(yaml.contains("tar -xzf - -C /in -T $list"));
+    }
+
+    @Test
+    void inputFilesMustBeRelativePathsOfInputStages() {
+        assertThrows(IllegalStateException.class, () -> simpleStage.withInputFiles(Map.of("stage-a", List.of("sample.bam"))));
+        var withInput = simpleStage.withInputStages("stage-a");
+        assertThrows(IllegalStateException.class, () -> withInput.withInputFiles(Map.of("stage-a", List.of("../secret"))));
+        assertThrows(IllegalStateException.class, () -> withInput.withInputFiles(Map.of("stage-a", List.of("a'; rm -rf /"))));
+    }
+
+    @Test
+    void streamingStagesGetStreamingContainers() {
+        var consumer = simpleStage.withInputStages("stage-a").withStreamingInputStages("stage-a");
+        var executionStage = ImmutableExecutionStage.copyOf(ExecutionStage.from(consumer,
+                simpleExecution,
+                Optional.empty(),
+                Set.of(),
+                true)).withAttempt(2)
+                .withStreamedInputAttempts(Map.of("stage-a", 3));
+        var yaml = new StageDefinition(executionStage, namespace, DEFAULT_STORAGE_SIZE_GI, serviceAccountName, storageProvider).toString();
+        assertTrue(yaml.contains("name: \"stage-a-stream\""));
+        assertTrue(yaml.contains("name: \"simple-stage-streamer\""));
+        assertFalse(yaml.contains("stage-a-input"));
+        assertTrue(yaml.contains("/stage-a.stream/3"));
+        assertTrue(yaml.contains("/simple-stage.stream/2"));
+    }
+
+    @Test
+    void streamingInputThatIsDoneIsCopied() {
+        var consumer = simpleStage.withInputStages("stage-a").withStreamingInputStages("stage-a");
+        var yaml = unwrap(new StageDefinition(ExecutionStage.from(consumer, simpleExecution),
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider).toString());
+        assertTrue(yaml.contains("stage-a-input"));
+        assertFalse(yaml.contains("stage-a-stream"));
+    }
+
+    @Test
+    void fusedStagesRunOneAfterTheOtherOnSharedVolume() {
+        var first = Stage.builder()
+                .from(simpleStage)
+                .name("stage-a")
+                .addInputStages("stage-0")
+                .storage(StageStorage.builder().checkpoint(true).build())
+                .build();
+        var last = simpleStage.withInputStages("stage-a");
+        var executionStage =
+                ExecutionStage.fused(List.of(StageTemplate.compile(first), StageTemplate.compile(last)), simpleExecution, Set.of());
+        var yaml = unwrap(new StageDefinition(executionStage,
+                namespace,
+                DEFAULT_STORAGE_SIZE_GI,
+                serviceAccountName,
+                storageProvider).toString());
+        assertEquals(1, yaml.split("kind: \"PersistentVolumeClaim\"", -1).length - 1);
+        assertTrue(yaml.contains("storage: \"2Gi\""));
+        assertTrue(yaml.contains("name: \"stage-0-input\""));
+        assertTrue(yaml.contains("name: \"wf-1-0-0-ex-stage-a\""));
+        assertTrue(yaml.contains("mountPath: \"/in/stage-a\"\n          name: \"wf-1-0-0-ex-simple-stage\"\n"
+                + "          subPath: \"stage-a\""));
+        // only the checkpointed output of the fused stage is copied to the bucket, next to the output of the last stage
+        assertTrue(yaml.contains("gsutil rsync /out gs://bucket-name/stage-a"));
+        assertTrue(yaml.contains("mountPath: \"/out\"\n          name: \"wf-1-0-0-ex-simple-stage\"\n          subPath: \"simple-stage\""));
+    }
+
+    /**
+     * Joins the lines of long strings that the YAML serializer wrapped.
+     */
+    private static String unwrap(String yaml) {
+        return yaml.replaceAll("\\\\\n\\s*\\\\?", "");
+    }
+
     private String readResourceAsString(String filename) throws IOException {
         try (var is = getClass().getClassLoader().getResourceAsStream(filename)) {
             return CharStreams.toString(new InputStreamReader(is));
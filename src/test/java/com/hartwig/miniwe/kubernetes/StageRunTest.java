@@ -0,0 +1,156 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static com.hartwig.miniwe.kubernetes.KubernetesStageScheduler.DEFAULT_STORAGE_SIZE_GI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.StageFailureReason;
+import com.hartwig.miniwe.miniwdl.StageNodes;
+import com.hartwig.miniwe.workflow.ExecutionStage;
+import com.hartwig.miniwe.workflow.StageFailedException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+
+class StageRunTest {
+    private KubernetesClientWrapper client;
+    private List<Job> createdJobs;
+
+    @BeforeEach
+    void setUp() {
+        client = mock(KubernetesClientWrapper.class);
+        createdJobs = new ArrayList<>();
+        doAnswer(invocation -> createdJobs.add(invocation.getArgument(0))).when(client).create(any(Job.class));
+    }
+
+    @Test
+    void failedStageThatWasNotPreemptedFails() {
+        var stageRun = stageRun(StageNodes.builder().spot(true).build());
+        stageRun.start();
+        when(client.jobResult(any())).thenReturn(Optional.of(false));
+        assertEquals(Optional.of(false), stageRun.poll());
+        assertEquals(1, createdJobs.size());
+    }
+
+    @Test
+    void preemptedStageIsStartedAgainOnOnDemandNodes() {
+        var stageRun = stageRun(StageNodes.builder().spot(true).onDemandAfterPreemptions(2).maxPreemptions(3).build());
+        stageRun.start();
+        when(client.jobResult(any())).thenReturn(Optional.of(false));
+        when(client.isPreempted(any())).thenReturn(true);
+
+        assertEquals(Optional.empty(), stageRun.poll());
+        assertTrue(isOnSpotNodes(createdJobs.get(1)));
+        assertEquals(Optional.empty(), stageRun.poll());
+        assertEquals(Optional.empty(), stageRun.poll());
+        assertEquals(4, createdJobs.size());
+        assertFalse(isOnSpotNodes(createdJobs.get(2)));
+        assertFalse(isOnSpotNodes(createdJobs.get(3)));
+        assertEquals(3, stageRun.getPreemptions());
+
+        var exception = assertThrows(StageFailedException.class, stageRun::poll);
+        assertEquals(StageFailureReason.PREEMPTED, exception.getReason());
+        verify(client, times(4)).create(any(Job.class));
+    }
+
+    @Test
+    void succeededStageIsNotCheckedForPreemption() {
+        var stageRun = stageRun(StageNodes.builder().spot(true).build());
+        stageRun.start();
+        when(client.jobResult(any())).thenReturn(Optional.of(true));
+        assertEquals(Optional.of(true), stageRun.poll());
+        verify(client, never()).isPreempted(any());
+    }
+
+    @Test
+    void timeoutStartsOnceTheStageContainerStarted() {
+        var stageRun = stageRun(StageNodes.builder().build());
+        stageRun.start();
+        when(client.jobResult(any())).thenReturn(Optional.empty());
+        when(client.containerStartTime(any(), any())).thenReturn(Optional.empty());
+        assertEquals(Optional.empty(), stageRun.poll());
+
+        when(client.containerStartTime(any(), any())).thenReturn(Optional.of(Instant.now().minus(Duration.ofHours(1))));
+        var exception = assertThrows(StageFailedException.class, stageRun::poll);
+        assertEquals(StageFailureReason.TIMEOUT, exception.getReason());
+    }
+
+    @Test
+    void preemptedStageKeepsItsDeadline() {
+        var stageRun = stageRun(StageNodes.builder().spot(true).build());
+        stageRun.start();
+        when(client.jobResult(any())).thenReturn(Optional.empty());
+        when(client.containerStartTime(any(), any())).thenReturn(Optional.of(Instant.now().minus(Duration.ofMinutes(10))));
+        assertEquals(Optional.empty(), stageRun.poll());
+
+        when(client.jobResult(any())).thenReturn(Optional.of(false));
+        when(client.isPreempted(any())).thenReturn(true);
+        assertEquals(Optional.empty(), stageRun.poll());
+
+        // the container of the new job only just started, but the timeout still counts from the first one
+        when(client.jobResult(any())).thenReturn(Optional.empty());
+        when(client.containerStartTime(any(), any())).thenReturn(Optional.of(Instant.now()));
+        assertEquals(Optional.empty(), stageRun.poll());
+        verify(client, times(1)).containerStartTime(any(), any());
+    }
+
+    @Test
+    void resourcesOfPreemptedJobAreGoneBeforeTheyAreCreatedAgain() {
+        var stageRun = stageRun(StageNodes.builder().spot(true).build());
+        stageRun.start();
+        when(client.jobResult(any())).thenReturn(Optional.of(false));
+        when(client.isPreempted(any())).thenReturn(true);
+        assertEquals(Optional.empty(), stageRun.poll());
+
+        var inOrder = inOrder(client);
+        inOrder.verify(client).deleteIfExists(any(PersistentVolumeClaim.class));
+        inOrder.verify(client).waitUntilDeleted(any(PersistentVolumeClaim.class), anyLong(), any());
+        inOrder.verify(client).create(any(PersistentVolumeClaim.class));
+        inOrder.verify(client).deleteIfExists(any(PersistentVolumeClaim.class));
+        inOrder.verify(client).waitUntilDeleted(any(PersistentVolumeClaim.class), anyLong(), any());
+        inOrder.verify(client).create(any(PersistentVolumeClaim.class));
+    }
+
+    private StageRun stageRun(StageNodes nodes) {
+        var stage = Stage.builder().name("stage").image("image").version("1.0.0").nodes(nodes).build();
+        var execution = ExecutionDefinition.builder().name("ex").workflow("wf").version("1.0.0").build();
+        var storageProvider = mock(StorageProvider.class);
+        when(storageProvider.exitStorageContainer(any(), any(), anyBoolean(), any())).thenReturn(new ContainerBuilder().withName("cp")
+                .build());
+        return new StageDefinition(ExecutionStage.from(stage, execution),
+                "namespace",
+                DEFAULT_STORAGE_SIZE_GI,
+                "serviceAccount",
+                storageProvider).createStageRun(client);
+    }
+
+    private static boolean isOnSpotNodes(Job job) {
+        var nodeSelector = job.getSpec().getTemplate().getSpec().getNodeSelector();
+        return nodeSelector != null && nodeSelector.containsKey(StageDefinition.SPOT_NODE_LABEL);
+    }
+}
@@ -0,0 +1,48 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StageUsageHistoryTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void processesSharingTheFileKeepEachOthersUsage() throws IOException {
+        var path = directory.resolve("history.json");
+        var first = StageUsageHistory.load(path);
+        var second = StageUsageHistory.load(path);
+        first.record("bwa:1.0", StageUsage.builder().addRuntimeSeconds(10L).build());
+        second.record("bwa:1.0", StageUsage.builder().addRuntimeSeconds(20L).build());
+        second.record("gatk:1.0", StageUsage.builder().addRuntimeSeconds(30L).build());
+        first.save();
+        second.save();
+
+        var saved = StageUsageHistory.load(path);
+        assertEquals(List.of(10L, 20L), saved.get("bwa:1.0").orElseThrow().runtimeSeconds());
+        assertEquals(List.of(30L), saved.get("gatk:1.0").orElseThrow().runtimeSeconds());
+    }
+
+    @Test
+    void savingTwiceDoesNotRecordUsageTwice() throws IOException {
+        var path = directory.resolve("history.json");
+        var history = StageUsageHistory.load(path);
+        history.record("bwa:1.0", StageUsage.builder().addRuntimeSeconds(10L).build());
+        history.save();
+        history.save();
+
+        assertEquals(List.of(10L), StageUsageHistory.load(path).get("bwa:1.0").orElseThrow().runtimeSeconds());
+        try (var files = Files.list(directory)) {
+            var names = files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+            assertEquals(List.of("history.json", "history.json.lock"), names);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.hartwig.miniwe.kubernetes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.junit.jupiter.api.Test;
+
+class StageUsageTest {
+    @Test
+    void p95RequiresMinimumNumberOfRuntimes() {
+        var usage = StageUsage.builder().addRuntimeSeconds(10L, 20L).build();
+        assertEquals(Optional.empty(), usage.p95RuntimeSeconds());
+    }
+
+    @Test
+    void p95OfRuntimes() {
+        var runtimes = LongStream.rangeClosed(1, 20).boxed().collect(Collectors.toList());
+        var usage = StageUsage.builder().addAllRuntimeSeconds(runtimes).build();
+        assertEquals(Optional.of(19L), usage.p95RuntimeSeconds());
+    }
+
+    @Test
+    void mergeKeepsMostRecentRuntimes() {
+        StageUsage usage = StageUsage.builder().build();
+        for (long runtime = 1; runtime <= StageUsage.MAX_RUNTIME_SAMPLES + 5; runtime++) {
+            usage = usage.merge(StageUsage.builder().addRuntimeSeconds(runtime).peakCpuCores(runtime).build());
+        }
+        assertEquals(StageUsage.MAX_RUNTIME_SAMPLES, usage.runtimeSeconds().size());
+        assertEquals(6L, usage.runtimeSeconds().get(0));
+        assertEquals(StageUsage.MAX_RUNTIME_SAMPLES + 5.0, usage.peakCpuCores());
+    }
+}
@@ -0,0 +1,92 @@
+package com.hartwig.miniwe.kubernetes.load;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.api.model.batch.v1.JobBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+
+/**
+ * Stands in for the job controller of a real cluster: marks every job as succeeded once it exists for a fixed delay. Copy jobs get
+ * their own delay.
+ */
+class FakeJobController implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FakeJobController.class);
+    private static final String COPY_JOB_SUFFIX = "-cp";
+    private static final long RECONCILE_INTERVAL_MILLIS = 200;
+
+    private final KubernetesClient client;
+    private final String namespace;
+    private final Duration stageDelay;
+    private final Duration copyDelay;
+    private final Map<String, Instant> firstSeenByJob = new ConcurrentHashMap<>();
+    private final AtomicInteger completedJobs = new AtomicInteger();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    FakeJobController(final KubernetesClient client, final String namespace, final Duration stageDelay, final Duration copyDelay) {
+        this.client = client;
+        this.namespace = namespace;
+        this.stageDelay = stageDelay;
+        this.copyDelay = copyDelay;
+    }
+
+    void start() {
+        executor.scheduleWithFixedDelay(this::reconcile, 0, RECONCILE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    int getCompletedJobs() {
+        return completedJobs.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void reconcile() {
+        try {
+            var now = Instant.now();
+            for (Job job : client.batch().v1().jobs().inNamespace(namespace).list().getItems()) {
+                if (job.getStatus() != null && job.getStatus().getSucceeded() != null) {
+                    continue;
+                }
+                var name = job.getMetadata().getName();
+                var firstSeen = firstSeenByJob.computeIfAbsent(name, unused -> now);
+                var delay = name.endsWith(COPY_JOB_SUFFIX) ? copyDelay : stageDelay;
+                if (now.isAfter(firstSeen.plus(delay))) {
+                    complete(name);
+                }
+            }
+        } catch (KubernetesClientException e) {
+            LOGGER.warn("Could not list jobs", e);
+        }
+    }
+
+    private void complete(String name) {
+        try {
+            client.batch()
+                    .v1()
+                    .jobs()
+                    .inNamespace(namespace)
+                    .withName(name)
+                    .editStatus(job -> new JobBuilder(job).withNewStatus().withSucceeded(1).endStatus().build());
+            completedJobs.incrementAndGet();
+        } catch (KubernetesClientException e) {
+            // the job was deleted in the meantime, e.g. because its run was cancelled
+            LOGGER.debug("Could not complete job [{}]", name, e);
+        }
+        // the next attempt of a stage creates a job with the same name
+        firstSeenByJob.remove(name);
+    }
+}
@@ -0,0 +1,83 @@
+package com.hartwig.miniwe.kubernetes.load;
+
+import java.util.List;
+import java.util.Set;
+
+import com.hartwig.miniwe.kubernetes.StageInput;
+import com.hartwig.miniwe.kubernetes.StorageProvider;
+
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+
+/**
+ * Storage provider whose containers do nothing, since no pod ever runs against the mock API server.
+ */
+class FakeStorageProvider implements StorageProvider {
+    private static final String IMAGE = "busybox:1.36";
+
+    @Override
+    public Container initStorageContainer(final String runName, final String inputStage, final List<String> files,
+            final String volumeName) {
+        return container(volumeName + "-input");
+    }
+
+    @Override
+    public Container initGatherStorageContainer(final String runName, final String inputStage, final String volumeName) {
+        return container(volumeName + "-input");
+    }
+
+    @Override
+    public Container initInputFetcherContainer(final String runName, final List<StageInput> inputs, final int parallelism) {
+        return container("input-fetcher");
+    }
+
+    @Override
+    public Container exitStorageContainer(final String runName, final String outputPath, final boolean packed, final String volumeName) {
+        return container(volumeName + "-output");
+    }
+
+    @Override
+    public Container streamingOutputContainer(final String runName, final String outputStage, final int attempt,
+            final String volumeName) {
+        return container(volumeName + "-streamer");
+    }
+
+    @Override
+    public Container streamingInputContainer(final String runName, final String inputStage, final int attempt, final String volumeName) {
+        return container(volumeName + "-stream");
+    }
+
+    @Override
+    public void resetStream(final String runName, final String outputStage, final int attempt) {
+    }
+
+    @Override
+    public void stopStream(final String runName, final String outputStage, final int attempt) {
+    }
+
+    @Override
+    public void endStream(final String runName, final String outputStage, final int attempt, final boolean success) {
+    }
+
+    @Override
+    public void deleteStreams(final String runName, final String outputStage) {
+    }
+
+    @Override
+    public long outputSizeBytes(final String runName, final String outputPath) {
+        return 0;
+    }
+
+    @Override
+    public void copyOutput(final String fromRunName, final String toRunName, final String outputPath) {
+    }
+
+    @Override
+    public Set<String> transferImages() {
+        return Set.of(IMAGE);
+    }
+
+    private static Container container(String name) {
+        return new ContainerBuilder().withName(name).withImage(IMAGE).withCommand("true").build();
+    }
+}
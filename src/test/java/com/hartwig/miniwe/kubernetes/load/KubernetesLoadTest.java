@@ -0,0 +1,196 @@
+package com.hartwig.miniwe.kubernetes.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.hartwig.miniwe.ExecutorUtil;
+import com.hartwig.miniwe.kubernetes.FairShareStageScheduler;
+import com.hartwig.miniwe.kubernetes.KubernetesClientWrapper;
+import com.hartwig.miniwe.kubernetes.KubernetesStageScheduler;
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.WorkflowDefinition;
+import com.hartwig.miniwe.workflow.WorkflowGraph;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.client.ConfigBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientBuilder;
+import io.fabric8.kubernetes.client.server.mock.EnableKubernetesMockClient;
+import io.fabric8.kubernetes.client.server.mock.KubernetesMockServer;
+
+/**
+ * Runs many concurrent runs through the kubernetes stage scheduler against the fabric8 mock API server in CRUD mode, with a fake job
+ * controller that completes the jobs. Reports throughput, API calls per endpoint, threads and heap usage. Only runs with the
+ * {@code load-test} profile, sizes are set with system properties, e.g. {@code -Dload.runs=500}.
+ */
+@EnableKubernetesMockClient(crud = true)
+class KubernetesLoadTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KubernetesLoadTest.class);
+    private static final String NAMESPACE = "load-test";
+    private static final String CONTROLLER_USER_AGENT = "fake-job-controller";
+
+    private static final int RUNS = Integer.getInteger("load.runs", 200);
+    private static final int PARALLEL_STAGES = Integer.getInteger("load.parallelStages", 5);
+    // stays below the 128 stage threads of the kubernetes stage scheduler
+    private static final int STAGE_SLOTS = Integer.getInteger("load.stageSlots", 96);
+    private static final Duration STAGE_DELAY = Duration.ofMillis(Long.getLong("load.stageDelayMillis", 1000));
+    private static final Duration COPY_DELAY = Duration.ofMillis(Long.getLong("load.copyDelayMillis", 500));
+    private static final long TIMEOUT_MINUTES = Long.getLong("load.timeoutMinutes", 30);
+    private static final Optional<Integer> MAX_API_CALLS_PER_STAGE = Optional.ofNullable(Integer.getInteger("load.maxApiCallsPerStage"));
+    private static final Optional<Integer> MAX_THREADS = Optional.ofNullable(Integer.getInteger("load.maxThreads"));
+
+    static KubernetesMockServer server;
+    static KubernetesClient client;
+
+    @Test
+    void concurrentRunsAllSucceed() throws Exception {
+        var workflow = workflow();
+        var stagesPerRun = workflow.stages().size();
+        var controllerClient = new KubernetesClientBuilder().withConfig(new ConfigBuilder(client.getConfiguration()).withUserAgent(
+                CONTROLLER_USER_AGENT).build()).build();
+        var runExecutor = ExecutorUtil.createExecutorService(RUNS, "workflow-run-thread-%d");
+        var sampler = Executors.newSingleThreadScheduledExecutor();
+        var usage = new UsageSampler();
+        try (var controller = new FakeJobController(controllerClient, NAMESPACE, STAGE_DELAY, COPY_DELAY)) {
+            controller.start();
+            var kubernetesScheduler =
+                    new KubernetesStageScheduler(NAMESPACE, new KubernetesClientWrapper(client), "default", new FakeStorageProvider());
+            var scheduler = new FairShareStageScheduler(kubernetesScheduler,
+                    STAGE_SLOTS,
+                    FairShareStageScheduler.ShareBy.WORKFLOW,
+                    Map.of(),
+                    Duration.ofHours(1));
+            var workflowGraph = new WorkflowGraph(workflow, runExecutor);
+            sampler.scheduleAtFixedRate(usage::sample, 0, 500, TimeUnit.MILLISECONDS);
+
+            LOGGER.info("Starting {} runs of {} stages with {} stage slots", RUNS, stagesPerRun, STAGE_SLOTS);
+            var startedAt = System.nanoTime();
+            var runs = new ArrayList<CompletableFuture<Boolean>>();
+            for (int i = 0; i < RUNS; i++) {
+                runs.add(workflowGraph.getOrCreateRun(scheduler, Set.of(), execution(i)).start());
+            }
+            CompletableFuture.allOf(runs.toArray(CompletableFuture[]::new)).get(TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            var elapsedSeconds = (System.nanoTime() - startedAt) / 1e9;
+            usage.sample();
+
+            var succeededRuns = runs.stream().filter(CompletableFuture::join).count();
+            var stages = RUNS * stagesPerRun;
+            var requests = requestsByEndpoint();
+            var engineRequests = requests.getOrDefault("engine", Map.of()).values().stream().mapToInt(Integer::intValue).sum();
+            LOGGER.info("Completed {} of {} runs with {} stages in {} seconds: {} stages per second",
+                    succeededRuns,
+                    RUNS,
+                    stages,
+                    String.format("%.1f", elapsedSeconds),
+                    String.format("%.1f", stages / elapsedSeconds));
+            LOGGER.info("Engine made {} API calls, {} per stage: {}",
+                    engineRequests,
+                    String.format("%.1f", (double) engineRequests / stages),
+                    requests.getOrDefault("engine", Map.of()));
+            LOGGER.info("Fake controller made {} API calls and completed {} jobs",
+                    requests.getOrDefault("controller", Map.of()).values().stream().mapToInt(Integer::intValue).sum(),
+                    controller.getCompletedJobs());
+            LOGGER.info("Peak of {} threads, {} stage threads, {} MiB heap used",
+                    usage.peakThreads.get(),
+                    usage.peakStageThreads.get(),
+                    usage.peakHeapBytes.get() / (1024 * 1024));
+
+            assertEquals(RUNS, succeededRuns);
+            assertEquals(0, kubernetesScheduler.getActiveStageCount());
+            MAX_API_CALLS_PER_STAGE.ifPresent(max -> assertTrue(engineRequests <= (long) max * stages,
+                    String.format("Engine made %s API calls for %s stages", engineRequests, stages)));
+            MAX_THREADS.ifPresent(max -> assertTrue(usage.peakThreads.get() <= max,
+                    String.format("Engine used %s threads", usage.peakThreads.get())));
+        } finally {
+            sampler.shutdownNow();
+            runExecutor.shutdownNow();
+            controllerClient.close();
+        }
+    }
+
+    /**
+     * Parallel stages that all feed into one final stage.
+     */
+    private static WorkflowDefinition workflow() {
+        var parallelStages = IntStream.range(0, PARALLEL_STAGES)
+                .mapToObj(i -> Stage.builder().name("stage-" + i).image("busybox").version("1.36").build())
+                .collect(Collectors.toList());
+        var gather = Stage.builder()
+                .name("gather")
+                .image("busybox")
+                .version("1.36")
+                .inputStages(parallelStages.stream().map(Stage::name).collect(Collectors.toList()))
+                .build();
+        return WorkflowDefinition.builder().name("load").version("1.0.0").addAllStages(parallelStages).addStages(gather).build();
+    }
+
+    private static ExecutionDefinition execution(int index) {
+        return ExecutionDefinition.builder().name("run-" + index).workflow("load").version("1.0.0").build();
+    }
+
+    /**
+     * Counts the requests the mock server received per client and endpoint, e.g. {@code GET jobs} or {@code WATCH jobs}.
+     */
+    private static Map<String, Map<String, Integer>> requestsByEndpoint() throws InterruptedException {
+        var requests = new TreeMap<String, Map<String, Integer>>();
+        var total = server.getRequestCount();
+        for (int i = 0; i < total; i++) {
+            var request = server.takeRequest(1, TimeUnit.SECONDS);
+            if (request == null) {
+                break;
+            }
+            var source = CONTROLLER_USER_AGENT.equals(request.getHeader("User-Agent")) ? "controller" : "engine";
+            requests.computeIfAbsent(source, unused -> new TreeMap<>())
+                    .merge(endpoint(request.getMethod(), request.getPath()), 1, Integer::sum);
+        }
+        return requests;
+    }
+
+    private static String endpoint(String method, String path) {
+        var query = path.contains("?") ? path.substring(path.indexOf('?')) : "";
+        var segments = List.of(path.replaceFirst("\\?.*", "").split("/"));
+        var namespaceIndex = segments.indexOf("namespaces");
+        var resource = namespaceIndex >= 0 && segments.size() > namespaceIndex + 2
+                ? String.join("/", segments.subList(namespaceIndex + 2, segments.size()))
+                : String.join("/", segments);
+        // drop resource names, keep sub resources such as status
+        resource = resource.replaceFirst("^([a-z]+)/[^/]+", "$1");
+        return String.format("%s %s", query.contains("watch=true") ? "WATCH" : method, resource);
+    }
+
+    private static class UsageSampler {
+        private final AtomicInteger peakThreads = new AtomicInteger();
+        private final AtomicInteger peakStageThreads = new AtomicInteger();
+        private final AtomicLong peakHeapBytes = new AtomicLong();
+
+        void sample() {
+            var threads = Thread.getAllStackTraces().keySet();
+            peakThreads.accumulateAndGet(threads.size(), Math::max);
+            peakStageThreads.accumulateAndGet((int) threads.stream()
+                    .filter(thread -> thread.getName().startsWith("stage-run-thread"))
+                    .count(), Math::max);
+            peakHeapBytes.accumulateAndGet(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), Math::max);
+        }
+    }
+}
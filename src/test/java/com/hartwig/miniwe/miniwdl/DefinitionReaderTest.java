@@ -1,12 +1,15 @@
 package com.hartwig.miniwe.miniwdl;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 
+import com.fasterxml.jackson.databind.exc.ValueInstantiationException;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -50,4 +53,12 @@ class DefinitionReaderTest {
                 .build();
         assertEquals(expected, result);
     }
-}
\ No newline at end of file
+
+    @Test
+    void streamingInputMustBeInputStage() {
+        var workflow = "name: \"wf\"\nversion: \"1.0.0\"\nstages:\n  - name: \"consumer\"\n    image: \"image\"\n    version: \"1.0.0\"\n"
+                + "    streamingInputStages:\n      - \"producer\"";
+        assertThrows(ValueInstantiationException.class,
+                () -> definitionReader.readWorkflow(new ByteArrayInputStream(workflow.getBytes(StandardCharsets.UTF_8))));
+    }
+}
@@ -0,0 +1,145 @@
+package com.hartwig.miniwe.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import com.hartwig.miniwe.MiniWorkflowEngine;
+import com.hartwig.miniwe.kubernetes.ConcurrencyPools;
+import com.hartwig.miniwe.kubernetes.ImagePullMetrics;
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.WorkflowDefinition;
+import com.hartwig.miniwe.workflow.StageScheduler;
+import com.hartwig.miniwe.workflow.WorkflowGraph;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RunEventServerTest {
+    private static final String RUN_NAME = "wf-1-0-0-ex";
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private MiniWorkflowEngine engine;
+    private CompletableFuture<Boolean> stage;
+    private WorkflowGraph.WorkflowGraphExecution run;
+    private RunEventServer server;
+
+    @BeforeEach
+    void setUp() {
+        var workflow = WorkflowDefinition.builder()
+                .name("wf")
+                .version("1.0.0")
+                .addStages(Stage.builder().name("simple-stage").image("eu.gcr.io/hmf-build/image").version("1.0.0").build())
+                .build();
+        var stageScheduler = mock(StageScheduler.class);
+        stage = new CompletableFuture<>();
+        when(stageScheduler.schedule(any())).thenReturn(stage);
+        run = new WorkflowGraph(workflow, ForkJoinPool.commonPool()).getOrCreateRun(stageScheduler,
+                Set.of(),
+                ExecutionDefinition.builder().name("ex").workflow("wf").version("1.0.0").build());
+        engine = mock(MiniWorkflowEngine.class);
+        when(engine.findRun(any())).thenReturn(Optional.empty());
+        when(engine.findRun(RUN_NAME)).thenReturn(Optional.of(run));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void streamsEventsOfRunUntilItIsDone() throws Exception {
+        server = startServer(null, 8);
+        var done = run.start();
+        var response = client.send(request("/runs/" + RUN_NAME + "/events"), HttpResponse.BodyHandlers.ofInputStream());
+        assertEquals("text/event-stream", response.headers().firstValue("Content-Type").orElseThrow());
+
+        stage.complete(true);
+        assertTrue(done.get(10, TimeUnit.SECONDS));
+        String body;
+        try (var stream = response.body()) {
+            body = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(body.contains("event: stage_succeeded\ndata: {"), body);
+        assertTrue(body.contains("\"stageName\":\"simple-stage\""), body);
+        assertTrue(body.contains("\"runName\":\"" + RUN_NAME + "\""), body);
+    }
+
+    @Test
+    void unknownRunIsNotFound() throws Exception {
+        server = startServer(null, 8);
+        assertEquals(404, client.send(request("/runs/unknown/events"), HttpResponse.BodyHandlers.discarding()).statusCode());
+        assertEquals(404, client.send(request("/runs/" + RUN_NAME), HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    @Test
+    void refusesEventStreamsBeyondLimit() throws Exception {
+        server = startServer(null, 0);
+        run.start();
+        assertEquals(503, client.send(request("/runs/" + RUN_NAME + "/events"), HttpResponse.BodyHandlers.discarding()).statusCode());
+        stage.complete(true);
+    }
+
+    @Test
+    void servesConcurrencyPoolMetrics() throws Exception {
+        var pools = new ConcurrencyPools(Map.of("license", 2));
+        pools.acquire("stage", Set.of("license"));
+        server = startServer(pools, 8);
+
+        var response = client.send(request("/metrics"), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().contains("miniwe_concurrency_pool_limit{pool=\"license\"} 2\n"));
+        assertTrue(response.body().contains("miniwe_concurrency_pool_in_use{pool=\"license\"} 1\n"));
+    }
+
+    @Test
+    void servesImagePullMetrics() throws Exception {
+        var imagePulls = new ImagePullMetrics();
+        imagePulls.record("bwa:2.0", Duration.ofSeconds(30));
+        imagePulls.record("bwa:2.0", Duration.ofSeconds(10));
+        server = new RunEventServer(0, engine, null, imagePulls, 8);
+        server.start();
+
+        var response = client.send(request("/metrics"), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().contains("miniwe_image_pull_seconds_sum{image=\"bwa:2.0\"} 40.0\n"));
+        assertTrue(response.body().contains("miniwe_image_pull_seconds_count{image=\"bwa:2.0\"} 2\n"));
+    }
+
+    @Test
+    void metricsAreNotFoundWithoutPools() throws Exception {
+        server = startServer(null, 8);
+        assertEquals(404, client.send(request("/metrics"), HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    private RunEventServer startServer(ConcurrencyPools pools, int maxEventStreams) throws IOException {
+        var eventServer = new RunEventServer(0, engine, pools, null, maxEventStreams);
+        eventServer.start();
+        return eventServer;
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + path)).timeout(Duration.ofSeconds(10))
+                .build();
+    }
+}
@@ -3,10 +3,13 @@ package com.hartwig.miniwe.workflow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
 import com.hartwig.miniwe.miniwdl.ImmutableExecutionDefinition;
 import com.hartwig.miniwe.miniwdl.ImmutableStage;
+import com.hartwig.miniwe.miniwdl.Scatter;
 import com.hartwig.miniwe.miniwdl.Stage;
 
 import org.junit.jupiter.api.BeforeEach;
@@ -46,4 +49,15 @@ class ExecutionStageTest {
 
         assertEquals("1 --flag", executionStage.stage().entrypoint().get());
     }
-}
\ No newline at end of file
+
+    @Test
+    void shardParametersGetReplaced() {
+        var scatter = Scatter.builder().addValues("chr1", "chr2").build();
+        var scatteredStage = simpleStage.withScatter(scatter).withArguments("-index ${shard_index} -chromosome ${shard}");
+        var executionStage = ExecutionStage.from(scatteredStage, simpleExecution, Optional.of(1), Set.of(), false);
+
+        assertEquals("-index 1 -chromosome chr2", executionStage.stage().arguments().get());
+        assertEquals("wf-1-0-0-ex-simple-stage-1", ExecutionStage.getName(executionStage));
+        assertEquals("simple-stage/1", ExecutionStage.getOutputPath(executionStage));
+    }
+}
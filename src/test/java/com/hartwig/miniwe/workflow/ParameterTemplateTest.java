@@ -0,0 +1,42 @@
+package com.hartwig.miniwe.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class ParameterTemplateTest {
+    @Test
+    void rendersAllPlaceholders() {
+        var template = ParameterTemplate.compile("${a}-x ${b} ${a}");
+        assertEquals(Set.of("a", "b"), template.parameters());
+        assertEquals("1-x 2 1", template.render(Map.of("a", "1", "b", "2")));
+    }
+
+    @Test
+    void valuesAreNotRenderedAgain() {
+        var template = ParameterTemplate.compile("${a} ${b}");
+        assertEquals("${b} 2", template.render(Map.of("a", "${b}", "b", "2")));
+    }
+
+    @Test
+    void templateWithoutPlaceholdersIsUnchanged() {
+        var template = ParameterTemplate.compile("--flag $HOME {x}");
+        assertEquals(Set.of(), template.parameters());
+        assertEquals("--flag $HOME {x}", template.render(Map.of()));
+    }
+
+    @Test
+    void rejectsMalformedPlaceholders() {
+        assertThrows(IllegalArgumentException.class, () -> ParameterTemplate.compile("-a ${a"));
+        assertThrows(IllegalArgumentException.class, () -> ParameterTemplate.compile("-a ${}"));
+    }
+
+    @Test
+    void rejectsMissingValues() {
+        assertThrows(IllegalArgumentException.class, () -> ParameterTemplate.compile("${a} ${b}").render(Map.of("a", "1")));
+    }
+}
@@ -0,0 +1,92 @@
+package com.hartwig.miniwe.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class RunEventPublisherTest {
+    private final RunEventPublisher publisher = new RunEventPublisher(Runnable::run);
+
+    @Test
+    void pendingEventsAreConflatedPerStage() throws InterruptedException {
+        var subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        publisher.publish(event("stage-a", RunEvent.Type.STAGE_SCHEDULED));
+        publisher.publish(event("stage-b", RunEvent.Type.STAGE_SCHEDULED));
+        publisher.publish(event("stage-a", RunEvent.Type.STAGE_STARTED));
+        publisher.publish(event("stage-a", RunEvent.Type.STAGE_SUCCEEDED));
+        publisher.close();
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of("stage-b:STAGE_SCHEDULED", "stage-a:STAGE_SUCCEEDED"), subscriber.events);
+    }
+
+    @Test
+    void requestedEventsAreNotConflated() throws InterruptedException {
+        var subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        publisher.publish(event("stage-a", RunEvent.Type.STAGE_SCHEDULED));
+        publisher.publish(event("stage-a", RunEvent.Type.STAGE_SUCCEEDED));
+        publisher.close();
+
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of("stage-a:STAGE_SCHEDULED", "stage-a:STAGE_SUCCEEDED"), subscriber.events);
+    }
+
+    @Test
+    void lateSubscriberReceivesLatestEventPerStage() throws InterruptedException {
+        publisher.publish(event("stage-a", RunEvent.Type.STAGE_CACHED));
+        publisher.publish(event("stage-b", RunEvent.Type.STAGE_SCHEDULED));
+        publisher.publish(event("stage-b", RunEvent.Type.STAGE_FAILED));
+        publisher.close();
+
+        var subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(10);
+
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of("stage-a:STAGE_CACHED", "stage-b:STAGE_FAILED"), subscriber.events);
+    }
+
+    private static RunEvent event(String stageName, RunEvent.Type type) {
+        return RunEvent.builder().runName("run").stageName(stageName).type(type).timestamp(Instant.now()).build();
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<RunEvent> {
+        private final List<String> events = new ArrayList<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final RunEvent item) {
+            events.add(item.stageName() + ":" + item.type());
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.hartwig.miniwe.workflow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RunLeaseManagerTest {
+    private static final Duration SHORT_LEASE = Duration.ofMillis(50);
+    private static final Duration LONG_LEASE = Duration.ofMinutes(1);
+
+    private InMemoryLeaseStore leaseStore;
+    private List<ExecutionDefinition> takenOver;
+    private List<String> lost;
+
+    @BeforeEach
+    void setUp() {
+        leaseStore = new InMemoryLeaseStore();
+        takenOver = new CopyOnWriteArrayList<>();
+        lost = new CopyOnWriteArrayList<>();
+    }
+
+    @Test
+    void onlyOneReplicaCanClaimRun() {
+        var first = new RunLeaseManager(leaseStore, "first", LONG_LEASE);
+        var second = new RunLeaseManager(leaseStore, "second", LONG_LEASE);
+        assertTrue(first.claim(execution("a")));
+        assertTrue(first.claim(execution("a")));
+        assertFalse(second.claim(execution("a")));
+        assertEquals(Optional.of("first"), second.findHolder(WorkflowUtil.getRunName(execution("a"))));
+
+        first.release(execution("a"));
+        assertTrue(second.claim(execution("a")));
+    }
+
+    @Test
+    void takesOverRunsOfDeadReplica() throws InterruptedException {
+        var dead = new RunLeaseManager(leaseStore, "dead", SHORT_LEASE);
+        dead.claim(execution("a"));
+        Thread.sleep(SHORT_LEASE.toMillis() * 2);
+
+        var alive = startedManager("alive", LONG_LEASE);
+        alive.renewAndRebalance();
+        assertEquals(List.of(execution("a")), takenOver);
+        assertEquals(Set.of(WorkflowUtil.getRunName(execution("a"))), alive.getOwnedRuns());
+    }
+
+    @Test
+    void takesOverOnlyFairShare() throws InterruptedException {
+        var dead = new RunLeaseManager(leaseStore, "dead", SHORT_LEASE);
+        List.of("a", "b", "c", "d").forEach(name -> dead.claim(execution(name)));
+        var other = new RunLeaseManager(leaseStore, "other", LONG_LEASE);
+        Thread.sleep(SHORT_LEASE.toMillis() * 2);
+        other.claim(execution("e"));
+        other.claim(execution("f"));
+
+        // six runs over two live replicas, the dead replica no longer counts
+        var alive = startedManager("alive", LONG_LEASE);
+        alive.renewAndRebalance();
+        assertEquals(3, takenOver.size());
+        assertEquals(3, alive.getOwnedRuns().size());
+    }
+
+    @Test
+    void reportsLostLeases() throws InterruptedException {
+        var slow = new RunLeaseManager(leaseStore, "slow", SHORT_LEASE);
+        slow.claim(execution("a"));
+        Thread.sleep(SHORT_LEASE.toMillis() * 2);
+        assertTrue(new RunLeaseManager(leaseStore, "fast", LONG_LEASE).claim(execution("a")));
+
+        slow.start(takenOver::add, lost::add);
+        slow.renewAndRebalance();
+        assertEquals(List.of(WorkflowUtil.getRunName(execution("a"))), lost);
+        assertTrue(slow.getOwnedRuns().isEmpty());
+    }
+
+    @Test
+    void closingLeavesRunsToOtherReplicas() {
+        var stopping = new RunLeaseManager(leaseStore, "stopping", LONG_LEASE);
+        stopping.claim(execution("a"));
+        stopping.close();
+        stopping.release(execution("a"));
+
+        var alive = startedManager("alive", LONG_LEASE);
+        alive.renewAndRebalance();
+        assertEquals(List.of(execution("a")), takenOver);
+    }
+
+    @Test
+    void doesNotTakeOverAbandonedRunAgain() {
+        var stopping = new RunLeaseManager(leaseStore, "stopping", LONG_LEASE);
+        stopping.claim(execution("a"));
+        stopping.close();
+
+        var alive = startedManager("alive", LONG_LEASE);
+        alive.renewAndRebalance();
+        alive.abandon(execution("a"));
+        alive.renewAndRebalance();
+        assertEquals(List.of(execution("a")), takenOver);
+        assertTrue(alive.getOwnedRuns().isEmpty());
+        assertEquals(1, leaseStore.list().size());
+    }
+
+    @Test
+    void doesNotTakeOverRunsIfDisabled() {
+        var stopping = new RunLeaseManager(leaseStore, "stopping", LONG_LEASE);
+        stopping.claim(execution("a"));
+        stopping.close();
+
+        var single = new RunLeaseManager(leaseStore, "single", LONG_LEASE, false);
+        single.start(takenOver::add, lost::add);
+        single.claim(execution("b"));
+        single.renewAndRebalance();
+        assertTrue(takenOver.isEmpty());
+        assertEquals(Set.of(WorkflowUtil.getRunName(execution("b"))), single.getOwnedRuns());
+    }
+
+    private RunLeaseManager startedManager(String replicaId, Duration leaseDuration) {
+        var manager = new RunLeaseManager(leaseStore, replicaId, leaseDuration);
+        manager.start(takenOver::add, lost::add);
+        return manager;
+    }
+
+    private static ExecutionDefinition execution(String name) {
+        return ExecutionDefinition.builder().name(name).workflow("wf").version("1.0.0").build();
+    }
+}
@@ -6,28 +6,47 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import com.hartwig.miniwe.miniwdl.DefinitionReader;
 import com.hartwig.miniwe.miniwdl.ExecutionDefinition;
 import com.hartwig.miniwe.miniwdl.ImmutableExecutionDefinition;
 import com.hartwig.miniwe.miniwdl.ImmutableWorkflowDefinition;
+import com.hartwig.miniwe.miniwdl.RetryPolicy;
+import com.hartwig.miniwe.miniwdl.Scatter;
 import com.hartwig.miniwe.miniwdl.Stage;
+import com.hartwig.miniwe.miniwdl.StageFailureReason;
 import com.hartwig.miniwe.miniwdl.WorkflowDefinition;
 
 import org.junit.jupiter.api.BeforeEach;
@@ -80,15 +99,16 @@ class WorkflowGraphTest {
         var executorService = ForkJoinPool.commonPool();
         var workflowGraph = new WorkflowGraph(simpleWorkflow, executorService);
 
-        var stageStates = new ArrayList<Map<String, WorkflowGraph.StageRunningState>>();
+        var recorder = new StageStateRecorder();
 
         var stageScheduler = mock(StageScheduler.class);
         when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(true));
 
         var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
-        run.subscribe(stageStates::add);
+        run.subscribe(recorder);
 
         assertTrue(run.start().get());
+        var stageStates = recorder.awaitVersion(run.getStageStateVersion());
         assertEquals(stageStates.size(), 3);
         assertEquals(Map.of("simple-stage", WorkflowGraph.StageRunningState.WAITING), stageStates.get(0));
         assertEquals(Map.of("simple-stage", WorkflowGraph.StageRunningState.RUNNING), stageStates.get(1));
@@ -123,15 +143,16 @@ class WorkflowGraphTest {
     void testSimpleWorkflowFailsSubscription() throws ExecutionException, InterruptedException {
         var workflowGraph = new WorkflowGraph(simpleWorkflow, ForkJoinPool.commonPool());
 
-        var stageStates = new ArrayList<Map<String, WorkflowGraph.StageRunningState>>();
+        var recorder = new StageStateRecorder();
 
         var stageScheduler = mock(StageScheduler.class);
         when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(false));
 
         var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
-        run.subscribe(stageStates::add);
+        run.subscribe(recorder);
 
         assertFalse(run.start().get());
+        var stageStates = recorder.awaitVersion(run.getStageStateVersion());
         assertEquals(stageStates.size(), 3);
         assertEquals(Map.of("simple-stage", WorkflowGraph.StageRunningState.WAITING), stageStates.get(0));
         assertEquals(Map.of("simple-stage", WorkflowGraph.StageRunningState.RUNNING), stageStates.get(1));
@@ -194,6 +215,26 @@ class WorkflowGraphTest {
         assertEquals(Map.of("simple-stage", WorkflowGraph.StageRunningState.IGNORED), run.getStageStateView());
     }
 
+    @Test
+    void cancellingRunCancelsScheduledStages() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(simpleWorkflow, ForkJoinPool.commonPool());
+
+        var stageScheduler = mock(StageScheduler.class);
+        var scheduled = new CompletableFuture<Boolean>();
+        var scheduledLatch = new CountDownLatch(1);
+        doAnswer(b -> {
+            scheduledLatch.countDown();
+            return scheduled;
+        }).when(stageScheduler).schedule(any());
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        var future = run.start();
+        assertTrue(scheduledLatch.await(5, TimeUnit.SECONDS));
+        run.cancel();
+        assertFalse(future.get());
+        assertTrue(scheduled.isCancelled());
+    }
+
     @Test
     void ActiveRunCanBeDeleted() throws ExecutionException, InterruptedException {
         var workflowGraph = new WorkflowGraph(simpleWorkflow, ForkJoinPool.commonPool());
@@ -215,6 +256,26 @@ class WorkflowGraphTest {
         assertEquals(Map.of("simple-stage", WorkflowGraph.StageRunningState.IGNORED), run.getStageStateView());
     }
 
+    @Test
+    void stagesCanOnlyUseWorkflowParameters() {
+        var stage = Stage.builder().name("stage").image("image").version("1.0.0").arguments("-sample ${sample} -ref ${ref}").build();
+        var workflow = simpleWorkflow.withParams("sample").withStages(stage);
+        assertThrows(IllegalArgumentException.class, () -> new WorkflowGraph(workflow, ForkJoinPool.commonPool()));
+        assertThrows(IllegalArgumentException.class,
+                () -> new WorkflowGraph(workflow.withStages(stage.withArguments("${shard}")), ForkJoinPool.commonPool()));
+        new WorkflowGraph(workflow.withStages(stage.withArguments("${shard}").withScatter(Scatter.builder().count(2).build())),
+                ForkJoinPool.commonPool());
+    }
+
+    @Test
+    void executionMustSetAllWorkflowParameters() {
+        var stage = Stage.builder().name("stage").image("image").version("1.0.0").arguments("-sample ${sample}").build();
+        var workflowGraph = new WorkflowGraph(simpleWorkflow.withParams("sample").withStages(stage), ForkJoinPool.commonPool());
+        assertThrows(IllegalArgumentException.class,
+                () -> workflowGraph.getOrCreateRun(mock(StageScheduler.class), Set.of(), simpleExecution));
+        workflowGraph.checkExecution(simpleExecution.withParams(Map.of("sample", "s1")));
+    }
+
     @Test
     void runThatDoesNotExistCannotBeDeleted() {
         var workflowGraph = new WorkflowGraph(simpleWorkflow, ForkJoinPool.commonPool());
@@ -240,6 +301,50 @@ class WorkflowGraphTest {
         verifyNoMoreInteractions(stageScheduler);
     }
 
+    @Test
+    void stagesAreOnlyScheduledOnceTheCacheIsKnown() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenReturn(CompletableFuture.completedFuture(true));
+        var cachedStages = new CompletableFuture<Set<String>>();
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, cachedStages, simpleExecution);
+        var done = run.start();
+        assertEquals(WorkflowGraph.StageRunningState.WAITING, run.getStageStateView().get("stage-a"));
+        verifyNoMoreInteractions(stageScheduler);
+
+        cachedStages.complete(Set.of("stage-a"));
+        assertTrue(done.get());
+        verify(stageScheduler).schedule(argThat(stage -> stage.stage().name().equals("stage-b")));
+        verifyNoMoreInteractions(stageScheduler);
+    }
+
+    @Test
+    void runCanBeCancelledWhileTheCacheIsProbed() throws Exception {
+        var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, new CompletableFuture<>(), simpleExecution);
+        var done = run.start();
+        run.cancel();
+        assertFalse(done.get(10, TimeUnit.SECONDS));
+        verifyNoMoreInteractions(stageScheduler);
+    }
+
+    @Test
+    void failedCacheProbeFailsRun() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler,
+                CompletableFuture.<Set<String>>failedFuture(new IllegalStateException("storage unavailable")),
+                simpleExecution);
+        assertFalse(run.start().get());
+        assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.IGNORED, "stage-b", WorkflowGraph.StageRunningState.IGNORED),
+                run.getStageStateView());
+        verifyNoMoreInteractions(stageScheduler);
+    }
+
     @Test
     void sameRunCannotBeStartedTwice() throws ExecutionException, InterruptedException {
         var workflowGraph = new WorkflowGraph(simpleWorkflow, ForkJoinPool.commonPool());
@@ -342,12 +447,13 @@ class WorkflowGraphTest {
         })).when(stageScheduler).schedule(argThat(stage -> stage.stage().name().equals("stage-d")));
 
         var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
-        var stageStates = new ArrayList<Map<String, WorkflowGraph.StageRunningState>>();
-        run.subscribe(stageStates::add);
+        var recorder = new StageStateRecorder();
+        run.subscribe(recorder);
 
         var result = run.start();
         assertEquals(true, result.get());
 
+        var stageStates = recorder.awaitVersion(run.getStageStateVersion());
         assertEquals(6, stageStates.size());
         assertTrue(stageStates.get(0).values().stream().allMatch(state -> state == WorkflowGraph.StageRunningState.WAITING));
         assertTrue(stageStates.get(1).values().stream().allMatch(state -> state == WorkflowGraph.StageRunningState.RUNNING));
@@ -361,15 +467,16 @@ class WorkflowGraphTest {
     void testLinearWorkflowSuccess() throws ExecutionException, InterruptedException {
         var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool());
 
-        var stageStates = new ArrayList<Map<String, WorkflowGraph.StageRunningState>>();
+        var recorder = new StageStateRecorder();
 
         var stageScheduler = mock(StageScheduler.class);
         when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(true));
 
         var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
-        run.subscribe(stageStates::add);
+        run.subscribe(recorder);
 
         assertTrue(run.start().get());
+        var stageStates = recorder.awaitVersion(run.getStageStateVersion());
         assertEquals(5, stageStates.size());
         assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.WAITING, "stage-b", WorkflowGraph.StageRunningState.WAITING),
                 stageStates.get(0));
@@ -387,15 +494,16 @@ class WorkflowGraphTest {
     void testLinearWorkflowCached() throws ExecutionException, InterruptedException {
         var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool());
 
-        var stageStates = new ArrayList<Map<String, WorkflowGraph.StageRunningState>>();
+        var recorder = new StageStateRecorder();
 
         var stageScheduler = mock(StageScheduler.class);
         when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(true));
 
         var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of("stage-a"), simpleExecution);
-        run.subscribe(stageStates::add);
+        run.subscribe(recorder);
 
         assertTrue(run.start().get());
+        var stageStates = recorder.awaitVersion(run.getStageStateVersion());
         assertEquals(3, stageStates.size());
         assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.SUCCESS, "stage-b", WorkflowGraph.StageRunningState.WAITING),
                 stageStates.get(0));
@@ -409,15 +517,16 @@ class WorkflowGraphTest {
     void testLinearWorkflowFails() throws ExecutionException, InterruptedException {
         var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool());
 
-        var stageStates = new ArrayList<Map<String, WorkflowGraph.StageRunningState>>();
+        var recorder = new StageStateRecorder();
 
         var stageScheduler = mock(StageScheduler.class);
         when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(false));
 
         var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
-        run.subscribe(stageStates::add);
+        run.subscribe(recorder);
 
         assertFalse(run.start().get());
+        var stageStates = recorder.awaitVersion(run.getStageStateVersion());
         assertEquals(3, stageStates.size());
         assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.WAITING, "stage-b", WorkflowGraph.StageRunningState.WAITING),
                 stageStates.get(0));
@@ -426,4 +535,491 @@ class WorkflowGraphTest {
         assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.FAILED, "stage-b", WorkflowGraph.StageRunningState.IGNORED),
                 stageStates.get(2));
     }
-}
\ No newline at end of file
+
+    @Test
+    void linearStagesAreFusedIntoOneStage() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(WorkflowDefinition.builder().from(linearWorkflow).fuseLinearStages(true).build(),
+                ForkJoinPool.commonPool());
+        var recorder = new StageStateRecorder();
+        var scheduled = new CopyOnWriteArrayList<ExecutionStage>();
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(invocation -> {
+            scheduled.add(invocation.getArgument(0));
+            return CompletableFuture.completedFuture(true);
+        });
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        run.subscribe(recorder);
+
+        assertTrue(run.start().get());
+        assertEquals(1, scheduled.size());
+        assertEquals("stage-b", scheduled.get(0).stage().name());
+        assertEquals(List.of("stage-a"), scheduled.get(0).fusedStages().stream().map(Stage::name).collect(Collectors.toList()));
+        var stageStates = recorder.awaitVersion(run.getStageStateVersion());
+        assertEquals(3, stageStates.size());
+        assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.RUNNING, "stage-b", WorkflowGraph.StageRunningState.RUNNING),
+                stageStates.get(1));
+        assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.SUCCESS, "stage-b", WorkflowGraph.StageRunningState.SUCCESS),
+                stageStates.get(2));
+    }
+
+    @Test
+    void fusedStageIsNotRunWhenItsConsumerIsCached() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(WorkflowDefinition.builder().from(linearWorkflow).fuseLinearStages(true).build(),
+                ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of("stage-b"), simpleExecution);
+
+        assertTrue(run.start().get());
+        verifyNoMoreInteractions(stageScheduler);
+        assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.SUCCESS, "stage-b", WorkflowGraph.StageRunningState.SUCCESS),
+                run.getStageStateView());
+    }
+
+    @Test
+    void failedFusedStagesAllFail() throws ExecutionException, InterruptedException {
+        var stageA = Stage.builder().name("stage-a").image("eu.gcr.io/hmf-build/image").version("1.0.0").build();
+        var stageB = Stage.builder().from(stageA).name("stage-b").addInputStages("stage-a").build();
+        var stageC = Stage.builder().from(stageA).name("stage-c").addInputStages("stage-b").build();
+        var stageD = Stage.builder().from(stageA).name("stage-d").addInputStages("stage-b").build();
+        var workflow = WorkflowDefinition.builder()
+                .from(simpleWorkflow)
+                .stages(List.of(stageA, stageB, stageC, stageD))
+                .fuseLinearStages(true)
+                .build();
+        var scheduled = new CopyOnWriteArrayList<ExecutionStage>();
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(invocation -> {
+            scheduled.add(invocation.getArgument(0));
+            return CompletableFuture.completedFuture(false);
+        });
+
+        var run = new WorkflowGraph(workflow, ForkJoinPool.commonPool()).getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+
+        assertFalse(run.start().get());
+        // stage-b has two consumers, so only stage-a is fused into it
+        assertEquals(1, scheduled.size());
+        assertEquals(List.of(stageA), scheduled.get(0).fusedStages());
+        assertEquals(Map.of("stage-a",
+                WorkflowGraph.StageRunningState.FAILED,
+                "stage-b",
+                WorkflowGraph.StageRunningState.FAILED,
+                "stage-c",
+                WorkflowGraph.StageRunningState.IGNORED,
+                "stage-d",
+                WorkflowGraph.StageRunningState.IGNORED), run.getStageStateView());
+    }
+
+    @Test
+    void lateSubscriberReceivesCurrentState() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(true));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertTrue(run.start().get());
+
+        var recorder = new StageStateRecorder();
+        run.subscribe(recorder);
+        var stageStates = recorder.awaitVersion(run.getStageStateVersion());
+        assertEquals(1, stageStates.size());
+        assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.SUCCESS, "stage-b", WorkflowGraph.StageRunningState.SUCCESS),
+                stageStates.get(0));
+    }
+
+    @Test
+    void rejectedNotificationDoesNotStopLaterNotifications() throws ExecutionException, InterruptedException {
+        var rejectNext = new AtomicBoolean(false);
+        Executor notificationExecutor = task -> {
+            if (rejectNext.getAndSet(false)) {
+                throw new RejectedExecutionException("busy");
+            }
+            ForkJoinPool.commonPool().execute(task);
+        };
+        var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool(), notificationExecutor);
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(true));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        var recorder = new StageStateRecorder();
+        rejectNext.set(true);
+        run.subscribe(recorder);
+        assertTrue(run.start().get());
+
+        var stageStates = recorder.awaitVersion(run.getStageStateVersion());
+        assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.SUCCESS, "stage-b", WorkflowGraph.StageRunningState.SUCCESS),
+                stageStates.get(stageStates.size() - 1));
+        assertEquals(run.getStageStateView(), stageStates.get(stageStates.size() - 1));
+    }
+
+    @Test
+    void stateChangesOnlyContainTransitionedStages() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(true));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        var recorder = new StageStateRecorder();
+        run.subscribe(recorder);
+
+        assertTrue(run.start().get());
+        recorder.awaitVersion(run.getStageStateVersion());
+        var changes = recorder.getChanges();
+        assertEquals(4, run.getStageStateVersion());
+        assertEquals(Map.of("stage-a", WorkflowGraph.StageRunningState.RUNNING), changes.get(1).changes());
+        assertEquals(Map.of("stage-b", WorkflowGraph.StageRunningState.SUCCESS), changes.get(4).changes());
+    }
+
+    @Test
+    void dotFormatIsCachedUntilStateChanges() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(simpleWorkflow, ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenReturn(CompletableFuture.completedFuture(true));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        var waitingDot = run.toDotFormat();
+        assertTrue(waitingDot == run.toDotFormat());
+        assertTrue(run.start().get());
+        assertEquals("strict digraph G {\n" + "  1 [ label=\"simple-stage\" color=\"green\" ];\n" + "}\n", run.toDotFormat());
+    }
+
+    @Test
+    void runPublishesTypedEvents() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(linearWorkflow, ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(false));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertFalse(run.start().get());
+
+        var events = new ArrayList<RunEvent>();
+        var done = new CountDownLatch(1);
+        run.events().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(final RunEvent item) {
+                events.add(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, events.size());
+        assertEquals("stage-a", events.get(0).stageName());
+        assertEquals(RunEvent.Type.STAGE_FAILED, events.get(0).type());
+        assertEquals("stage-b", events.get(1).stageName());
+        assertEquals(RunEvent.Type.STAGE_IGNORED, events.get(1).type());
+    }
+
+    @Test
+    void infrastructureFailureIsRetried() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(retryingWorkflow(), ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        var nodeLost = new StageFailedException(StageFailureReason.INFRASTRUCTURE, "node lost");
+        when(stageScheduler.schedule(any())).thenReturn(CompletableFuture.failedFuture(nodeLost))
+                .thenReturn(CompletableFuture.completedFuture(true));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertTrue(run.start().get());
+        verify(stageScheduler, times(2)).schedule(any());
+        assertEquals(Map.of("simple-stage", WorkflowGraph.StageRunningState.SUCCESS), run.getStageStateView());
+    }
+
+    @Test
+    void applicationFailureIsNotRetriedByDefault() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(retryingWorkflow(), ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenReturn(CompletableFuture.completedFuture(false));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertFalse(run.start().get());
+        verify(stageScheduler, times(1)).schedule(any());
+    }
+
+    @Test
+    void stageFailsAfterLastAttempt() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(retryingWorkflow(), ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        var timedOut = new StageFailedException(StageFailureReason.TIMEOUT, "timed out");
+        when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.failedFuture(timedOut));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertFalse(run.start().get());
+        verify(stageScheduler, times(3)).schedule(any());
+        assertEquals(Map.of("simple-stage", WorkflowGraph.StageRunningState.FAILED), run.getStageStateView());
+    }
+
+    @Test
+    void scatteredStageRunsAllShardsWithinParallelLimit() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(scatterGatherWorkflow(), ForkJoinPool.commonPool());
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var scheduled = new CopyOnWriteArrayList<ExecutionStage>();
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(invocation -> {
+            scheduled.add(invocation.getArgument(0));
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(() -> {
+                running.decrementAndGet();
+                return true;
+            });
+        });
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertTrue(run.start().get());
+        assertEquals(11, scheduled.size());
+        assertTrue(maxRunning.get() <= 3);
+        var shardArguments = scheduled.stream()
+                .filter(stage -> stage.shard().isPresent())
+                .map(stage -> stage.stage().arguments().orElseThrow())
+                .collect(Collectors.toSet());
+        assertEquals(IntStream.range(0, 10).mapToObj(shard -> "-shard " + shard).collect(Collectors.toSet()), shardArguments);
+        var gather = scheduled.get(scheduled.size() - 1);
+        assertEquals("gather", gather.stage().name());
+        assertEquals(Set.of("scatter"), gather.scatteredInputStages());
+    }
+
+    @Test
+    void shardsOfAllScatteredStagesStayWithinRunLimit() throws ExecutionException, InterruptedException {
+        var stages = IntStream.range(0, 2)
+                .mapToObj(index -> Stage.builder()
+                        .name("scatter-" + index)
+                        .image("eu.gcr.io/hmf-build/image")
+                        .version("1.0.0")
+                        .scatter(Scatter.builder().count(WorkflowGraph.MAX_RUNNING_SHARDS).build())
+                        .build())
+                .collect(Collectors.toList());
+        var workflowGraph = new WorkflowGraph(simpleWorkflow.withStages(stages), ForkJoinPool.commonPool());
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(invocation -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(() -> {
+                running.decrementAndGet();
+                return true;
+            }, CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS));
+        });
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertTrue(run.start().get());
+        verify(stageScheduler, times(2 * WorkflowGraph.MAX_RUNNING_SHARDS)).schedule(any());
+        assertTrue(maxRunning.get() <= WorkflowGraph.MAX_RUNNING_SHARDS);
+    }
+
+    @Test
+    void cachedShardsAreNotScheduledAgain() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(scatterGatherWorkflow(), ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(true));
+
+        var cached = IntStream.range(0, 9).mapToObj(shard -> "scatter/" + shard).collect(Collectors.toSet());
+        var run = workflowGraph.getOrCreateRun(stageScheduler, cached, simpleExecution);
+        assertTrue(run.start().get());
+        verify(stageScheduler).schedule(argThat(stage -> stage.shard().equals(Optional.of(9))));
+        verify(stageScheduler, times(2)).schedule(any());
+    }
+
+    @Test
+    void failedShardFailsScatteredStage() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(scatterGatherWorkflow(), ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(true));
+        doReturn(CompletableFuture.completedFuture(false)).when(stageScheduler)
+                .schedule(argThat(stage -> stage.shard().equals(Optional.of(1))));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertFalse(run.start().get());
+        assertEquals(Map.of("scatter", WorkflowGraph.StageRunningState.FAILED, "gather", WorkflowGraph.StageRunningState.IGNORED),
+                run.getStageStateView());
+    }
+
+    private WorkflowDefinition scatterGatherWorkflow() {
+        var scatter = Stage.builder()
+                .name("scatter")
+                .image("eu.gcr.io/hmf-build/image")
+                .version("1.0.0")
+                .arguments("-shard ${shard_index}")
+                .scatter(Scatter.builder().count(10).maxParallel(3).build())
+                .build();
+        var gather = Stage.builder().name("gather").image("eu.gcr.io/hmf-build/image").version("1.0.0").addInputStages("scatter").build();
+        return simpleWorkflow.withStages(scatter, gather);
+    }
+
+    @Test
+    void streamingConsumerStartsWhileProducerRuns() throws ExecutionException, InterruptedException {
+        var producer = Stage.builder().name("producer").image("eu.gcr.io/hmf-build/image").version("1.0.0").build();
+        var consumer = Stage.builder()
+                .name("consumer")
+                .image("eu.gcr.io/hmf-build/image")
+                .version("1.0.0")
+                .addInputStages("producer")
+                .addStreamingInputStages("producer")
+                .build();
+        var workflowGraph = new WorkflowGraph(simpleWorkflow.withStages(producer, consumer), ForkJoinPool.commonPool());
+        var consumerScheduled = new CountDownLatch(1);
+        var producerStreams = new AtomicBoolean();
+        var stageScheduler = mock(StageScheduler.class);
+        doAnswer(invocation -> {
+            producerStreams.set(((ExecutionStage) invocation.getArgument(0)).streamOutput());
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return consumerScheduled.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            });
+        }).when(stageScheduler).schedule(argThat(stage -> stage.stage().name().equals("producer")));
+        doAnswer(invocation -> {
+            consumerScheduled.countDown();
+            return CompletableFuture.completedFuture(true);
+        }).when(stageScheduler).schedule(argThat(stage -> stage.stage().name().equals("consumer")));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertTrue(run.start().get());
+        assertTrue(producerStreams.get());
+    }
+
+    @Test
+    void consumerOfFailedProducerAttemptIsStartedAgainWithTheNextAttempt() throws ExecutionException, InterruptedException {
+        var retry = RetryPolicy.builder().attempts(2).initialBackoffSeconds(0).build();
+        var workflowGraph = new WorkflowGraph(streamingWorkflow(retry), ForkJoinPool.commonPool());
+        var consumerAttempts = new CopyOnWriteArrayList<ExecutionStage>();
+        var firstConsumerAttempt = new CompletableFuture<Boolean>();
+        var consumerScheduled = List.of(new CountDownLatch(1), new CountDownLatch(1));
+        var producerAttempts = new AtomicInteger();
+        var stageScheduler = mock(StageScheduler.class);
+        doAnswer(invocation -> {
+            var attempt = producerAttempts.getAndIncrement();
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    consumerScheduled.get(attempt).await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // the first attempt fails once the consumer streams it, the second one succeeds
+                if (attempt == 0) {
+                    throw new StageFailedException(StageFailureReason.TIMEOUT, "timed out");
+                }
+                return true;
+            });
+        }).when(stageScheduler).schedule(argThat(stage -> stage.stage().name().equals("producer")));
+        doAnswer(invocation -> {
+            consumerAttempts.add(invocation.getArgument(0));
+            consumerScheduled.get(consumerAttempts.size() - 1).countDown();
+            return consumerAttempts.size() == 1 ? firstConsumerAttempt : CompletableFuture.completedFuture(true);
+        }).when(stageScheduler).schedule(argThat(stage -> stage.stage().name().equals("consumer")));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertTrue(run.start().get());
+        assertTrue(firstConsumerAttempt.isCancelled());
+        assertEquals(List.of(Map.of("producer", 1), Map.of("producer", 2)),
+                consumerAttempts.stream().map(ExecutionStage::streamedInputAttempts).collect(Collectors.toList()));
+        verify(stageScheduler).deleteStreams(any(), eq("producer"));
+    }
+
+    @Test
+    void consumerIsCancelledWhenStreamedProducerFails() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(streamingWorkflow(null), ForkJoinPool.commonPool());
+        var consumerAttempt = new CompletableFuture<Boolean>();
+        var consumerScheduled = new CountDownLatch(1);
+        var stageScheduler = mock(StageScheduler.class);
+        doAnswer(invocation -> CompletableFuture.supplyAsync(() -> {
+            try {
+                consumerScheduled.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        })).when(stageScheduler).schedule(argThat(stage -> stage.stage().name().equals("producer")));
+        doAnswer(invocation -> {
+            consumerScheduled.countDown();
+            return consumerAttempt;
+        }).when(stageScheduler).schedule(argThat(stage -> stage.stage().name().equals("consumer")));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of(), simpleExecution);
+        assertFalse(run.start().get());
+        assertTrue(consumerAttempt.isCancelled());
+        assertEquals(Map.of("producer", WorkflowGraph.StageRunningState.FAILED, "consumer", WorkflowGraph.StageRunningState.IGNORED),
+                run.getStageStateView());
+    }
+
+    @Test
+    void cachedProducerIsNotStreamed() throws ExecutionException, InterruptedException {
+        var workflowGraph = new WorkflowGraph(streamingWorkflow(null), ForkJoinPool.commonPool());
+        var stageScheduler = mock(StageScheduler.class);
+        when(stageScheduler.schedule(any())).thenAnswer(stage -> CompletableFuture.completedFuture(true));
+
+        var run = workflowGraph.getOrCreateRun(stageScheduler, Set.of("producer"), simpleExecution);
+        assertTrue(run.start().get());
+        verify(stageScheduler).schedule(argThat(stage -> stage.stage().name().equals("consumer")
+                && stage.streamedInputAttempts().isEmpty()));
+        verify(stageScheduler, never()).deleteStreams(any(), any());
+    }
+
+    private WorkflowDefinition streamingWorkflow(RetryPolicy retry) {
+        var producer = Stage.builder()
+                .name("producer")
+                .image("eu.gcr.io/hmf-build/image")
+                .version("1.0.0")
+                .retry(Optional.ofNullable(retry))
+                .build();
+        var consumer = Stage.builder()
+                .name("consumer")
+                .image("eu.gcr.io/hmf-build/image")
+                .version("1.0.0")
+                .addInputStages("producer")
+                .addStreamingInputStages("producer")
+                .build();
+        return simpleWorkflow.withStages(producer, consumer);
+    }
+
+    private WorkflowDefinition retryingWorkflow() {
+        var retry = RetryPolicy.builder().attempts(3).initialBackoffSeconds(0).build();
+        return simpleWorkflow.withStages(Stage.builder().from(simpleWorkflow.stages().get(0)).retry(retry).build());
+    }
+
+    /**
+     * Applies received stage state changes to reconstruct the full stage state after each change.
+     */
+    private static class StageStateRecorder implements Consumer<StageStateChange> {
+        private final Map<String, WorkflowGraph.StageRunningState> state = new HashMap<>();
+        private final List<Map<String, WorkflowGraph.StageRunningState>> states = new ArrayList<>();
+        private final List<StageStateChange> changes = new ArrayList<>();
+        private long version = -1;
+
+        @Override
+        public synchronized void accept(final StageStateChange change) {
+            changes.add(change);
+            state.putAll(change.changes());
+            states.add(Map.copyOf(state));
+            version = change.version();
+            notifyAll();
+        }
+
+        synchronized List<Map<String, WorkflowGraph.StageRunningState>> awaitVersion(long expectedVersion) throws InterruptedException {
+            var deadline = System.currentTimeMillis() + 10_000;
+            while (version < expectedVersion && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            return List.copyOf(states);
+        }
+
+        synchronized List<StageStateChange> getChanges() {
+            return List.copyOf(changes);
+        }
+    }
+}